@@ -0,0 +1,254 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.rtp;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.video.BufferedSample;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Gets the first picture on screen as soon as possible, standing in front of the jitter buffer while the stream
+ * starts.
+ * <p/>
+ * Approach: parameter sets are handed to the extractor as soon as they arrive, so the decoder can be configured
+ * right away. Packets before the first IDR frame are skipped, since they can't be decoded. The packets of the first
+ * IDR frame are kept until the decoder is ready and then sent straight to the extractor, skipping the buffer's
+ * window. From then on, every packet goes through the jitter buffer.
+ * <p/>
+ * If the decoder takes long to be ready, the oldest packets that don't carry an IDR frame are dropped to bound the
+ * packets held, so the IDR frame is still there when the decoder is.
+ *
+ * @author Julian Cerruti
+ */
+public class FastStartListener implements RtpSessionDataListener {
+    private static final Log log = LogFactory.getLog(FastStartListener.class);
+    // Packets held while the decoder isn't ready, beyond which the oldest non-IDR ones are dropped
+    private static final int MAX_HELD_PACKETS = 1000;
+
+    private final RtpMediaExtractor extractor;
+    private final RtpSessionDataListener buffer;
+
+    // Once set, every packet goes to the buffer without locking
+    private volatile boolean streaming = false;
+    // Start-up state, guarded by this listener's monitor
+    private final List<DataPacket> heldPackets = new ArrayList<DataPacket>();
+    private boolean idrReceived = false;
+    private long idrTimestamp;
+    // Number of held packets that belong to the first IDR frame or precede it, once it is complete
+    private int idrPacketCount = -1;
+    private boolean decoderReady = false;
+    private int packetsSkipped = 0;
+    private int packetsDropped = 0;
+    private RtpSession session;
+    private RtpParticipantInfo participant;
+
+    /**
+     * Creates a fast start listener.
+     *
+     * @param extractor extractor to send the first IDR frame to
+     * @param buffer    jitter buffer that will receive every other packet
+     */
+    public FastStartListener(RtpMediaExtractor extractor, RtpSessionDataListener buffer) {
+        this.extractor = extractor;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+        if (!streaming) {
+            synchronized (this) {
+                if (!streaming) {
+                    startUp(session, participant, packet);
+                    return;
+                }
+            }
+        }
+        buffer.dataPacketReceived(session, participant, packet);
+    }
+
+    /**
+     * Indicates the decoder is ready to take frames, so the first IDR frame can be sent to it.
+     */
+    public synchronized void decoderReady() {
+        decoderReady = true;
+        flushIfReady();
+    }
+
+    /**
+     * Drops any packet still held.
+     */
+    public synchronized void stop() {
+        for (DataPacket packet : heldPackets) {
+            packet.release();
+        }
+        heldPackets.clear();
+    }
+
+    /**
+     * Handles a packet received while the stream is starting. Must be called holding this listener's monitor.
+     *
+     * @param session
+     * @param participant
+     * @param packet
+     */
+    private void startUp(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+        this.session = session;
+        this.participant = participant;
+        extractor.captureParameterSets(packet);
+
+        int nalUnitTypes = getNalUnitTypes(packet);
+        boolean idr = (nalUnitTypes & (1 << BufferedSample.NAL_TYPE_IDR)) != 0;
+        boolean parameterSet = (nalUnitTypes & ((1 << BufferedSample.NAL_TYPE_SPS) | (1 << BufferedSample.NAL_TYPE_PPS))) != 0;
+
+        if (!idrReceived) {
+            if (!idr && !parameterSet) {
+                packetsSkipped++;
+                return;
+            }
+            if (idr) {
+                idrReceived = true;
+                idrTimestamp = packet.getTimestamp();
+            }
+        } else if (idrPacketCount < 0 && packet.getTimestamp() != idrTimestamp) {
+            // A later frame started, so the IDR frame is complete
+            idrPacketCount = heldPackets.size();
+        }
+
+        // Keep the packet beyond this call (see DataPacket#retain)
+        heldPackets.add(packet.retain());
+        if (idrPacketCount < 0 && idr && packet.hasMarker()) {
+            idrPacketCount = heldPackets.size();
+        }
+
+        if (heldPackets.size() > MAX_HELD_PACKETS) {
+            if (packetsDropped == 0) {
+                log.warn("Decoder not ready after " + MAX_HELD_PACKETS + " packets, dropping the oldest ones but the IDR frame");
+            }
+            dropOldestNonIdrPacket();
+        }
+        flushIfReady();
+    }
+
+    /**
+     * Once the first IDR frame is complete and the decoder is ready, sends the IDR frame (and the parameter sets
+     * before it) to the extractor and any later packet to the buffer. Must be called holding this listener's
+     * monitor.
+     */
+    private void flushIfReady() {
+        if (streaming || idrPacketCount < 0 || !decoderReady) {
+            return;
+        }
+
+        List<DataPacket> idrPackets = new ArrayList<DataPacket>(heldPackets.subList(0, idrPacketCount));
+        // Packets of the IDR frame may have arrived out of order
+        Collections.sort(idrPackets, new Comparator<DataPacket>() {
+            @Override
+            public int compare(DataPacket a, DataPacket b) {
+                return (short) (a.getSequenceNumber() - b.getSequenceNumber());
+            }
+        });
+        for (DataPacket packet : idrPackets) {
+            try {
+                extractor.dataPacketReceived(session, participant, packet);
+            } catch (Throwable t) {
+                log.error("Error while trying to pass packet to extractor", t);
+            }
+        }
+        for (DataPacket packet : heldPackets.subList(idrPacketCount, heldPackets.size())) {
+            try {
+                buffer.dataPacketReceived(session, participant, packet);
+            } catch (Throwable t) {
+                log.error("Error while trying to pass packet to buffer", t);
+            }
+        }
+
+        if (RtpMediaDecoder.DEBUGGING) {
+            log.info("Fast start: sent " + idrPacketCount + " packets to the extractor, skipped " + packetsSkipped +
+                    ", dropped " + packetsDropped);
+        }
+        for (DataPacket packet : heldPackets) {
+            packet.release();
+        }
+        heldPackets.clear();
+        streaming = true;
+    }
+
+    /**
+     * Drops the oldest held packet that doesn't carry an IDR frame. Parameter sets can go too, as the extractor
+     * captured them when they arrived. Must be called holding this listener's monitor.
+     */
+    private void dropOldestNonIdrPacket() {
+        for (int i = 0; i < heldPackets.size(); i++) {
+            if ((getNalUnitTypes(heldPackets.get(i)) & (1 << BufferedSample.NAL_TYPE_IDR)) == 0) {
+                heldPackets.remove(i).release();
+                if (i < idrPacketCount) {
+                    idrPacketCount--;
+                }
+                packetsDropped++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Retrieves the H.264 NAL unit types carried by a packet.
+     *
+     * @param packet
+     * @return bit mask with a bit set for every NAL unit type
+     */
+    private static int getNalUnitTypes(DataPacket packet) {
+        ChannelBuffer payload = packet.getData();
+        int index = payload.readerIndex();
+        if (payload.writerIndex() - index < 1) {
+            return 0;
+        }
+        int nalType = payload.getByte(index) & 0x1f;
+        if (nalType == 28) {
+            // FU-A: the fragmented NAL unit type is in the FU header
+            return payload.writerIndex() - index >= 2 ? 1 << (payload.getByte(index + 1) & 0x1f) : 0;
+        } else if (nalType == 24) {
+            // STAP-A: 16-bit size before every NAL unit
+            int types = 0;
+            index++;
+            while (index + 2 < payload.writerIndex()) {
+                int nalUnitSize = payload.getUnsignedShort(index);
+                index += 2;
+                types |= 1 << (payload.getByte(index) & 0x1f);
+                index += nalUnitSize;
+            }
+            return types;
+        }
+        return 1 << nalType;
+    }
+}
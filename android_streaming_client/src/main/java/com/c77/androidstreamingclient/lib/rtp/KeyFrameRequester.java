@@ -0,0 +1,144 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+
+package com.c77.androidstreamingclient.lib.rtp;
+
+import com.biasedbit.efflux.packet.AbstractFeedbackPacket;
+import com.biasedbit.efflux.packet.FullIntraRequestPacket;
+import com.biasedbit.efflux.packet.PictureLossIndicationPacket;
+import com.biasedbit.efflux.session.RtpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Asks the media source for a key frame when coded video data was lost for good, so the picture recovers in about a
+ * round trip instead of waiting for the source's next scheduled IDR frame.
+ * <p/>
+ * Requests are sent either as Picture Loss Indications (RFC 4585) or as Full Intra Requests (RFC 5104). Once a loss
+ * is reported, a request is sent at most every given interval until an IDR frame arrives, so lost requests are
+ * repeated but a burst of losses only causes one.
+ * Must be used from the thread that extracts frames.
+ *
+ * @author Julian Cerruti
+ */
+public class KeyFrameRequester {
+    public static final String METHOD_PLI = "pli";
+    public static final String METHOD_FIR = "fir";
+
+    private static final Log log = LogFactory.getLog(KeyFrameRequester.class);
+
+    private final boolean fullIntraRequest;
+    // milliseconds between two requests
+    private final long minInterval;
+
+    // Whether frames were lost since the last IDR frame
+    private boolean keyFrameNeeded = false;
+    private long lastRequestTime;
+    // Command sequence number for FIR, increased for every new request but not for repetitions
+    private int firSequenceNumber = 0;
+
+    private volatile long requestsSent = 0;
+
+    /**
+     * Creates a key frame requester.
+     *
+     * @param method      either 'pli' or 'fir'
+     * @param minInterval minimum time in milliseconds between two requests
+     */
+    public KeyFrameRequester(String method, long minInterval) {
+        if (METHOD_FIR.equalsIgnoreCase(method)) {
+            fullIntraRequest = true;
+        } else if (METHOD_PLI.equalsIgnoreCase(method)) {
+            fullIntraRequest = false;
+        } else {
+            throw new IllegalArgumentException("Unknown key frame request method: " + method);
+        }
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * Reports that a frame which later frames may depend on was lost, and requests a key frame unless one was
+     * requested recently.
+     *
+     * @param session   session to send the request through
+     * @param mediaSsrc SSRC of the media source
+     */
+    public void referenceFrameLost(RtpSession session, long mediaSsrc) {
+        if (!keyFrameNeeded) {
+            keyFrameNeeded = true;
+            firSequenceNumber = (firSequenceNumber + 1) & 0xff;
+        }
+        packetReceived(session, mediaSsrc);
+    }
+
+    /**
+     * Repeats the request if a key frame is still needed and the interval has passed.
+     *
+     * @param session
+     * @param mediaSsrc
+     */
+    public void packetReceived(RtpSession session, long mediaSsrc) {
+        if (!keyFrameNeeded) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastRequestTime < minInterval) {
+            return;
+        }
+        lastRequestTime = now;
+
+        AbstractFeedbackPacket request;
+        if (fullIntraRequest) {
+            FullIntraRequestPacket fir = new FullIntraRequestPacket();
+            fir.addEntry(mediaSsrc, firSequenceNumber);
+            request = fir;
+        } else {
+            request = new PictureLossIndicationPacket();
+            request.setMediaSsrc(mediaSsrc);
+        }
+        request.setSenderSsrc(session.getLocalParticipant().getSsrc());
+
+        if (RtpMediaDecoder.DEBUGGING) {
+            log.info("Requesting key frame: " + request);
+        }
+        session.sendControlPacket(request);
+        requestsSent++;
+    }
+
+    /**
+     * Reports that an IDR frame arrived, so no more requests are needed.
+     */
+    public void keyFrameReceived() {
+        keyFrameNeeded = false;
+    }
+
+    /**
+     * Retrieves how many key frame requests were sent, counting repetitions.
+     *
+     * @return
+     */
+    public long getRequestsSent() {
+        return requestsSent;
+    }
+}
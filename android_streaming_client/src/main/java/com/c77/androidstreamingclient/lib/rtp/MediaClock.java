@@ -0,0 +1,126 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.rtp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Media clock of a RTP stream. It unwraps the 32 bit RTP timestamps, which can start anywhere and wrap around
+ * every ~13 hours at 90 kHz, into a 64 bit timeline, and converts between that timeline and wall clock units.
+ * <p/>
+ * Every timestamp is taken as the closest one to the highest seen so far, so packets arriving late from before a
+ * wrap around are placed before it. A single instance is shared by the jitter buffer and the extractor of a stream,
+ * and it can be used from their threads at the same time.
+ *
+ * @author Julian Cerruti
+ */
+public class MediaClock {
+    // RTP clock rate for H.264 video (RFC 6184)
+    public static final int H264_CLOCK_RATE = 90000;
+
+    private static final long NOT_INITIALIZED = Long.MIN_VALUE;
+
+    private final int clockRate;
+    // Highest unwrapped timestamp seen so far
+    private final AtomicLong highestTimestamp = new AtomicLong(NOT_INITIALIZED);
+
+    /**
+     * Creates a media clock for H.264 video.
+     */
+    public MediaClock() {
+        this(H264_CLOCK_RATE);
+    }
+
+    /**
+     * Creates a media clock running at the given rate.
+     *
+     * @param clockRate RTP timestamp units per second
+     */
+    public MediaClock(int clockRate) {
+        this.clockRate = clockRate;
+    }
+
+    /**
+     * Retrieves the 64 bit value of a RTP timestamp.
+     *
+     * @param rtpTimestamp 32 bit RTP timestamp of a received packet
+     * @return unwrapped timestamp
+     */
+    public long unwrap(long rtpTimestamp) {
+        rtpTimestamp &= 0xffffffffL;
+        while (true) {
+            long highest = highestTimestamp.get();
+            if (highest == NOT_INITIALIZED) {
+                if (highestTimestamp.compareAndSet(NOT_INITIALIZED, rtpTimestamp)) {
+                    return rtpTimestamp;
+                }
+                continue;
+            }
+
+            // The lower 32 bits of the difference, read as signed, is the distance to the closest value
+            long unwrapped = highest + (int) (rtpTimestamp - highest);
+            if (unwrapped <= highest || highestTimestamp.compareAndSet(highest, unwrapped)) {
+                return unwrapped;
+            }
+        }
+    }
+
+    /**
+     * Retrieves a RTP timestamp in milliseconds on the unwrapped timeline.
+     *
+     * @param rtpTimestamp 32 bit RTP timestamp of a received packet
+     * @return
+     */
+    public long getMilliseconds(long rtpTimestamp) {
+        return toMilliseconds(unwrap(rtpTimestamp));
+    }
+
+    /**
+     * Converts an unwrapped timestamp to milliseconds.
+     *
+     * @param timestamp
+     * @return
+     */
+    public long toMilliseconds(long timestamp) {
+        return timestamp * 1000L / clockRate;
+    }
+
+    /**
+     * Converts an unwrapped timestamp to microseconds.
+     *
+     * @param timestamp
+     * @return
+     */
+    public long toMicroseconds(long timestamp) {
+        return timestamp * 1000000L / clockRate;
+    }
+
+    /**
+     * Retrieves the clock rate.
+     *
+     * @return RTP timestamp units per second
+     */
+    public int getClockRate() {
+        return clockRate;
+    }
+}
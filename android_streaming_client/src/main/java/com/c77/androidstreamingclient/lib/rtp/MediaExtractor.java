@@ -30,8 +30,6 @@ import android.media.MediaFormat;
  * @author Julian Cerruti
  */
 public interface MediaExtractor {
-    // Think how to get CSD-0/CSD-1 codec-specific data chunks
-
     /**
      * Returns Android MediaFormat used to properly configure Android API decoder.
      * It depends on the codec configuration.
@@ -22,7 +22,6 @@
 
 package com.c77.androidstreamingclient.lib.rtp;
 
-import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -30,19 +29,25 @@ import android.view.SurfaceView;
 
 import com.biasedbit.efflux.SsrcListener;
 import com.biasedbit.efflux.participant.RtpParticipant;
+import com.biasedbit.efflux.session.AbstractRtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
 import com.biasedbit.efflux.session.SingleParticipantSession;
 import com.c77.androidstreamingclient.lib.exceptions.RtpPlayerException;
+import com.c77.androidstreamingclient.lib.rtp.buffer.AdaptiveRtpMediaBuffer;
 import com.c77.androidstreamingclient.lib.rtp.buffer.MinDelayRtpMediaBuffer;
+import com.c77.androidstreamingclient.lib.rtp.buffer.RingRtpMediaBuffer;
 import com.c77.androidstreamingclient.lib.rtp.buffer.RtpMediaBuffer;
 import com.c77.androidstreamingclient.lib.rtp.buffer.TimeWindowRtpMediaBuffer;
 import com.c77.androidstreamingclient.lib.video.BufferedSample;
+import com.c77.androidstreamingclient.lib.video.CodecDecoder;
 import com.c77.androidstreamingclient.lib.video.Decoder;
+import com.c77.androidstreamingclient.lib.video.MediaCodecBackend;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
+import java.util.Locale;
 import java.util.Properties;
 
 /**
@@ -56,13 +61,28 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
     // configuration constants
     public static final String DEBUGGING_PROPERTY = "DEBUGGING";
     public static final String CONFIG_USE_NIO = "USE_NIO";
+    public static final String CONFIG_TRANSPORT = "TRANSPORT";
     public static final String CONFIG_BUFFER_TYPE = "BUFFER_TYPE";
     public static final String CONFIG_RECEIVE_BUFFER_SIZE = "RECEIVE_BUFFER_SIZE_BYTES";
+    public static final String CONFIG_READ_BUFFER_SIZE = "READ_BUFFER_SIZE_BYTES";
+    public static final String CONFIG_ZERO_COPY_DECODING = "ZERO_COPY_DECODING";
+    public static final String CONFIG_DATA_PACKET_POOL_SIZE = "DATA_PACKET_POOL_SIZE";
+    public static final String CONFIG_INPUT_BUFFER_TIMEOUT = "INPUT_BUFFER_TIMEOUT_MS";
+    public static final String CONFIG_INPUT_OVERFLOW_POLICY = "INPUT_OVERFLOW_POLICY";
+    public static final String CONFIG_INPUT_STAGING_FRAMES = "INPUT_STAGING_FRAMES";
+    public static final String CONFIG_FAST_START = "FAST_START";
+    public static final String CONFIG_KEYFRAME_REQUEST = "KEYFRAME_REQUEST";
+    public static final String CONFIG_KEYFRAME_REQUEST_INTERVAL = "KEYFRAME_REQUEST_INTERVAL_MS";
+    public static final String CONFIG_RTX_PAYLOAD_TYPE = "RTX_PAYLOAD_TYPE";
+    public static final String CONFIG_FEC_PAYLOAD_TYPE = "FEC_PAYLOAD_TYPE";
     public static final int DATA_STREAMING_PORT = 5006;
+    public static final int PAYLOAD_TYPE = 96;
     public static final int SURFACE_WIDTH = 640;
     public static final int SURFACE_HEIGHT = 480;
     public static final String TRANSPORT_PROTOCOL = "RTP";
     public static final String VIDEO_CODEC = "H.264";
+    // milliseconds to wait for the stream's parameter sets before configuring the decoder with default ones
+    private static final long PARAMETER_SETS_TIMEOUT = 2000;
 
     // constant used to activate and deactivate logs
     public static boolean DEBUGGING;
@@ -71,14 +91,29 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
     private final Properties configuration;
     public String bufferType = "time-window";
     public boolean useNio = true;
+    public String transport = AbstractRtpSession.TRANSPORT_NETTY_OIO;
     public int receiveBufferSize = 50000;
+    public int readBufferSize = 1500;
+    public boolean zeroCopyDecoding = false;
+    public int dataPacketPoolSize = 0;
+    public long inputBufferTimeout = 10;
+    public String inputOverflowPolicy = CodecDecoder.POLICY_DROP_UNTIL_IDR;
+    public int inputStagingFrames = 8;
+    public boolean fastStart = false;
+    public String keyFrameRequest = "none";
+    public long keyFrameRequestInterval = 300;
+    public int rtxPayloadType = -1;
+    public int fecPayloadType = -1;
     private PlayerThread playerThread;
+    // Created by the RTP client thread. Guarded by this decoder's monitor, which the player thread waits on
     private RtpMediaExtractor rtpMediaExtractor;
+    private FastStartListener fastStartListener;
+    private volatile UlpfecReceiver fecReceiver;
+    // System time when the decoder was started
+    private volatile long startTime = -1;
     private RTPClientThread rtpSessionThread;
-    private ByteBuffer[] inputBuffers;
-    private ByteBuffer[] outputBuffers;
-    private MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-    private MediaCodec decoder;
+    // Feeds the Android API decoder, once the surface is ready
+    private volatile CodecDecoder codecDecoder;
     private Log log = LogFactory.getLog(RtpMediaDecoder.class);
     // If this stream is set, use it to trace packet arrival data
     private OutputStream traceOutputStream = null;
@@ -102,12 +137,52 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
      *  DEBUGGING: boolean indicating if information should be sent to logcat.
      *  USE_NIO: boolean indicating how to change the underlying I/O mechanism used by Netty.
      *      'false' will force the usage of NioDatagramChannelFactory vs. the default (true) which
-     *      uses OioDatagramChannelFactory
-     *  RECEIVE_BUFFER_SIZE_BYTES: number of bytes to configure underlying RTP session.
-     *  BUFFER_TYPE: Has to be one of: 'time-window' or 'min-delay' in order to choose between existing
-     *      buffering approaches.
+     *      uses OioDatagramChannelFactory. Only used when TRANSPORT is not set.
+     *  TRANSPORT: Has to be one of: 'netty-oio', 'netty-nio', 'nio' or 'socket' in order to choose how packets are
+     *      received. Overrides USE_NIO when set, which picks one of Netty's transports otherwise. 'nio' is efflux's
+     *      own java.nio engine, a single thread reading both channels into direct buffers and decoding packets in
+     *      place; 'socket' uses plain blocking sockets. Both are opt-in: they ignore ZERO_COPY_DECODING and the
+     *      session's executor, and don't take less CPU than Netty at the usual video rates (see the benchmarks'
+     *      TransportLoadTest results in the README).
+     *  RECEIVE_BUFFER_SIZE_BYTES: size in bytes of the sockets' kernel receive buffers (SO_RCVBUF).
+     *  READ_BUFFER_SIZE_BYTES=1500: size in bytes of the buffer each datagram is read into. Larger datagrams are
+     *      truncated.
+     *  ZERO_COPY_DECODING: boolean indicating if RTP payloads should be sliced from the received buffer
+     *      instead of copied. Each buffered packet keeps its whole receive buffer alive, so use it with
+     *      a small READ_BUFFER_SIZE_BYTES.
+     *  DATA_PACKET_POOL_SIZE: number of RTP packet objects to recycle on the receive path (0 disables pooling).
+     *  BUFFER_TYPE: Has to be one of: 'time-window', 'ring', 'adaptive' or 'min-delay' in order to choose between
+     *      existing buffering approaches. 'ring' behaves as 'time-window' without locking between threads.
+     *      'adaptive' sizes its window from the measured network jitter.
      *  NODELAY_TIMEOUT: Maximum delay in milliseconds for the min-delay buffer.
-     *  FRAMES_WINDOW_TIME=1000: Window size in milliseconds for the time-window buffer
+     *  FRAMES_WINDOW_TIME=1000: Window size in milliseconds for the time-window and ring buffers, initial one for
+     *      the adaptive buffer
+     *  FRAME_AWARE=false: Whether the time-window buffer releases whole frames, dropping incomplete ones.
+     *  SENDER_REPORT_SYNC=false: Whether the time-window, ring and adaptive buffers base play-out on the
+     *      capture time told by the sender's RTCP sender reports instead of on the first packet's arrival.
+     *  NACK=false: Whether the time-window and min-delay buffers ask the sender to retransmit missing packets
+     *      (RTCP generic NACK) while they can still arrive in time.
+     *  NACK_RTT_MS=100: Round trip time assumed until it is measured from the retransmissions.
+     *  NACK_MAX_RETRIES=3, NACK_MAX_RATE=200: How many times a missing packet is requested, and how many
+     *      requests can be sent per second.
+     *  RING_BUFFER_CAPACITY: Number of packets the ring buffer can hold (rounded up to a power of two).
+     *  ADAPTIVE_MIN_DELAY, ADAPTIVE_MAX_DELAY: Bounds in milliseconds for the adaptive buffer's window.
+     *  ADAPTIVE_LATE_LOSS_TARGET: Fraction of packets the adaptive buffer lets arrive too late to be played.
+     *  INPUT_BUFFER_TIMEOUT_MS=10: Maximum time to wait for a free decoder input buffer.
+     *  INPUT_OVERFLOW_POLICY: What to do with a frame when no decoder input buffer gets free in time. Has to be
+     *      one of: 'drop' (drop the frame), 'drop-until-idr' (drop it and every following frame until the next IDR
+     *      frame) or 'stage' (keep up to INPUT_STAGING_FRAMES frames until a buffer is free, then behave as
+     *      'drop-until-idr').
+     *  INPUT_STAGING_FRAMES=8: Number of frames the 'stage' policy can keep.
+     *  FAST_START=false: Whether to configure the decoder as soon as the stream's parameter sets arrive and send
+     *      it the first IDR frame without waiting for the buffer's window, skipping anything before it.
+     *  KEYFRAME_REQUEST=none: How to ask the sender for a key frame when frames are lost: 'none', 'pli' (RTCP
+     *      Picture Loss Indication) or 'fir' (RTCP Full Intra Request).
+     *  KEYFRAME_REQUEST_INTERVAL_MS=300: Minimum time between two key frame requests.
+     *  RTX_PAYLOAD_TYPE=-1: Payload type of the sender's retransmission stream (RFC 4588), whose packets are
+     *      restored and buffered along with the original ones. -1 disables it.
+     *  FEC_PAYLOAD_TYPE=-1: Payload type of the sender's ULPFEC stream (RFC 5109), used to rebuild lost packets
+     *      before they are missed by the buffer. -1 disables it.
      *
      */
     public RtpMediaDecoder(SurfaceView surfaceView, Properties properties) {
@@ -117,9 +192,41 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
         DEBUGGING = Boolean.parseBoolean(configuration.getProperty(DEBUGGING_PROPERTY, "false"));
         bufferType = configuration.getProperty(CONFIG_BUFFER_TYPE, bufferType);
         useNio = Boolean.parseBoolean(configuration.getProperty(CONFIG_USE_NIO, Boolean.toString(useNio)));
+        // Without TRANSPORT, USE_NIO picks one of Netty's transports as it did before TRANSPORT existed
+        transport = useNio ? AbstractRtpSession.TRANSPORT_NETTY_OIO : AbstractRtpSession.TRANSPORT_NETTY_NIO;
+        transport = configuration.getProperty(CONFIG_TRANSPORT, transport);
         receiveBufferSize = Integer.parseInt(configuration.getProperty(CONFIG_RECEIVE_BUFFER_SIZE, Integer.toString(receiveBufferSize)));
+        readBufferSize = Integer.parseInt(configuration.getProperty(CONFIG_READ_BUFFER_SIZE, Integer.toString(readBufferSize)));
+        zeroCopyDecoding = Boolean.parseBoolean(configuration.getProperty(CONFIG_ZERO_COPY_DECODING, Boolean.toString(zeroCopyDecoding)));
+        dataPacketPoolSize = Integer.parseInt(configuration.getProperty(CONFIG_DATA_PACKET_POOL_SIZE, Integer.toString(dataPacketPoolSize)));
+        inputBufferTimeout = Long.parseLong(configuration.getProperty(CONFIG_INPUT_BUFFER_TIMEOUT, Long.toString(inputBufferTimeout)));
+        inputOverflowPolicy = configuration.getProperty(CONFIG_INPUT_OVERFLOW_POLICY, inputOverflowPolicy);
+        inputStagingFrames = Integer.parseInt(configuration.getProperty(CONFIG_INPUT_STAGING_FRAMES, Integer.toString(inputStagingFrames)));
+        fastStart = Boolean.parseBoolean(configuration.getProperty(CONFIG_FAST_START, Boolean.toString(fastStart)));
+        keyFrameRequest = configuration.getProperty(CONFIG_KEYFRAME_REQUEST, keyFrameRequest);
+        keyFrameRequestInterval = Long.parseLong(configuration.getProperty(CONFIG_KEYFRAME_REQUEST_INTERVAL, Long.toString(keyFrameRequestInterval)));
+        rtxPayloadType = Integer.parseInt(configuration.getProperty(CONFIG_RTX_PAYLOAD_TYPE, Integer.toString(rtxPayloadType)));
+        fecPayloadType = Integer.parseInt(configuration.getProperty(CONFIG_FEC_PAYLOAD_TYPE, Integer.toString(fecPayloadType)));
+        if (!CodecDecoder.POLICY_DROP.equalsIgnoreCase(inputOverflowPolicy) &&
+                !CodecDecoder.POLICY_DROP_UNTIL_IDR.equalsIgnoreCase(inputOverflowPolicy) &&
+                !CodecDecoder.POLICY_STAGE.equalsIgnoreCase(inputOverflowPolicy)) {
+            throw new RuntimeException("Didn't recognize input overflow policy configuration: " + CONFIG_INPUT_OVERFLOW_POLICY + " = " + inputOverflowPolicy);
+        }
+        if (!"none".equalsIgnoreCase(keyFrameRequest) &&
+                !KeyFrameRequester.METHOD_PLI.equalsIgnoreCase(keyFrameRequest) &&
+                !KeyFrameRequester.METHOD_FIR.equalsIgnoreCase(keyFrameRequest)) {
+            throw new RuntimeException("Didn't recognize key frame request configuration: " + CONFIG_KEYFRAME_REQUEST + " = " + keyFrameRequest);
+        }
+        if (!AbstractRtpSession.TRANSPORT_NETTY_OIO.equalsIgnoreCase(transport) &&
+                !AbstractRtpSession.TRANSPORT_NETTY_NIO.equalsIgnoreCase(transport) &&
+                !AbstractRtpSession.TRANSPORT_NIO.equalsIgnoreCase(transport) &&
+                !AbstractRtpSession.TRANSPORT_SOCKET.equalsIgnoreCase(transport)) {
+            throw new RuntimeException("Didn't recognize transport configuration: " + CONFIG_TRANSPORT + " = " + transport);
+        }
+        // The session only knows the transports by their lower case names
+        transport = transport.toLowerCase(Locale.US);
 
-        log.info("RtpMediaDecoder started with params (" + DEBUGGING + "," + bufferType + "," + useNio + "," + receiveBufferSize + ")");
+        log.info("RtpMediaDecoder started with params (" + DEBUGGING + "," + bufferType + "," + useNio + "," + transport + "," + receiveBufferSize + "," + readBufferSize + "," + zeroCopyDecoding + "," + dataPacketPoolSize + "," + inputBufferTimeout + "," + inputOverflowPolicy + "," + inputStagingFrames + "," + fastStart + "," + keyFrameRequest + "," + keyFrameRequestInterval + "," + rtxPayloadType + "," + fecPayloadType + ")");
 
         this.surfaceView = surfaceView;
         surfaceView.getHolder().addCallback(this);
@@ -138,6 +245,7 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
      * Starts decoder, including the underlying RTP session
      */
     public void start() {
+        startTime = System.currentTimeMillis();
         rtpStartClient();
     }
 
@@ -154,14 +262,9 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
      */
     public void release() {
         rtpStopClient();
-        if (decoder != null) {
-            try {
-                decoder.stop();
-            } catch (Exception e) {
-                log.error("Encountered error while trying to stop decoder", e);
-            }
-            decoder.release();
-            decoder = null;
+        if (codecDecoder != null) {
+            codecDecoder.release();
+            codecDecoder = null;
         }
     }
 
@@ -182,18 +285,20 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
 
     /**
      * Retrieves a buffer from the decoder to be filled with data getting it from the Android
-     * decoder input buffers
+     * decoder input buffers. It waits up to INPUT_BUFFER_TIMEOUT_MS for one to be free; when none is, the
+     * returned buffer is either a staging one or one whose frame will be discarded, depending on the
+     * configured input overflow policy.
      *
      * @return
-     * @throws com.c77.androidstreamingclient.lib.exceptions.RtpPlayerException if no such buffer is currently available
+     * @throws com.c77.androidstreamingclient.lib.exceptions.RtpPlayerException if the decoder was not started yet
      */
     @Override
     public BufferedSample getSampleBuffer() throws RtpPlayerException {
-        int inIndex = decoder.dequeueInputBuffer(-1);
-        if (inIndex < 0) {
-            throw new RtpPlayerException("Didn't get a buffer from the MediaCodec");
+        CodecDecoder codecDecoder = this.codecDecoder;
+        if (codecDecoder == null) {
+            throw new RtpPlayerException("The MediaCodec was not started yet");
         }
-        return new BufferedSample(inputBuffers[inIndex], inIndex);
+        return codecDecoder.getSampleBuffer();
     }
 
     /**
@@ -201,6 +306,7 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
      *
      * @param decodeBuffer
      * @throws Exception
+     * @throws com.c77.androidstreamingclient.lib.exceptions.RtpPlayerException if the decoder was released
      */
     @Override
     public void decodeFrame(BufferedSample decodeBuffer) throws Exception {
@@ -209,44 +315,91 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
             log.info(decodeBuffer.toString());
         }
 
-        // Queue the sample to be decoded
-        decoder.queueInputBuffer(decodeBuffer.getIndex(), 0,
-                decodeBuffer.getSampleSize(), decodeBuffer.getPresentationTimeUs(), 0);
+        // release() may clear the field since the buffer was taken
+        CodecDecoder codecDecoder = this.codecDecoder;
+        if (codecDecoder == null) {
+            throw new RtpPlayerException("The MediaCodec was released");
+        }
+        codecDecoder.decodeFrame(decodeBuffer);
+    }
 
-        // Read the decoded output
-        int outIndex = decoder.dequeueOutputBuffer(info, 10000);
-        switch (outIndex) {
-            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                if (DEBUGGING) {
-                    log.info("The output buffers have changed.");
-                }
-                outputBuffers = decoder.getOutputBuffers();
-                break;
-            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                if (DEBUGGING) {
-                    log.info("New format " + decoder.getOutputFormat());
-                }
-                break;
-            case MediaCodec.INFO_TRY_AGAIN_LATER:
-                if (DEBUGGING) {
-                    log.info("Call to dequeueOutputBuffer timed out.");
-                }
-                break;
-            default:
-                if (DEBUGGING) {
-                    ByteBuffer buffer = outputBuffers[outIndex];
-                    log.info("We can't use this buffer but render it due to the API limit, " + buffer);
-                }
+    /**
+     * Retrieves the configured policy for frames that find no free decoder input buffer.
+     *
+     * @return 'drop', 'drop-until-idr' or 'stage'
+     */
+    public String getInputOverflowPolicy() {
+        return inputOverflowPolicy;
+    }
 
-                // return buffer to the codec
-                decoder.releaseOutputBuffer(outIndex, true);
-                break;
-        }
+    /**
+     * Retrieves how many frames were discarded by the input overflow policy.
+     *
+     * @return
+     */
+    public long getFramesDiscarded() {
+        CodecDecoder codecDecoder = this.codecDecoder;
+        return codecDecoder != null ? codecDecoder.getFramesDiscarded() : 0;
+    }
 
-        // All decoded frames have been rendered, we can stop playing now
-        if (((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) && DEBUGGING) {
-            log.info("All decoded frames have been rendered");
-        }
+    /**
+     * Retrieves the object rebuilding lost packets from the FEC stream, along with its counters.
+     *
+     * @return null unless FEC_PAYLOAD_TYPE is set and the RTP session was started
+     */
+    public UlpfecReceiver getFecReceiver() {
+        return fecReceiver;
+    }
+
+    /**
+     * Retrieves the time it took since the decoder was started to render the first frame.
+     *
+     * @return milliseconds, or -1 if no frame was rendered yet
+     */
+    public long getTimeToFirstFrame() {
+        CodecDecoder codecDecoder = this.codecDecoder;
+        long firstFrameRenderedTime = codecDecoder != null ? codecDecoder.getFirstFrameRenderedTime() : -1;
+        return firstFrameRenderedTime >= 0 ? firstFrameRenderedTime - startTime : -1;
+    }
+
+    /**
+     * Retrieves how many frames were queued to the decoder.
+     *
+     * @return
+     */
+    public long getFramesQueued() {
+        CodecDecoder codecDecoder = this.codecDecoder;
+        return codecDecoder != null ? codecDecoder.getFramesQueued() : 0;
+    }
+
+    /**
+     * Retrieves how many decoded frames were rendered.
+     *
+     * @return
+     */
+    public long getFramesRendered() {
+        CodecDecoder codecDecoder = this.codecDecoder;
+        return codecDecoder != null ? codecDecoder.getFramesRendered() : 0;
+    }
+
+    /**
+     * Retrieves how many frames are inside the decoder's pipeline: queued but not yet rendered.
+     *
+     * @return
+     */
+    public long getFramesInFlight() {
+        CodecDecoder codecDecoder = this.codecDecoder;
+        return codecDecoder != null ? codecDecoder.getFramesInFlight() : 0;
+    }
+
+    /**
+     * Retrieves the largest number of frames seen inside the decoder's pipeline at once.
+     *
+     * @return
+     */
+    public long getMaxFramesInFlight() {
+        CodecDecoder codecDecoder = this.codecDecoder;
+        return codecDecoder != null ? codecDecoder.getMaxFramesInFlight() : 0;
     }
 
     /**
@@ -320,27 +473,36 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
 
         @Override
         public void run() {
-            // Wait a little bit to make sure the RtpClientThread had the opportunity to start
-            // and create the rtpMediaExtractor
+            // Wait for the RtpClientThread to create the rtpMediaExtractor, then for the stream's in-band
+            // parameter sets so the decoder is configured for the actual stream
+            RtpMediaExtractor extractor;
             try {
-                sleep(500);
+                synchronized (RtpMediaDecoder.this) {
+                    while (rtpMediaExtractor == null) {
+                        RtpMediaDecoder.this.wait();
+                    }
+                    extractor = rtpMediaExtractor;
+                }
+                extractor.awaitParameterSets(PARAMETER_SETS_TIMEOUT);
             } catch (InterruptedException e) {
+                return;
             }
-            MediaFormat mediaFormat = rtpMediaExtractor.getMediaFormat();
+            MediaFormat mediaFormat = extractor.getMediaFormat();
             String mime = mediaFormat.getString(MediaFormat.KEY_MIME);
-            if (mime.startsWith("video/")) {
-                decoder = MediaCodec.createDecoderByType(mime);
-                decoder.configure(mediaFormat, surface, null, 0);
-            }
-
-            if (decoder == null) {
+            if (!mime.startsWith("video/")) {
                 log.info("Can't find video info!");
                 return;
             }
 
-            decoder.start();
-            inputBuffers = decoder.getInputBuffers();
-            outputBuffers = decoder.getOutputBuffers();
+            CodecDecoder codecDecoder = new CodecDecoder(new MediaCodecBackend(mediaFormat, surface),
+                    inputBufferTimeout, inputOverflowPolicy, inputStagingFrames);
+            codecDecoder.start();
+            synchronized (RtpMediaDecoder.this) {
+                RtpMediaDecoder.this.codecDecoder = codecDecoder;
+                if (fastStartListener != null) {
+                    fastStartListener.decoderReady();
+                }
+            }
         }
     }
 
@@ -357,7 +519,7 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
         public void run() {
             RtpParticipant participant = RtpParticipant.createReceiver("0.0.0.0", DATA_STREAMING_PORT, 5007);
             RtpParticipant remoteParticipant = RtpParticipant.createReceiver("10.34.0.10", 4556, 4557);
-            session = new SingleParticipantSession("1", 96, participant, remoteParticipant);
+            session = new SingleParticipantSession("1", PAYLOAD_TYPE, participant, remoteParticipant);
             // listen to ssrc changes, in order to be able to auto-magically "reconnect",
             // i.e. if video publisher is closed and re-opened.
             session.setSsrcListener(new SsrcListener() {
@@ -374,49 +536,109 @@ public class RtpMediaDecoder implements Decoder, SurfaceHolder.Callback {
             }
 
             // Choose buffer implementation according to configuration
+            // Buffer and extractor share the stream's clock to unwrap RTP timestamps
+            MediaClock mediaClock = new MediaClock();
             RtpMediaBuffer buffer;
             if ("time-window".equalsIgnoreCase(bufferType)) {
-                rtpMediaExtractor = new RtpMediaExtractor(RtpMediaDecoder.this);
-                buffer = new TimeWindowRtpMediaBuffer(rtpMediaExtractor, configuration);
+                rtpMediaExtractor = new RtpMediaExtractor(RtpMediaDecoder.this, mediaClock);
+                buffer = new TimeWindowRtpMediaBuffer(rtpMediaExtractor, mediaClock, configuration);
+            } else if ("ring".equalsIgnoreCase(bufferType)) {
+                rtpMediaExtractor = new RtpMediaExtractor(RtpMediaDecoder.this, mediaClock);
+                buffer = new RingRtpMediaBuffer(rtpMediaExtractor, mediaClock, configuration);
+            } else if ("adaptive".equalsIgnoreCase(bufferType)) {
+                rtpMediaExtractor = new RtpMediaExtractor(RtpMediaDecoder.this, mediaClock);
+                buffer = new AdaptiveRtpMediaBuffer(rtpMediaExtractor, mediaClock, configuration);
             } else if ("min-delay".equalsIgnoreCase(bufferType)) {
-                rtpMediaExtractor = new RtpMediaExtractor(RtpMediaDecoder.this);
-                buffer = new MinDelayRtpMediaBuffer(rtpMediaExtractor, configuration);
+                rtpMediaExtractor = new RtpMediaExtractor(RtpMediaDecoder.this, mediaClock);
+                buffer = new MinDelayRtpMediaBuffer(rtpMediaExtractor, mediaClock, configuration);
             } else {
                 throw new RuntimeException("Didn't recognize buffer type configuration: " + CONFIG_BUFFER_TYPE + " = " + bufferType);
             }
-            session.addDataListener(buffer);
+
+            if (!"none".equalsIgnoreCase(keyFrameRequest)) {
+                rtpMediaExtractor.setKeyFrameRequester(new KeyFrameRequester(keyFrameRequest, keyFrameRequestInterval));
+            }
+
+            // Hand the extractor over to the player thread, which waits for it to configure the decoder
+            FastStartListener fastStartListener = null;
+            synchronized (RtpMediaDecoder.this) {
+                if (fastStart) {
+                    fastStartListener = new FastStartListener(rtpMediaExtractor, buffer);
+                    if (codecDecoder != null) {
+                        fastStartListener.decoderReady();
+                    }
+                }
+                RtpMediaDecoder.this.fastStartListener = fastStartListener;
+                RtpMediaDecoder.this.notifyAll();
+            }
+            RtpSessionDataListener listener = fastStartListener != null ? fastStartListener : buffer;
+
+            // FEC packets come on their own stream and are used up before the buffer, which gets the recovered ones
+            UlpfecReceiver fecReceiver = null;
+            if (fecPayloadType >= 0) {
+                session.addFecPayloadType(fecPayloadType);
+                fecReceiver = new UlpfecReceiver(listener, fecPayloadType);
+                listener = fecReceiver;
+            }
+            RtpMediaDecoder.this.fecReceiver = fecReceiver;
+            session.addDataListener(listener);
 
             session.setDiscardOutOfOrder(false);
 
-            // This parameter changes the underlying I/O mechanism used by Netty
-            // It is counter-intuitive: 'false' will force the usage of NioDatagramChannelFactory
-            // vs. the default (true) which uses OioDatagramChannelFactory
-            // It is unclear which produces better results. This value
-            // (false, to make NioDatagramChannelFactory used) resolves the memory management usage
-            // reported in https://github.com/creativa77/AndroidStreamingClient/issues/4
-            // It may make sense that this works better for us since efflux is not used in Android normally
-            // NOTE: Despite fixing the memory usage, it is still pending to test which method produces
-            // best overall results
+            // This parameter changes the underlying I/O mechanism
+            // USE_NIO only chooses between Netty's transports. It is counter-intuitive: 'false' will force the usage
+            // of NioDatagramChannelFactory vs. the default (true) which uses OioDatagramChannelFactory. The former
+            // resolves the memory management usage reported in
+            // https://github.com/creativa77/AndroidStreamingClient/issues/4
+            // The benchmarks' TransportLoadTest (results in the README) shows no clear reason to leave Netty at the
+            // rates a video stream has: at 1000 packets/s 'socket' takes more CPU per packet than 'nio' and
+            // 'netty-nio' and has the worst p99 latency. Only from 10000 packets/s on does 'socket' take the least
+            // CPU per packet, while 'nio' stays close to 'netty-nio'. Netty stays the default, being the one honouring
+            // ZERO_COPY_DECODING and the session's executor, and the others are opt-in through TRANSPORT
             //
-            session.setUseNio(useNio);
+            session.setTransport(transport);
 
             // NOTE: This parameter seems to affect the performance a lot.
             // The default value of 1500 drops many more packets than
             // the experimental value of 15000 (and later increased to 30000)
             session.setReceiveBufferSize(receiveBufferSize);
 
-            session.init();
+            // Each datagram is read into a buffer of this size, only the kernel buffer above needs to be large
+            session.setReadBufferSize(readBufferSize);
 
-            log.info("RTP Session created");
+            // Retransmissions come on their own stream, so they don't count as the original stream's packets
+            if (rtxPayloadType >= 0) {
+                session.addRetransmissionPayloadType(rtxPayloadType, PAYLOAD_TYPE);
+            }
 
-            try {
-                while (true) {
-                    sleep(1000);
+            // Avoid copying every payload out of the received buffer
+            session.setZeroCopyDecoding(zeroCopyDecoding);
+
+            // Recycle packets once the buffer has passed them to the extractor
+            session.setDataPacketPoolSize(dataPacketPoolSize);
+
+            if (session.init()) {
+                log.info("RTP Session created");
+
+                try {
+                    while (true) {
+                        sleep(1000);
+                    }
+                } catch (InterruptedException e) {
+                    log.error("Exiting thread through interruption", e);
                 }
-            } catch (InterruptedException e) {
-                log.error("Exiting thread through interruption", e);
+                session.terminate();
+            } else {
+                // Nothing will be received, most likely because the ports are taken. The session logged why
+                log.error("Couldn't create the RTP session (transport " + transport + ", data port " +
+                        DATA_STREAMING_PORT + "), no video will be played");
+            }
+            if (fecReceiver != null) {
+                fecReceiver.stop();
+            }
+            if (fastStartListener != null) {
+                fastStartListener.stop();
             }
-            session.terminate();
             buffer.stop();
         }
     }
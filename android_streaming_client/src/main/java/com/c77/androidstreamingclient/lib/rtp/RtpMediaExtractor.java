@@ -31,12 +31,14 @@ import com.biasedbit.efflux.session.RtpSessionDataListener;
 import com.c77.androidstreamingclient.lib.exceptions.RtpPlayerException;
 import com.c77.androidstreamingclient.lib.video.BufferedSample;
 import com.c77.androidstreamingclient.lib.video.Decoder;
+import com.c77.androidstreamingclient.lib.video.SequenceParameterSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jboss.netty.buffer.ChannelBuffer;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * RTP Extractor that takes packets, creates frames and sends them to the decoder.
@@ -54,15 +56,25 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
     private static final Log log = LogFactory.getLog(RtpMediaExtractor.class);
     private final byte[] byteStreamStartCodePrefix = {(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x01};
     private final Decoder decoder;
+    private final MediaClock mediaClock;
     // Extractor settings
     //   Whether to use Byte Stream Format (H.264 spec., annex B)
     //   (prepends the byte stream 0x00000001 to each NAL unit)
     private boolean useByteStreamFormat = true;
-    private int lastSequenceNumber = 0;
+    private long lastSequenceNumber = 0;
     private boolean lastSequenceNumberIsValid = false;
     private boolean sequenceError = false;
     private boolean currentFrameHasError = false;
     private BufferedSample currentFrame;
+    // Latest in-band parameter sets, without start code. Guarded by this extractor's monitor, as they may be
+    // captured on arrival, before the jitter buffer, and read when the decoder is configured
+    private byte[] sps;
+    private byte[] pps;
+    private SequenceParameterSet sequenceParameterSet;
+    // Last sequence parameter set received, even if it couldn't be parsed
+    private byte[] lastSpsReceived;
+    // Asks the source for a key frame after losses, if set
+    private KeyFrameRequester keyFrameRequester;
 
     /**
      * Creates an RTP extractor that uses a given decoder.
@@ -70,7 +82,18 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
      * @param decoder
      */
     public RtpMediaExtractor(Decoder decoder) {
+        this(decoder, new MediaClock());
+    }
+
+    /**
+     * Creates an RTP extractor that uses a given decoder and unwraps timestamps with the stream's media clock.
+     *
+     * @param decoder
+     * @param mediaClock clock shared with the buffer feeding this extractor
+     */
+    public RtpMediaExtractor(Decoder decoder, MediaClock mediaClock) {
         this.decoder = decoder;
+        this.mediaClock = mediaClock;
     }
 
     /**
@@ -82,14 +105,17 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
      */
     @Override
     public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+        long sequenceNumber = packet.getExtendedSequenceNumber();
+        long timestamp = mediaClock.unwrap(packet.getTimestamp());
+
         String debugging = "RTP data. ";
         debugging += packet.getDataSize() + "b ";
         debugging += "#" + packet.getSequenceNumber();
         debugging += " " + packet.getTimestamp();
 
-        if (lastSequenceNumberIsValid && (lastSequenceNumber + 1) != packet.getSequenceNumber()) {
+        if (lastSequenceNumberIsValid && (lastSequenceNumber + 1) != sequenceNumber) {
             sequenceError = true;
-            debugging += " SKIPPED (" + (packet.getSequenceNumber() - lastSequenceNumber - 1) + ")";
+            debugging += " SKIPPED (" + (sequenceNumber - lastSequenceNumber - 1) + ")";
         } else {
             sequenceError = false;
         }
@@ -100,14 +126,26 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
 
         H264Packet h264Packet = new H264Packet(packet);
 
+        if (keyFrameRequester != null) {
+            if (h264Packet.startsIdrFrame()) {
+                keyFrameRequester.keyFrameReceived();
+            } else if (sequenceError && !h264Packet.continuesNonReferenceFrame(currentFrame, timestamp)) {
+                // Whatever was lost may be referenced by the frames to come, up to the next IDR frame
+                keyFrameRequester.referenceFrameLost(session, packet.getSsrc());
+            } else {
+                keyFrameRequester.packetReceived(session, packet.getSsrc());
+            }
+        }
+
         switch (h264Packet.h264NalType) {
             case FULL:
                 if (RtpMediaDecoder.DEBUGGING) {
                     log.info("NAL: full packet");
                 }
-                // Send the buffer upstream for processing
+                captureParameterSet(packet.getData());
 
-                startFrame(packet.getTimestamp());
+                // Send the buffer upstream for processing
+                startFrame(timestamp);
                 if (currentFrame != null) {
 
                     if (useByteStreamFormat) {
@@ -128,7 +166,7 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
                         log.info("FU-A start found. Starting new frame");
                     }
 
-                    startFrame(packet.getTimestamp());
+                    startFrame(timestamp);
 
                     if (currentFrame != null) {
                         // Add stream header
@@ -148,14 +186,16 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
                     // Did we miss packets in the middle of a frame transition?
                     // In that case, I don't think there's much we can do other than flush our buffer
                     // and discard everything until the next buffer
-                    if (packet.getTimestamp() != currentFrame.getRtpTimestamp()) {
+                    if (timestamp != currentFrame.getRtpTimestamp()) {
                         if (RtpMediaDecoder.DEBUGGING) {
                             log.warn("Non-consecutive timestamp found");
                         }
 
                         currentFrameHasError = true;
                     }
-                    if (sequenceError) {
+                    // A gap right before a start fragment lost the end of an earlier frame (or a whole frame the
+                    // buffer dropped), not part of this one
+                    if (sequenceError && !h264Packet.isStart()) {
                         currentFrameHasError = true;
                     }
 
@@ -166,7 +206,12 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
                         log.info("Dropping frame");
                     }
 
-                    if (h264Packet.isEnd()) {
+                    if (h264Packet.isEnd() && currentFrameHasError) {
+                        // Don't feed the decoder a truncated frame. The buffer is kept for the next one
+                        if (RtpMediaDecoder.DEBUGGING) {
+                            log.info("FU-A end found. Dropping incomplete frame");
+                        }
+                    } else if (h264Packet.isEnd()) {
                         if (RtpMediaDecoder.DEBUGGING) {
                             log.info("FU-A end found. Sending frame!");
                         }
@@ -197,9 +242,10 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
                     // NAL Unit Data (of the size read above)
                     byte[] nalUnitData = new byte[nalUnitSize];
                     buffer.readBytes(nalUnitData);
+                    captureParameterSet(nalUnitData);
 
                     // Create and send the buffer upstream for processing
-                    startFrame(packet.getTimestamp());
+                    startFrame(timestamp);
 
                     if (currentFrame != null) {
                         if (useByteStreamFormat) {
@@ -217,14 +263,144 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
                 break;
         }
 
-        lastSequenceNumber = packet.getSequenceNumber();
+        lastSequenceNumber = sequenceNumber;
         lastSequenceNumberIsValid = true;
     }
 
+    /**
+     * Sets the object asking the source for a key frame when frames are lost.
+     *
+     * @param keyFrameRequester null to not request key frames
+     */
+    public void setKeyFrameRequester(KeyFrameRequester keyFrameRequester) {
+        this.keyFrameRequester = keyFrameRequester;
+    }
+
+    /**
+     * Keeps the parameter sets carried by a packet, either as single NAL units or in a STAP-A. Unlike
+     * {@link #dataPacketReceived}, it may be called from any thread, e.g. as soon as packets arrive.
+     *
+     * @param packet
+     */
+    public void captureParameterSets(DataPacket packet) {
+        ChannelBuffer payload = packet.getData();
+        if (payload.readableBytes() == 0) {
+            return;
+        }
+        int nalType = payload.getByte(payload.readerIndex()) & 0x1f;
+        if (nalType == 24) {
+            // STAP-A: 16-bit size before every NAL unit
+            int index = payload.readerIndex() + 1;
+            while (index + 2 <= payload.writerIndex()) {
+                int nalUnitSize = payload.getUnsignedShort(index);
+                index += 2;
+                if (nalUnitSize == 0 || index + nalUnitSize > payload.writerIndex()) {
+                    return;
+                }
+                int nalUnitType = payload.getByte(index) & 0x1f;
+                if (nalUnitType == BufferedSample.NAL_TYPE_SPS || nalUnitType == BufferedSample.NAL_TYPE_PPS) {
+                    byte[] nalUnit = new byte[nalUnitSize];
+                    payload.getBytes(index, nalUnit);
+                    storeParameterSet(nalUnit);
+                }
+                index += nalUnitSize;
+            }
+        } else {
+            captureParameterSet(payload);
+        }
+    }
+
+    /**
+     * Keeps a copy of the NAL unit carried by a single NAL unit packet if it is a parameter set.
+     *
+     * @param payload
+     */
+    private void captureParameterSet(ChannelBuffer payload) {
+        int nalUnitType = payload.getByte(payload.readerIndex()) & 0x1f;
+        if (nalUnitType == BufferedSample.NAL_TYPE_SPS || nalUnitType == BufferedSample.NAL_TYPE_PPS) {
+            byte[] nalUnit = new byte[payload.readableBytes()];
+            payload.getBytes(payload.readerIndex(), nalUnit);
+            storeParameterSet(nalUnit);
+        }
+    }
+
+    /**
+     * Keeps the NAL unit if it is a parameter set.
+     *
+     * @param nalUnit NAL unit without start code
+     */
+    private void captureParameterSet(byte[] nalUnit) {
+        if (nalUnit.length == 0) {
+            return;
+        }
+        int nalUnitType = nalUnit[0] & 0x1f;
+        if (nalUnitType == BufferedSample.NAL_TYPE_SPS || nalUnitType == BufferedSample.NAL_TYPE_PPS) {
+            storeParameterSet(nalUnit);
+        }
+    }
+
+    /**
+     * Stores a parameter set, parsing sequence parameter sets, and wakes up anyone waiting for them.
+     *
+     * @param nalUnit SPS or PPS NAL unit without start code
+     */
+    private synchronized void storeParameterSet(byte[] nalUnit) {
+        int nalUnitType = nalUnit[0] & 0x1f;
+        if (nalUnitType == BufferedSample.NAL_TYPE_SPS) {
+            // Parameter sets are repeated before every IDR frame
+            if (Arrays.equals(lastSpsReceived, nalUnit)) {
+                return;
+            }
+            lastSpsReceived = nalUnit;
+            try {
+                SequenceParameterSet parsed = SequenceParameterSet.parse(nalUnit);
+                sequenceParameterSet = parsed;
+                sps = nalUnit;
+                log.info("New in-band " + parsed);
+            } catch (IllegalArgumentException e) {
+                log.warn("Ignoring invalid sequence parameter set: " + e.getMessage());
+            }
+        } else if (nalUnitType == BufferedSample.NAL_TYPE_PPS) {
+            pps = nalUnit;
+        }
+        if (hasParameterSets()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Indicates whether both a sequence and a picture parameter set were received, so the media format
+     * describes the actual stream.
+     *
+     * @return
+     */
+    public synchronized boolean hasParameterSets() {
+        return sps != null && pps != null;
+    }
+
+    /**
+     * Waits until both a sequence and a picture parameter set were received.
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     * @return whether the parameter sets were received
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitParameterSets(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!hasParameterSets()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
     /**
      * Initializes frame for a given timestamp.
      *
-     * @param rtpTimestamp
+     * @param rtpTimestamp unwrapped RTP timestamp
      * @throws Exception
      */
     private void startFrame(long rtpTimestamp) {
@@ -242,9 +418,11 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
                 currentFrame.getBuffer().clear();
 
             } catch (RtpPlayerException e) {
-                // TODO: Proper error handling
+                // No decoder to take the frame yet (or anymore): drop it
                 currentFrameHasError = true;
-                e.printStackTrace();
+                if (RtpMediaDecoder.DEBUGGING) {
+                    log.warn("Dropping frame: " + e.getMessage());
+                }
             }
         }
 
@@ -271,14 +449,62 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
         currentFrame = null;
     }
 
+    /**
+     * Retrieves an Android MediaFormat for H.264 built from the in-band parameter sets: size from the sequence
+     * parameter set, and both sets as CSD-0/CSD-1 codec-specific data. Input buffers are sized to hold an
+     * uncompressed picture, which no coded frame exceeds in practice.
+     * If no parameter sets were received yet, it falls back to a 640x480 format with the SPS and PPS used by
+     * libstreaming.
+     *
+     * @return
+     */
+    public MediaFormat getMediaFormat() {
+        String mimeType = "video/avc";
+        byte[] sps;
+        byte[] pps;
+        SequenceParameterSet sequenceParameterSet;
+        synchronized (this) {
+            sps = this.sps;
+            pps = this.pps;
+            sequenceParameterSet = this.sequenceParameterSet;
+        }
+        if (sps == null || pps == null) {
+            log.warn("No in-band parameter sets received yet, using default format");
+            return getDefaultMediaFormat();
+        }
+
+        int width = sequenceParameterSet.getWidth();
+        int height = sequenceParameterSet.getHeight();
+        MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+        format.setByteBuffer(CSD_0, withStartCode(sps));
+        format.setByteBuffer(CSD_1, withStartCode(pps));
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, width * height * 3 / 2);
+
+        log.info("Media format from " + sequenceParameterSet + ": " + format);
+        return format;
+    }
+
+    /**
+     * Prepends the byte stream start code to a parameter set.
+     *
+     * @param nalUnit
+     * @return
+     */
+    private ByteBuffer withStartCode(byte[] nalUnit) {
+        ByteBuffer buffer = ByteBuffer.allocate(byteStreamStartCodePrefix.length + nalUnit.length);
+        buffer.put(byteStreamStartCodePrefix);
+        buffer.put(nalUnit);
+        buffer.flip();
+        return buffer;
+    }
+
     /**
      * Retrieves an Android MediaFormat for H.264, 640x480 video codec.
      * SPS and PPS are hardcoded to the ones used by libstreaming.
-     * TODO: Think how to get CSD-0/CSD-1 codec-specific data chunks
      *
      * @return
      */
-    public MediaFormat getMediaFormat() {
+    private MediaFormat getDefaultMediaFormat() {
         String mimeType = "video/avc";
         int width = 640;
         int height = 480;
@@ -384,6 +610,29 @@ public class RtpMediaExtractor implements RtpSessionDataListener, MediaExtractor
             return fuEnd;
         }
 
+        /**
+         * Indicates whether this packet starts an IDR frame.
+         *
+         * @return
+         */
+        public boolean startsIdrFrame() {
+            return (h264NalType == NalType.FULL && nalType == BufferedSample.NAL_TYPE_IDR) ||
+                    (h264NalType == NalType.FUA && fuStart && fuNalType == BufferedSample.NAL_TYPE_IDR);
+        }
+
+        /**
+         * Indicates whether this packet is a later fragment of the frame being assembled and that frame is not used
+         * as a reference (NRI is zero), so losing part of it doesn't affect any other frame.
+         *
+         * @param currentFrame  frame being assembled, if any
+         * @param rtpTimestamp  unwrapped RTP timestamp of this packet
+         * @return
+         */
+        public boolean continuesNonReferenceFrame(BufferedSample currentFrame, long rtpTimestamp) {
+            return h264NalType == NalType.FUA && !fuStart && nalNriBits == 0 && currentFrame != null &&
+                    currentFrame.getRtpTimestamp() == rtpTimestamp;
+        }
+
         /**
          * Returns NAL type byte.
          *
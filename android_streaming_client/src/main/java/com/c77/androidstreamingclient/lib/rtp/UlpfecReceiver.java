@@ -0,0 +1,450 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+
+package com.c77.androidstreamingclient.lib.rtp;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recovers lost media packets from ULPFEC packets (RFC 5109) before they reach the jitter buffer.
+ * <p/>
+ * FEC packets are expected on their own stream, with their own payload type, and are kept from upstream. Every
+ * other packet goes upstream right away and is remembered for a while. A FEC packet protects up to 48 consecutive
+ * media packets: once all but one of them were received, the missing one is rebuilt by XOR-ing the FEC packet with
+ * the received ones, and is sent upstream with its original sequence number as if it had just arrived. FEC packets
+ * with more than one protected packet missing wait for other FEC packets to recover them.
+ * <p/>
+ * Only the first protection level is used, so FEC packets have to protect whole packets. Packets sent with padding
+ * can't be recovered, since the padding is dropped when decoding them. Must be used from the thread that receives
+ * packets.
+ *
+ * @author Julian Cerruti
+ */
+public class UlpfecReceiver implements RtpSessionDataListener {
+    private static final Log log = LogFactory.getLog(UlpfecReceiver.class);
+    private static final int RTP_HEADER_LENGTH = 12;
+    private static final int FEC_HEADER_LENGTH = 10;
+    private static final int SHORT_LEVEL_HEADER_LENGTH = 4;
+    private static final int LONG_LEVEL_HEADER_LENGTH = 8;
+    // Most packets a single FEC packet can protect, with the long mask
+    private static final int MAX_PROTECTED = 48;
+    // Received media packets remembered, indexed by sequence number (a power of two)
+    private static final int HISTORY_SIZE = 128;
+    // FEC packets waiting for more media packets to arrive
+    private static final int MAX_PENDING = 32;
+
+    private final RtpSessionDataListener upstream;
+    private final int fecPayloadType;
+
+    private final DataPacket[] history = new DataPacket[HISTORY_SIZE];
+    private final int[] historySequenceNumbers = new int[HISTORY_SIZE];
+    private final List<FecPacket> pendingFecPackets = new ArrayList<FecPacket>();
+    private int highestSequenceNumber = -1;
+    private long ssrc;
+
+    private volatile long fecPacketsReceived = 0;
+    private volatile long fecPacketsDiscarded = 0;
+    private volatile long packetsRecovered = 0;
+    private volatile long recoveryTime = 0;
+
+    /**
+     * Creates a FEC receiver.
+     *
+     * @param upstream       object that will receive the media packets, received or recovered
+     * @param fecPayloadType payload type of the FEC packets
+     */
+    public UlpfecReceiver(RtpSessionDataListener upstream, int fecPayloadType) {
+        this.upstream = upstream;
+        this.fecPayloadType = fecPayloadType;
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            historySequenceNumbers[i] = -1;
+        }
+        log.info("Using UlpfecReceiver with FEC_PAYLOAD_TYPE = [" + fecPayloadType + "]");
+    }
+
+    @Override
+    public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+        if (packet.getPayloadType() == fecPayloadType) {
+            fecPacketReceived(session, participant, packet);
+            return;
+        }
+
+        ssrc = packet.getSsrc();
+        remember(packet.retain());
+        upstream.dataPacketReceived(session, participant, packet);
+
+        if (!pendingFecPackets.isEmpty()) {
+            recoverPending(session, participant);
+        }
+    }
+
+    /**
+     * Releases the packets remembered for recovery.
+     */
+    public void stop() {
+        for (int i = 0; i < HISTORY_SIZE; i++) {
+            if (history[i] != null) {
+                history[i].release();
+                history[i] = null;
+            }
+            historySequenceNumbers[i] = -1;
+        }
+        for (FecPacket fecPacket : pendingFecPackets) {
+            fecPacket.packet.release();
+        }
+        pendingFecPackets.clear();
+        highestSequenceNumber = -1;
+    }
+
+    private void fecPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+        fecPacketsReceived++;
+
+        FecPacket fecPacket = FecPacket.parse(packet);
+        if (fecPacket == null) {
+            if (RtpMediaDecoder.DEBUGGING) {
+                log.warn("Discarding malformed FEC packet. #" + packet.getSequenceNumber());
+            }
+            fecPacketsDiscarded++;
+            return;
+        }
+
+        if (!process(session, participant, fecPacket)) {
+            // Keep the packet beyond this call (see DataPacket#retain)
+            packet.retain();
+            pendingFecPackets.add(fecPacket);
+            if (pendingFecPackets.size() > MAX_PENDING) {
+                discard(pendingFecPackets.remove(0));
+            }
+        } else if (fecPacket.missing == 0 && !pendingFecPackets.isEmpty()) {
+            // The packet it recovered may complete other FEC packets
+            recoverPending(session, participant);
+        }
+    }
+
+    /**
+     * Tries the pending FEC packets again after a media packet arrived, until none of them recovers anything.
+     */
+    private void recoverPending(RtpSession session, RtpParticipantInfo participant) {
+        boolean recovered;
+        do {
+            recovered = false;
+            for (int i = 0; i < pendingFecPackets.size(); i++) {
+                FecPacket fecPacket = pendingFecPackets.get(i);
+                int missingBefore = fecPacket.missing;
+                if (process(session, participant, fecPacket)) {
+                    pendingFecPackets.remove(i--);
+                    fecPacket.packet.release();
+                    // A recovered packet may complete other FEC packets
+                    recovered |= missingBefore > 0 && fecPacket.missing == 0;
+                }
+            }
+        } while (recovered);
+    }
+
+    /**
+     * Recovers the packet missing from the ones protected by a FEC packet, if there's exactly one.
+     *
+     * @return whether the FEC packet is of no further use
+     */
+    private boolean process(RtpSession session, RtpParticipantInfo participant, FecPacket fecPacket) {
+        if (highestSequenceNumber < 0 || distance(fecPacket.baseSequenceNumber, highestSequenceNumber) >= HISTORY_SIZE) {
+            // The protected packets are not remembered anymore (or were never received)
+            fecPacket.missing = -1;
+            fecPacketsDiscarded++;
+            return true;
+        }
+
+        int missing = 0;
+        int missingSequenceNumber = -1;
+        for (int i = 0; i <= fecPacket.lastProtected; i++) {
+            if (!fecPacket.protects(i)) {
+                continue;
+            }
+            int sequenceNumber = (fecPacket.baseSequenceNumber + i) & 0xffff;
+            if (distance(highestSequenceNumber, sequenceNumber) > 0) {
+                // Protected packets are still on their way
+                return false;
+            }
+            if (historySequenceNumbers[sequenceNumber & (HISTORY_SIZE - 1)] != sequenceNumber) {
+                missing++;
+                missingSequenceNumber = sequenceNumber;
+            }
+        }
+
+        fecPacket.missing = missing;
+        if (missing > 1) {
+            return false;
+        }
+        if (missing == 1) {
+            recover(session, participant, fecPacket, missingSequenceNumber);
+            fecPacket.missing = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds a missing packet (RFC 5109 section 8) and sends it upstream.
+     */
+    private void recover(RtpSession session, RtpParticipantInfo participant, FecPacket fecPacket,
+                         int missingSequenceNumber) {
+        long start = System.nanoTime();
+        ChannelBuffer fecData = fecPacket.packet.getData();
+
+        // Recover the header fields and the length first, to know how much to rebuild
+        int headerRecovery = (fecData.getUnsignedByte(0) << 8) | fecData.getUnsignedByte(1);
+        long timestampRecovery = fecData.getUnsignedInt(4);
+        int lengthRecovery = fecData.getUnsignedShort(8);
+        for (int i = 0; i <= fecPacket.lastProtected; i++) {
+            int sequenceNumber = (fecPacket.baseSequenceNumber + i) & 0xffff;
+            if (!fecPacket.protects(i) || sequenceNumber == missingSequenceNumber) {
+                continue;
+            }
+            DataPacket protectedPacket = history[sequenceNumber & (HISTORY_SIZE - 1)];
+            headerRecovery ^= headerBits(protectedPacket);
+            timestampRecovery ^= protectedPacket.getTimestamp();
+            lengthRecovery ^= lengthAfterHeader(protectedPacket);
+        }
+
+        if (lengthRecovery > fecPacket.protectionLength) {
+            if (RtpMediaDecoder.DEBUGGING) {
+                log.warn("FEC packet doesn't protect the whole packet. #" + missingSequenceNumber);
+            }
+            fecPacketsDiscarded++;
+            return;
+        }
+
+        byte[] recovered = new byte[RTP_HEADER_LENGTH + lengthRecovery];
+        fecData.getBytes(fecPacket.payloadOffset, recovered, RTP_HEADER_LENGTH, lengthRecovery);
+        ChannelBuffer recoveredBuffer = ChannelBuffers.wrappedBuffer(recovered);
+        for (int i = 0; i <= fecPacket.lastProtected; i++) {
+            int sequenceNumber = (fecPacket.baseSequenceNumber + i) & 0xffff;
+            if (!fecPacket.protects(i) || sequenceNumber == missingSequenceNumber) {
+                continue;
+            }
+            DataPacket protectedPacket = history[sequenceNumber & (HISTORY_SIZE - 1)];
+            if (protectedPacket.getContributingSourcesCount() == 0 && !protectedPacket.hasExtension()) {
+                // Only the payload follows the fixed header. Upstream may have moved its reader index
+                xor(recovered, protectedPacket.getData(), 0, protectedPacket.getDataSize());
+            } else {
+                ChannelBuffer protectedBytes = protectedPacket.encode();
+                xor(recovered, protectedBytes, RTP_HEADER_LENGTH, protectedBytes.readableBytes() - RTP_HEADER_LENGTH);
+            }
+        }
+
+        // Version 2, then the recovered padding, extension, CSRC count, marker and payload type
+        recoveredBuffer.setByte(0, 0x80 | ((headerRecovery >> 8) & 0x3f));
+        recoveredBuffer.setByte(1, headerRecovery);
+        recoveredBuffer.setShort(2, missingSequenceNumber);
+        recoveredBuffer.setInt(4, (int) timestampRecovery);
+        recoveredBuffer.setInt(8, (int) ssrc);
+
+        DataPacket packet;
+        try {
+            packet = DataPacket.decode(recoveredBuffer, false);
+        } catch (IndexOutOfBoundsException e) {
+            log.error("Recovered an invalid packet. #" + missingSequenceNumber, e);
+            fecPacketsDiscarded++;
+            return;
+        }
+        // Extend the sequence number like the session did for the packets it was recovered from
+        DataPacket highest = history[highestSequenceNumber & (HISTORY_SIZE - 1)];
+        packet.setExtendedSequenceNumber(highest.getExtendedSequenceNumber() +
+                distance(highestSequenceNumber, missingSequenceNumber));
+        packetsRecovered++;
+        recoveryTime += System.nanoTime() - start;
+
+        if (RtpMediaDecoder.DEBUGGING) {
+            log.info("Recovered packet with FEC. #" + missingSequenceNumber);
+        }
+        remember(packet);
+        upstream.dataPacketReceived(session, participant, packet);
+    }
+
+    /**
+     * Keeps a media packet, which must have been retained, in case it's needed to recover another one.
+     */
+    private void remember(DataPacket packet) {
+        int sequenceNumber = packet.getSequenceNumber();
+        int index = sequenceNumber & (HISTORY_SIZE - 1);
+        if (history[index] != null) {
+            history[index].release();
+        }
+        history[index] = packet;
+        historySequenceNumbers[index] = sequenceNumber;
+
+        if (highestSequenceNumber < 0 || distance(highestSequenceNumber, sequenceNumber) > 0) {
+            highestSequenceNumber = sequenceNumber;
+        }
+    }
+
+    private void discard(FecPacket fecPacket) {
+        fecPacketsDiscarded++;
+        fecPacket.packet.release();
+    }
+
+    /**
+     * XORs the bytes following a packet's fixed header into the ones being recovered.
+     */
+    private static void xor(byte[] recovered, ChannelBuffer bytes, int offset, int length) {
+        length = Math.min(length, recovered.length - RTP_HEADER_LENGTH);
+        if (bytes.hasArray()) {
+            // Straight on the arrays, which the JIT can vectorize
+            byte[] array = bytes.array();
+            int arrayOffset = bytes.arrayOffset() + offset;
+            for (int i = 0; i < length; i++) {
+                recovered[RTP_HEADER_LENGTH + i] ^= array[arrayOffset + i];
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                recovered[RTP_HEADER_LENGTH + i] ^= bytes.getByte(offset + i);
+            }
+        }
+    }
+
+    /**
+     * @return P, X, CC, M and PT, as the first two bytes of the RTP header (without the version)
+     */
+    private static int headerBits(DataPacket packet) {
+        int bits = (packet.getContributingSourcesCount() << 8) | packet.getPayloadType();
+        if (packet.hasExtension()) {
+            bits |= 0x1000;
+        }
+        if (packet.hasMarker()) {
+            bits |= 0x80;
+        }
+        return bits;
+    }
+
+    /**
+     * @return size of the packet after the fixed RTP header: CSRC list, extension and payload
+     */
+    private static int lengthAfterHeader(DataPacket packet) {
+        int length = packet.getContributingSourcesCount() * 4 + packet.getDataSize();
+        if (packet.hasExtension()) {
+            length += 4 + packet.getExtensionDataSize();
+        }
+        return length;
+    }
+
+    /**
+     * @return how far ahead sequence number 'to' is from 'from', taking wrap around into account
+     */
+    private static int distance(int from, int to) {
+        return (short) (to - from);
+    }
+
+    public long getFecPacketsReceived() {
+        return fecPacketsReceived;
+    }
+
+    /**
+     * @return FEC packets given up on with protected packets missing, or that couldn't be used at all
+     */
+    public long getFecPacketsDiscarded() {
+        return fecPacketsDiscarded;
+    }
+
+    public long getPacketsRecovered() {
+        return packetsRecovered;
+    }
+
+    /**
+     * @return total time spent rebuilding packets, in nanoseconds
+     */
+    public long getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    /**
+     * ULPFEC packet header and level 0 header (RFC 5109 section 7).
+     */
+    private static class FecPacket {
+        private final DataPacket packet;
+        private final int baseSequenceNumber;
+        // Bit 47 protects the base sequence number, bit 0 the base sequence number + 47
+        private final long mask;
+        private final int lastProtected;
+        private final int protectionLength;
+        private final int payloadOffset;
+        // Protected packets missing the last time the packet was processed
+        private int missing;
+
+        private FecPacket(DataPacket packet, int baseSequenceNumber, long mask, int protectionLength,
+                          int payloadOffset) {
+            this.packet = packet;
+            this.baseSequenceNumber = baseSequenceNumber;
+            this.mask = mask;
+            this.lastProtected = MAX_PROTECTED - 1 - Long.numberOfTrailingZeros(mask);
+            this.protectionLength = protectionLength;
+            this.payloadOffset = payloadOffset;
+        }
+
+        /**
+         * @return null if the packet is not a valid ULPFEC packet
+         */
+        private static FecPacket parse(DataPacket packet) {
+            ChannelBuffer data = packet.getData();
+            int size = packet.getDataSize();
+            if (data == null || size < FEC_HEADER_LENGTH + SHORT_LEVEL_HEADER_LENGTH) {
+                return null;
+            }
+
+            int flags = data.getUnsignedByte(0);
+            if ((flags & 0x80) != 0) {
+                // Extension flag, reserved
+                return null;
+            }
+            boolean longMask = (flags & 0x40) != 0;
+            int payloadOffset = FEC_HEADER_LENGTH + (longMask ? LONG_LEVEL_HEADER_LENGTH : SHORT_LEVEL_HEADER_LENGTH);
+            if (size < payloadOffset) {
+                return null;
+            }
+
+            int protectionLength = data.getUnsignedShort(FEC_HEADER_LENGTH);
+            long mask = (long) data.getUnsignedShort(FEC_HEADER_LENGTH + 2) << 32;
+            if (longMask) {
+                mask |= data.getUnsignedInt(FEC_HEADER_LENGTH + 4);
+            }
+            if (mask == 0 || size < payloadOffset + protectionLength) {
+                return null;
+            }
+
+            return new FecPacket(packet, data.getUnsignedShort(2), mask, protectionLength, payloadOffset);
+        }
+
+        private boolean protects(int offset) {
+            return (mask & (1L << (MAX_PROTECTED - 1 - offset))) != 0;
+        }
+    }
+}
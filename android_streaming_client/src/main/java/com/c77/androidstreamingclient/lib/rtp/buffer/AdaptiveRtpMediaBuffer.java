@@ -0,0 +1,462 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.rtp.buffer;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpClockMapping;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.MediaClock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * RTP buffer that works as {@link TimeWindowRtpMediaBuffer}, but sizes its window from the jitter it measures
+ * instead of using a fixed one.
+ * <p/>
+ * Approach: the interarrival jitter is estimated on every packet as in RFC 3550 (section 6.4.1) and the target delay
+ * is a multiple of it, bounded by a minimum and a maximum. The multiple grows with every packet that arrives too late
+ * to be played and shrinks with every packet on time, in a proportion that settles when the configured fraction of
+ * packets are late. The actual delay follows the target by playing up to 5% faster or slower, so the play head never
+ * jumps.
+ *
+ * @author Julian Cerruti
+ */
+public class AdaptiveRtpMediaBuffer implements RtpMediaBuffer {
+    // properties
+    private static final String DEBUGGING_PROPERTY = "DEBUGGING";
+    public static final String MIN_DELAY_PROPERTY = "ADAPTIVE_MIN_DELAY";
+    public static final String MAX_DELAY_PROPERTY = "ADAPTIVE_MAX_DELAY";
+    public static final String LATE_LOSS_TARGET_PROPERTY = "ADAPTIVE_LATE_LOSS_TARGET";
+
+    private static final Log log = LogFactory.getLog(AdaptiveRtpMediaBuffer.class);
+    // Gain of the jitter estimator (RFC 3550, section 6.4.1)
+    private static final double JITTER_GAIN = 1.0 / 16;
+    // How much the jitter multiple grows with every late packet
+    private static final double MULTIPLIER_STEP = 0.5;
+    private static final double MIN_MULTIPLIER = 1;
+    private static final double MAX_MULTIPLIER = 50;
+    private static final double INITIAL_MULTIPLIER = 4;
+    // The delay changes at most by this fraction of the elapsed time, i.e. play-out runs up to 5% faster or slower
+    private static final double MAX_RATE_ADJUSTMENT = 0.05;
+    // Returned when there are no packets to wait for
+    private static final long NO_PACKETS = -1;
+    // Packets between debugging logs
+    private static final int LOG_INTERVAL = 300;
+
+    private final boolean debugging;
+    private final long minDelay;
+    private final long maxDelay;
+    private final double lateLossTarget;
+
+    private final RtpSessionDataListener upstream;
+    private final MediaClock mediaClock;
+    private final DataPacketSenderThread dataPacketSenderThread;
+
+    // packets sorted by extended sequence number. Guarded by this buffer's monitor, which the consumer's thread
+    // also waits on
+    private final TreeMap<Long, DataPacket> buffer = new TreeMap<Long, DataPacket>();
+
+    // Jitter buffer variables, guarded by this buffer's monitor
+    // Used to convert between presentation and system time
+    private long presentationToSystemDifference;
+    // Position of the play head the last time packets were sent. Any packet older
+    // than this time has already been sent to upstream.
+    private long playHeadPresentationTime;
+    // Relative transit time of the previous packet
+    private long lastTransit;
+    // Interarrival jitter estimate, in milliseconds
+    private double jitter;
+    private double jitterMultiplier = INITIAL_MULTIPLIER;
+    private double targetDelay;
+    private double currentDelay;
+    private long lastDelayUpdate;
+    private long receivedPackets;
+    private long latePackets;
+    // Sender report based play-out
+    private final boolean senderReportSync;
+    private RtpClockMapping clockMapping;
+
+    private State streamingState;
+    private RtpSession session;
+    private RtpParticipantInfo participant;
+
+    /**
+     * Creates an adaptive RTP buffer.
+     *
+     * @param upstream   object that will receive packets in order
+     * @param properties see {@link #AdaptiveRtpMediaBuffer(RtpSessionDataListener, MediaClock, Properties)}
+     */
+    public AdaptiveRtpMediaBuffer(RtpSessionDataListener upstream, Properties properties) {
+        this(upstream, new MediaClock(), properties);
+    }
+
+    /**
+     * Creates an adaptive RTP buffer using the stream's media clock.
+     *
+     * @param upstream   object that will receive packets in order
+     * @param mediaClock clock shared with upstream to unwrap RTP timestamps
+     * @param properties ADAPTIVE_MIN_DELAY and ADAPTIVE_MAX_DELAY bound the delay, in milliseconds (50 and 1000 by
+     *                   default), ADAPTIVE_LATE_LOSS_TARGET is the fraction of packets that may arrive too late
+     *                   (0.01 by default) and FRAMES_WINDOW_TIME is the initial delay (500 by default)
+     */
+    public AdaptiveRtpMediaBuffer(RtpSessionDataListener upstream, MediaClock mediaClock, Properties properties) {
+        this.upstream = upstream;
+        this.mediaClock = mediaClock;
+        streamingState = State.IDLE;
+        dataPacketSenderThread = new DataPacketSenderThread();
+
+        // load properties
+        properties = (properties != null) ? properties : new Properties();
+        debugging = Boolean.parseBoolean(properties.getProperty(DEBUGGING_PROPERTY, "false"));
+        minDelay = Long.parseLong(properties.getProperty(MIN_DELAY_PROPERTY, "50"));
+        maxDelay = Long.parseLong(properties.getProperty(MAX_DELAY_PROPERTY, "1000"));
+        lateLossTarget = Double.parseDouble(properties.getProperty(LATE_LOSS_TARGET_PROPERTY, "0.01"));
+        senderReportSync = Boolean.parseBoolean(properties.getProperty(TimeWindowRtpMediaBuffer.SENDER_REPORT_SYNC_PROPERTY, "false"));
+        long initialDelay = Long.parseLong(properties.getProperty(TimeWindowRtpMediaBuffer.FRAMES_WINDOW_PROPERTY, "500"));
+        if (minDelay < 0 || maxDelay < minDelay) {
+            throw new IllegalArgumentException(MIN_DELAY_PROPERTY + " and " + MAX_DELAY_PROPERTY +
+                    " must satisfy 0 <= min <= max");
+        }
+        if (lateLossTarget <= 0 || lateLossTarget >= 1) {
+            throw new IllegalArgumentException(LATE_LOSS_TARGET_PROPERTY + " must be between 0 and 1");
+        }
+        targetDelay = currentDelay = Math.max(minDelay, Math.min(maxDelay, initialDelay));
+
+        log.info("Using AdaptiveRtpMediaBuffer with delay between [" + minDelay + ", " + maxDelay +
+                "] ms, starting at [" + currentDelay + "] ms, LATE_LOSS_TARGET = [" + lateLossTarget +
+                "], SENDER_REPORT_SYNC = [" + senderReportSync + "]");
+    }
+
+    /**
+     * Updates the jitter and delay estimates with a new data packet, which is discarded if it arrived after the play
+     * head passed it. If not, it will be stored in a buffer.
+     * It starts the consumer's thread.
+     *
+     * @param session
+     * @param participant
+     * @param packet
+     */
+    @Override
+    public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+        long systemTimestamp = System.currentTimeMillis();
+        long presentationTimestamp = getConvertedTimestamp(packet);
+        long sequenceNumber = packet.getExtendedSequenceNumber();
+
+        DataPacket replaced;
+        synchronized (this) {
+            if (streamingState == State.IDLE) {
+                this.session = session;
+                this.participant = participant;
+
+                // Declare system to presentation timestamp difference based on this one packet
+                presentationToSystemDifference = systemTimestamp - presentationTimestamp;
+                lastTransit = presentationToSystemDifference;
+                lastDelayUpdate = systemTimestamp;
+                playHeadPresentationTime = presentationTimestamp - (long) currentDelay;
+
+                streamingState = State.STREAMING;
+
+                dataPacketSenderThread.start();
+            }
+
+            if (senderReportSync) {
+                anchorOnCaptureTime(participant, packet, presentationTimestamp);
+            }
+
+            updateJitter(systemTimestamp - presentationTimestamp);
+            updateDelay(systemTimestamp);
+
+            boolean late = presentationTimestamp < getPlayHeadPresentationTime(systemTimestamp);
+            updateTargetDelay(late);
+
+            if (debugging && receivedPackets % LOG_INTERVAL == 0) {
+                log.info("Jitter: " + jitter + " ms, target delay: " + targetDelay + " ms, delay: " + currentDelay +
+                        " ms, late packets: " + latePackets + "/" + receivedPackets);
+            }
+
+            // discard packets that are too late
+            if (late) {
+                if (debugging) {
+                    log.info("Discarded packet: (s#, pt, st)" + packet.getSequenceNumber() + "/" +
+                            presentationTimestamp + "/" + systemTimestamp);
+                }
+                return;
+            }
+
+            // Keep the packet beyond this call (see DataPacket#retain)
+            replaced = buffer.put(sequenceNumber, packet.retain());
+            // Wake up the consumer if it is waiting for a later packet
+            if (buffer.firstKey() == sequenceNumber) {
+                notify();
+            }
+        }
+        if (replaced != null) {
+            replaced.release();
+        }
+    }
+
+    /**
+     * Stops the consuming thread and releases any packet still buffered.
+     */
+    public void stop() {
+        if (dataPacketSenderThread != null) {
+            dataPacketSenderThread.shutdown();
+        }
+
+        synchronized (this) {
+            for (DataPacket packet : buffer.values()) {
+                packet.release();
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Retrieves the current interarrival jitter estimate.
+     *
+     * @return jitter in milliseconds
+     */
+    public synchronized double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Retrieves the delay the buffer is moving towards.
+     *
+     * @return delay in milliseconds
+     */
+    public synchronized double getTargetDelay() {
+        return targetDelay;
+    }
+
+    /**
+     * Retrieves the delay packets are currently played with.
+     *
+     * @return delay in milliseconds
+     */
+    public synchronized double getCurrentDelay() {
+        return currentDelay;
+    }
+
+    /**
+     * Retrieves the fraction of received packets that arrived too late to be played.
+     *
+     * @return
+     */
+    public synchronized double getLateLossRate() {
+        return receivedPackets == 0 ? 0 : (double) latePackets / receivedPackets;
+    }
+
+    /**
+     * Bases the play-out on the time the media was captured once the sender reports tell it, instead of on the time
+     * the first packet arrived, which may have been late. Must be called holding this buffer's lock.
+     *
+     * @param participant
+     * @param packet
+     * @param presentationTimestamp
+     */
+    private void anchorOnCaptureTime(RtpParticipantInfo participant, DataPacket packet, long presentationTimestamp) {
+        RtpClockMapping clockMapping = participant != null ? participant.getClockMapping() : null;
+        if (clockMapping == null || clockMapping == this.clockMapping) {
+            return;
+        }
+        this.clockMapping = clockMapping;
+
+        long difference = clockMapping.getLocalTime(packet.getTimestamp()) - presentationTimestamp;
+        if (debugging) {
+            log.info("Play-out anchored on capture time, moved by " + (presentationToSystemDifference - difference) + " ms");
+        }
+        presentationToSystemDifference = difference;
+    }
+
+    /**
+     * Retrieves the packet's presentation time in milliseconds, unwrapped by the media clock.
+     *
+     * @param packet
+     * @return
+     */
+    private long getConvertedTimestamp(DataPacket packet) {
+        return mediaClock.getMilliseconds(packet.getTimestamp());
+    }
+
+    /**
+     * Updates the interarrival jitter with the transit time of a new packet (RFC 3550, appendix A.8).
+     *
+     * @param transit difference between arrival and presentation times, in milliseconds
+     */
+    private void updateJitter(long transit) {
+        long difference = Math.abs(transit - lastTransit);
+        lastTransit = transit;
+        jitter += (difference - jitter) * JITTER_GAIN;
+    }
+
+    /**
+     * Moves the jitter multiple up when a packet is late and down otherwise. The steps are sized so that it stops
+     * moving when the late packets are the target fraction.
+     *
+     * @param late whether the last packet arrived too late
+     */
+    private void updateTargetDelay(boolean late) {
+        receivedPackets++;
+        if (late) {
+            latePackets++;
+            jitterMultiplier += MULTIPLIER_STEP;
+        } else {
+            jitterMultiplier -= MULTIPLIER_STEP * lateLossTarget / (1 - lateLossTarget);
+        }
+        jitterMultiplier = Math.max(MIN_MULTIPLIER, Math.min(MAX_MULTIPLIER, jitterMultiplier));
+        targetDelay = Math.max(minDelay, Math.min(maxDelay, jitterMultiplier * jitter));
+    }
+
+    /**
+     * Moves the current delay towards the target, changing the play-out rate by at most MAX_RATE_ADJUSTMENT.
+     *
+     * @param systemTimestamp
+     */
+    private void updateDelay(long systemTimestamp) {
+        long elapsed = systemTimestamp - lastDelayUpdate;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastDelayUpdate = systemTimestamp;
+
+        double maxStep = elapsed * MAX_RATE_ADJUSTMENT;
+        currentDelay += Math.max(-maxStep, Math.min(maxStep, targetDelay - currentDelay));
+    }
+
+    /**
+     * Retrieves the position of the play head at a given time.
+     *
+     * @param systemTimestamp
+     * @return
+     */
+    private long getPlayHeadPresentationTime(long systemTimestamp) {
+        return systemTimestamp - presentationToSystemDifference - (long) currentDelay;
+    }
+
+    /**
+     * Retrieves how long to wait until the earliest stored packet is due. Must be called holding this buffer's
+     * monitor.
+     *
+     * @param systemTimestamp
+     * @return milliseconds to wait, 0 if the packet is already due or NO_PACKETS if there is none
+     */
+    private long getTimeToNextPacket(long systemTimestamp) {
+        Map.Entry<Long, DataPacket> entry = buffer.firstEntry();
+        if (entry == null) {
+            return NO_PACKETS;
+        }
+        return Math.max(0, getConvertedTimestamp(entry.getValue()) - getPlayHeadPresentationTime(systemTimestamp));
+    }
+
+    /**
+     * Consuming thread.
+     * This thread waits until the earliest stored frame is due, or until an earlier one arrives.
+     * For every running cycle, it will consume frames which timestamp are between the last play head
+     * presentation time and the current time.
+     */
+    private class DataPacketSenderThread extends Thread {
+        private volatile boolean running = true;
+
+        /**
+         * Runs the consumer's thread.
+         * It waits for the deadline of the earliest frame before consuming. Then calculates which frames should be
+         * consumed, depending on their timestamps and the presentation time of the play head.
+         */
+        @Override
+        public void run() {
+            List<DataPacket> packets = new ArrayList<DataPacket>();
+            try {
+                while (running) {
+                    // Get packets up to the next play head an pass on to the extractor
+                    synchronized (AdaptiveRtpMediaBuffer.this) {
+                        long timeToNextPacket;
+                        while (running) {
+                            long systemTimestamp = System.currentTimeMillis();
+                            updateDelay(systemTimestamp);
+                            timeToNextPacket = getTimeToNextPacket(systemTimestamp);
+                            if (timeToNextPacket == 0) {
+                                break;
+                            }
+                            AdaptiveRtpMediaBuffer.this.wait(timeToNextPacket == NO_PACKETS ? 0 : timeToNextPacket);
+                        }
+
+                        // Advance play head to the current time
+                        long previousPlayHeadPresentationTime = playHeadPresentationTime;
+                        playHeadPresentationTime = getPlayHeadPresentationTime(System.currentTimeMillis());
+
+                        while (true) {
+                            Map.Entry<Long, DataPacket> entry = buffer.firstEntry();
+                            if (entry == null) {
+                                break;
+                            }
+                            long packetPresentationTime = getConvertedTimestamp(entry.getValue());
+                            if (packetPresentationTime > playHeadPresentationTime) {
+                                break;
+                            } else if (packetPresentationTime < previousPlayHeadPresentationTime) {
+                                log.warn("Dropping packet from buffer. This shouldn't happen");
+                                entry.getValue().release();
+                            } else {
+                                packets.add(entry.getValue());
+                            }
+                            buffer.remove(entry.getKey());
+                        }
+                    }
+
+                    // Send to extractor and decoder outside of blocking loop
+                    for (DataPacket packet : packets) {
+                        try {
+                            upstream.dataPacketReceived(session, participant, packet);
+                        } catch (Throwable t) {
+                            log.error("Exception while sending packet to extractor", t);
+                        } finally {
+                            packet.release();
+                        }
+                    }
+                    packets.clear();
+                }
+            } catch (Throwable t) {
+                log.error("Exiting jitter buffer loop due to exception", t);
+            }
+        }
+
+        /**
+         * Stops the consuming thread's loop.
+         */
+        public void shutdown() {
+            running = false;
+            synchronized (AdaptiveRtpMediaBuffer.this) {
+                AdaptiveRtpMediaBuffer.this.notify();
+            }
+        }
+    }
+}
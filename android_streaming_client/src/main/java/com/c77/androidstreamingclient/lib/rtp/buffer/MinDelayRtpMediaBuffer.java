@@ -26,6 +26,7 @@ import com.biasedbit.efflux.packet.DataPacket;
 import com.biasedbit.efflux.participant.RtpParticipantInfo;
 import com.biasedbit.efflux.session.RtpSession;
 import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.MediaClock;
 import com.c77.androidstreamingclient.lib.rtp.RtpMediaDecoder;
 
 import org.apache.commons.logging.Log;
@@ -50,19 +51,25 @@ public class MinDelayRtpMediaBuffer implements RtpMediaBuffer {
     private static final Log log = LogFactory.getLog(MinDelayRtpMediaBuffer.class);
     // Object that will receive ordered packets
     private final RtpSessionDataListener upstream;
+    private final MediaClock mediaClock;
     // milliseconds. Wait up to this amount of time for missing packets to arrive. If we start
     // getting packets newer than this, discard the old ones and restart
     private long OUT_OF_ORDER_MAX_TIME = 1000;
-    // Temporary cache map of packets received out of order
-    private Map<Integer, DataPacket> packetMap = new HashMap();
-    private Map<Integer, Long> timestampMap = new HashMap();
+    // Temporary cache map of packets received out of order, by extended sequence number. Both maps are guarded by
+    // this buffer's monitor, since stop() may be called while the transport's thread is receiving packets
+    private Map<Long, DataPacket> packetMap = new HashMap();
+    private Map<Long, Long> timestampMap = new HashMap();
     private State currentState;
-    private int nextExpectedSequenceNumber;
+    // Set by stop(), after which packets are no longer stored
+    private boolean stopped;
+    private long nextExpectedSequenceNumber;
     // The timestamp of the last packet we were able to successfully send upstream for processing
     private long lastProcessedTimestamp;
     // Keep track of the difference between the packet timestamps and this device's time at the
     // time we received the first packet
     private long timestampDifference;
+    // Asks for missing packets while they can still make it before the buffer gives up on them
+    private final RetransmissionRequester retransmissionRequester;
 
     /**
      * Creates a RTP buffer with a given configuration.
@@ -71,20 +78,35 @@ public class MinDelayRtpMediaBuffer implements RtpMediaBuffer {
      * @param configuration if OUT_OF_ORDER_MAX_TIME, its value will replace the default one (1000 ms)
      */
     public MinDelayRtpMediaBuffer(RtpSessionDataListener upstream, Properties configuration) {
+        this(upstream, new MediaClock(), configuration);
+    }
+
+    /**
+     * Creates a RTP buffer with a given configuration, using the stream's media clock.
+     *
+     * @param upstream      object that will receive packets in order
+     * @param mediaClock    clock shared with upstream to unwrap RTP timestamps
+     * @param configuration if OUT_OF_ORDER_MAX_TIME, its value will replace the default one (1000 ms)
+     */
+    public MinDelayRtpMediaBuffer(RtpSessionDataListener upstream, MediaClock mediaClock, Properties configuration) {
         configuration = (configuration != null) ? configuration : new Properties();
         this.upstream = upstream;
+        this.mediaClock = mediaClock;
         currentState = State.IDLE;
 
         OUT_OF_ORDER_MAX_TIME = Long.parseLong(configuration.getProperty(CONFIG_TIMEOUT_MS, Long.toString(OUT_OF_ORDER_MAX_TIME)));
+        retransmissionRequester = Boolean.parseBoolean(configuration.getProperty(RetransmissionRequester.CONFIG_NACK, "false")) ?
+                new RetransmissionRequester(configuration) : null;
         log.info("Using MinDelayRtpMediaBuffer with OUT_OF_ORDER_MAX_TIME = [" + OUT_OF_ORDER_MAX_TIME + "]");
     }
 
     /**
-     * Does nothing on stop.
+     * Releases any packet still waiting for a missing one. Packets received afterwards are discarded.
      */
     @Override
-    public void stop() {
-
+    public synchronized void stop() {
+        stopped = true;
+        releaseBufferedPackets();
     }
 
     /**
@@ -96,10 +118,17 @@ public class MinDelayRtpMediaBuffer implements RtpMediaBuffer {
      * @param packet
      */
     @Override
-    public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+    public synchronized void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+        if (stopped) {
+            return;
+        }
+
+        long sequenceNumber = packet.getExtendedSequenceNumber();
+        long presentationTimestamp = mediaClock.getMilliseconds(packet.getTimestamp());
+
         if (currentState == State.IDLE) {
-            nextExpectedSequenceNumber = packet.getSequenceNumber();
-            timestampDifference = System.currentTimeMillis() - packet.getTimestamp() / 90;
+            nextExpectedSequenceNumber = sequenceNumber;
+            timestampDifference = System.currentTimeMillis() - presentationTimestamp;
 
             if (RtpMediaDecoder.DEBUGGING) {
                 log.info("Stream started. Timestamps: " + timestampDifference);
@@ -108,15 +137,22 @@ public class MinDelayRtpMediaBuffer implements RtpMediaBuffer {
             currentState = State.DIRECT;
         }
 
+        if (retransmissionRequester != null) {
+            // Missing packets are skipped once a packet OUT_OF_ORDER_MAX_TIME newer than the last one sent arrives
+            long deadline = System.currentTimeMillis() + OUT_OF_ORDER_MAX_TIME -
+                    (presentationTimestamp - lastProcessedTimestamp);
+            retransmissionRequester.packetReceived(session, packet, sequenceNumber, deadline);
+        }
+
         // If the received packet is the one we were expecting: send it for processing
-        if (packet.getSequenceNumber() == nextExpectedSequenceNumber) {
+        if (sequenceNumber == nextExpectedSequenceNumber) {
             try {
                 upstream.dataPacketReceived(session, participant, packet);
             } catch (Exception e) {
                 log.error("Error while trying to pass packet to upstream", e);
             }
-            lastProcessedTimestamp = packet.getTimestamp() / 90;
-            nextExpectedSequenceNumber = packet.getSequenceNumber() + 1;
+            lastProcessedTimestamp = presentationTimestamp;
+            nextExpectedSequenceNumber = sequenceNumber + 1;
 
             // Also send any subsequent packets that we were buffering!
             while (packetMap.containsKey(nextExpectedSequenceNumber)) {
@@ -124,21 +160,28 @@ public class MinDelayRtpMediaBuffer implements RtpMediaBuffer {
                     log.warn("Sending old buffered packet. #" + nextExpectedSequenceNumber);
                 }
                 DataPacket oldPacket = packetMap.remove(nextExpectedSequenceNumber);
-                timestampMap.remove(nextExpectedSequenceNumber);
+                long oldPresentationTimestamp = timestampMap.remove(nextExpectedSequenceNumber);
 
                 try {
                     upstream.dataPacketReceived(session, participant, oldPacket);
                 } catch (Exception e) {
                     log.error("Error while trying to pass packet to upstream", e);
+                } finally {
+                    oldPacket.release();
                 }
-                lastProcessedTimestamp = oldPacket.getTimestamp() / 90;
-                nextExpectedSequenceNumber = oldPacket.getSequenceNumber() + 1;
+                lastProcessedTimestamp = oldPresentationTimestamp;
+                nextExpectedSequenceNumber++;
             }
 
+        } else if (sequenceNumber < nextExpectedSequenceNumber) {
+            // Duplicate, or arrived after we gave up on it
+            if (RtpMediaDecoder.DEBUGGING) {
+                log.warn("Discarding late packet. #" + packet.getSequenceNumber());
+            }
         } else {
             // If we are receiving packets that are much newer than what we were waiting for, discard
             // our buffers and restart from here
-            if (packet.getTimestamp() / 90 - lastProcessedTimestamp > OUT_OF_ORDER_MAX_TIME) {
+            if (presentationTimestamp - lastProcessedTimestamp > OUT_OF_ORDER_MAX_TIME) {
                 if (RtpMediaDecoder.DEBUGGING) {
                     log.warn("Out of order packets are getting too old. Resetting");
                 }
@@ -147,11 +190,10 @@ public class MinDelayRtpMediaBuffer implements RtpMediaBuffer {
                 } catch (Exception e) {
                     log.error("Error while trying to pass packet to upstream", e);
                 }
-                lastProcessedTimestamp = packet.getTimestamp() / 90;
-                nextExpectedSequenceNumber = packet.getSequenceNumber() + 1;
+                lastProcessedTimestamp = presentationTimestamp;
+                nextExpectedSequenceNumber = sequenceNumber + 1;
 
-                packetMap.clear();
-                timestampMap.clear();
+                releaseBufferedPackets();
 
                 // Otherwise, store the packet in the buffer for later
             } else {
@@ -159,12 +201,36 @@ public class MinDelayRtpMediaBuffer implements RtpMediaBuffer {
                     log.warn("Saving out of order packet. #" + packet.getSequenceNumber());
                 }
 
-                packetMap.put(packet.getSequenceNumber(), packet);
-                timestampMap.put(packet.getSequenceNumber(), packet.getTimestamp() / 90);
+                // Keep the packet beyond this call (see DataPacket#retain)
+                DataPacket replaced = packetMap.put(sequenceNumber, packet.retain());
+                if (replaced != null) {
+                    replaced.release();
+                }
+                timestampMap.put(sequenceNumber, presentationTimestamp);
             }
         }
     }
 
+    /**
+     * Retrieves the object requesting retransmissions of missing packets.
+     *
+     * @return null unless NACK is enabled
+     */
+    public RetransmissionRequester getRetransmissionRequester() {
+        return retransmissionRequester;
+    }
+
+    /**
+     * Drops every stored out of order packet.
+     */
+    private void releaseBufferedPackets() {
+        for (DataPacket packet : packetMap.values()) {
+            packet.release();
+        }
+        packetMap.clear();
+        timestampMap.clear();
+    }
+
     /**
      * State constants.
      */
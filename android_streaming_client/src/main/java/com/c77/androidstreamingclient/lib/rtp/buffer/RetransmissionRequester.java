@@ -0,0 +1,263 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+
+package com.c77.androidstreamingclient.lib.rtp.buffer;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.packet.GenericNackPacket;
+import com.biasedbit.efflux.session.RtpSession;
+import com.c77.androidstreamingclient.lib.rtp.RtpMediaDecoder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Asks the media source to retransmit missing packets, sending generic NACKs (RFC 4585) on behalf of a buffer.
+ * <p/>
+ * The buffer reports every packet it receives along with the time by which the packet has to be sent upstream.
+ * Sequence numbers skipped by a packet are considered missing and are requested while a retransmission can still
+ * arrive before that deadline: right away, and again whenever nothing arrived after about one and a half round
+ * trips, up to a maximum number of attempts. The round trip time is estimated from how long requested packets take
+ * to arrive, leaving out the ones requested more than once (Karn's rule), since there is no telling which request
+ * they answer. The amount of sequence numbers requested per second is limited.
+ * <p/>
+ * Retransmitted packets reach the buffer as any other packet, so they fall into place as long as they are on time.
+ * Must be used from the thread that receives packets.
+ *
+ * @author Julian Cerruti
+ */
+public class RetransmissionRequester {
+    public static final String CONFIG_NACK = "NACK";
+    public static final String CONFIG_NACK_RTT = "NACK_RTT_MS";
+    public static final String CONFIG_NACK_MAX_RETRIES = "NACK_MAX_RETRIES";
+    public static final String CONFIG_NACK_MAX_RATE = "NACK_MAX_RATE";
+
+    private static final Log log = LogFactory.getLog(RetransmissionRequester.class);
+    // Larger jumps in the sequence numbers are taken as a restart of the stream rather than as losses
+    private static final int MAX_GAP = 500;
+    // milliseconds. Lower bound for the time between two requests of the same packet
+    private static final long MIN_RETRY_INTERVAL = 10;
+    private static final long NO_PACKETS = Long.MIN_VALUE;
+
+    // milliseconds. Round trip time assumed until retransmissions are measured
+    private long initialRtt = 100;
+    private int maxRetries = 3;
+    // Maximum amount of sequence numbers requested per second
+    private int maxRate = 200;
+
+    // Missing packets by extended sequence number
+    private final TreeMap<Long, MissingPacket> missingPackets = new TreeMap<Long, MissingPacket>();
+    private long highestSequenceNumber = NO_PACKETS;
+    // milliseconds. Smoothed round trip time estimate
+    private long rtt;
+    // Rate limiting: available requests and when they were last refilled
+    private double requestTokens;
+    private long lastRefillTime;
+
+    private volatile long packetsRequested = 0;
+    private volatile long packetsRecovered = 0;
+    private volatile long packetsLost = 0;
+
+    /**
+     * Creates a retransmission requester with a given configuration.
+     *
+     * @param configuration if NACK_RTT_MS, NACK_MAX_RETRIES or NACK_MAX_RATE are present, their values will replace
+     *                      the default ones (100 ms, 3 and 200 requests per second)
+     */
+    public RetransmissionRequester(Properties configuration) {
+        configuration = (configuration != null) ? configuration : new Properties();
+        initialRtt = Long.parseLong(configuration.getProperty(CONFIG_NACK_RTT, Long.toString(initialRtt)));
+        maxRetries = Integer.parseInt(configuration.getProperty(CONFIG_NACK_MAX_RETRIES, Integer.toString(maxRetries)));
+        maxRate = Integer.parseInt(configuration.getProperty(CONFIG_NACK_MAX_RATE, Integer.toString(maxRate)));
+        rtt = initialRtt;
+        requestTokens = maxRate;
+        log.info("Using RetransmissionRequester with NACK_RTT_MS = [" + initialRtt + "], NACK_MAX_RETRIES = [" +
+                maxRetries + "], NACK_MAX_RATE = [" + maxRate + "]");
+    }
+
+    /**
+     * Accounts for a received packet and sends the retransmission requests that are due.
+     *
+     * @param session        session the packet was received from, used to send the requests
+     * @param packet
+     * @param sequenceNumber extended sequence number of the packet
+     * @param deadline       system time in milliseconds by which the packet has to be sent upstream, also taken as
+     *                       the deadline of the packets missing right before it
+     */
+    public void packetReceived(RtpSession session, DataPacket packet, long sequenceNumber, long deadline) {
+        packetReceived(session, packet, sequenceNumber, deadline, System.currentTimeMillis());
+    }
+
+    /**
+     * Accounts for a received packet at a given time and sends the retransmission requests that are due.
+     *
+     * @param session        session the packet was received from, used to send the requests
+     * @param packet
+     * @param sequenceNumber extended sequence number of the packet
+     * @param deadline       system time in milliseconds by which the packet has to be sent upstream, also taken as
+     *                       the deadline of the packets missing right before it
+     * @param now            current system time in milliseconds
+     */
+    public void packetReceived(RtpSession session, DataPacket packet, long sequenceNumber, long deadline, long now) {
+        if (highestSequenceNumber == NO_PACKETS || sequenceNumber - highestSequenceNumber > MAX_GAP) {
+            // First packet or restarted stream: nothing to recover from before it
+            packetsLost += missingPackets.size();
+            missingPackets.clear();
+            highestSequenceNumber = sequenceNumber;
+        } else if (sequenceNumber > highestSequenceNumber) {
+            for (long missing = highestSequenceNumber + 1; missing < sequenceNumber; missing++) {
+                missingPackets.put(missing, new MissingPacket(deadline));
+            }
+            highestSequenceNumber = sequenceNumber;
+        } else {
+            MissingPacket missingPacket = missingPackets.remove(sequenceNumber);
+            if (missingPacket != null && missingPacket.requests > 0) {
+                packetsRecovered++;
+                // A packet requested again may answer any of the requests, which would underestimate the round trip
+                if (missingPacket.requests == 1) {
+                    // Smoothed like TCP's round trip time (RFC 6298)
+                    rtt = (7 * rtt + (now - missingPacket.lastRequestTime)) / 8;
+                }
+            }
+        }
+
+        if (!missingPackets.isEmpty()) {
+            requestMissingPackets(session, packet.getSsrc(), now);
+        }
+    }
+
+    /**
+     * Sends a NACK with every missing packet that is due for a request, forgetting the ones that can't be recovered
+     * anymore.
+     *
+     * @param session
+     * @param mediaSsrc SSRC of the media source
+     * @param now
+     */
+    private void requestMissingPackets(RtpSession session, long mediaSsrc, long now) {
+        requestTokens = Math.min(maxRate, requestTokens + (now - lastRefillTime) * maxRate / 1000.0);
+        lastRefillTime = now;
+        long retryInterval = Math.max(MIN_RETRY_INTERVAL, rtt + rtt / 2);
+
+        GenericNackPacket nack = null;
+        Iterator<Map.Entry<Long, MissingPacket>> iterator = missingPackets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, MissingPacket> entry = iterator.next();
+            MissingPacket missingPacket = entry.getValue();
+            if (now > missingPacket.deadline) {
+                // Too late, the buffer already moved on
+                iterator.remove();
+                packetsLost++;
+                continue;
+            }
+            if (missingPacket.requests > 0 && now - missingPacket.lastRequestTime < retryInterval) {
+                continue;
+            }
+            if (missingPacket.requests >= maxRetries) {
+                iterator.remove();
+                packetsLost++;
+                continue;
+            }
+            if (now + rtt > missingPacket.deadline) {
+                // A retransmission wouldn't make it in time
+                continue;
+            }
+            if (requestTokens < 1) {
+                break;
+            }
+
+            if (nack == null) {
+                nack = new GenericNackPacket();
+                nack.setSenderSsrc(session.getLocalParticipant().getSsrc());
+                nack.setMediaSsrc(mediaSsrc);
+            }
+            nack.addLostSequenceNumber((int) (entry.getKey() & 0xffff));
+            missingPacket.requests++;
+            missingPacket.lastRequestTime = now;
+            requestTokens--;
+            packetsRequested++;
+        }
+
+        if (nack != null) {
+            if (RtpMediaDecoder.DEBUGGING) {
+                log.info("Requesting retransmission of " + nack.getLostSequenceNumbers());
+            }
+            session.sendControlPacket(nack);
+        }
+    }
+
+    /**
+     * Retrieves how many retransmissions were requested, counting every attempt.
+     *
+     * @return
+     */
+    public long getPacketsRequested() {
+        return packetsRequested;
+    }
+
+    /**
+     * Retrieves how many requested packets arrived.
+     *
+     * @return
+     */
+    public long getPacketsRecovered() {
+        return packetsRecovered;
+    }
+
+    /**
+     * Retrieves how many missing packets were given up on.
+     *
+     * @return
+     */
+    public long getPacketsLost() {
+        return packetsLost;
+    }
+
+    /**
+     * Retrieves the current round trip time estimate.
+     *
+     * @return milliseconds
+     */
+    public long getRtt() {
+        return rtt;
+    }
+
+    /**
+     * A packet that has not arrived yet.
+     */
+    private static class MissingPacket {
+        // system time in milliseconds by which the packet is useful
+        private final long deadline;
+        private int requests = 0;
+        private long lastRequestTime;
+
+        private MissingPacket(long deadline) {
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.rtp.buffer;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpClockMapping;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.MediaClock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * RTP buffer with the same play-out behaviour as {@link TimeWindowRtpMediaBuffer}, but storing packets in a
+ * fixed-size ring indexed by sequence number instead of a synchronized map.
+ * <p/>
+ * Approach: the thread receiving packets (producer) only fills empty slots and the sending thread (consumer) only
+ * empties them, so neither needs a lock. Sequence numbers are compared in 16 bits, so the stream can wrap around.
+ * When more packets than the ring can hold are lost in a row, the consumer skips ahead to the oldest sequence number
+ * that still fits in it.
+ *
+ * @author Julian Cerruti
+ */
+public class RingRtpMediaBuffer implements RtpMediaBuffer {
+    // properties
+    private static final String DEBUGGING_PROPERTY = "DEBUGGING";
+    public static final String CAPACITY_PROPERTY = "RING_BUFFER_CAPACITY";
+
+    private static final Log log = LogFactory.getLog(RingRtpMediaBuffer.class);
+    // Sequence numbers are 16 bits, so a ring can't hold more than half of them and still tell old from new
+    private static final int MAX_CAPACITY = 32768;
+    private static final long SEND_LOOP_WAIT = 20;
+
+    private final boolean debugging;
+    private final long bufferSizeMilliseconds;
+    private final RtpSessionDataListener upstream;
+    private final MediaClock mediaClock;
+    private final DataPacketSenderThread dataPacketSenderThread;
+
+    // packets indexed by sequence number & mask
+    private final AtomicReferenceArray<DataPacket> ring;
+    private final int mask;
+    // Highest sequence number stored so far. Written by the producer only
+    private volatile int highestSequenceNumber;
+    // Next sequence number to send upstream. Written by the consumer only
+    private volatile int nextSequenceNumber;
+
+    // Jitter buffer variables
+    // Used to convert between presentation and system time. Written by the producer only
+    private volatile long presentationToSystemDifference;
+    // Current position of the play head. Any packet older
+    // than this time has already been sent to upstream. Written by the consumer only
+    private volatile long playHeadPresentationTime;
+
+    // Sender report based play-out, only used by the producer
+    private final boolean senderReportSync;
+    private RtpClockMapping clockMapping;
+
+    private State streamingState;
+    private RtpSession session;
+    private RtpParticipantInfo participant;
+
+    /**
+     * Creates a ring based RTP buffer.
+     *
+     * @param upstream   object that will receive packets in order
+     * @param properties FRAMES_WINDOW_TIME sets the window size in milliseconds (500 by default) and
+     *                   RING_BUFFER_CAPACITY the number of packets it can hold, rounded up to a power of two
+     *                   (4096 by default, enough for one second at 4000 packets/s)
+     */
+    public RingRtpMediaBuffer(RtpSessionDataListener upstream, Properties properties) {
+        this(upstream, new MediaClock(), properties);
+    }
+
+    /**
+     * Creates a ring based RTP buffer using the stream's media clock.
+     *
+     * @param upstream   object that will receive packets in order
+     * @param mediaClock clock shared with upstream to unwrap RTP timestamps
+     * @param properties see {@link #RingRtpMediaBuffer(RtpSessionDataListener, Properties)}
+     */
+    public RingRtpMediaBuffer(RtpSessionDataListener upstream, MediaClock mediaClock, Properties properties) {
+        this.upstream = upstream;
+        this.mediaClock = mediaClock;
+        streamingState = State.IDLE;
+        dataPacketSenderThread = new DataPacketSenderThread();
+
+        // load properties
+        properties = (properties != null) ? properties : new Properties();
+        debugging = Boolean.parseBoolean(properties.getProperty(DEBUGGING_PROPERTY, "false"));
+        bufferSizeMilliseconds = Long.parseLong(properties.getProperty(TimeWindowRtpMediaBuffer.FRAMES_WINDOW_PROPERTY, "500"));
+        senderReportSync = Boolean.parseBoolean(properties.getProperty(TimeWindowRtpMediaBuffer.SENDER_REPORT_SYNC_PROPERTY, "false"));
+        int capacity = Integer.parseInt(properties.getProperty(CAPACITY_PROPERTY, "4096"));
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException(CAPACITY_PROPERTY + " must be between 1 and " + MAX_CAPACITY);
+        }
+        capacity = Integer.highestOneBit(capacity - 1) << 1;
+        capacity = Math.max(capacity, 1);
+        ring = new AtomicReferenceArray<DataPacket>(capacity);
+        mask = capacity - 1;
+        log.info("Using RingRtpMediaBuffer with BUFFER_SIZE_MILLISECONDS = [" + bufferSizeMilliseconds +
+                "], capacity = [" + capacity + "], SENDER_REPORT_SYNC = [" + senderReportSync + "]");
+    }
+
+    /**
+     * When a new data packet arrives, it may be discarded if it is older than the play head or its slot is still
+     * taken. If not, it will be stored in the ring.
+     * It starts the consumer's thread.
+     *
+     * @param session
+     * @param participant
+     * @param packet
+     */
+    @Override
+    public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+        long systemTimestamp = System.currentTimeMillis();
+        long presentationTimestamp = getConvertedTimestamp(packet);
+        int sequenceNumber = packet.getSequenceNumber();
+
+        if (streamingState == State.IDLE) {
+            this.session = session;
+            this.participant = participant;
+
+            // Declare system to presentation timestamp difference based on this one packet
+            presentationToSystemDifference = systemTimestamp - presentationTimestamp;
+            playHeadPresentationTime = presentationTimestamp - bufferSizeMilliseconds;
+            highestSequenceNumber = sequenceNumber;
+            nextSequenceNumber = sequenceNumber;
+
+            streamingState = State.STREAMING;
+
+            dataPacketSenderThread.start();
+        }
+
+        if (senderReportSync) {
+            anchorOnCaptureTime(participant, packet, presentationTimestamp);
+        }
+
+        // discard packets that are too late
+        if (presentationTimestamp < playHeadPresentationTime || distance(nextSequenceNumber, sequenceNumber) < 0) {
+            if (debugging) {
+                log.info("Discarded packet: (s#, pt, st)" + sequenceNumber + "/" +
+                        presentationTimestamp + "/" + systemTimestamp);
+            }
+            return;
+        }
+
+        // The consumer empties slots, so a taken one means a duplicate or a packet a whole ring ahead
+        int index = sequenceNumber & mask;
+        if (ring.get(index) != null) {
+            if (debugging) {
+                log.info("Discarded packet, slot taken: " + sequenceNumber);
+            }
+            return;
+        }
+
+        // Keep the packet beyond this call (see DataPacket#retain)
+        ring.lazySet(index, packet.retain());
+        if (distance(highestSequenceNumber, sequenceNumber) > 0) {
+            highestSequenceNumber = sequenceNumber;
+        }
+    }
+
+    /**
+     * Stops the consuming thread and releases any packet still in the ring.
+     * The thread is waited for first, as it may be sending one of those packets.
+     */
+    public void stop() {
+        if (dataPacketSenderThread != null) {
+            dataPacketSenderThread.shutdown();
+        }
+
+        for (int i = 0; i < ring.length(); i++) {
+            DataPacket packet = ring.getAndSet(i, null);
+            if (packet != null) {
+                packet.release();
+            }
+        }
+    }
+
+    /**
+     * Bases the play-out on the time the media was captured once the sender reports tell it, instead of on the time
+     * the first packet arrived, which may have been late.
+     *
+     * @param participant
+     * @param packet
+     * @param presentationTimestamp
+     */
+    private void anchorOnCaptureTime(RtpParticipantInfo participant, DataPacket packet, long presentationTimestamp) {
+        RtpClockMapping clockMapping = participant != null ? participant.getClockMapping() : null;
+        if (clockMapping == null || clockMapping == this.clockMapping) {
+            return;
+        }
+        this.clockMapping = clockMapping;
+
+        long difference = clockMapping.getLocalTime(packet.getTimestamp()) - presentationTimestamp;
+        if (debugging) {
+            log.info("Play-out anchored on capture time, moved by " + (presentationToSystemDifference - difference) + " ms");
+        }
+        presentationToSystemDifference = difference;
+    }
+
+    /**
+     * Retrieves the packet's presentation time in milliseconds, unwrapped by the media clock.
+     *
+     * @param packet
+     * @return
+     */
+    private long getConvertedTimestamp(DataPacket packet) {
+        return mediaClock.getMilliseconds(packet.getTimestamp());
+    }
+
+    /**
+     * Number of packets from one sequence number to another, negative if the second is older.
+     *
+     * @param from
+     * @param to
+     * @return
+     */
+    private static int distance(int from, int to) {
+        return (short) (to - from);
+    }
+
+    /**
+     * Consuming thread.
+     * This thread consumes frames waiting a fixed delay between frames.
+     * For every running cycle, it walks the ring from the next expected sequence number, sending the packets which
+     * timestamps are behind the play head and skipping the missing ones.
+     */
+    private class DataPacketSenderThread extends Thread {
+        private volatile boolean running = true;
+
+        /**
+         * Runs the consumer's thread.
+         * It waits a fixed time before consuming. Then calculates which frames should be consumed,
+         * depending on their timestamps and the presentation time of the play head.
+         */
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    // Wait first, since the thread is started as soon as the first packet arrives
+                    sleep(SEND_LOOP_WAIT);
+
+                    // Advance play head to the current time
+                    long previousPlayHeadPresentationTime = playHeadPresentationTime;
+                    playHeadPresentationTime = System.currentTimeMillis() - presentationToSystemDifference - bufferSizeMilliseconds;
+
+                    sendPackets(previousPlayHeadPresentationTime);
+                }
+            } catch (InterruptedException e) {
+                // Woken up by shutdown()
+            } catch (Throwable t) {
+                log.error("Exiting jitter buffer loop due to exception", t);
+            }
+        }
+
+        /**
+         * Stops the consuming thread's loop and waits for it to leave, so that it no longer touches the ring.
+         */
+        public void shutdown() {
+            running = false;
+            if (currentThread() == this) {
+                return;
+            }
+
+            interrupt();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                // Keep the caller's interruption
+                currentThread().interrupt();
+            }
+        }
+
+        private void sendPackets(long previousPlayHeadPresentationTime) {
+            int next = nextSequenceNumber;
+            int highest = highestSequenceNumber;
+            if (distance(next, highest) > mask) {
+                // A whole ring or more was lost, the packets before this one can't be stored anymore
+                next = skipTo((highest - mask) & 0xffff);
+            }
+            int pending = distance(next, highest) + 1;
+
+            for (int i = 0; i < pending && i <= mask; i++) {
+                int sequenceNumber = (next + i) & 0xffff;
+                int index = sequenceNumber & mask;
+                DataPacket packet = ring.get(index);
+                if (packet == null) {
+                    // Missing so far. Skipped if a later packet is due
+                    continue;
+                }
+
+                int packetDistance = distance(sequenceNumber, packet.getSequenceNumber());
+                if (packetDistance > 0) {
+                    // Belongs to a later turn of the ring, so this one is missing too
+                    continue;
+                } else if (packetDistance < 0) {
+                    // Arrived after we skipped it
+                    ring.lazySet(index, null);
+                    packet.release();
+                    continue;
+                }
+
+                long packetPresentationTime = getConvertedTimestamp(packet);
+                if (packetPresentationTime > playHeadPresentationTime) {
+                    break;
+                }
+
+                ring.lazySet(index, null);
+                nextSequenceNumber = (sequenceNumber + 1) & 0xffff;
+
+                if (packetPresentationTime < previousPlayHeadPresentationTime) {
+                    log.warn("Dropping packet from buffer. This shouldn't happen");
+                    packet.release();
+                    continue;
+                }
+
+                try {
+                    upstream.dataPacketReceived(session, participant, packet);
+                } catch (Throwable t) {
+                    log.error("Exception while sending packet to extractor", t);
+                } finally {
+                    packet.release();
+                }
+            }
+        }
+
+        /**
+         * Gives up on the packets before a sequence number and releases the ones of them still in the ring, which
+         * would otherwise keep their slots taken for the packets that replace them.
+         *
+         * @param sequenceNumber next sequence number to send upstream
+         * @return the sequence number
+         */
+        private int skipTo(int sequenceNumber) {
+            if (debugging) {
+                log.info("Lost more packets than the ring holds, skipping from " + nextSequenceNumber + " to " +
+                        sequenceNumber);
+            }
+            nextSequenceNumber = sequenceNumber;
+            for (int i = 0; i < ring.length(); i++) {
+                DataPacket packet = ring.get(i);
+                if (packet != null && distance(sequenceNumber, packet.getSequenceNumber()) < 0) {
+                    ring.lazySet(i, null);
+                    packet.release();
+                }
+            }
+            return sequenceNumber;
+        }
+    }
+}
@@ -23,9 +23,11 @@
 package com.c77.androidstreamingclient.lib.rtp.buffer;
 
 import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpClockMapping;
 import com.biasedbit.efflux.participant.RtpParticipantInfo;
 import com.biasedbit.efflux.session.RtpSession;
 import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.MediaClock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,7 +44,13 @@ import java.util.TreeMap;
  * and at a fixed rate.
  * <p/>
  * Approach: It keeps two threads. One will store the packets that arrive to the client, the other one will
- * consume them with some wisdom.
+ * consume them with some wisdom: it sleeps until the earliest stored packet is due and is woken up whenever an
+ * earlier one arrives, so packets leave as soon as the play head passes them.
+ * <p/>
+ * In frame aware mode packets are released a whole frame (access unit) at a time. Packets sharing an RTP timestamp
+ * form a frame, and when its deadline comes a frame is sent upstream only if it is complete. Otherwise all its
+ * packets are dropped together, so the extractor and the decoder never spend time and input buffers on a frame
+ * that can't be decoded.
  *
  * @author Ayelen Chavez
  * @author Julian Cerruti
@@ -51,28 +59,49 @@ public class TimeWindowRtpMediaBuffer implements RtpMediaBuffer {
     // properties
     private static final String DEBUGGING_PROPERTY = "DEBUGGING";
     public static final String FRAMES_WINDOW_PROPERTY = "FRAMES_WINDOW_TIME";
+    public static final String FRAME_AWARE_PROPERTY = "FRAME_AWARE";
+    public static final String SENDER_REPORT_SYNC_PROPERTY = "SENDER_REPORT_SYNC";
 
     private static final Log log = LogFactory.getLog(TimeWindowRtpMediaBuffer.class);
     private static boolean DEBUGGING = false;
-    private static long SEND_LOOP_WAIT = 20;
     private static long BUFFER_SIZE_MILLISECONDS = 500;
+    // Returned when there are no packets to wait for
+    private static final long NO_PACKETS = -1;
+    // Sequence number of the previous frame's last packet before any frame was released
+    private static final long NO_FRAME = Long.MIN_VALUE;
 
     private final RtpSessionDataListener upstream;
+    private final MediaClock mediaClock;
     private final DataPacketSenderThread dataPacketSenderThread;
 
-    // packets sorted by presentation time
-    TreeMap<Integer, DataPacket> buffer = new TreeMap();
+    // packets sorted by extended sequence number. Guarded by this buffer's monitor, which the consumer's thread
+    // also waits on
+    TreeMap<Long, DataPacket> buffer = new TreeMap();
     private long maxTimeCycleTime = 0;
     private int counter = 0;
     private long sumTimeCycleTimes = 0;
 
     // Jitter buffer variables
-    // Used to convert between presentation and system time
-    private long presentationToSystemDifference;
-    // Current position of the play head. Any packet older
+    // Used to convert between presentation and system time. Written by the receiving thread
+    private volatile long presentationToSystemDifference;
+    // Position of the play head the last time packets were sent. Any packet older
     // than this time has already been sent to upstream.
     private long playHeadPresentationTime;
 
+    // Frame aware mode variables, only used by the consumer's thread
+    private final boolean frameAware;
+    private long previousFrameLastSequenceNumber = NO_FRAME;
+    private boolean previousFrameMarked = true;
+    private volatile long framesReleased = 0;
+    private volatile long framesLost = 0;
+
+    // Sender report based play-out, only used by the receiving thread
+    private final boolean senderReportSync;
+    private RtpClockMapping clockMapping;
+
+    // Asks for missing packets while they can still make it before the play head. Only used by the receiving thread
+    private final RetransmissionRequester retransmissionRequester;
+
     private State streamingState;
     private RtpSession session;
     private RtpParticipantInfo participant;
@@ -86,7 +115,19 @@ public class TimeWindowRtpMediaBuffer implements RtpMediaBuffer {
      * @param properties
      */
     public TimeWindowRtpMediaBuffer(RtpSessionDataListener upstream, Properties properties) {
+        this(upstream, new MediaClock(), properties);
+    }
+
+    /**
+     * Creates an RTP buffer which work is to avoid network jitter, using the stream's media clock.
+     *
+     * @param upstream
+     * @param mediaClock clock shared with upstream to unwrap RTP timestamps
+     * @param properties
+     */
+    public TimeWindowRtpMediaBuffer(RtpSessionDataListener upstream, MediaClock mediaClock, Properties properties) {
         this.upstream = upstream;
+        this.mediaClock = mediaClock;
         streamingState = State.IDLE;
         dataPacketSenderThread = new DataPacketSenderThread();
 
@@ -94,7 +135,12 @@ public class TimeWindowRtpMediaBuffer implements RtpMediaBuffer {
         properties = (properties != null) ? properties : new Properties();
         DEBUGGING = Boolean.parseBoolean(properties.getProperty(DEBUGGING_PROPERTY, "false"));
         BUFFER_SIZE_MILLISECONDS = Long.parseLong(properties.getProperty(FRAMES_WINDOW_PROPERTY, "500"));
-        log.info("Using TimeWindowRtpMediaBuffer with BUFFER_SIZE_MILLISECONDS = [" + BUFFER_SIZE_MILLISECONDS + "]");
+        frameAware = Boolean.parseBoolean(properties.getProperty(FRAME_AWARE_PROPERTY, "false"));
+        senderReportSync = Boolean.parseBoolean(properties.getProperty(SENDER_REPORT_SYNC_PROPERTY, "false"));
+        retransmissionRequester = Boolean.parseBoolean(properties.getProperty(RetransmissionRequester.CONFIG_NACK, "false")) ?
+                new RetransmissionRequester(properties) : null;
+        log.info("Using TimeWindowRtpMediaBuffer with BUFFER_SIZE_MILLISECONDS = [" + BUFFER_SIZE_MILLISECONDS +
+                "], FRAME_AWARE = [" + frameAware + "], SENDER_REPORT_SYNC = [" + senderReportSync + "]");
     }
 
     /**
@@ -124,8 +170,12 @@ public class TimeWindowRtpMediaBuffer implements RtpMediaBuffer {
             dataPacketSenderThread.start();
         }
 
+        if (senderReportSync) {
+            anchorOnCaptureTime(participant, packet, presentationTimestamp);
+        }
+
         // discard packets that are too late
-        if (State.STREAMING == streamingState && presentationTimestamp < playHeadPresentationTime) {
+        if (State.STREAMING == streamingState && presentationTimestamp < getPlayHeadPresentationTime(systemTimestamp)) {
             if (DEBUGGING) {
                 log.info("Discarded packet: (s#, pt, st)" + packet.getSequenceNumber() + "/" +
                         presentationTimestamp + "/" + systemTimestamp);
@@ -133,19 +183,162 @@ public class TimeWindowRtpMediaBuffer implements RtpMediaBuffer {
             return;
         }
 
+        long sequenceNumber = packet.getExtendedSequenceNumber();
+
+        if (retransmissionRequester != null) {
+            // The packet is due when the play head reaches it
+            retransmissionRequester.packetReceived(session, packet, sequenceNumber,
+                    presentationTimestamp + presentationToSystemDifference + BUFFER_SIZE_MILLISECONDS);
+        }
+
+        // Keep the packet beyond this call (see DataPacket#retain)
+        packet.retain();
+        DataPacket replaced;
         synchronized (this) {
-            buffer.put(packet.getSequenceNumber(), packet);
+            replaced = buffer.put(sequenceNumber, packet);
+            // Wake up the consumer if it is waiting for a later packet
+            if (buffer.firstKey() == sequenceNumber) {
+                notify();
+            }
+        }
+        if (replaced != null) {
+            replaced.release();
+        }
+    }
+
+    /**
+     * Bases the play-out on the time the media was captured once the sender reports tell it, instead of on the time
+     * the first packet arrived, which may have been late.
+     *
+     * @param participant
+     * @param packet
+     * @param presentationTimestamp
+     */
+    private void anchorOnCaptureTime(RtpParticipantInfo participant, DataPacket packet, long presentationTimestamp) {
+        RtpClockMapping clockMapping = participant != null ? participant.getClockMapping() : null;
+        if (clockMapping == null || clockMapping == this.clockMapping) {
+            return;
         }
+        this.clockMapping = clockMapping;
+
+        long difference = clockMapping.getLocalTime(packet.getTimestamp()) - presentationTimestamp;
+        if (DEBUGGING) {
+            log.info("Play-out anchored on capture time, moved by " + (presentationToSystemDifference - difference) + " ms");
+        }
+        presentationToSystemDifference = difference;
     }
 
     /**
-     * Retrieves a timestamp modified to revert libstreaming modifications to timestamps.
+     * Retrieves the packet's presentation time in milliseconds, unwrapped by the media clock.
      *
      * @param packet
      * @return
      */
     private long getConvertedTimestamp(DataPacket packet) {
-        return packet.getTimestamp() / 90;
+        return mediaClock.getMilliseconds(packet.getTimestamp());
+    }
+
+    /**
+     * Retrieves the position of the play head at a given time.
+     *
+     * @param systemTimestamp
+     * @return
+     */
+    private long getPlayHeadPresentationTime(long systemTimestamp) {
+        return systemTimestamp - presentationToSystemDifference - BUFFER_SIZE_MILLISECONDS;
+    }
+
+    /**
+     * Retrieves how long to wait until the earliest stored packet is due. Must be called holding this buffer's
+     * monitor.
+     *
+     * @param systemTimestamp
+     * @return milliseconds to wait, 0 if the packet is already due or NO_PACKETS if there is none
+     */
+    private long getTimeToNextPacket(long systemTimestamp) {
+        Map.Entry<Long, DataPacket> entry = buffer.firstEntry();
+        if (entry == null) {
+            return NO_PACKETS;
+        }
+        return Math.max(0, getConvertedTimestamp(entry.getValue()) - getPlayHeadPresentationTime(systemTimestamp));
+    }
+
+    /**
+     * Removes every packet of the earliest stored frame from the buffer, adding them to the given list only if the
+     * frame is complete. Must be called holding this buffer's monitor.
+     * <p/>
+     * A frame is complete when none of its sequence numbers is missing, it starts right after the previous frame
+     * and its end is known: either its last packet has the marker bit set or the next frame's first packet is
+     * already stored. Packets missing between two frames are blamed on the first one unless it was marked as
+     * finished.
+     *
+     * @param packets list where the packets of a complete frame are added
+     * @return whether the frame was complete
+     */
+    private boolean takeFrame(List<DataPacket> packets) {
+        Map.Entry<Long, DataPacket> entry = buffer.firstEntry();
+        long timestamp = entry.getValue().getTimestamp();
+        long firstSequenceNumber = entry.getKey();
+        long lastSequenceNumber = firstSequenceNumber;
+        int frameStart = packets.size();
+
+        while (entry != null && entry.getValue().getTimestamp() == timestamp) {
+            lastSequenceNumber = entry.getKey();
+            packets.add(entry.getValue());
+            buffer.remove(lastSequenceNumber);
+            entry = buffer.firstEntry();
+        }
+
+        DataPacket lastPacket = packets.get(packets.size() - 1);
+        boolean hasAllPackets = lastSequenceNumber - firstSequenceNumber + 1 == packets.size() - frameStart;
+        boolean startKnown = previousFrameLastSequenceNumber == NO_FRAME || !previousFrameMarked ||
+                firstSequenceNumber == previousFrameLastSequenceNumber + 1;
+        boolean endKnown = lastPacket.hasMarker() || (entry != null && entry.getKey() == lastSequenceNumber + 1);
+
+        previousFrameLastSequenceNumber = lastSequenceNumber;
+        previousFrameMarked = lastPacket.hasMarker();
+
+        if (hasAllPackets && startKnown && endKnown) {
+            framesReleased++;
+            return true;
+        }
+
+        if (DEBUGGING) {
+            log.info("Dropping incomplete frame: (ts, first s#, last s#, packets)" + timestamp + "/" +
+                    firstSequenceNumber + "/" + lastSequenceNumber + "/" + (packets.size() - frameStart));
+        }
+        while (packets.size() > frameStart) {
+            packets.remove(packets.size() - 1).release();
+        }
+        framesLost++;
+        return false;
+    }
+
+    /**
+     * Retrieves how many complete frames were sent upstream in frame aware mode.
+     *
+     * @return
+     */
+    public long getFramesReleased() {
+        return framesReleased;
+    }
+
+    /**
+     * Retrieves how many incomplete frames were dropped at their deadline in frame aware mode.
+     *
+     * @return
+     */
+    public long getFramesLost() {
+        return framesLost;
+    }
+
+    /**
+     * Retrieves the object requesting retransmissions of missing packets.
+     *
+     * @return null unless NACK is enabled
+     */
+    public RetransmissionRequester getRetransmissionRequester() {
+        return retransmissionRequester;
     }
 
     /**
@@ -155,38 +348,47 @@ public class TimeWindowRtpMediaBuffer implements RtpMediaBuffer {
         if (dataPacketSenderThread != null) {
             dataPacketSenderThread.shutdown();
         }
+
+        synchronized (this) {
+            for (DataPacket packet : buffer.values()) {
+                packet.release();
+            }
+            buffer.clear();
+        }
     }
 
     /**
      * Consuming thread.
-     * This thread consumes frames waiting a fixed delay between frames.
+     * This thread waits until the earliest stored frame is due, or until an earlier one arrives.
      * For every running cycle, it will consume frames which timestamp are between the last play head
      * presentation time and the current time.
      */
     private class DataPacketSenderThread extends Thread {
-        private boolean running = true;
+        private volatile boolean running = true;
 
         /**
          * Runs the consumer's thread.
-         * It waits a fixed time before consuming. Then calculates which frames should be consumed,
-         * depending on their timestamps and the presentation time of the play head.
+         * It waits for the deadline of the earliest frame before consuming. Then calculates which frames should be
+         * consumed, depending on their timestamps and the presentation time of the play head.
          */
         @Override
         public void run() {
+            List<DataPacket> packets = new ArrayList<DataPacket>();
             try {
                 while (running) {
-                    // Wait first, since the thread is started as soon as the first packet arrives
-                    sleep(SEND_LOOP_WAIT);
+                    // Get packets up to the next play head an pass on to the extractor
+                    synchronized (TimeWindowRtpMediaBuffer.this) {
+                        long timeToNextPacket;
+                        while (running && (timeToNextPacket = getTimeToNextPacket(System.currentTimeMillis())) != 0) {
+                            TimeWindowRtpMediaBuffer.this.wait(timeToNextPacket == NO_PACKETS ? 0 : timeToNextPacket);
+                        }
 
-                    // Advance play head to the current time
-                    long previousPlayHeadPresentationTime = playHeadPresentationTime;
-                    playHeadPresentationTime = System.currentTimeMillis() - presentationToSystemDifference - BUFFER_SIZE_MILLISECONDS;
+                        // Advance play head to the current time
+                        long previousPlayHeadPresentationTime = playHeadPresentationTime;
+                        playHeadPresentationTime = getPlayHeadPresentationTime(System.currentTimeMillis());
 
-                    // Get packets up to the next play head an pass on to the extractor
-                    List<DataPacket> packets = new ArrayList<DataPacket>();
-                    synchronized (this) {
                         while (true) {
-                            Map.Entry<Integer, DataPacket> entry = buffer.firstEntry();
+                            Map.Entry<Long, DataPacket> entry = buffer.firstEntry();
                             if (entry == null) {
                                 break;
                             }
@@ -195,6 +397,10 @@ public class TimeWindowRtpMediaBuffer implements RtpMediaBuffer {
                                 break;
                             } else if (packetPresentationTime < previousPlayHeadPresentationTime) {
                                 log.warn("Dropping packet from buffer. This shouldn't happen");
+                                entry.getValue().release();
+                            } else if (frameAware) {
+                                takeFrame(packets);
+                                continue;
                             } else {
                                 packets.add(entry.getValue());
                             }
@@ -208,8 +414,11 @@ public class TimeWindowRtpMediaBuffer implements RtpMediaBuffer {
                             upstream.dataPacketReceived(session, participant, packet);
                         } catch (Throwable t) {
                             log.error("Exception while sending packet to extractor", t);
+                        } finally {
+                            packet.release();
                         }
                     }
+                    packets.clear();
                 }
             } catch (Throwable t) {
                 log.error("Exiting jitter buffer loop due to exception", t);
@@ -221,6 +430,9 @@ public class TimeWindowRtpMediaBuffer implements RtpMediaBuffer {
          */
         public void shutdown() {
             running = false;
+            synchronized (TimeWindowRtpMediaBuffer.this) {
+                TimeWindowRtpMediaBuffer.this.notify();
+            }
         }
     }
 }
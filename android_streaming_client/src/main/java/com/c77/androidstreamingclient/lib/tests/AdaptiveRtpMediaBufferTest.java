@@ -0,0 +1,179 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.tests;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.buffer.AdaptiveRtpMediaBuffer;
+import com.c77.androidstreamingclient.lib.rtp.buffer.TimeWindowRtpMediaBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * AdaptiveRtpMediaBuffer tests.
+ *
+ * @author Julian Cerruti
+ */
+public class AdaptiveRtpMediaBufferTest {
+    // Time between packets, in milliseconds
+    private static final int PACKET_INTERVAL = 10;
+    // Number of packets fed on every test (3 seconds)
+    private static final int PACKETS = 300;
+
+    private final Random random = new Random(77);
+    private List<Integer> receivedSequenceNumbers;
+
+    public AdaptiveRtpMediaBufferTest() {
+        try {
+            testShrinksWithoutJitter();
+            testGrowsWithJitter();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(-1);
+        }
+
+        System.out.println("All tests passed!");
+    }
+
+    /**
+     * Poor-man's test entry point
+     * TODO: Replace with JUnit or another more proper test framework
+     */
+    public static void main(String argv[]) {
+        new AdaptiveRtpMediaBufferTest();
+    }
+
+    private void testShrinksWithoutJitter() throws InterruptedException {
+        AdaptiveRtpMediaBuffer test = createBuffer(200);
+
+        feed(test, 0);
+        System.out.println("No jitter: jitter " + test.getJitter() + " ms, target delay " + test.getTargetDelay() +
+                " ms, delay " + test.getCurrentDelay() + " ms, late " + test.getLateLossRate());
+
+        sillyAssertTrue(test.getTargetDelay() < 60, "target delay should go down to the minimum");
+        sillyAssertTrue(test.getCurrentDelay() < 200 - 100, "delay should follow the target");
+        sillyAssertTrue(test.getLateLossRate() == 0, "no packet should be late");
+
+        Thread.sleep(200);
+        test.stop();
+        assertInOrder(PACKETS);
+
+        System.out.println("Test passed (testShrinksWithoutJitter)");
+    }
+
+    private void testGrowsWithJitter() throws InterruptedException {
+        AdaptiveRtpMediaBuffer test = createBuffer(20);
+
+        feed(test, 80);
+        System.out.println("80 ms jitter: jitter " + test.getJitter() + " ms, target delay " + test.getTargetDelay() +
+                " ms, delay " + test.getCurrentDelay() + " ms, late " + test.getLateLossRate());
+
+        sillyAssertTrue(test.getJitter() > 10, "jitter should be measured");
+        sillyAssertTrue(test.getTargetDelay() > 60, "target delay should grow with jitter");
+        sillyAssertTrue(test.getCurrentDelay() > 60, "delay should follow the target");
+
+        Thread.sleep(1200);
+        test.stop();
+        // Late packets are dropped, but the rest must keep their order
+        assertInOrder(-1);
+
+        System.out.println("Test passed (testGrowsWithJitter)");
+    }
+
+    private AdaptiveRtpMediaBuffer createBuffer(int initialDelay) {
+        receivedSequenceNumbers = new ArrayList<Integer>();
+        Properties configuration = new Properties();
+        configuration.setProperty(TimeWindowRtpMediaBuffer.FRAMES_WINDOW_PROPERTY, Integer.toString(initialDelay));
+        configuration.setProperty(AdaptiveRtpMediaBuffer.MIN_DELAY_PROPERTY, "20");
+        configuration.setProperty(AdaptiveRtpMediaBuffer.MAX_DELAY_PROPERTY, "1000");
+
+        return new AdaptiveRtpMediaBuffer(new RtpSessionDataListener() {
+            @Override
+            public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+                synchronized (receivedSequenceNumbers) {
+                    receivedSequenceNumbers.add(packet.getSequenceNumber());
+                }
+            }
+        }, configuration);
+    }
+
+    /**
+     * Feeds a stream of packets sent every PACKET_INTERVAL ms that are delayed by the network up to maxJitter ms.
+     *
+     * @param test
+     * @param maxJitter
+     * @throws InterruptedException
+     */
+    private void feed(AdaptiveRtpMediaBuffer test, int maxJitter) throws InterruptedException {
+        final long[] arrivals = new long[PACKETS];
+        Integer[] order = new Integer[PACKETS];
+        for (int i = 0; i < PACKETS; i++) {
+            arrivals[i] = i * PACKET_INTERVAL + (maxJitter > 0 ? random.nextInt(maxJitter) : 0);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.valueOf(arrivals[a]).compareTo(arrivals[b]);
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        for (int i : order) {
+            long wait = arrivals[i] - (System.currentTimeMillis() - start);
+            if (wait > 0) {
+                Thread.sleep(wait);
+            }
+            DataPacket packet = new DataPacket();
+            packet.setTimestamp((10000 + i * PACKET_INTERVAL) * 90);
+            packet.setSequenceNumber(i + 1);
+            test.dataPacketReceived(null, null, packet);
+        }
+    }
+
+    private void assertInOrder(int expectedPackets) {
+        synchronized (receivedSequenceNumbers) {
+            if (expectedPackets >= 0) {
+                sillyAssertTrue(receivedSequenceNumbers.size() == expectedPackets, "Packets missing in decoder (" +
+                        receivedSequenceNumbers.size() + " vs expected: " + expectedPackets + ")");
+            }
+            for (int i = 1; i < receivedSequenceNumbers.size(); i++) {
+                sillyAssertTrue(receivedSequenceNumbers.get(i) > receivedSequenceNumbers.get(i - 1),
+                        "packet received out of order: " + receivedSequenceNumbers.get(i));
+            }
+        }
+    }
+
+    private void sillyAssertTrue(boolean succeed, String message) {
+        if (!succeed) {
+            throw new RuntimeException("Assert is false: " + message);
+        }
+    }
+}
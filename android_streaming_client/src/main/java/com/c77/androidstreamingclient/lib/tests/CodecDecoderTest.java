@@ -0,0 +1,193 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+
+
+package com.c77.androidstreamingclient.lib.tests;
+
+import com.c77.androidstreamingclient.lib.video.BufferedSample;
+import com.c77.androidstreamingclient.lib.video.CodecDecoder;
+import com.c77.androidstreamingclient.lib.video.HeadlessCodecBackend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CodecDecoder input overflow policy tests. They feed one NAL unit per frame to a backend too slow to keep up,
+ * which records the frames queued to it. Frame numbers are sent as RTP timestamps of 90 ticks, so every frame's
+ * presentation time is its number in milliseconds.
+ *
+ * @author Julian Cerruti
+ */
+public class CodecDecoderTest {
+    // The backend takes 200 ms per frame and has room for three of them
+    private static final int INPUT_BUFFERS = 3;
+    private static final int INPUT_BUFFER_SIZE = 64;
+    private static final double FRAMES_PER_SECOND = 5;
+    // Milliseconds the decoder waits for a free input buffer
+    private static final long INPUT_BUFFER_TIMEOUT = 1;
+    private static final int INPUT_STAGING_FRAMES = 2;
+    // NAL unit type of a non-IDR slice
+    private static final int NAL_TYPE_SLICE = 1;
+    // Milliseconds to wait for the backend to render frames
+    private static final long RENDER_TIMEOUT = 5000;
+
+    private final List<Long> queued = new ArrayList<Long>();
+    private HeadlessCodecBackend backend;
+
+    public CodecDecoderTest() {
+        try {
+            testDrop();
+            testDropUntilIdr();
+            testStage();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(-1);
+        }
+
+        System.out.println("All tests passed!");
+    }
+
+    /**
+     * Poor-man's test entry point
+     * TODO: Replace with JUnit or another more proper test framework
+     */
+    public static void main(String argv[]) {
+        new CodecDecoderTest();
+    }
+
+    private void testDrop() throws Exception {
+        CodecDecoder decoder = newDecoder(CodecDecoder.POLICY_DROP);
+        try {
+            // Frames 3 to 5 find every input buffer taken
+            feed(decoder, 0, BufferedSample.NAL_TYPE_IDR);
+            for (int frame = 1; frame <= 5; frame++) {
+                feed(decoder, frame, NAL_TYPE_SLICE);
+            }
+            sillyAssertEquals(decoder.getFramesDiscarded(), 3L, "frames discarded while the backend is busy");
+
+            // Once buffers are free again, the next frame is decoded even if it isn't an IDR one
+            waitForRenderedFrames(2);
+            feed(decoder, 6, NAL_TYPE_SLICE);
+            sillyAssertEquals(decoder.getFramesDiscarded(), 3L, "frames discarded");
+            sillyAssertEquals(queued, Arrays.asList(0L, 1L, 2L, 6L), "frames queued to the backend");
+            sillyAssertEquals(decoder.getFramesQueued(), 4L, "frames queued");
+        } finally {
+            decoder.release();
+        }
+
+        System.out.println("Test passed (testDrop)");
+    }
+
+    private void testDropUntilIdr() throws Exception {
+        CodecDecoder decoder = newDecoder(CodecDecoder.POLICY_DROP_UNTIL_IDR);
+        try {
+            feed(decoder, 0, BufferedSample.NAL_TYPE_IDR);
+            for (int frame = 1; frame <= 5; frame++) {
+                feed(decoder, frame, NAL_TYPE_SLICE);
+            }
+            sillyAssertEquals(decoder.getFramesDiscarded(), 3L, "frames discarded while the backend is busy");
+
+            // Frames referring to the dropped ones are discarded although buffers are free, until an IDR frame
+            waitForRenderedFrames(2);
+            feed(decoder, 6, NAL_TYPE_SLICE);
+            sillyAssertEquals(decoder.getFramesDiscarded(), 4L, "frames discarded before the IDR frame");
+            feed(decoder, 7, BufferedSample.NAL_TYPE_IDR);
+            feed(decoder, 8, NAL_TYPE_SLICE);
+            sillyAssertEquals(decoder.getFramesDiscarded(), 4L, "frames discarded");
+            sillyAssertEquals(queued, Arrays.asList(0L, 1L, 2L, 7L, 8L), "frames queued to the backend");
+        } finally {
+            decoder.release();
+        }
+
+        System.out.println("Test passed (testDropUntilIdr)");
+    }
+
+    private void testStage() throws Exception {
+        CodecDecoder decoder = newDecoder(CodecDecoder.POLICY_STAGE);
+        try {
+            // Frames 3 and 4 are staged, frame 5 finds the staging buffers taken too
+            feed(decoder, 0, BufferedSample.NAL_TYPE_IDR);
+            for (int frame = 1; frame <= 5; frame++) {
+                feed(decoder, frame, NAL_TYPE_SLICE);
+            }
+            sillyAssertEquals(decoder.getFramesDiscarded(), 1L, "frames discarded while the backend is busy");
+            sillyAssertEquals(queued, Arrays.asList(0L, 1L, 2L), "frames queued while the backend is busy");
+
+            // Staged frames are queued first, then the IDR frame waits behind them
+            waitForRenderedFrames(2);
+            feed(decoder, 6, NAL_TYPE_SLICE);
+            sillyAssertEquals(decoder.getFramesDiscarded(), 2L, "frames discarded before the IDR frame");
+            feed(decoder, 7, BufferedSample.NAL_TYPE_IDR);
+            sillyAssertEquals(queued, Arrays.asList(0L, 1L, 2L, 3L, 4L), "frames queued with the IDR frame staged");
+
+            waitForRenderedFrames(4);
+            feed(decoder, 8, NAL_TYPE_SLICE);
+            sillyAssertEquals(decoder.getFramesDiscarded(), 2L, "frames discarded");
+            sillyAssertEquals(queued, Arrays.asList(0L, 1L, 2L, 3L, 4L, 7L, 8L), "frames queued to the backend");
+        } finally {
+            decoder.release();
+        }
+
+        System.out.println("Test passed (testStage)");
+    }
+
+    private CodecDecoder newDecoder(String inputOverflowPolicy) {
+        queued.clear();
+        backend = new HeadlessCodecBackend(INPUT_BUFFERS, INPUT_BUFFER_SIZE, FRAMES_PER_SECOND) {
+            @Override
+            public synchronized void queueInputBuffer(int index, int size, long presentationTimeUs) {
+                queued.add(presentationTimeUs / 1000);
+                super.queueInputBuffer(index, size, presentationTimeUs);
+            }
+        };
+        CodecDecoder decoder = new CodecDecoder(backend, INPUT_BUFFER_TIMEOUT, inputOverflowPolicy, INPUT_STAGING_FRAMES);
+        decoder.start();
+        return decoder;
+    }
+
+    private void feed(CodecDecoder decoder, int frame, int nalUnitType) throws Exception {
+        BufferedSample sample = decoder.getSampleBuffer();
+        sample.getBuffer().clear();
+        sample.getBuffer().put(new byte[]{(byte) (0x60 | nalUnitType), 1, 2, 3});
+        sample.setSampleSize(4);
+        sample.setRtpTimestamp(frame * 90);
+        decoder.decodeFrame(sample);
+    }
+
+    private void waitForRenderedFrames(long frames) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RENDER_TIMEOUT;
+        while (backend.getFramesRendered() < frames) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new RuntimeException("Backend rendered " + backend.getFramesRendered() + " frames, expected " + frames);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private void sillyAssertEquals(Object value, Object expected, String message) {
+        if (value == null ? expected != null : !value.equals(expected)) {
+            throw new RuntimeException("Assert is not equal: " + message + " (" + value + " vs expected: " + expected + ")");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+
+package com.c77.androidstreamingclient.lib.tests;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.FastStartListener;
+import com.c77.androidstreamingclient.lib.rtp.RtpMediaExtractor;
+import com.c77.androidstreamingclient.lib.video.BufferedSample;
+import com.c77.androidstreamingclient.lib.video.Decoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FastStartListener tests. The extractor and the buffer record the sequence numbers of the packets they get.
+ *
+ * @author Julian Cerruti
+ */
+public class FastStartListenerTest {
+    // Packets held by the listener before it starts dropping them
+    private static final int MAX_HELD_PACKETS = 1000;
+
+    // Single NAL unit payloads: a non-IDR slice, a picture parameter set and an IDR slice
+    private static final byte[] P_SLICE = {0x41, 1, 2, 3};
+    private static final byte[] PPS = {0x68, 1, 2, 3};
+    private static final byte[] IDR_SLICE = {0x65, 1, 2, 3};
+    // FU-A payloads of an IDR slice: start, middle and end fragments
+    private static final byte[] IDR_START = {0x7c, (byte) 0x85, 1, 2};
+    private static final byte[] IDR_MIDDLE = {0x7c, 0x05, 3, 4};
+    private static final byte[] IDR_END = {0x7c, 0x45, 5, 6};
+
+    private final List<Integer> extracted = new ArrayList<Integer>();
+    private final List<Integer> buffered = new ArrayList<Integer>();
+
+    public FastStartListenerTest() {
+        try {
+            testSkipBeforeIdr();
+            testHeldIdrSurvivesLimit();
+            testFlushOrder();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(-1);
+        }
+
+        System.out.println("All tests passed!");
+    }
+
+    /**
+     * Poor-man's test entry point
+     * TODO: Replace with JUnit or another more proper test framework
+     */
+    public static void main(String argv[]) {
+        new FastStartListenerTest();
+    }
+
+    private void testSkipBeforeIdr() {
+        FastStartListener listener = newListener();
+
+        // Slices before the IDR frame can't be decoded, parameter sets are kept
+        receive(listener, 1, 0, P_SLICE, false);
+        receive(listener, 2, 0, PPS, false);
+        receive(listener, 3, 0, P_SLICE, false);
+        receive(listener, 4, 3000, IDR_SLICE, true);
+        receive(listener, 5, 6000, P_SLICE, true);
+        sillyAssertEquals(extracted.size() + buffered.size(), 0, "packets sent before the decoder is ready");
+
+        listener.decoderReady();
+        sillyAssertEquals(extracted, Arrays.asList(2, 4), "packets sent to the extractor");
+        sillyAssertEquals(buffered, Arrays.asList(5), "packets sent to the buffer");
+
+        System.out.println("Test passed (testSkipBeforeIdr)");
+    }
+
+    private void testHeldIdrSurvivesLimit() {
+        FastStartListener listener = newListener();
+
+        receive(listener, 1, 3000, IDR_START, false);
+        receive(listener, 2, 3000, IDR_END, true);
+        // The decoder takes long: more packets arrive than can be held
+        int lastSequenceNumber = 2 + MAX_HELD_PACKETS + 100;
+        for (int sequenceNumber = 3; sequenceNumber <= lastSequenceNumber; sequenceNumber++) {
+            receive(listener, sequenceNumber, 3000 * sequenceNumber, P_SLICE, true);
+        }
+
+        listener.decoderReady();
+        sillyAssertEquals(extracted, Arrays.asList(1, 2), "IDR frame sent to the extractor");
+        // The oldest slices after the IDR frame were dropped
+        sillyAssertEquals(buffered.size(), MAX_HELD_PACKETS - 2, "packets sent to the buffer");
+        sillyAssertEquals(buffered.get(0), lastSequenceNumber - (MAX_HELD_PACKETS - 2) + 1, "oldest packet kept");
+        sillyAssertEquals(buffered.get(buffered.size() - 1), lastSequenceNumber, "newest packet kept");
+
+        System.out.println("Test passed (testHeldIdrSurvivesLimit)");
+    }
+
+    private void testFlushOrder() {
+        FastStartListener listener = newListener();
+
+        // The fragments of the IDR frame arrive out of order, then two more frames
+        receive(listener, 11, 3000, IDR_MIDDLE, false);
+        receive(listener, 10, 3000, IDR_START, false);
+        receive(listener, 12, 3000, IDR_END, true);
+        receive(listener, 14, 6000, P_SLICE, true);
+        receive(listener, 13, 6000, P_SLICE, false);
+
+        listener.decoderReady();
+        // The IDR frame goes to the extractor in order, the rest to the buffer as it arrived
+        sillyAssertEquals(extracted, Arrays.asList(10, 11, 12), "packets sent to the extractor");
+        sillyAssertEquals(buffered, Arrays.asList(14, 13), "packets sent to the buffer");
+
+        // From then on every packet goes to the buffer
+        receive(listener, 15, 9000, IDR_SLICE, true);
+        sillyAssertEquals(extracted.size(), 3, "packets sent to the extractor once streaming");
+        sillyAssertEquals(buffered, Arrays.asList(14, 13, 15), "packets sent to the buffer once streaming");
+
+        System.out.println("Test passed (testFlushOrder)");
+    }
+
+    private FastStartListener newListener() {
+        extracted.clear();
+        buffered.clear();
+
+        RtpMediaExtractor extractor = new RtpMediaExtractor(new Decoder() {
+            @Override
+            public BufferedSample getSampleBuffer() {
+                return null;
+            }
+
+            @Override
+            public void decodeFrame(BufferedSample frame) {
+            }
+        }) {
+            @Override
+            public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+                extracted.add(packet.getSequenceNumber());
+            }
+        };
+        RtpSessionDataListener buffer = new RtpSessionDataListener() {
+            @Override
+            public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+                buffered.add(packet.getSequenceNumber());
+            }
+        };
+        return new FastStartListener(extractor, buffer);
+    }
+
+    private void receive(FastStartListener listener, int sequenceNumber, long timestamp, byte[] payload,
+                         boolean marker) {
+        DataPacket packet = new DataPacket();
+        packet.setSequenceNumber(sequenceNumber);
+        packet.setTimestamp(timestamp);
+        packet.setMarker(marker);
+        packet.setData(payload);
+        listener.dataPacketReceived(null, null, packet);
+    }
+
+    private void sillyAssertEquals(Object value, Object expected, String message) {
+        if (value == null ? expected != null : !value.equals(expected)) {
+            throw new RuntimeException("Assert is not equal: " + message + " (" + value + " vs expected: " + expected + ")");
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.tests;
+
+import com.c77.androidstreamingclient.lib.rtp.MediaClock;
+import com.c77.androidstreamingclient.lib.video.BufferedSample;
+
+/**
+ * MediaClock tests.
+ *
+ * @author Julian Cerruti
+ */
+public class MediaClockTest {
+    // First RTP timestamp after the 32 bit wrap around
+    private static final long WRAP = 0x100000000L;
+
+    public MediaClockTest() {
+        try {
+            testUnwrapAcrossWrap();
+            testLatePacketBeforeWrap();
+            testPresentationTimeAcrossWrap();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(-1);
+        }
+
+        System.out.println("All tests passed!");
+    }
+
+    /**
+     * Poor-man's test entry point
+     * TODO: Replace with JUnit or another more proper test framework
+     */
+    public static void main(String argv[]) {
+        new MediaClockTest();
+    }
+
+    private void testUnwrapAcrossWrap() {
+        MediaClock clock = new MediaClock();
+
+        sillyAssertEquals(clock.unwrap(WRAP - 3000), WRAP - 3000, "first timestamp");
+        sillyAssertEquals(clock.unwrap(WRAP - 1), WRAP - 1, "timestamp before the wrap");
+        sillyAssertEquals(clock.unwrap(0), WRAP, "timestamp at the wrap");
+        sillyAssertEquals(clock.unwrap(3000), WRAP + 3000, "timestamp after the wrap");
+
+        // Keeps going on the next wrap around
+        clock.unwrap(WRAP / 2);
+        clock.unwrap(WRAP - 1);
+        sillyAssertEquals(clock.unwrap(10), 2 * WRAP + 10, "timestamp after the second wrap");
+
+        System.out.println("Test passed (testUnwrapAcrossWrap)");
+    }
+
+    private void testLatePacketBeforeWrap() {
+        MediaClock clock = new MediaClock();
+
+        clock.unwrap(WRAP - 3000);
+        clock.unwrap(3000);
+        sillyAssertEquals(clock.unwrap(WRAP - 1500), WRAP - 1500, "late timestamp from before the wrap");
+        sillyAssertEquals(clock.unwrap(6000), WRAP + 6000, "timestamp after the late one");
+
+        // Late packet from before the very first one
+        clock = new MediaClock();
+        clock.unwrap(100);
+        sillyAssertEquals(clock.unwrap(WRAP - 100), -100L, "late timestamp from before the first one");
+
+        System.out.println("Test passed (testLatePacketBeforeWrap)");
+    }
+
+    private void testPresentationTimeAcrossWrap() {
+        MediaClock clock = new MediaClock();
+        BufferedSample sample = new BufferedSample(null, 0);
+
+        long previousMilliseconds = Long.MIN_VALUE;
+        long previousPresentationTimeUs = Long.MIN_VALUE;
+        // 30 fps frames starting one second before the wrap
+        for (long rtpTimestamp = WRAP - 90000; rtpTimestamp < WRAP + 90000; rtpTimestamp += 3000) {
+            long wrappedTimestamp = rtpTimestamp & 0xffffffffL;
+
+            long milliseconds = clock.getMilliseconds(wrappedTimestamp);
+            sillyAssertEquals(previousMilliseconds == Long.MIN_VALUE || milliseconds - previousMilliseconds >= 33, true,
+                    "milliseconds going back at " + wrappedTimestamp);
+            previousMilliseconds = milliseconds;
+
+            sample.setRtpTimestamp(clock.unwrap(wrappedTimestamp));
+            sillyAssertEquals(sample.getPresentationTimeUs() > previousPresentationTimeUs, true,
+                    "presentation time going back at " + wrappedTimestamp);
+            previousPresentationTimeUs = sample.getPresentationTimeUs();
+        }
+
+        System.out.println("Test passed (testPresentationTimeAcrossWrap)");
+    }
+
+    private void sillyAssertEquals(Object value, Object expected, String message) {
+        if (value == null ? expected != null : !value.equals(expected)) {
+            throw new RuntimeException("Assert is not equal: " + message + " (" + value + " vs expected: " + expected + ")");
+        }
+    }
+}
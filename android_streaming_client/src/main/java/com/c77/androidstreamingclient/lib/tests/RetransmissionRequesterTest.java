@@ -0,0 +1,226 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.tests;
+
+import com.biasedbit.efflux.packet.ControlPacket;
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.packet.GenericNackPacket;
+import com.biasedbit.efflux.participant.RtpParticipant;
+import com.biasedbit.efflux.session.SingleParticipantSession;
+import com.c77.androidstreamingclient.lib.rtp.buffer.RetransmissionRequester;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * RetransmissionRequester tests. Time is given to the requester explicitly, so nothing waits.
+ *
+ * @author Julian Cerruti
+ */
+public class RetransmissionRequesterTest {
+    private static final long MEDIA_SSRC = 1234;
+    // An arbitrary system time to start from
+    private static final long T = 1000000;
+    private static final long DEADLINE = T + 10000;
+
+    private final List<List<Integer>> nacks = new ArrayList<List<Integer>>();
+    private final SingleParticipantSession session;
+
+    public RetransmissionRequesterTest() {
+        RtpParticipant local = RtpParticipant.createReceiver("127.0.0.1", 6000, 6001);
+        RtpParticipant remote = RtpParticipant.createReceiver("127.0.0.1", 5000, 5001);
+        // Records the NACKs instead of sending them
+        session = new SingleParticipantSession("test", 96, local, remote) {
+            @Override
+            public boolean sendControlPacket(ControlPacket packet) {
+                nacks.add(((GenericNackPacket) packet).getLostSequenceNumbers());
+                return true;
+            }
+        };
+
+        try {
+            testGapDetection();
+            testRetryTimer();
+            testKarnsRule();
+            testDeadline();
+            testMaxRetries();
+            testRateLimit();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(-1);
+        }
+
+        System.out.println("All tests passed!");
+    }
+
+    /**
+     * Poor-man's test entry point
+     * TODO: Replace with JUnit or another more proper test framework
+     */
+    public static void main(String argv[]) {
+        new RetransmissionRequesterTest();
+    }
+
+    private void testGapDetection() {
+        RetransmissionRequester requester = newRequester(new Properties());
+
+        receive(requester, 1, DEADLINE, T);
+        sillyAssertEquals(nacks.size(), 0, "NACKs after the first packet");
+        receive(requester, 4, DEADLINE, T);
+        assertNack(2, 3);
+        // Still missing, but not due again yet
+        receive(requester, 5, DEADLINE, T);
+        sillyAssertEquals(nacks.size(), 0, "NACKs before the retry interval");
+
+        // Sequence numbers are requested in 16 bits
+        receive(requester, 65534, DEADLINE, T);
+        receive(requester, 65537, DEADLINE, T);
+        assertNack(65535, 0);
+
+        sillyAssertEquals(requester.getPacketsRequested(), 4L, "packets requested");
+
+        System.out.println("Test passed (testGapDetection)");
+    }
+
+    private void testRetryTimer() {
+        RetransmissionRequester requester = newRequester(new Properties());
+
+        receive(requester, 1, DEADLINE, T);
+        receive(requester, 3, DEADLINE, T);
+        assertNack(2);
+        // Requested again after 1.5 round trips, 150 ms with the initial 100 ms estimate
+        receive(requester, 4, DEADLINE, T + 149);
+        sillyAssertEquals(nacks.size(), 0, "NACKs before 1.5 RTT");
+        receive(requester, 5, DEADLINE, T + 150);
+        assertNack(2);
+
+        System.out.println("Test passed (testRetryTimer)");
+    }
+
+    private void testKarnsRule() {
+        RetransmissionRequester requester = newRequester(new Properties());
+
+        receive(requester, 1, DEADLINE, T);
+        receive(requester, 3, DEADLINE, T);
+        receive(requester, 4, DEADLINE, T + 150);
+        assertNack(2);
+        assertNack(2);
+        // Requested twice: no telling which request it answers, so the estimate is left alone
+        receive(requester, 2, DEADLINE, T + 160);
+        sillyAssertEquals(requester.getPacketsRecovered(), 1L, "packets recovered");
+        sillyAssertEquals(requester.getRtt(), 100L, "RTT after a packet requested twice");
+
+        // Requested once: arrived 40 ms later, smoothed with 1/8 gain
+        receive(requester, 6, DEADLINE, T + 200);
+        assertNack(5);
+        receive(requester, 5, DEADLINE, T + 240);
+        sillyAssertEquals(requester.getRtt(), (7 * 100L + 40) / 8, "RTT after a packet requested once");
+
+        System.out.println("Test passed (testKarnsRule)");
+    }
+
+    private void testDeadline() {
+        RetransmissionRequester requester = newRequester(new Properties());
+
+        // Due in 50 ms, less than a round trip: not worth requesting
+        receive(requester, 1, T + 50, T);
+        receive(requester, 3, T + 50, T);
+        sillyAssertEquals(nacks.size(), 0, "NACKs for a packet that can't make it");
+
+        // Past its deadline: given up on
+        receive(requester, 4, DEADLINE, T + 60);
+        sillyAssertEquals(nacks.size(), 0, "NACKs after the deadline");
+        sillyAssertEquals(requester.getPacketsLost(), 1L, "packets lost");
+        sillyAssertEquals(requester.getPacketsRequested(), 0L, "packets requested");
+
+        System.out.println("Test passed (testDeadline)");
+    }
+
+    private void testMaxRetries() {
+        RetransmissionRequester requester = newRequester(new Properties());
+
+        receive(requester, 1, DEADLINE, T);
+        receive(requester, 3, DEADLINE, T);
+        receive(requester, 4, DEADLINE, T + 150);
+        receive(requester, 5, DEADLINE, T + 300);
+        assertNack(2);
+        assertNack(2);
+        assertNack(2);
+        // 3 attempts by default
+        receive(requester, 6, DEADLINE, T + 450);
+        sillyAssertEquals(nacks.size(), 0, "NACKs after the last attempt");
+        sillyAssertEquals(requester.getPacketsRequested(), 3L, "packets requested");
+        sillyAssertEquals(requester.getPacketsLost(), 1L, "packets lost");
+
+        System.out.println("Test passed (testMaxRetries)");
+    }
+
+    private void testRateLimit() {
+        Properties configuration = new Properties();
+        configuration.setProperty(RetransmissionRequester.CONFIG_NACK_MAX_RATE, "5");
+        RetransmissionRequester requester = newRequester(configuration);
+
+        // 10 missing, only 5 requests available
+        receive(requester, 1, DEADLINE, T);
+        receive(requester, 12, DEADLINE, T);
+        assertNack(2, 3, 4, 5, 6);
+        // Refilled at 5 per second: nothing available 100 ms later, one more after 200 ms
+        receive(requester, 13, DEADLINE, T + 100);
+        sillyAssertEquals(nacks.size(), 0, "NACKs without requests available");
+        receive(requester, 14, DEADLINE, T + 200);
+        sillyAssertEquals(nacks.size(), 1, "NACKs after the refill");
+        sillyAssertEquals(nacks.remove(0).size(), 1, "sequence numbers requested after the refill");
+
+        System.out.println("Test passed (testRateLimit)");
+    }
+
+    private RetransmissionRequester newRequester(Properties configuration) {
+        nacks.clear();
+        return new RetransmissionRequester(configuration);
+    }
+
+    private void receive(RetransmissionRequester requester, long sequenceNumber, long deadline, long now) {
+        DataPacket packet = new DataPacket();
+        packet.setSsrc(MEDIA_SSRC);
+        packet.setSequenceNumber((int) (sequenceNumber & 0xffff));
+        requester.packetReceived(session, packet, sequenceNumber, deadline, now);
+    }
+
+    private void assertNack(Integer... sequenceNumbers) {
+        sillyAssertEquals(nacks.isEmpty(), false, "NACK sent");
+        List<Integer> requested = new ArrayList<Integer>(nacks.remove(0));
+        Collections.sort(requested);
+        List<Integer> expected = new ArrayList<Integer>(Arrays.asList(sequenceNumbers));
+        Collections.sort(expected);
+        sillyAssertEquals(requested, expected, "sequence numbers requested");
+    }
+
+    private void sillyAssertEquals(Object value, Object expected, String message) {
+        if (value == null ? expected != null : !value.equals(expected)) {
+            throw new RuntimeException("Assert is not equal: " + message + " (" + value + " vs expected: " + expected + ")");
+        }
+    }
+}
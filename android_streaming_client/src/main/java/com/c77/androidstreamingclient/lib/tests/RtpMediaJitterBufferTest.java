@@ -23,9 +23,13 @@
 package com.c77.androidstreamingclient.lib.tests;
 
 import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.ExtendedSequenceNumber;
 import com.biasedbit.efflux.participant.RtpParticipantInfo;
 import com.biasedbit.efflux.session.RtpSession;
 import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.MediaClock;
+import com.c77.androidstreamingclient.lib.rtp.buffer.RingRtpMediaBuffer;
+import com.c77.androidstreamingclient.lib.rtp.buffer.RtpMediaBuffer;
 import com.c77.androidstreamingclient.lib.rtp.buffer.TimeWindowRtpMediaBuffer;
 
 import java.util.ArrayList;
@@ -43,15 +47,24 @@ public class RtpMediaJitterBufferTest {
     // Configured delay time for the buffer
     private static final int DELAY = 200;
     // Amount of time to consider acceptable for the buffer to deliver a packet out of its expected time
-    private static final int DELAY_ASSERT_THRESHOLD = 20; // tests will fail until we fix the issue
-    // about the time taken by the consuming loop of the RtpMediaJitterBuffer
+    // (the ring buffer polls every 20 ms, so it may fail this)
+    private static final int DELAY_ASSERT_THRESHOLD = 20;
+    // Upper bounds, in milliseconds, of the play-out latency histogram buckets
+    private static final long[] LATENCY_BUCKETS = {1, 2, 5, 10, 20, Long.MAX_VALUE};
 
     MockMediaExtractor results;
     Properties configuration = new Properties();
-    TimeWindowRtpMediaBuffer test;
+    RtpMediaBuffer test;
+    // 'time-window' or 'ring'
+    private final String bufferType;
     private long timestampDelta;
+    // Unwraps the timestamps of the received packets to check when they should have been delivered
+    private MediaClock mediaClock;
+    // Extends sequence numbers like the session does before packets reach the buffer
+    private ExtendedSequenceNumber extendedSequenceNumber;
 
-    public RtpMediaJitterBufferTest() {
+    public RtpMediaJitterBufferTest(String bufferType) {
+        this.bufferType = bufferType;
         configuration.setProperty(TimeWindowRtpMediaBuffer.FRAMES_WINDOW_PROPERTY, Integer.toString(DELAY));
 
         try {
@@ -59,25 +72,43 @@ public class RtpMediaJitterBufferTest {
             testReorder();
             testDropMissingPacket();
             testDropPacketTooOld();
+            testSequenceNumberWrap();
+            testTimestampWrap();
+            testPlayoutLatency();
+            testLongBurstLoss();
+            if (!"ring".equalsIgnoreCase(bufferType)) {
+                testFrameAware();
+            }
         } catch (Throwable t) {
             t.printStackTrace();
             System.exit(-1);
         }
 
-        System.out.println("All tests passed!");
+        System.out.println("All tests passed! (" + bufferType + ")");
     }
 
     /**
      * Poor-man's test entry point
      * TODO: Replace with JUnit or another more proper test framework
+     *
+     * @param argv optionally, the buffer type to test: 'time-window' (default) or 'ring'
      */
     public static void main(String argv[]) {
-        new RtpMediaJitterBufferTest();
+        new RtpMediaJitterBufferTest(argv.length > 0 ? argv[0] : "time-window");
+    }
+
+    private RtpMediaBuffer createBuffer() {
+        mediaClock = new MediaClock();
+        extendedSequenceNumber = new ExtendedSequenceNumber();
+        if ("ring".equalsIgnoreCase(bufferType)) {
+            return new RingRtpMediaBuffer(results, configuration);
+        }
+        return new TimeWindowRtpMediaBuffer(results, configuration);
     }
 
     private void testDropPacketTooOld() {
         results = new MockMediaExtractor();
-        test = new TimeWindowRtpMediaBuffer(results, configuration);
+        test = createBuffer();
 
         try {
             // Feed a packet stream in order
@@ -131,7 +162,7 @@ public class RtpMediaJitterBufferTest {
 
     private void testDropMissingPacket() {
         results = new MockMediaExtractor();
-        test = new TimeWindowRtpMediaBuffer(results, configuration);
+        test = createBuffer();
 
         try {
             // Feed a packet stream in order
@@ -196,12 +227,16 @@ public class RtpMediaJitterBufferTest {
 
             // See if the packets are indeed delayed by the configured delay amount
             sillyAssertLongDifferenceWithThreshold(results.packetList.get(i).receivedTimestamp,
-                    receivedPacket.getTimestamp() / 90 + timestampDelta + DELAY, DELAY_ASSERT_THRESHOLD,
+                    mediaClock.getMilliseconds(receivedPacket.getTimestamp()) + timestampDelta + DELAY, DELAY_ASSERT_THRESHOLD,
                     "packet s#" + receivedPacket.getSequenceNumber() + " at the wrong time");
         }
     }
 
     private void assertNoDroppedFramesResults(int numpackets) {
+        assertNoDroppedFramesResults(numpackets, 1);
+    }
+
+    private void assertNoDroppedFramesResults(int numpackets, int firstSequenceNumber) {
         // Do we have the expected number of packets?
         sillyAssertEquals(results.packetList.size(), numpackets, "Packets missing in decoder");
 
@@ -209,18 +244,190 @@ public class RtpMediaJitterBufferTest {
         for (int i = 0; i < numpackets; i++) {
             // Are the packets in proper order?
             receivedPacket = results.packetList.get(i).packet;
-            sillyAssertEquals(receivedPacket.getSequenceNumber(), i + 1, "packet received out of order");
+            sillyAssertEquals(receivedPacket.getSequenceNumber(), (firstSequenceNumber + i) & 0xffff,
+                    "packet received out of order");
 
             // See if the packets are indeed delayed by the configured delay amount
             sillyAssertLongDifferenceWithThreshold(results.packetList.get(i).receivedTimestamp,
-                    receivedPacket.getTimestamp() / 90 + timestampDelta + DELAY, DELAY_ASSERT_THRESHOLD,
+                    mediaClock.getMilliseconds(receivedPacket.getTimestamp()) + timestampDelta + DELAY, DELAY_ASSERT_THRESHOLD,
                     "packet s#" + receivedPacket.getSequenceNumber() + " at the wrong time");
         }
     }
 
+    public void testSequenceNumberWrap() {
+        results = new MockMediaExtractor();
+        test = createBuffer();
+
+        try {
+            // Feed a packet stream that wraps around sequence number 65535, reordered right at the wrap
+            long realInitialTimestamp = System.currentTimeMillis();
+            timestampDelta = realInitialTimestamp - 10000;
+
+            test.dataPacketReceived(null, null, makePacket(10000, 65533));
+            test.dataPacketReceived(null, null, makePacket(10000, 65534));
+            test.dataPacketReceived(null, null, makePacket(10000, 0));
+
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makePacket(10034, 1));
+            test.dataPacketReceived(null, null, makePacket(10000, 65535));
+            test.dataPacketReceived(null, null, makePacket(10034, 2));
+
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makePacket(10068, 3));
+            test.dataPacketReceived(null, null, makePacket(10068, 4));
+
+            // Wait for the buffer to spit out the results and see what is there
+            Thread.sleep(1000);
+
+            assertNoDroppedFramesResults(8, 65533);
+
+            System.out.println("Test passed (testSequenceNumberWrap)");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        test.stop();
+    }
+
+    public void testTimestampWrap() {
+        results = new MockMediaExtractor();
+        test = createBuffer();
+
+        try {
+            // Feed a packet stream which RTP timestamps wrap around 2^32 20 ms after it starts
+            long initialRtpTimestamp = 0x100000000L - 20 * 90;
+            long realInitialTimestamp = System.currentTimeMillis();
+            timestampDelta = realInitialTimestamp - initialRtpTimestamp / 90;
+
+            test.dataPacketReceived(null, null, makeRtpPacket(initialRtpTimestamp, 1));
+            test.dataPacketReceived(null, null, makeRtpPacket(initialRtpTimestamp, 2));
+            test.dataPacketReceived(null, null, makeRtpPacket(initialRtpTimestamp, 3));
+
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makeRtpPacket(initialRtpTimestamp + 34 * 90, 4));
+            test.dataPacketReceived(null, null, makeRtpPacket(initialRtpTimestamp + 34 * 90, 5));
+            test.dataPacketReceived(null, null, makeRtpPacket(initialRtpTimestamp + 34 * 90, 6));
+
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makeRtpPacket(initialRtpTimestamp + 68 * 90, 7));
+            test.dataPacketReceived(null, null, makeRtpPacket(initialRtpTimestamp + 68 * 90, 8));
+
+            // Wait for the buffer to spit out the results and see what is there
+            Thread.sleep(1000);
+
+            assertNoDroppedFramesResults(8);
+
+            System.out.println("Test passed (testTimestampWrap)");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        test.stop();
+    }
+
+    public void testPlayoutLatency() {
+        results = new MockMediaExtractor();
+        test = createBuffer();
+
+        try {
+            // Feed a packet every 10 ms for a second
+            long realInitialTimestamp = System.currentTimeMillis();
+            timestampDelta = realInitialTimestamp - 10000;
+
+            for (int i = 0; i < 100; i++) {
+                test.dataPacketReceived(null, null, makePacket(10000 + i * 10, i + 1));
+                Thread.sleep(10);
+            }
+
+            // Wait for the buffer to spit out the results and see what is there
+            Thread.sleep(DELAY + 500);
+
+            printLatencyHistogram();
+            assertNoDroppedFramesResults(100);
+
+            System.out.println("Test passed (testPlayoutLatency)");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        test.stop();
+    }
+
+    public void testLongBurstLoss() {
+        results = new MockMediaExtractor();
+        // Lose more packets in a row than the ring can hold
+        configuration.setProperty(RingRtpMediaBuffer.CAPACITY_PROPERTY, "256");
+        test = createBuffer();
+        configuration.remove(RingRtpMediaBuffer.CAPACITY_PROPERTY);
+
+        try {
+            // Feed a packet per ms, 10 at a time, then lose 300 of them and keep going
+            long realInitialTimestamp = System.currentTimeMillis();
+            timestampDelta = realInitialTimestamp - 10000;
+
+            for (int sequenceNumber = 1; sequenceNumber <= 1000; sequenceNumber++) {
+                if (sequenceNumber <= 200 || sequenceNumber > 500) {
+                    test.dataPacketReceived(null, null, makePacket(10000 + sequenceNumber, sequenceNumber));
+                }
+                if (sequenceNumber % 10 == 0) {
+                    Thread.sleep(10);
+                }
+            }
+
+            // Wait for the buffer to spit out the results and see what is there
+            Thread.sleep(DELAY + 500);
+
+            sillyAssertEquals(results.packetList.size(), 700, "Packets missing in decoder");
+            for (int i = 0; i < 700; i++) {
+                sillyAssertEquals(results.packetList.get(i).packet.getSequenceNumber(), i < 200 ? i + 1 : i + 301,
+                        "packet received out of order");
+            }
+
+            System.out.println("Test passed (testLongBurstLoss)");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        test.stop();
+    }
+
+    /**
+     * Prints how late the received packets were delivered, compared to their expected time.
+     */
+    private void printLatencyHistogram() {
+        int[] counts = new int[LATENCY_BUCKETS.length];
+        long sum = 0;
+        long max = 0;
+        for (ReceivedPacket received : results.packetList) {
+            long expected = mediaClock.getMilliseconds(received.packet.getTimestamp()) + timestampDelta + DELAY;
+            long latency = Math.abs(received.receivedTimestamp - expected);
+            sum += latency;
+            max = Math.max(max, latency);
+            int bucket = 0;
+            while (latency >= LATENCY_BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+        }
+
+        StringBuilder histogram = new StringBuilder("Play-out latency (" + bufferType + "):");
+        long lowerBound = 0;
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            histogram.append(" [").append(lowerBound).append(", ")
+                    .append(LATENCY_BUCKETS[i] == Long.MAX_VALUE ? "inf" : Long.toString(LATENCY_BUCKETS[i]))
+                    .append(") ms: ").append(counts[i]);
+            lowerBound = LATENCY_BUCKETS[i];
+        }
+        if (!results.packetList.isEmpty()) {
+            histogram.append(", mean: ").append(sum / results.packetList.size()).append(" ms, max: ").append(max)
+                    .append(" ms");
+        }
+        System.out.println(histogram);
+    }
+
     public void testReorder() {
         results = new MockMediaExtractor();
-        test = new TimeWindowRtpMediaBuffer(results, configuration);
+        test = createBuffer();
 
         try {
             // Feed a packet stream in order
@@ -255,7 +462,7 @@ public class RtpMediaJitterBufferTest {
 
     public void testInOrder() {
         results = new MockMediaExtractor();
-        test = new TimeWindowRtpMediaBuffer(results, configuration);
+        test = createBuffer();
 
         try {
             // Feed a packet stream in order
@@ -289,6 +496,71 @@ public class RtpMediaJitterBufferTest {
         test.stop();
     }
 
+    public void testFrameAware() {
+        results = new MockMediaExtractor();
+        mediaClock = new MediaClock();
+        Properties frameAwareConfiguration = new Properties();
+        frameAwareConfiguration.putAll(configuration);
+        frameAwareConfiguration.setProperty(TimeWindowRtpMediaBuffer.FRAME_AWARE_PROPERTY, "true");
+        TimeWindowRtpMediaBuffer frameBuffer = new TimeWindowRtpMediaBuffer(results, frameAwareConfiguration);
+        test = frameBuffer;
+
+        try {
+            // Feed frames ending in a marked packet, some of them incomplete
+            long realInitialTimestamp = System.currentTimeMillis();
+            timestampDelta = realInitialTimestamp - 10000;
+
+            test.dataPacketReceived(null, null, makePacket(10000, 1));
+            test.dataPacketReceived(null, null, makePacket(10000, 2));
+            test.dataPacketReceived(null, null, makeMarkedPacket(10000, 3));
+
+            // Missing packet in the middle of the frame
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makePacket(10034, 4));
+            //test.dataPacketReceived(null, null, makePacket(10034, 5));
+            test.dataPacketReceived(null, null, makeMarkedPacket(10034, 6));
+
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makeMarkedPacket(10068, 8));
+            test.dataPacketReceived(null, null, makePacket(10068, 7));
+
+            // Not marked, but followed by the next frame
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makePacket(10102, 9));
+            test.dataPacketReceived(null, null, makePacket(10102, 10));
+
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makeMarkedPacket(10136, 11));
+
+            // Missing the end of the frame
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makePacket(10170, 12));
+            //test.dataPacketReceived(null, null, makeMarkedPacket(10170, 13));
+
+            Thread.sleep(34);
+            test.dataPacketReceived(null, null, makeMarkedPacket(10204, 14));
+
+            // Wait for the buffer to spit out the results and see what is there
+            Thread.sleep(1000);
+
+            // Frames 4-6 and 12-13 are dropped whole
+            int[] expected = {1, 2, 3, 7, 8, 9, 10, 11, 14};
+            sillyAssertEquals(results.packetList.size(), expected.length, "Packets missing in decoder");
+            for (int i = 0; i < expected.length; i++) {
+                sillyAssertEquals(results.packetList.get(i).packet.getSequenceNumber(), expected[i],
+                        "packet received out of order");
+            }
+            sillyAssertEquals(frameBuffer.getFramesReleased(), 5L, "Complete frames released");
+            sillyAssertEquals(frameBuffer.getFramesLost(), 2L, "Incomplete frames dropped");
+
+            System.out.println("Test passed (testFrameAware)");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        test.stop();
+    }
+
     private void sillyAssertTrue(boolean succeed, String message) {
         if (!succeed) {
             throw new RuntimeException("Assert is false: " + message);
@@ -296,7 +568,7 @@ public class RtpMediaJitterBufferTest {
     }
 
     private void sillyAssertEquals(Object value, Object expected, String message) {
-        if (value != expected) {
+        if (value == null ? expected != null : !value.equals(expected)) {
             throw new RuntimeException("Assert is not equal: " + message + " (" + value + " vs expected: " + expected + ")");
         }
     }
@@ -309,9 +581,21 @@ public class RtpMediaJitterBufferTest {
     }
 
     private DataPacket makePacket(long timestampMilliseconds, int sequenceNumber) {
+        return makeRtpPacket(timestampMilliseconds * 90, sequenceNumber);
+    }
+
+    private DataPacket makeMarkedPacket(long timestampMilliseconds, int sequenceNumber) {
+        DataPacket testpacket = makePacket(timestampMilliseconds, sequenceNumber);
+        testpacket.setMarker(true);
+        return testpacket;
+    }
+
+    private DataPacket makeRtpPacket(long rtpTimestamp, int sequenceNumber) {
         DataPacket testpacket = new DataPacket();
-        testpacket.setTimestamp(timestampMilliseconds * 90);
+        // RTP timestamps are 32 bits long
+        testpacket.setTimestamp(rtpTimestamp & 0xffffffffL);
         testpacket.setSequenceNumber(sequenceNumber);
+        testpacket.setExtendedSequenceNumber(extendedSequenceNumber.extend(sequenceNumber));
         return testpacket;
     }
 
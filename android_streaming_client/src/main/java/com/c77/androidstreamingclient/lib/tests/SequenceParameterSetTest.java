@@ -0,0 +1,227 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.tests;
+
+import com.c77.androidstreamingclient.lib.video.SequenceParameterSet;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * SequenceParameterSet tests.
+ *
+ * @author Julian Cerruti
+ */
+public class SequenceParameterSetTest {
+    // SPS used by libstreaming, as sent in-band (emulation prevention bytes included)
+    private static final byte[] LIBSTREAMING_SPS = {0x67, 0x64, (byte) 0x00, 0x1e, (byte) 0xac, (byte) 0xd9, 0x40,
+            (byte) 0xa0, 0x3d, (byte) 0xa1, 0x00, 0x00, (byte) 0x03, 0x00, 0x01, 0x00, 0x00, 0x03, 0x00, 0x3C, 0x0F,
+            0x16, 0x2D, (byte) 0x96};
+
+    public SequenceParameterSetTest() {
+        try {
+            testLibstreamingSps();
+            testCroppedBaselineSps();
+            testInterlacedHighProfileSps();
+            testTruncatedSps();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(-1);
+        }
+
+        System.out.println("All tests passed!");
+    }
+
+    /**
+     * Poor-man's test entry point
+     * TODO: Replace with JUnit or another more proper test framework
+     */
+    public static void main(String argv[]) {
+        new SequenceParameterSetTest();
+    }
+
+    private void testLibstreamingSps() {
+        SequenceParameterSet sps = SequenceParameterSet.parse(LIBSTREAMING_SPS);
+
+        sillyAssertEquals(sps.getProfileIdc(), 100, "profile");
+        sillyAssertEquals(sps.getLevelIdc(), 30, "level");
+        sillyAssertEquals(sps.getWidth(), 640, "width");
+        sillyAssertEquals(sps.getHeight(), 480, "height");
+
+        System.out.println("Test passed (testLibstreamingSps)");
+    }
+
+    private void testCroppedBaselineSps() {
+        // 1920x1088 coded, cropped to 1920x1080
+        BitWriter writer = new BitWriter();
+        writer.writeBits(0x67, 8);
+        writer.writeBits(66, 8);
+        writer.writeBits(0xc0, 8);
+        writer.writeBits(40, 8);
+        writer.writeUnsignedExpGolomb(0);   // seq_parameter_set_id
+        writer.writeUnsignedExpGolomb(0);   // log2_max_frame_num_minus4
+        writer.writeUnsignedExpGolomb(2);   // pic_order_cnt_type
+        writer.writeUnsignedExpGolomb(1);   // max_num_ref_frames
+        writer.writeBits(0, 1);             // gaps_in_frame_num_value_allowed_flag
+        writer.writeUnsignedExpGolomb(119); // pic_width_in_mbs_minus1
+        writer.writeUnsignedExpGolomb(67);  // pic_height_in_map_units_minus1
+        writer.writeBits(1, 1);             // frame_mbs_only_flag
+        writer.writeBits(1, 1);             // direct_8x8_inference_flag
+        writer.writeBits(1, 1);             // frame_cropping_flag
+        writer.writeUnsignedExpGolomb(0);
+        writer.writeUnsignedExpGolomb(0);
+        writer.writeUnsignedExpGolomb(0);
+        writer.writeUnsignedExpGolomb(4);
+        writer.writeBits(0, 1);             // vui_parameters_present_flag
+
+        SequenceParameterSet sps = SequenceParameterSet.parse(writer.toByteArray());
+
+        sillyAssertEquals(sps.getProfileIdc(), 66, "profile");
+        sillyAssertEquals(sps.getConstraintFlags(), 0xc0, "constraint flags");
+        sillyAssertEquals(sps.getLevelIdc(), 40, "level");
+        sillyAssertEquals(sps.getWidth(), 1920, "width");
+        sillyAssertEquals(sps.getHeight(), 1080, "height");
+
+        System.out.println("Test passed (testCroppedBaselineSps)");
+    }
+
+    private void testInterlacedHighProfileSps() {
+        // 720x576 interlaced, with a scaling matrix and cycle based picture order count
+        BitWriter writer = new BitWriter();
+        writer.writeBits(0x67, 8);
+        writer.writeBits(100, 8);
+        writer.writeBits(0, 8);
+        writer.writeBits(30, 8);
+        writer.writeUnsignedExpGolomb(0);   // seq_parameter_set_id
+        writer.writeUnsignedExpGolomb(1);   // chroma_format_idc
+        writer.writeUnsignedExpGolomb(0);   // bit_depth_luma_minus8
+        writer.writeUnsignedExpGolomb(0);   // bit_depth_chroma_minus8
+        writer.writeBits(0, 1);             // qpprime_y_zero_transform_bypass_flag
+        writer.writeBits(1, 1);             // seq_scaling_matrix_present_flag
+        writer.writeBits(1, 1);             // first scaling list present, all its values equal to 16
+        writer.writeSignedExpGolomb(8);
+        writer.writeSignedExpGolomb(0);
+        for (int i = 0; i < 14; i++) {
+            writer.writeSignedExpGolomb(0);
+        }
+        for (int i = 1; i < 8; i++) {
+            writer.writeBits(0, 1);
+        }
+        writer.writeUnsignedExpGolomb(0);   // log2_max_frame_num_minus4
+        writer.writeUnsignedExpGolomb(1);   // pic_order_cnt_type
+        writer.writeBits(0, 1);             // delta_pic_order_always_zero_flag
+        writer.writeSignedExpGolomb(-2);    // offset_for_non_ref_pic
+        writer.writeSignedExpGolomb(1);     // offset_for_top_to_bottom_field
+        writer.writeUnsignedExpGolomb(2);   // num_ref_frames_in_pic_order_cnt_cycle
+        writer.writeSignedExpGolomb(2);
+        writer.writeSignedExpGolomb(2);
+        writer.writeUnsignedExpGolomb(4);   // max_num_ref_frames
+        writer.writeBits(0, 1);             // gaps_in_frame_num_value_allowed_flag
+        writer.writeUnsignedExpGolomb(44);  // pic_width_in_mbs_minus1
+        writer.writeUnsignedExpGolomb(17);  // pic_height_in_map_units_minus1
+        writer.writeBits(0, 1);             // frame_mbs_only_flag
+        writer.writeBits(1, 1);             // mb_adaptive_frame_field_flag
+        writer.writeBits(1, 1);             // direct_8x8_inference_flag
+        writer.writeBits(0, 1);             // frame_cropping_flag
+        writer.writeBits(0, 1);             // vui_parameters_present_flag
+
+        SequenceParameterSet sps = SequenceParameterSet.parse(writer.toByteArray());
+
+        sillyAssertEquals(sps.getProfileIdc(), 100, "profile");
+        sillyAssertEquals(sps.getLevelIdc(), 30, "level");
+        sillyAssertEquals(sps.getWidth(), 720, "width");
+        sillyAssertEquals(sps.getHeight(), 576, "height");
+
+        System.out.println("Test passed (testInterlacedHighProfileSps)");
+    }
+
+    private void testTruncatedSps() {
+        byte[] truncated = new byte[8];
+        System.arraycopy(LIBSTREAMING_SPS, 0, truncated, 0, truncated.length);
+
+        boolean rejected = false;
+        try {
+            SequenceParameterSet.parse(truncated);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        sillyAssertEquals(rejected, true, "truncated SPS rejected");
+
+        System.out.println("Test passed (testTruncatedSps)");
+    }
+
+    private void sillyAssertEquals(Object value, Object expected, String message) {
+        if (value == null ? expected != null : !value.equals(expected)) {
+            throw new RuntimeException("Assert is not equal: " + message + " (" + value + " vs expected: " + expected + ")");
+        }
+    }
+
+    /**
+     * Writes bits, most significant first, and exponential Golomb codes, adding emulation prevention bytes.
+     */
+    private static class BitWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current = 0;
+        private int bitCount = 0;
+        private int zeros = 0;
+
+        void writeBits(int value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                current = (current << 1) | ((value >> i) & 1);
+                if (++bitCount == 8) {
+                    writeByte(current);
+                    current = 0;
+                    bitCount = 0;
+                }
+            }
+        }
+
+        void writeUnsignedExpGolomb(int value) {
+            int codeNum = value + 1;
+            int length = 32 - Integer.numberOfLeadingZeros(codeNum);
+            writeBits(0, length - 1);
+            writeBits(codeNum, length);
+        }
+
+        void writeSignedExpGolomb(int value) {
+            writeUnsignedExpGolomb(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        private void writeByte(int b) {
+            if (zeros >= 2 && b <= 3) {
+                bytes.write(3);
+                zeros = 0;
+            }
+            bytes.write(b);
+            zeros = (b == 0) ? zeros + 1 : 0;
+        }
+
+        byte[] toByteArray() {
+            // rbsp_stop_one_bit and alignment
+            writeBits(1, 1);
+            while (bitCount != 0) {
+                writeBits(0, 1);
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
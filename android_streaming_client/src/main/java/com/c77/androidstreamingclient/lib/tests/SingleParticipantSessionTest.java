@@ -0,0 +1,194 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+
+package com.c77.androidstreamingclient.lib.tests;
+
+import com.biasedbit.efflux.network.ControlPacketReceiver;
+import com.biasedbit.efflux.network.DataPacketReceiver;
+import com.biasedbit.efflux.network.RtpTransport;
+import com.biasedbit.efflux.network.RtpTransportFactory;
+import com.biasedbit.efflux.packet.CompoundControlPacket;
+import com.biasedbit.efflux.packet.ControlPacket;
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipant;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.biasedbit.efflux.session.SingleParticipantSession;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests how a session extends and orders the sequence numbers of the packets it receives. Packets are handed to the
+ * session directly, through a transport that never touches the network.
+ *
+ * @author Julian Cerruti
+ */
+public class SingleParticipantSessionTest {
+    private static final int PAYLOAD_TYPE = 96;
+    private static final long REMOTE_SSRC = 1234;
+    private static final SocketAddress REMOTE_DATA = new InetSocketAddress("127.0.0.1", 5000);
+
+    // Sequence numbers and extended sequence numbers of the packets that reached the listener
+    private final List<Integer> received = new ArrayList<Integer>();
+    private final List<Long> receivedExtended = new ArrayList<Long>();
+
+    public SingleParticipantSessionTest() {
+        try {
+            testWrapInOrder();
+            testDiscardOutOfOrderAcrossWrap();
+            testKeepOutOfOrderAcrossWrap();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(-1);
+        }
+
+        System.out.println("All tests passed!");
+    }
+
+    /**
+     * Poor-man's test entry point
+     * TODO: Replace with JUnit or another more proper test framework
+     */
+    public static void main(String argv[]) {
+        new SingleParticipantSessionTest();
+    }
+
+    private void testWrapInOrder() {
+        SingleParticipantSession session = newSession(true);
+
+        receive(session, 65533, 65534, 65535, 0, 1);
+
+        sillyAssertEquals(received, Arrays.asList(65533, 65534, 65535, 0, 1), "packets across the wrap around");
+        sillyAssertEquals(receivedExtended, Arrays.asList(65533L, 65534L, 65535L, 65536L, 65537L),
+                "extended sequence numbers across the wrap around");
+        session.terminate();
+
+        System.out.println("Test passed (testWrapInOrder)");
+    }
+
+    private void testDiscardOutOfOrderAcrossWrap() {
+        SingleParticipantSession session = newSession(true);
+
+        // 65535 arrives after 0, so it is out of order, but 1 is not
+        receive(session, 65534, 0, 65535, 1);
+
+        sillyAssertEquals(received, Arrays.asList(65534, 0, 1), "packets across the wrap around");
+        sillyAssertEquals(receivedExtended, Arrays.asList(65534L, 65536L, 65537L),
+                "extended sequence numbers across the wrap around");
+        session.terminate();
+
+        System.out.println("Test passed (testDiscardOutOfOrderAcrossWrap)");
+    }
+
+    private void testKeepOutOfOrderAcrossWrap() {
+        SingleParticipantSession session = newSession(false);
+
+        receive(session, 65534, 0, 65535, 1);
+
+        sillyAssertEquals(received, Arrays.asList(65534, 0, 65535, 1), "packets across the wrap around");
+        sillyAssertEquals(receivedExtended, Arrays.asList(65534L, 65536L, 65535L, 65537L),
+                "extended sequence numbers across the wrap around");
+        session.terminate();
+
+        System.out.println("Test passed (testKeepOutOfOrderAcrossWrap)");
+    }
+
+    private SingleParticipantSession newSession(boolean discardOutOfOrder) {
+        received.clear();
+        receivedExtended.clear();
+
+        RtpParticipant local = RtpParticipant.createReceiver("127.0.0.1", 6000, 6001);
+        RtpParticipant remote = RtpParticipant.createReceiver("127.0.0.1", 5000, 5001);
+        remote.getInfo().setSsrc(REMOTE_SSRC);
+        SingleParticipantSession session = new SingleParticipantSession("test", PAYLOAD_TYPE, local, remote);
+        session.setDiscardOutOfOrder(discardOutOfOrder);
+        session.setTransportFactory(new RtpTransportFactory() {
+            @Override
+            public RtpTransport createTransport(String name, DataPacketReceiver dataReceiver,
+                                                ControlPacketReceiver controlReceiver) {
+                return new NullTransport();
+            }
+        });
+        session.addDataListener(new RtpSessionDataListener() {
+            @Override
+            public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+                received.add(packet.getSequenceNumber());
+                receivedExtended.add(packet.getExtendedSequenceNumber());
+            }
+        });
+        sillyAssertEquals(session.init(), true, "session initialized");
+        return session;
+    }
+
+    private void receive(SingleParticipantSession session, int... sequenceNumbers) {
+        for (int sequenceNumber : sequenceNumbers) {
+            DataPacket packet = new DataPacket();
+            packet.setSsrc(REMOTE_SSRC);
+            packet.setPayloadType(PAYLOAD_TYPE);
+            packet.setSequenceNumber(sequenceNumber);
+            packet.setData(new byte[10]);
+            session.dataPacketReceived(REMOTE_DATA, packet);
+        }
+    }
+
+    private void sillyAssertEquals(Object value, Object expected, String message) {
+        if (value == null ? expected != null : !value.equals(expected)) {
+            throw new RuntimeException("Assert is not equal: " + message + " (" + value + " vs expected: " + expected + ")");
+        }
+    }
+
+    /**
+     * Transport that neither receives nor sends anything.
+     */
+    private static class NullTransport implements RtpTransport {
+        @Override
+        public void bind(SocketAddress dataAddress, SocketAddress controlAddress) {
+        }
+
+        @Override
+        public void sendData(DataPacket packet, SocketAddress destination) {
+        }
+
+        @Override
+        public void sendControl(ControlPacket packet, SocketAddress destination) {
+        }
+
+        @Override
+        public void sendControl(CompoundControlPacket packet, SocketAddress destination) {
+        }
+
+        @Override
+        public SocketAddress getDataLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+
+package com.c77.androidstreamingclient.lib.tests;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.UlpfecReceiver;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * UlpfecReceiver tests.
+ *
+ * @author Julian Cerruti
+ */
+public class UlpfecReceiverTest {
+    private static final int MEDIA_PAYLOAD_TYPE = 96;
+    private static final int FEC_PAYLOAD_TYPE = 127;
+    private static final long MEDIA_SSRC = 1234;
+    private static final long FEC_SSRC = 5678;
+
+    private final List<DataPacket> received = new ArrayList<DataPacket>();
+    private int fecSequenceNumber = 0;
+
+    public UlpfecReceiverTest() {
+        try {
+            testSingleLoss();
+            testRecoveryCascade();
+            testFecBeforeProtectedPackets();
+            testLongMaskAcrossWrap();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(-1);
+        }
+
+        System.out.println("All tests passed!");
+    }
+
+    /**
+     * Poor-man's test entry point
+     * TODO: Replace with JUnit or another more proper test framework
+     */
+    public static void main(String argv[]) {
+        new UlpfecReceiverTest();
+    }
+
+    private void testSingleLoss() {
+        UlpfecReceiver fecReceiver = newReceiver();
+        List<DataPacket> media = mediaPackets(1, 10);
+
+        for (DataPacket packet : media) {
+            if (packet.getSequenceNumber() != 5) {
+                fecReceiver.dataPacketReceived(null, null, packet);
+            }
+        }
+        fecReceiver.dataPacketReceived(null, null, fecPacket(media, 1, false));
+
+        sillyAssertEquals(received.size(), 10, "packets upstream");
+        assertSamePacket(received.get(9), media.get(4));
+        sillyAssertEquals(fecReceiver.getPacketsRecovered(), 1L, "packets recovered");
+        sillyAssertEquals(fecReceiver.getFecPacketsReceived(), 1L, "FEC packets received");
+
+        System.out.println("Test passed (testSingleLoss)");
+    }
+
+    private void testRecoveryCascade() {
+        UlpfecReceiver fecReceiver = newReceiver();
+        List<DataPacket> media = mediaPackets(1, 4);
+
+        fecReceiver.dataPacketReceived(null, null, media.get(0));
+        fecReceiver.dataPacketReceived(null, null, media.get(3));
+        // Two packets missing: waits for another FEC packet
+        fecReceiver.dataPacketReceived(null, null, fecPacket(media, 1, false));
+        sillyAssertEquals(received.size(), 2, "packets upstream before the second FEC packet");
+        // Recovers #3, which lets the first FEC packet recover #2
+        fecReceiver.dataPacketReceived(null, null, fecPacket(media.subList(2, 4), 3, false));
+
+        sillyAssertEquals(received.size(), 4, "packets upstream");
+        assertSamePacket(received.get(2), media.get(2));
+        assertSamePacket(received.get(3), media.get(1));
+        sillyAssertEquals(fecReceiver.getPacketsRecovered(), 2L, "packets recovered");
+
+        System.out.println("Test passed (testRecoveryCascade)");
+    }
+
+    private void testFecBeforeProtectedPackets() {
+        UlpfecReceiver fecReceiver = newReceiver();
+        List<DataPacket> media = mediaPackets(1, 4);
+
+        fecReceiver.dataPacketReceived(null, null, media.get(0));
+        fecReceiver.dataPacketReceived(null, null, media.get(1));
+        fecReceiver.dataPacketReceived(null, null, fecPacket(media, 1, false));
+        sillyAssertEquals(fecReceiver.getPacketsRecovered(), 0L, "packets recovered before the last protected one");
+        // #3 was lost, which is known once #4 arrives
+        fecReceiver.dataPacketReceived(null, null, media.get(3));
+
+        sillyAssertEquals(received.size(), 4, "packets upstream");
+        assertSamePacket(received.get(3), media.get(2));
+
+        System.out.println("Test passed (testFecBeforeProtectedPackets)");
+    }
+
+    private void testLongMaskAcrossWrap() {
+        UlpfecReceiver fecReceiver = newReceiver();
+        List<DataPacket> media = mediaPackets(65520, 48);
+
+        for (DataPacket packet : media) {
+            if (packet.getSequenceNumber() != 10) {
+                fecReceiver.dataPacketReceived(null, null, packet);
+            }
+        }
+        fecReceiver.dataPacketReceived(null, null, fecPacket(media, 65520, true));
+
+        sillyAssertEquals(received.size(), 48, "packets upstream");
+        assertSamePacket(received.get(47), media.get(26));
+
+        System.out.println("Test passed (testLongMaskAcrossWrap)");
+    }
+
+    private UlpfecReceiver newReceiver() {
+        received.clear();
+        return new UlpfecReceiver(new RtpSessionDataListener() {
+            @Override
+            public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+                sillyAssertEquals(packet.getPayloadType(), MEDIA_PAYLOAD_TYPE, "payload type upstream");
+                received.add(packet);
+            }
+        }, FEC_PAYLOAD_TYPE);
+    }
+
+    /**
+     * Media packets of different sizes, with a marker every third one. Their sequence numbers are extended as the
+     * session would.
+     */
+    private List<DataPacket> mediaPackets(int firstSequenceNumber, int count) {
+        List<DataPacket> packets = new ArrayList<DataPacket>();
+        for (int i = 0; i < count; i++) {
+            DataPacket packet = new DataPacket();
+            packet.setPayloadType(MEDIA_PAYLOAD_TYPE);
+            packet.setSsrc(MEDIA_SSRC);
+            packet.setSequenceNumber((firstSequenceNumber + i) & 0xffff);
+            packet.setExtendedSequenceNumber(firstSequenceNumber + i);
+            packet.setTimestamp(3000 * (i / 3));
+            packet.setMarker(i % 3 == 2);
+            byte[] payload = new byte[100 + 37 * i];
+            for (int j = 0; j < payload.length; j++) {
+                payload[j] = (byte) (i * 7 + j);
+            }
+            packet.setData(payload);
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    /**
+     * Builds a ULPFEC packet (RFC 5109) protecting the given consecutive packets, with a single level.
+     */
+    private DataPacket fecPacket(List<DataPacket> protectedPackets, int baseSequenceNumber, boolean longMask) {
+        int protectionLength = 0;
+        for (DataPacket packet : protectedPackets) {
+            protectionLength = Math.max(protectionLength, packet.encode().readableBytes() - 12);
+        }
+
+        int headerRecovery = 0;
+        long timestampRecovery = 0;
+        int lengthRecovery = 0;
+        byte[] payloadRecovery = new byte[protectionLength];
+        long mask = 0;
+        for (DataPacket packet : protectedPackets) {
+            ChannelBuffer bytes = packet.encode();
+            headerRecovery ^= bytes.getUnsignedShort(0);
+            timestampRecovery ^= packet.getTimestamp();
+            lengthRecovery ^= bytes.readableBytes() - 12;
+            for (int i = 12; i < bytes.readableBytes(); i++) {
+                payloadRecovery[i - 12] ^= bytes.getByte(i);
+            }
+            mask |= 1L << (47 - ((packet.getSequenceNumber() - baseSequenceNumber) & 0xffff));
+        }
+
+        ChannelBuffer data = ChannelBuffers.buffer(10 + (longMask ? 8 : 4) + protectionLength);
+        data.writeByte(((headerRecovery >> 8) & 0x3f) | (longMask ? 0x40 : 0));
+        data.writeByte(headerRecovery);
+        data.writeShort(baseSequenceNumber);
+        data.writeInt((int) timestampRecovery);
+        data.writeShort(lengthRecovery);
+        data.writeShort(protectionLength);
+        data.writeShort((int) (mask >> 32));
+        if (longMask) {
+            data.writeInt((int) mask);
+        }
+        data.writeBytes(payloadRecovery);
+
+        DataPacket fecPacket = new DataPacket();
+        fecPacket.setPayloadType(FEC_PAYLOAD_TYPE);
+        fecPacket.setSsrc(FEC_SSRC);
+        fecPacket.setSequenceNumber(fecSequenceNumber++);
+        fecPacket.setData(data);
+        return fecPacket;
+    }
+
+    private void assertSamePacket(DataPacket value, DataPacket expected) {
+        sillyAssertEquals(value.getSequenceNumber(), expected.getSequenceNumber(), "recovered sequence number");
+        sillyAssertEquals(value.getExtendedSequenceNumber(), expected.getExtendedSequenceNumber(),
+                "recovered extended sequence number");
+        sillyAssertEquals(value.getTimestamp(), expected.getTimestamp(), "recovered timestamp");
+        sillyAssertEquals(value.getSsrc(), expected.getSsrc(), "recovered SSRC");
+        sillyAssertEquals(value.hasMarker(), expected.hasMarker(), "recovered marker");
+        sillyAssertEquals(Arrays.equals(value.getDataAsArray(), expected.getDataAsArray()), true, "recovered payload");
+    }
+
+    private void sillyAssertEquals(Object value, Object expected, String message) {
+        if (value == null ? expected != null : !value.equals(expected)) {
+            throw new RuntimeException("Assert is not equal: " + message + " (" + value + " vs expected: " + expected + ")");
+        }
+    }
+}
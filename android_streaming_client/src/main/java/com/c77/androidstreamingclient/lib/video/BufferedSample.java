@@ -22,6 +22,8 @@
 
 package com.c77.androidstreamingclient.lib.video;
 
+import com.c77.androidstreamingclient.lib.rtp.MediaClock;
+
 import org.apache.commons.codec.binary.Hex;
 
 import java.nio.ByteBuffer;
@@ -32,6 +34,11 @@ import java.nio.ByteBuffer;
  * @author Julian Cerruti
  */
 public class BufferedSample {
+    // H.264 NAL unit types
+    public static final int NAL_TYPE_IDR = 5;
+    public static final int NAL_TYPE_SPS = 7;
+    public static final int NAL_TYPE_PPS = 8;
+
     private final ByteBuffer buffer;
     private final int index;
 
@@ -92,11 +99,11 @@ public class BufferedSample {
      */
     public long getPresentationTimeUs() {
         // NOTE: We need to convert from RTP timestamp to sampleTime as expected by MediaCodec
-        return rtpTimestamp * 1000L / 90L;
+        return rtpTimestamp * 1000000L / MediaClock.H264_CLOCK_RATE;
     }
 
     /**
-     * Retrieves RTP timestamp
+     * Retrieves RTP timestamp, unwrapped by the stream's {@link MediaClock}
      *
      * @return
      */
@@ -107,12 +114,26 @@ public class BufferedSample {
     /**
      * Sets the sample buffer's timestamp
      *
-     * @param rtpTimestamp
+     * @param rtpTimestamp RTP timestamp unwrapped by the stream's {@link MediaClock}, so presentation times keep
+     *                     growing when the 32 bit timestamps wrap around
      */
     public void setRtpTimestamp(long rtpTimestamp) {
         this.rtpTimestamp = rtpTimestamp;
     }
 
+    /**
+     * Retrieves the H.264 type of the NAL unit held by this sample, skipping the byte stream start code if present.
+     *
+     * @return the NAL unit type or -1 if the sample is empty
+     */
+    public int getNalUnitType() {
+        int offset = 0;
+        if (sampleSize > 4 && buffer.get(0) == 0 && buffer.get(1) == 0 && buffer.get(2) == 0 && buffer.get(3) == 1) {
+            offset = 4;
+        }
+        return sampleSize > offset ? buffer.get(offset) & 0x1f : -1;
+    }
+
     /**
      * Retrieves a string with sample buffer's data
      *
@@ -0,0 +1,83 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.video;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Julian Cerruti
+ *
+ * The CodecBackend interface defines what a {@link CodecDecoder} needs from the video codec that decodes and
+ * renders its frames: a pool of input buffers to fill with NAL units and a way to render the decoded frames.
+ */
+public interface CodecBackend {
+    /**
+     * Returned by {@link #dequeueInputBuffer(long)} when no input buffer got free in time
+     */
+    public static final int INFO_TRY_AGAIN_LATER = -1;
+
+    /**
+     * Starts the codec. Input buffers are available afterwards
+     */
+    public void start();
+
+    /**
+     * Waits for a free input buffer
+     * @param timeoutUs maximum time to wait, in microseconds
+     * @return index of the input buffer or INFO_TRY_AGAIN_LATER
+     */
+    public int dequeueInputBuffer(long timeoutUs);
+
+    /**
+     * Retrieves an input buffer
+     * @param index index returned by {@link #dequeueInputBuffer(long)}
+     * @return the input buffer
+     */
+    public ByteBuffer getInputBuffer(int index);
+
+    /**
+     * Retrieves how many bytes every input buffer can hold
+     * @return input buffer capacity
+     */
+    public int getInputBufferSize();
+
+    /**
+     * Gives a filled input buffer back to the codec to be decoded
+     * @param index index returned by {@link #dequeueInputBuffer(long)}
+     * @param size number of bytes written to the buffer
+     * @param presentationTimeUs presentation time of the frame the data belongs to
+     */
+    public void queueInputBuffer(int index, int size, long presentationTimeUs);
+
+    /**
+     * Waits for a decoded frame and renders it
+     * @param timeoutUs maximum time to wait, in microseconds
+     * @return whether a frame was rendered
+     */
+    public boolean renderOutputFrame(long timeoutUs);
+
+    /**
+     * Stops the codec and releases its resources
+     */
+    public void release();
+}
@@ -0,0 +1,383 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.video;
+
+import com.c77.androidstreamingclient.lib.exceptions.RtpPlayerException;
+import com.c77.androidstreamingclient.lib.rtp.RtpMediaDecoder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Decoder that feeds the samples it receives to a {@link CodecBackend}.
+ * <p/>
+ * Input buffers are waited for a bounded amount of time. When none gets free, the frame is dropped, dropped along
+ * with every following frame until the next IDR one, or staged until a buffer is free, according to the input
+ * overflow policy. Decoded frames are rendered by a separate thread as soon as the backend makes them available,
+ * so feeding the decoder never waits for its output.
+ *
+ * @author Julian Cerruti
+ */
+public class CodecDecoder implements Decoder {
+    // input overflow policies
+    public static final String POLICY_DROP = "drop";
+    public static final String POLICY_DROP_UNTIL_IDR = "drop-until-idr";
+    public static final String POLICY_STAGE = "stage";
+
+    // microseconds the output thread waits for a decoded frame before checking whether it should stop
+    private static final long OUTPUT_DEQUEUE_TIMEOUT_US = 10000;
+    // indexes of samples that are not backed by a codec input buffer
+    private static final int STAGED_SAMPLE_INDEX = -1;
+    private static final int DISCARDED_SAMPLE_INDEX = -2;
+
+    private static final Log log = LogFactory.getLog(CodecDecoder.class);
+
+    private final CodecBackend backend;
+    private final long inputBufferTimeout;
+    private final String inputOverflowPolicy;
+    private final int inputStagingFrames;
+    private final OutputDrainThread outputDrainThread;
+
+    // Frames (access units) queued to and rendered from the codec. Each one is written by a single thread
+    private volatile long framesQueued = 0;
+    private volatile long framesRendered = 0;
+    private volatile long maxFramesInFlight = 0;
+    // System time when the first frame was rendered
+    private volatile long firstFrameRenderedTime = -1;
+    private long lastQueuedPresentationTimeUs = -1;
+
+    // Input backpressure. Only used by the thread feeding the decoder
+    // Codec input buffer taken for a sample that was then discarded, handed out again by getSampleBuffer
+    private BufferedSample spareSample;
+    // Handed out when the policy drops a frame, so its data is collected and discarded as a whole
+    private BufferedSample discardedSample;
+    // Frames waiting for a codec input buffer, and recycled staging buffers
+    private final ArrayDeque<BufferedSample> stagedSamples = new ArrayDeque<BufferedSample>();
+    private final ArrayDeque<BufferedSample> freeStagingSamples = new ArrayDeque<BufferedSample>();
+    private int stagingSamplesCreated = 0;
+    private boolean waitingForIdr = false;
+    private long lastDiscardedPresentationTimeUs = -1;
+    private volatile long framesDiscarded = 0;
+
+    /**
+     * Creates a decoder feeding the given codec backend.
+     *
+     * @param backend             codec that decodes and renders the frames
+     * @param inputBufferTimeout  maximum time in milliseconds to wait for a free input buffer
+     * @param inputOverflowPolicy 'drop', 'drop-until-idr' or 'stage'
+     * @param inputStagingFrames  number of frames the 'stage' policy can keep
+     */
+    public CodecDecoder(CodecBackend backend, long inputBufferTimeout, String inputOverflowPolicy, int inputStagingFrames) {
+        if (!POLICY_DROP.equalsIgnoreCase(inputOverflowPolicy) && !POLICY_DROP_UNTIL_IDR.equalsIgnoreCase(inputOverflowPolicy) &&
+                !POLICY_STAGE.equalsIgnoreCase(inputOverflowPolicy)) {
+            throw new IllegalArgumentException("Didn't recognize input overflow policy: " + inputOverflowPolicy);
+        }
+        this.backend = backend;
+        this.inputBufferTimeout = inputBufferTimeout;
+        this.inputOverflowPolicy = inputOverflowPolicy;
+        this.inputStagingFrames = inputStagingFrames;
+        outputDrainThread = new OutputDrainThread();
+    }
+
+    /**
+     * Starts the codec backend and the thread that renders its output.
+     */
+    public void start() {
+        backend.start();
+        outputDrainThread.start();
+    }
+
+    /**
+     * Stops rendering and releases the codec backend.
+     */
+    public void release() {
+        outputDrainThread.shutdown();
+        backend.release();
+    }
+
+    /**
+     * Retrieves a buffer from the codec to be filled with data. It waits up to the input buffer timeout for one to
+     * be free; when none is, the returned buffer is either a staging one or one whose frame will be discarded,
+     * depending on the input overflow policy.
+     *
+     * @return
+     * @throws RtpPlayerException
+     */
+    @Override
+    public BufferedSample getSampleBuffer() throws RtpPlayerException {
+        if (spareSample != null) {
+            BufferedSample sample = spareSample;
+            spareSample = null;
+            return sample;
+        }
+
+        boolean staging = POLICY_STAGE.equalsIgnoreCase(inputOverflowPolicy);
+        if (staging) {
+            flushStagedSamples();
+            // Keep frames in order behind the ones already waiting
+            if (!stagedSamples.isEmpty()) {
+                return getStagingSample();
+            }
+        }
+
+        int inIndex = backend.dequeueInputBuffer(inputBufferTimeout * 1000);
+        if (inIndex >= 0) {
+            return new BufferedSample(backend.getInputBuffer(inIndex), inIndex);
+        }
+
+        if (RtpMediaDecoder.DEBUGGING) {
+            log.warn("No codec input buffer got free in " + inputBufferTimeout + " ms (" + inputOverflowPolicy + ")");
+        }
+        return staging ? getStagingSample() : getDiscardedSample();
+    }
+
+    /**
+     * Decodes a frame, unless the input overflow policy discards it.
+     *
+     * @param frame
+     * @throws Exception
+     */
+    @Override
+    public void decodeFrame(BufferedSample frame) throws Exception {
+        if (frame.getIndex() == DISCARDED_SAMPLE_INDEX) {
+            // Frames following a dropped one can't be decoded until the next IDR frame
+            waitingForIdr = !POLICY_DROP.equalsIgnoreCase(inputOverflowPolicy);
+            discardSample(frame);
+            return;
+        }
+
+        if (waitingForIdr) {
+            int nalUnitType = frame.getNalUnitType();
+            if (nalUnitType == BufferedSample.NAL_TYPE_IDR) {
+                waitingForIdr = false;
+            } else if (nalUnitType != BufferedSample.NAL_TYPE_SPS && nalUnitType != BufferedSample.NAL_TYPE_PPS) {
+                discardSample(frame);
+                return;
+            }
+        }
+
+        if (frame.getIndex() == STAGED_SAMPLE_INDEX) {
+            stagedSamples.add(frame);
+            flushStagedSamples();
+            return;
+        }
+
+        queueSample(frame);
+    }
+
+    /**
+     * Retrieves a free staging buffer, or the discarded frame's buffer if all of them are in use.
+     *
+     * @return
+     */
+    private BufferedSample getStagingSample() {
+        if (!freeStagingSamples.isEmpty()) {
+            return freeStagingSamples.poll();
+        }
+        if (stagingSamplesCreated < inputStagingFrames) {
+            stagingSamplesCreated++;
+            return new BufferedSample(ByteBuffer.allocateDirect(backend.getInputBufferSize()), STAGED_SAMPLE_INDEX);
+        }
+        return getDiscardedSample();
+    }
+
+    /**
+     * Retrieves the buffer that collects a frame to be discarded.
+     *
+     * @return
+     */
+    private BufferedSample getDiscardedSample() {
+        if (discardedSample == null) {
+            discardedSample = new BufferedSample(ByteBuffer.allocateDirect(backend.getInputBufferSize()), DISCARDED_SAMPLE_INDEX);
+        }
+        return discardedSample;
+    }
+
+    /**
+     * Passes staged frames, oldest first, to the codec input buffers that are free right now.
+     */
+    private void flushStagedSamples() {
+        while (!stagedSamples.isEmpty()) {
+            int inIndex = backend.dequeueInputBuffer(0);
+            if (inIndex < 0) {
+                return;
+            }
+            BufferedSample staged = stagedSamples.poll();
+            BufferedSample sample = new BufferedSample(backend.getInputBuffer(inIndex), inIndex);
+            sample.getBuffer().clear();
+            sample.getBuffer().put(staged.getBuffer());
+            sample.setSampleSize(staged.getSampleSize());
+            sample.setRtpTimestamp(staged.getRtpTimestamp());
+            queueSample(sample);
+
+            staged.getBuffer().clear();
+            freeStagingSamples.add(staged);
+        }
+    }
+
+    /**
+     * Discards a frame, giving its buffer back to be used for the next one.
+     *
+     * @param sample
+     */
+    private void discardSample(BufferedSample sample) {
+        // Count frames, not each of their NAL units
+        if (sample.getPresentationTimeUs() != lastDiscardedPresentationTimeUs) {
+            lastDiscardedPresentationTimeUs = sample.getPresentationTimeUs();
+            framesDiscarded++;
+        }
+
+        sample.getBuffer().clear();
+        if (sample.getIndex() >= 0) {
+            spareSample = sample;
+        } else if (sample.getIndex() == STAGED_SAMPLE_INDEX) {
+            freeStagingSamples.add(sample);
+        }
+    }
+
+    /**
+     * Queues a sample filled in one of the codec input buffers to be decoded.
+     *
+     * @param sample
+     */
+    private void queueSample(BufferedSample sample) {
+        backend.queueInputBuffer(sample.getIndex(), sample.getSampleSize(), sample.getPresentationTimeUs());
+
+        // Every NAL unit of a frame shares its presentation time
+        if (sample.getPresentationTimeUs() != lastQueuedPresentationTimeUs) {
+            lastQueuedPresentationTimeUs = sample.getPresentationTimeUs();
+            framesQueued++;
+            maxFramesInFlight = Math.max(maxFramesInFlight, getFramesInFlight());
+        }
+    }
+
+    /**
+     * Retrieves the configured policy for frames that find no free codec input buffer.
+     *
+     * @return 'drop', 'drop-until-idr' or 'stage'
+     */
+    public String getInputOverflowPolicy() {
+        return inputOverflowPolicy;
+    }
+
+    /**
+     * Retrieves how many frames were discarded by the input overflow policy.
+     *
+     * @return
+     */
+    public long getFramesDiscarded() {
+        return framesDiscarded;
+    }
+
+    /**
+     * Retrieves how many frames were queued to the codec.
+     *
+     * @return
+     */
+    public long getFramesQueued() {
+        return framesQueued;
+    }
+
+    /**
+     * Retrieves how many decoded frames were rendered.
+     *
+     * @return
+     */
+    public long getFramesRendered() {
+        return framesRendered;
+    }
+
+    /**
+     * Retrieves when the first frame was rendered.
+     *
+     * @return system time in milliseconds, or -1 if no frame was rendered yet
+     */
+    public long getFirstFrameRenderedTime() {
+        return firstFrameRenderedTime;
+    }
+
+    /**
+     * Retrieves how many frames are inside the codec's pipeline: queued but not yet rendered.
+     *
+     * @return
+     */
+    public long getFramesInFlight() {
+        return Math.max(0, framesQueued - framesRendered);
+    }
+
+    /**
+     * Retrieves the largest number of frames seen inside the codec's pipeline at once.
+     *
+     * @return
+     */
+    public long getMaxFramesInFlight() {
+        return maxFramesInFlight;
+    }
+
+    /**
+     * Renders decoded frames as soon as the codec backend makes them available, independently of the
+     * thread feeding it.
+     */
+    private class OutputDrainThread extends Thread {
+        private volatile boolean running = true;
+
+        public OutputDrainThread() {
+            super("CodecDecoder output");
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    if (backend.renderOutputFrame(OUTPUT_DEQUEUE_TIMEOUT_US)) {
+                        if (framesRendered == 0) {
+                            firstFrameRenderedTime = System.currentTimeMillis();
+                            log.info("First frame rendered");
+                        }
+                        framesRendered++;
+                    }
+                }
+            } catch (Throwable t) {
+                log.error("Exiting decoder output loop due to exception", t);
+            }
+        }
+
+        /**
+         * Stops draining and waits for the loop to finish, so the codec can be safely released.
+         */
+        public void shutdown() {
+            running = false;
+            if (!isAlive()) {
+                return;
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.video;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Codec backend that runs on any JVM, without a device: it checks every NAL unit it receives and takes a
+ * configurable amount of time to "decode" each frame, but produces no picture.
+ * <p/>
+ * NAL units sharing a presentation time form a frame, which is complete once a NAL unit with a later time
+ * arrives. Frames are decoded one after the other and their input buffers are free again once they are rendered,
+ * so a slow backend runs out of input buffers just like a saturated device codec would.
+ *
+ * @author Julian Cerruti
+ */
+public class HeadlessCodecBackend implements CodecBackend {
+    private final ByteBuffer[] inputBuffers;
+    private final ArrayDeque<Integer> freeInputBuffers = new ArrayDeque<Integer>();
+    private final long frameDecodeNanos;
+
+    // Frame receiving NAL units, and complete frames being decoded, oldest first
+    private Frame currentFrame;
+    private final ArrayDeque<Frame> decodingFrames = new ArrayDeque<Frame>();
+    // When the last decoding frame will be ready
+    private long lastReadyNanos;
+    private boolean running = false;
+
+    // statistics, guarded by this backend's monitor
+    private long nalUnits = 0;
+    private long invalidNalUnits = 0;
+    private long framesRendered = 0;
+    private long sumLatencyNanos = 0;
+    private long maxLatencyNanos = 0;
+
+    /**
+     * Creates a headless codec backend.
+     *
+     * @param inputBufferCount number of input buffers, more than the NAL units of any frame
+     * @param inputBufferSize  capacity of every input buffer, in bytes
+     * @param framesPerSecond  how many frames it can decode per second, or 0 to decode them instantly
+     */
+    public HeadlessCodecBackend(int inputBufferCount, int inputBufferSize, double framesPerSecond) {
+        inputBuffers = new ByteBuffer[inputBufferCount];
+        for (int i = 0; i < inputBufferCount; i++) {
+            inputBuffers[i] = ByteBuffer.allocateDirect(inputBufferSize);
+        }
+        frameDecodeNanos = framesPerSecond > 0 ? (long) (1000000000L / framesPerSecond) : 0;
+    }
+
+    @Override
+    public synchronized void start() {
+        freeInputBuffers.clear();
+        for (int i = 0; i < inputBuffers.length; i++) {
+            freeInputBuffers.add(i);
+        }
+        running = true;
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        long deadline = System.nanoTime() + timeoutUs * 1000;
+        try {
+            while (running && freeInputBuffers.isEmpty()) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    return INFO_TRY_AGAIN_LATER;
+                }
+                wait(remainingNanos / 1000000, (int) (remainingNanos % 1000000));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return INFO_TRY_AGAIN_LATER;
+        }
+        return running ? freeInputBuffers.poll() : INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return inputBuffers[index];
+    }
+
+    @Override
+    public int getInputBufferSize() {
+        return inputBuffers[0].capacity();
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int size, long presentationTimeUs) {
+        nalUnits++;
+        if (!isValidNalUnit(inputBuffers[index], size)) {
+            invalidNalUnits++;
+        }
+
+        long now = System.nanoTime();
+        if (currentFrame == null || currentFrame.presentationTimeUs != presentationTimeUs) {
+            if (currentFrame != null) {
+                // A later frame started, so the current one is complete
+                lastReadyNanos = Math.max(now, lastReadyNanos) + frameDecodeNanos;
+                currentFrame.readyNanos = lastReadyNanos;
+                decodingFrames.add(currentFrame);
+                notifyAll();
+            }
+            currentFrame = new Frame(presentationTimeUs, now);
+        }
+        currentFrame.inputBuffers.add(index);
+    }
+
+    /**
+     * Checks that a buffer holds one NAL unit, optionally preceded by a start code, with a valid header.
+     *
+     * @param buffer
+     * @param size
+     * @return
+     */
+    private boolean isValidNalUnit(ByteBuffer buffer, int size) {
+        int offset = 0;
+        if (size > 4 && buffer.get(0) == 0 && buffer.get(1) == 0 && buffer.get(2) == 0 && buffer.get(3) == 1) {
+            offset = 4;
+        }
+        if (size <= offset) {
+            return false;
+        }
+        int header = buffer.get(offset) & 0xff;
+        int nalUnitType = header & 0x1f;
+        // forbidden_zero_bit must be 0 and aggregation or fragmentation units can't reach the decoder
+        return (header & 0x80) == 0 && nalUnitType >= 1 && nalUnitType <= 23;
+    }
+
+    @Override
+    public synchronized boolean renderOutputFrame(long timeoutUs) {
+        long deadline = System.nanoTime() + timeoutUs * 1000;
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                Frame frame = decodingFrames.peek();
+                if (frame != null && frame.readyNanos <= now) {
+                    decodingFrames.poll();
+                    freeInputBuffers.addAll(frame.inputBuffers);
+                    notifyAll();
+
+                    long latency = now - frame.queuedNanos;
+                    framesRendered++;
+                    sumLatencyNanos += latency;
+                    maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                    return true;
+                }
+
+                long waitUntil = frame != null ? Math.min(deadline, frame.readyNanos) : deadline;
+                if (waitUntil - now <= 0) {
+                    return false;
+                }
+                wait((waitUntil - now) / 1000000, (int) ((waitUntil - now) % 1000000));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void release() {
+        running = false;
+        currentFrame = null;
+        decodingFrames.clear();
+        notifyAll();
+    }
+
+    /**
+     * Retrieves how many NAL units were queued.
+     *
+     * @return
+     */
+    public synchronized long getNalUnits() {
+        return nalUnits;
+    }
+
+    /**
+     * Retrieves how many queued NAL units had no valid header.
+     *
+     * @return
+     */
+    public synchronized long getInvalidNalUnits() {
+        return invalidNalUnits;
+    }
+
+    /**
+     * Retrieves how many frames were rendered.
+     *
+     * @return
+     */
+    public synchronized long getFramesRendered() {
+        return framesRendered;
+    }
+
+    /**
+     * Retrieves the mean time in microseconds from a frame's first NAL unit being queued to the frame being
+     * rendered.
+     *
+     * @return
+     */
+    public synchronized long getMeanLatencyUs() {
+        return framesRendered > 0 ? sumLatencyNanos / framesRendered / 1000 : 0;
+    }
+
+    /**
+     * Retrieves the longest time in microseconds from a frame's first NAL unit being queued to the frame being
+     * rendered.
+     *
+     * @return
+     */
+    public synchronized long getMaxLatencyUs() {
+        return maxLatencyNanos / 1000;
+    }
+
+    /**
+     * NAL units of one frame and when it was queued and will be decoded.
+     */
+    private static class Frame {
+        final long presentationTimeUs;
+        final long queuedNanos;
+        final List<Integer> inputBuffers = new ArrayList<Integer>();
+        long readyNanos;
+
+        Frame(long presentationTimeUs, long queuedNanos) {
+            this.presentationTimeUs = presentationTimeUs;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import com.c77.androidstreamingclient.lib.rtp.RtpMediaDecoder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec backend that decodes with the Android API decoder and renders to a surface.
+ *
+ * @author Ayelen Chavez
+ */
+public class MediaCodecBackend implements CodecBackend {
+    private static final Log log = LogFactory.getLog(MediaCodecBackend.class);
+
+    private final MediaCodec decoder;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+
+    /**
+     * Creates and configures an Android API decoder for the given format.
+     *
+     * @param mediaFormat format of the video to decode
+     * @param surface     where video will be played
+     */
+    public MediaCodecBackend(MediaFormat mediaFormat, Surface surface) {
+        decoder = MediaCodec.createDecoderByType(mediaFormat.getString(MediaFormat.KEY_MIME));
+        decoder.configure(mediaFormat, surface, null, 0);
+    }
+
+    @Override
+    public void start() {
+        decoder.start();
+        inputBuffers = decoder.getInputBuffers();
+        outputBuffers = decoder.getOutputBuffers();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        int inIndex = decoder.dequeueInputBuffer(timeoutUs);
+        return inIndex >= 0 ? inIndex : INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return inputBuffers[index];
+    }
+
+    @Override
+    public int getInputBufferSize() {
+        return inputBuffers[0].capacity();
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int size, long presentationTimeUs) {
+        decoder.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+    }
+
+    /**
+     * Reads the decoded output, rendering it to the surface.
+     *
+     * @param timeoutUs
+     * @return
+     */
+    @Override
+    public boolean renderOutputFrame(long timeoutUs) {
+        int outIndex = decoder.dequeueOutputBuffer(info, timeoutUs);
+        switch (outIndex) {
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                if (RtpMediaDecoder.DEBUGGING) {
+                    log.info("The output buffers have changed.");
+                }
+                outputBuffers = decoder.getOutputBuffers();
+                return false;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                if (RtpMediaDecoder.DEBUGGING) {
+                    log.info("New format " + decoder.getOutputFormat());
+                }
+                return false;
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return false;
+            default:
+                if (RtpMediaDecoder.DEBUGGING) {
+                    ByteBuffer buffer = outputBuffers[outIndex];
+                    log.info("We can't use this buffer but render it due to the API limit, " + buffer);
+                }
+
+                // return buffer to the codec
+                decoder.releaseOutputBuffer(outIndex, true);
+
+                // All decoded frames have been rendered, we can stop playing now
+                if (((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) && RtpMediaDecoder.DEBUGGING) {
+                    log.info("All decoded frames have been rendered");
+                }
+                return true;
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            decoder.stop();
+        } catch (Exception e) {
+            log.error("Encountered error while trying to stop decoder", e);
+        }
+        decoder.release();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.lib.video;
+
+/**
+ * H.264 sequence parameter set, parsed as the H.264 spec. section 7.3.2.1.1 says, keeping what is needed to
+ * configure a decoder.
+ *
+ * @author Julian Cerruti
+ */
+public class SequenceParameterSet {
+    private final int profileIdc;
+    private final int constraintFlags;
+    private final int levelIdc;
+    private final int width;
+    private final int height;
+
+    private SequenceParameterSet(int profileIdc, int constraintFlags, int levelIdc, int width, int height) {
+        this.profileIdc = profileIdc;
+        this.constraintFlags = constraintFlags;
+        this.levelIdc = levelIdc;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Parses a sequence parameter set NAL unit.
+     *
+     * @param nalUnit NAL unit starting with its header, without start code
+     * @return
+     * @throws IllegalArgumentException if the NAL unit is not a valid sequence parameter set
+     */
+    public static SequenceParameterSet parse(byte[] nalUnit) {
+        if (nalUnit.length < 4 || (nalUnit[0] & 0x1f) != BufferedSample.NAL_TYPE_SPS) {
+            throw new IllegalArgumentException("Not a sequence parameter set");
+        }
+        BitReader reader = new BitReader(unescape(nalUnit));
+        // NAL unit header
+        reader.readBits(8);
+
+        int profileIdc = reader.readBits(8);
+        int constraintFlags = reader.readBits(8);
+        int levelIdc = reader.readBits(8);
+        // seq_parameter_set_id
+        reader.readUnsignedExpGolomb();
+
+        int chromaFormatIdc = 1;
+        boolean separateColourPlane = false;
+        if (profileIdc == 100 || profileIdc == 110 || profileIdc == 122 || profileIdc == 244 || profileIdc == 44 ||
+                profileIdc == 83 || profileIdc == 86 || profileIdc == 118 || profileIdc == 128 || profileIdc == 138 ||
+                profileIdc == 139 || profileIdc == 134 || profileIdc == 135) {
+            chromaFormatIdc = reader.readUnsignedExpGolomb();
+            if (chromaFormatIdc == 3) {
+                separateColourPlane = reader.readBit();
+            }
+            // bit_depth_luma_minus8, bit_depth_chroma_minus8
+            reader.readUnsignedExpGolomb();
+            reader.readUnsignedExpGolomb();
+            // qpprime_y_zero_transform_bypass_flag
+            reader.readBit();
+            if (reader.readBit()) {
+                // seq_scaling_matrix_present_flag
+                int scalingLists = chromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < scalingLists; i++) {
+                    if (reader.readBit()) {
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        // log2_max_frame_num_minus4
+        reader.readUnsignedExpGolomb();
+        int picOrderCntType = reader.readUnsignedExpGolomb();
+        if (picOrderCntType == 0) {
+            // log2_max_pic_order_cnt_lsb_minus4
+            reader.readUnsignedExpGolomb();
+        } else if (picOrderCntType == 1) {
+            // delta_pic_order_always_zero_flag, offset_for_non_ref_pic, offset_for_top_to_bottom_field
+            reader.readBit();
+            reader.readSignedExpGolomb();
+            reader.readSignedExpGolomb();
+            int refFramesInCycle = reader.readUnsignedExpGolomb();
+            for (int i = 0; i < refFramesInCycle; i++) {
+                reader.readSignedExpGolomb();
+            }
+        }
+        // max_num_ref_frames, gaps_in_frame_num_value_allowed_flag
+        reader.readUnsignedExpGolomb();
+        reader.readBit();
+
+        int widthInMbs = reader.readUnsignedExpGolomb() + 1;
+        int heightInMapUnits = reader.readUnsignedExpGolomb() + 1;
+        boolean frameMbsOnly = reader.readBit();
+        if (!frameMbsOnly) {
+            // mb_adaptive_frame_field_flag
+            reader.readBit();
+        }
+        // direct_8x8_inference_flag
+        reader.readBit();
+
+        int width = widthInMbs * 16;
+        int height = (frameMbsOnly ? 1 : 2) * heightInMapUnits * 16;
+        if (reader.readBit()) {
+            // frame_cropping_flag: offsets are given in chroma samples
+            int chromaArrayType = separateColourPlane ? 0 : chromaFormatIdc;
+            int cropUnitX = (chromaArrayType == 1 || chromaArrayType == 2) ? 2 : 1;
+            int cropUnitY = (chromaArrayType == 1 ? 2 : 1) * (frameMbsOnly ? 1 : 2);
+            int left = reader.readUnsignedExpGolomb();
+            int right = reader.readUnsignedExpGolomb();
+            int top = reader.readUnsignedExpGolomb();
+            int bottom = reader.readUnsignedExpGolomb();
+            width -= (left + right) * cropUnitX;
+            height -= (top + bottom) * cropUnitY;
+        }
+
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid picture size in sequence parameter set: " + width + "x" + height);
+        }
+        return new SequenceParameterSet(profileIdc, constraintFlags, levelIdc, width, height);
+    }
+
+    /**
+     * Skips a scaling list, which only holds deltas between its values.
+     *
+     * @param reader
+     * @param size
+     */
+    private static void skipScalingList(BitReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; j++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + reader.readSignedExpGolomb() + 256) % 256;
+            }
+            lastScale = (nextScale == 0) ? lastScale : nextScale;
+        }
+    }
+
+    /**
+     * Removes the emulation prevention bytes (0x03 following two zero bytes) from a NAL unit.
+     *
+     * @param nalUnit
+     * @return
+     */
+    private static byte[] unescape(byte[] nalUnit) {
+        byte[] rbsp = new byte[nalUnit.length];
+        int length = 0;
+        int zeros = 0;
+        for (byte b : nalUnit) {
+            if (zeros >= 2 && b == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = (b == 0) ? zeros + 1 : 0;
+            rbsp[length++] = b;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(rbsp, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Retrieves profile_idc, e.g. 66 for baseline or 100 for high profile.
+     *
+     * @return
+     */
+    public int getProfileIdc() {
+        return profileIdc;
+    }
+
+    /**
+     * Retrieves the byte holding the constraint_set flags.
+     *
+     * @return
+     */
+    public int getConstraintFlags() {
+        return constraintFlags;
+    }
+
+    /**
+     * Retrieves level_idc, i.e. ten times the level number.
+     *
+     * @return
+     */
+    public int getLevelIdc() {
+        return levelIdc;
+    }
+
+    /**
+     * Retrieves the width in pixels of the decoded pictures, after cropping.
+     *
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Retrieves the height in pixels of the decoded pictures, after cropping.
+     *
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return "SPS profile " + profileIdc + ", level " + levelIdc + ", " + width + "x" + height;
+    }
+
+    /**
+     * Reads bits, most significant first, and exponential Golomb codes.
+     */
+    private static class BitReader {
+        private final byte[] data;
+        private int bitPosition = 0;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        boolean readBit() {
+            if (bitPosition >= data.length * 8) {
+                throw new IllegalArgumentException("Sequence parameter set is truncated");
+            }
+            int bit = (data[bitPosition / 8] >> (7 - bitPosition % 8)) & 1;
+            bitPosition++;
+            return bit == 1;
+        }
+
+        int readBits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        int readUnsignedExpGolomb() {
+            int leadingZeros = 0;
+            while (!readBit()) {
+                leadingZeros++;
+                if (leadingZeros > 31) {
+                    throw new IllegalArgumentException("Invalid exponential Golomb code in sequence parameter set");
+                }
+            }
+            return (1 << leadingZeros) - 1 + readBits(leadingZeros);
+        }
+
+        int readSignedExpGolomb() {
+            int codeNum = readUnsignedExpGolomb();
+            return (codeNum % 2 == 1) ? (codeNum + 1) / 2 : -(codeNum / 2);
+        }
+    }
+}
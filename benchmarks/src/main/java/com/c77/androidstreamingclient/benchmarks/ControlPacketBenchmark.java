@@ -0,0 +1,131 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.network.ControlPacketDecoder;
+import com.biasedbit.efflux.packet.ByePacket;
+import com.biasedbit.efflux.packet.CompoundControlPacket;
+import com.biasedbit.efflux.packet.ControlPacket;
+import com.biasedbit.efflux.packet.SdesChunk;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding and encoding of RTCP packets: a compound SR + SDES packet going through the
+ * {@link ControlPacketDecoder} and SDES chunks and BYE packets on their own.
+ *
+ * @author Julian Cerruti
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlPacketBenchmark {
+    private ChannelBuffer compound;
+    private DecoderEmbedder<CompoundControlPacket> decoder;
+
+    private SdesChunk chunk;
+    private ChannelBuffer encodedChunk;
+
+    private ByePacket bye;
+    private ChannelBuffer encodedBye;
+
+    @Setup
+    public void setup() {
+        compound = RtpPackets.encodedCompoundControlPacket();
+        decoder = new DecoderEmbedder<CompoundControlPacket>(new ControlPacketDecoder());
+
+        chunk = RtpPackets.sdesChunk();
+        encodedChunk = chunk.encode();
+
+        bye = RtpPackets.byePacket();
+        encodedBye = bye.encode();
+    }
+
+    @TearDown
+    public void tearDown() {
+        decoder.finish();
+    }
+
+    /**
+     * Full RTCP receive path, from the datagram contents to the {@link CompoundControlPacket} the session gets.
+     */
+    @Benchmark
+    public CompoundControlPacket decodeCompoundThroughDecoder() {
+        compound.readerIndex(0);
+        decoder.offer(compound);
+        return decoder.poll();
+    }
+
+    /**
+     * Same as {@link #decodeCompoundThroughDecoder()} without the pipeline overhead.
+     */
+    @Benchmark
+    public int decodeCompound() {
+        compound.readerIndex(0);
+        int packets = 0;
+        while (compound.readableBytes() > 0) {
+            ControlPacket.decode(compound);
+            packets++;
+        }
+        return packets;
+    }
+
+    @Benchmark
+    public SdesChunk decodeSdesChunk() {
+        encodedChunk.readerIndex(0);
+        return SdesChunk.decode(encodedChunk);
+    }
+
+    @Benchmark
+    public ChannelBuffer encodeSdesChunk() {
+        return chunk.encode();
+    }
+
+    @Benchmark
+    public ControlPacket decodeBye() {
+        encodedBye.readerIndex(0);
+        return ControlPacket.decode(encodedBye);
+    }
+
+    @Benchmark
+    public ChannelBuffer encodeBye() {
+        return bye.encode();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.packet.DataPacketPool;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures decoding and encoding of RTP data packets for the different payloads a H.264 stream carries.
+ * <p/>
+ * The encoded packet is decoded again on every invocation (its reader index is rewound), so anything reported by the
+ * gc profiler is allocated by the codec itself.
+ *
+ * @author Julian Cerruti
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataPacketBenchmark {
+    @Param
+    public RtpPackets.Shape shape;
+
+    private ChannelBuffer encoded;
+    private DataPacket packet;
+    private DataPacketPool pool;
+
+    @Setup
+    public void setup() {
+        encoded = RtpPackets.encodedDataPacket(shape);
+        packet = RtpPackets.dataPacket(shape, 1, 0);
+        pool = new DataPacketPool(16);
+    }
+
+    /**
+     * Default decoding: payload, extension and CSRC list are copied out of the received buffer.
+     */
+    @Benchmark
+    public DataPacket decode() {
+        encoded.readerIndex(0);
+        return DataPacket.decode(encoded);
+    }
+
+    /**
+     * Zero-copy decoding: the packet keeps slices of the received buffer.
+     */
+    @Benchmark
+    public DataPacket decodeZeroCopy() {
+        encoded.readerIndex(0);
+        return DataPacket.decode(encoded, false);
+    }
+
+    /**
+     * Decoding into a pooled packet, which is handed back right away as the session would do after the listeners ran.
+     */
+    @Benchmark
+    public long decodePooled() {
+        encoded.readerIndex(0);
+        DataPacket decoded = pool.decode(encoded, true);
+        long timestamp = decoded.getTimestamp();
+        decoded.release();
+        return timestamp;
+    }
+
+    @Benchmark
+    public ChannelBuffer encode() {
+        return packet.encode(shape == RtpPackets.Shape.PADDED_FU_A_1400 ? 16 : 0);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.UlpfecReceiver;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of recovering lost packets with FEC on the network thread: packets of a synthetic stream, with a
+ * ULPFEC packet after every group of media packets, go through a {@link UlpfecReceiver} into a listener that just
+ * counts them.
+ * <p/>
+ * The score is packets/s, FEC packets included; a group size of 0 sends the media packets straight to the listener,
+ * as the baseline. Media packets are dropped at random at the given loss rate, and the counters report the packets
+ * lost and the ones recovered per second. The mean time spent rebuilding a packet is printed at the end of every
+ * trial.
+ *
+ * @author Julian Cerruti
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FecBenchmark {
+    private static final int FEC_PAYLOAD_TYPE = 127;
+
+    // Media packets protected by each FEC packet, 0 for no FEC
+    @Param({"0", "5", "10"})
+    public int groupSize;
+
+    @Param({"0", "0.05"})
+    public double lossRate;
+
+    // Packets as they arrive, lost ones left out
+    private DataPacket[] packets;
+    // Sequence numbers of the media packets, base sequence numbers of the FEC ones
+    private int[] sequenceNumbers;
+    // Media packets lost right before each packet
+    private int[] lostBefore;
+    private int sequenceSpan;
+
+    private UlpfecReceiver fecReceiver;
+    private RtpSessionDataListener receiver;
+    // Media packets that reached the end of the pipeline
+    private long received;
+
+    private int next;
+    private long sequenceBase;
+    // Recovered packets when the iteration started
+    private long recoveredBefore;
+
+    /**
+     * Media packets lost and recovered, reported per second next to the packets.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Losses {
+        public long lost;
+        public long recovered;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lost = 0;
+            recovered = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        H264Stream stream = new H264Stream(H264Stream.Packetization.FU_A, H264Stream.Network.IN_ORDER, 10);
+        List<DataPacket> streamPackets = stream.getPackets();
+        sequenceSpan = stream.getSequenceSpan();
+
+        Random random = new Random(77);
+        List<DataPacket> arriving = new ArrayList<DataPacket>();
+        List<Integer> lost = new ArrayList<Integer>();
+        int lostSinceLastPacket = 0;
+        int fecSequenceNumber = 0;
+        for (int i = 0; i < streamPackets.size(); i++) {
+            if (random.nextDouble() >= lossRate) {
+                arriving.add(streamPackets.get(i));
+                lost.add(lostSinceLastPacket);
+                lostSinceLastPacket = 0;
+            } else {
+                lostSinceLastPacket++;
+            }
+            if (groupSize > 0 && (i + 1) % groupSize == 0) {
+                arriving.add(RtpPackets.ulpfecPacket(streamPackets.subList(i + 1 - groupSize, i + 1),
+                        FEC_PAYLOAD_TYPE, fecSequenceNumber++));
+                lost.add(0);
+            }
+        }
+        packets = arriving.toArray(new DataPacket[arriving.size()]);
+        sequenceNumbers = new int[packets.length];
+        lostBefore = new int[packets.length];
+        for (int i = 0; i < packets.length; i++) {
+            lostBefore[i] = lost.get(i);
+            sequenceNumbers[i] = packets[i].getPayloadType() == FEC_PAYLOAD_TYPE ?
+                    packets[i].getData().getUnsignedShort(2) : packets[i].getSequenceNumber();
+        }
+
+        RtpSessionDataListener counter = new RtpSessionDataListener() {
+            @Override
+            public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+                received++;
+            }
+        };
+        if (groupSize > 0) {
+            fecReceiver = new UlpfecReceiver(counter, FEC_PAYLOAD_TYPE);
+            receiver = fecReceiver;
+        } else {
+            receiver = counter;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        recoveredBefore = fecReceiver != null ? fecReceiver.getPacketsRecovered() : 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (fecReceiver != null) {
+            fecReceiver.stop();
+            System.out.println("\nFEC packets discarded: " + fecReceiver.getFecPacketsDiscarded() +
+                    ", mean recovery time: " + fecReceiver.getRecoveryTime() /
+                    Math.max(1, fecReceiver.getPacketsRecovered()) + " ns");
+        }
+    }
+
+    @Benchmark
+    public void receive(Losses counter) {
+        DataPacket packet = packets[next];
+        // Keep sequence numbers going when the stream starts over
+        int sequenceNumber = (int) ((sequenceBase + sequenceNumbers[next]) & 0xffff);
+        if (packet.getPayloadType() == FEC_PAYLOAD_TYPE) {
+            packet.getData().setShort(2, sequenceNumber);
+        } else {
+            packet.setSequenceNumber(sequenceNumber);
+            // As extended by the session, which recovered packets are extended from
+            packet.setExtendedSequenceNumber(sequenceBase + sequenceNumbers[next]);
+        }
+
+        counter.lost += lostBefore[next];
+        receiver.dataPacketReceived(null, null, packet);
+        if (fecReceiver != null) {
+            counter.recovered = fecReceiver.getPacketsRecovered() - recoveredBefore;
+        }
+
+        if (++next == packets.length) {
+            next = 0;
+            sequenceBase += sequenceSpan;
+        }
+    }
+}
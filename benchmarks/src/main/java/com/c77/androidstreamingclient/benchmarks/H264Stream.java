@@ -0,0 +1,199 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.DataPacket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Synthetic H.264 RTP stream: groups of pictures made of an IDR frame preceded by its SPS and PPS, followed by
+ * P frames, packetized as RFC 6184 says depending on the chosen {@link Packetization}.
+ * <p/>
+ * Packets are kept already decoded, as the extractor gets them from the session.
+ *
+ * @author Julian Cerruti
+ */
+public class H264Stream {
+    public static final int MTU_PAYLOAD = 1400;
+    public static final int FRAMES_PER_SECOND = 30;
+    public static final int GOP_SIZE = 30;
+    // Parameter sets sent by libstreaming (640x480, high profile), so the extractor can parse them
+    private static final byte[] SPS = {0x67, 0x64, (byte) 0x00, 0x1e, (byte) 0xac, (byte) 0xd9, 0x40, (byte) 0xa0,
+            0x3d, (byte) 0xa1, 0x00, 0x00, (byte) 0x03, 0x00, 0x01, 0x00, 0x00, 0x03, 0x00, 0x3C, 0x0F, 0x16, 0x2D,
+            (byte) 0x96};
+    private static final byte[] PPS = {0x68, (byte) 0xeb, (byte) 0xec, (byte) 0xb2, 0x2C};
+
+    /**
+     * How NAL units are carried in RTP packets.
+     */
+    public enum Packetization {
+        // big frames split in FU-A fragments, parameter sets sent as single NAL units (libstreaming)
+        FU_A(20000, 4000),
+        // parameter sets aggregated in a STAP-A, small frames aggregated two at a time
+        STAP_A(4000, 500),
+        // every NAL unit fits in a single packet
+        SINGLE_NAL(1200, 600);
+
+        private final int idrSize;
+        private final int frameSize;
+
+        Packetization(int idrSize, int frameSize) {
+            this.idrSize = idrSize;
+            this.frameSize = frameSize;
+        }
+    }
+
+    /**
+     * What the network did to the stream.
+     */
+    public enum Network {
+        IN_ORDER,
+        // one of every 50 packets is lost
+        LOSS_2_PERCENT,
+        // one of every 50 packets arrives after the one following it
+        REORDER_2_PERCENT
+    }
+
+    private final List<DataPacket> packets = new ArrayList<DataPacket>();
+    // Sequence numbers used by the stream: lost packets still take theirs
+    private final int sequenceSpan;
+
+    /**
+     * Builds a stream of the given number of groups of pictures.
+     *
+     * @param packetization how NAL units are packetized
+     * @param network       losses or reordering to apply
+     * @param gops          number of groups of pictures
+     */
+    public H264Stream(Packetization packetization, Network network, int gops) {
+        List<DataPacket> sent = new ArrayList<DataPacket>();
+        long timestamp = 0;
+        for (int gop = 0; gop < gops; gop++) {
+            for (int frame = 0; frame < GOP_SIZE; frame++) {
+                if (frame == 0) {
+                    addParameterSets(sent, packetization, timestamp);
+                    addFrame(sent, packetization, 0x65, packetization.idrSize, timestamp);
+                } else if (packetization == Packetization.STAP_A && frame + 1 < GOP_SIZE) {
+                    // Two small P frames share a packet
+                    addStapA(sent, timestamp, RtpPackets.nal(0x41, packetization.frameSize / 2),
+                            RtpPackets.nal(0x41, packetization.frameSize / 2));
+                    frame++;
+                    timestamp += RtpPackets.CLOCK_RATE / FRAMES_PER_SECOND;
+                } else {
+                    addFrame(sent, packetization, 0x41, packetization.frameSize, timestamp);
+                }
+                timestamp += RtpPackets.CLOCK_RATE / FRAMES_PER_SECOND;
+            }
+        }
+
+        for (int i = 0; i < sent.size(); i++) {
+            sent.get(i).setSequenceNumber(i);
+        }
+        sequenceSpan = sent.size();
+
+        for (int i = 0; i < sent.size(); i++) {
+            if (network == Network.LOSS_2_PERCENT && i % 50 == 49) {
+                continue;
+            }
+            packets.add(DataPacket.decode(sent.get(i).encode()));
+            if (network == Network.REORDER_2_PERCENT && i % 50 == 49) {
+                Collections.swap(packets, packets.size() - 1, packets.size() - 2);
+            }
+        }
+    }
+
+    /**
+     * @return packets in the order they arrive
+     */
+    public List<DataPacket> getPackets() {
+        return packets;
+    }
+
+    /**
+     * @return how many sequence numbers the stream spans, lost packets included
+     */
+    public int getSequenceSpan() {
+        return sequenceSpan;
+    }
+
+    private void addParameterSets(List<DataPacket> sent, Packetization packetization, long timestamp) {
+        byte[] sps = SPS.clone();
+        byte[] pps = PPS.clone();
+        if (packetization == Packetization.STAP_A) {
+            addStapA(sent, timestamp, sps, pps);
+        } else {
+            sent.add(packet(sps, timestamp, false));
+            sent.add(packet(pps, timestamp, false));
+        }
+    }
+
+    private void addFrame(List<DataPacket> sent, Packetization packetization, int header, int size, long timestamp) {
+        if (packetization != Packetization.FU_A || size <= MTU_PAYLOAD) {
+            sent.add(packet(RtpPackets.nal(header, size), timestamp, true));
+            return;
+        }
+
+        // The NAL unit header is carried in the FU indicator and header, so it isn't part of the fragments
+        int remaining = size - 1;
+        boolean start = true;
+        while (remaining > 0) {
+            int fragmentSize = Math.min(remaining, MTU_PAYLOAD - 2);
+            remaining -= fragmentSize;
+            byte[] payload = RtpPackets.fuA(fragmentSize + 2, start, remaining == 0);
+            payload[0] = (byte) ((header & 0xe0) | 28);
+            payload[1] = (byte) ((payload[1] & 0xe0) | (header & 0x1f));
+            sent.add(packet(payload, timestamp, remaining == 0));
+            start = false;
+        }
+    }
+
+    private void addStapA(List<DataPacket> sent, long timestamp, byte[]... nals) {
+        int size = 1;
+        for (byte[] nal : nals) {
+            size += 2 + nal.length;
+        }
+        byte[] payload = new byte[size];
+        payload[0] = 0x78;
+        int offset = 1;
+        for (byte[] nal : nals) {
+            payload[offset++] = (byte) (nal.length >> 8);
+            payload[offset++] = (byte) nal.length;
+            System.arraycopy(nal, 0, payload, offset, nal.length);
+            offset += nal.length;
+        }
+        sent.add(packet(payload, timestamp, true));
+    }
+
+    private DataPacket packet(byte[] payload, long timestamp, boolean marker) {
+        DataPacket packet = new DataPacket();
+        packet.setPayloadType(RtpPackets.PAYLOAD_TYPE);
+        packet.setSsrc(RtpPackets.SSRC);
+        packet.setTimestamp(timestamp);
+        packet.setMarker(marker);
+        packet.setData(payload);
+        return packet;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.c77.androidstreamingclient.lib.video.BufferedSample;
+import com.c77.androidstreamingclient.lib.video.Decoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decoder that stands in for MediaCodec: hands out a fixed set of direct input buffers in turn and only counts the
+ * frames it is given.
+ *
+ * @author Julian Cerruti
+ */
+public class InMemoryDecoder implements Decoder {
+    // Same order of magnitude as the input buffers MediaCodec allocates for 640x480 H.264
+    public static final int INPUT_BUFFER_SIZE = 256 * 1024;
+    public static final int INPUT_BUFFER_COUNT = 4;
+
+    private final BufferedSample[] samples;
+    private int nextSample = 0;
+
+    private long frames;
+    private long bytes;
+
+    public InMemoryDecoder() {
+        samples = new BufferedSample[INPUT_BUFFER_COUNT];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new BufferedSample(ByteBuffer.allocateDirect(INPUT_BUFFER_SIZE), i);
+        }
+    }
+
+    @Override
+    public BufferedSample getSampleBuffer() {
+        BufferedSample sample = samples[nextSample];
+        nextSample = (nextSample + 1) % samples.length;
+        return sample;
+    }
+
+    @Override
+    public void decodeFrame(BufferedSample frame) {
+        frames++;
+        bytes += frame.getSampleSize();
+    }
+
+    /**
+     * @return number of frames (NAL units) received so far
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return number of bytes received so far
+     */
+    public long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.c77.androidstreamingclient.lib.rtp.buffer.AdaptiveRtpMediaBuffer;
+import com.c77.androidstreamingclient.lib.rtp.buffer.RingRtpMediaBuffer;
+import com.c77.androidstreamingclient.lib.rtp.buffer.RtpMediaBuffer;
+import com.c77.androidstreamingclient.lib.rtp.buffer.TimeWindowRtpMediaBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long the network thread spends handing a packet to a jitter buffer while the buffer's own thread is
+ * sending packets upstream, at a fixed packet rate.
+ * <p/>
+ * Packets are paced outside of the measured code and carry RTP timestamps matching the time they are sent, so the
+ * buffer holds a full window of packets as it would with a live stream.
+ *
+ * @author Julian Cerruti
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JitterBufferBenchmark {
+    @Param({"time-window", "ring", "adaptive"})
+    public String bufferType;
+
+    @Param({"2000", "8000"})
+    public int packetsPerSecond;
+
+    private RtpMediaBuffer buffer;
+
+    private long periodNanos;
+    private long startNanos;
+    private long nextSendNanos;
+    // Extended, as the session would pass it to the buffer
+    private long sequenceNumber;
+    private DataPacket packet;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        RtpSessionDataListener upstream = new RtpSessionDataListener() {
+            @Override
+            public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+            }
+        };
+
+        Properties configuration = new Properties();
+        configuration.setProperty(TimeWindowRtpMediaBuffer.FRAMES_WINDOW_PROPERTY, "200");
+        if ("ring".equals(bufferType)) {
+            buffer = new RingRtpMediaBuffer(upstream, configuration);
+        } else if ("adaptive".equals(bufferType)) {
+            buffer = new AdaptiveRtpMediaBuffer(upstream, configuration);
+        } else {
+            buffer = new TimeWindowRtpMediaBuffer(upstream, configuration);
+        }
+
+        periodNanos = TimeUnit.SECONDS.toNanos(1) / packetsPerSecond;
+        startNanos = System.nanoTime();
+        nextSendNanos = startNanos;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        buffer.stop();
+    }
+
+    /**
+     * Waits for the time the next packet is due and prepares it.
+     */
+    @Setup(Level.Invocation)
+    public void nextPacket() {
+        long now;
+        while ((now = System.nanoTime()) < nextSendNanos) {
+            if (nextSendNanos - now > 100000) {
+                LockSupport.parkNanos(nextSendNanos - now - 50000);
+            }
+        }
+        nextSendNanos += periodNanos;
+
+        packet = new DataPacket();
+        packet.setSsrc(RtpPackets.SSRC);
+        packet.setSequenceNumber((int) (sequenceNumber & 0xffff));
+        packet.setExtendedSequenceNumber(sequenceNumber++);
+        packet.setTimestamp((now - startNanos) / 1000 * 90 / 1000);
+    }
+
+    @Benchmark
+    public void receive() {
+        buffer.dataPacketReceived(null, null, packet);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.DefaultParticipantDatabase;
+import com.biasedbit.efflux.participant.ParticipantEventListener;
+import com.biasedbit.efflux.participant.ParticipantOperation;
+import com.biasedbit.efflux.participant.RtpParticipant;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention on the participant lookup every received data packet goes through in a {@link
+ * com.biasedbit.efflux.session.MultiParticipantSession}: several receiving threads look up participants that are
+ * already members, as they do for every packet after a source's first one.
+ * <p/>
+ * {@code lookup} runs on 4 threads (pass {@code -t 1} for the uncontended cost). {@code withReports} adds a thread
+ * that keeps walking the members, as the RTCP report generator does, next to 3 receiving threads.
+ *
+ * @author Julian Cerruti
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParticipantDatabaseBenchmark {
+
+    @Param({"1", "16"})
+    public int sources;
+
+    private DefaultParticipantDatabase database;
+    private SocketAddress[] origins;
+    private DataPacket[] packets;
+
+    /**
+     * Each receiving thread goes through the sources on its own.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setup() {
+        database = new DefaultParticipantDatabase("benchmark", new ParticipantEventListener() {
+            @Override
+            public void participantCreatedFromSdesChunk(RtpParticipant participant) {
+            }
+
+            @Override
+            public void participantCreatedFromDataPacket(RtpParticipant participant) {
+            }
+
+            @Override
+            public void participantDeleted(RtpParticipant participant) {
+            }
+        });
+
+        origins = new SocketAddress[sources];
+        packets = new DataPacket[sources];
+        for (int i = 0; i < sources; i++) {
+            origins[i] = new InetSocketAddress("127.0.0.1", 20000 + (2 * i));
+            packets[i] = new DataPacket();
+            packets[i].setSsrc(RtpPackets.SSRC + i);
+            // Every source is a member by the time the benchmark starts
+            database.getOrCreateParticipantFromDataPacket(origins[i], packets[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public RtpParticipant lookup(Cursor cursor) {
+        return next(cursor);
+    }
+
+    @Benchmark
+    @Group("withReports")
+    @GroupThreads(3)
+    public RtpParticipant receive(Cursor cursor) {
+        return next(cursor);
+    }
+
+    @Benchmark
+    @Group("withReports")
+    @GroupThreads(1)
+    public int report() {
+        final int[] count = new int[1];
+        database.doWithParticipants(new ParticipantOperation() {
+            @Override
+            public void doWithParticipant(RtpParticipant participant) throws Exception {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    private RtpParticipant next(Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = (i + 1 == sources) ? 0 : i + 1;
+        return database.getOrCreateParticipantFromDataPacket(origins[i], packets[i]);
+    }
+}
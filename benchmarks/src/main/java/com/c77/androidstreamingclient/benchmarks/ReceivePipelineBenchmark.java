@@ -0,0 +1,166 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.c77.androidstreamingclient.lib.rtp.MediaClock;
+import com.c77.androidstreamingclient.lib.rtp.RtpMediaExtractor;
+import com.c77.androidstreamingclient.lib.rtp.buffer.MinDelayRtpMediaBuffer;
+import com.c77.androidstreamingclient.lib.video.CodecDecoder;
+import com.c77.androidstreamingclient.lib.video.HeadlessCodecBackend;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the whole receive pipeline without a device: packets of a synthetic stream go through a min-delay
+ * buffer and a {@link RtpMediaExtractor} into a {@link CodecDecoder} backed by a {@link HeadlessCodecBackend}.
+ * <p/>
+ * The score is packets/s; the counters report the frames rendered and the ones discarded by the input overflow
+ * policy per second. A decoder slower than the packets coming in exercises the overflow policies. The mean and
+ * maximum time from a frame being queued to it being rendered are printed at the end of every trial.
+ *
+ * @author Julian Cerruti
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceivePipelineBenchmark {
+    private static final int INPUT_BUFFERS = 8;
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    @Param({"0", "2000"})
+    public double decoderFramesPerSecond;
+
+    @Param({CodecDecoder.POLICY_DROP_UNTIL_IDR, CodecDecoder.POLICY_STAGE})
+    public String inputOverflowPolicy;
+
+    private DataPacket[] packets;
+    private int[] sequenceNumbers;
+    private long[] timestamps;
+    private int sequenceSpan;
+    private long timestampSpan;
+
+    private HeadlessCodecBackend backend;
+    private CodecDecoder decoder;
+    private MinDelayRtpMediaBuffer buffer;
+
+    private int next;
+    private long sequenceBase;
+    private long timestampBase;
+    // Decoder counters when the iteration started, as frames are rendered by another thread
+    private long renderedBefore;
+    private long discardedBefore;
+
+    /**
+     * Frames rendered and discarded, reported per second next to the packets.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Frames {
+        public long rendered;
+        public long discarded;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rendered = 0;
+            discarded = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        H264Stream stream = new H264Stream(H264Stream.Packetization.FU_A, H264Stream.Network.IN_ORDER, 10);
+        List<DataPacket> streamPackets = stream.getPackets();
+        packets = streamPackets.toArray(new DataPacket[streamPackets.size()]);
+        sequenceNumbers = new int[packets.length];
+        timestamps = new long[packets.length];
+        for (int i = 0; i < packets.length; i++) {
+            sequenceNumbers[i] = packets[i].getSequenceNumber();
+            timestamps[i] = packets[i].getTimestamp();
+        }
+        sequenceSpan = stream.getSequenceSpan();
+        timestampSpan = timestamps[packets.length - 1] - timestamps[0] + MediaClock.H264_CLOCK_RATE / H264Stream.FRAMES_PER_SECOND;
+
+        backend = new HeadlessCodecBackend(INPUT_BUFFERS, INPUT_BUFFER_SIZE, decoderFramesPerSecond);
+        // Never wait for input buffers, the policy handles a busy decoder
+        decoder = new CodecDecoder(backend, 0, inputOverflowPolicy, INPUT_BUFFERS);
+        decoder.start();
+
+        MediaClock mediaClock = new MediaClock();
+        buffer = new MinDelayRtpMediaBuffer(new RtpMediaExtractor(decoder, mediaClock), mediaClock, new Properties());
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        renderedBefore = decoder.getFramesRendered();
+        discardedBefore = decoder.getFramesDiscarded();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        buffer.stop();
+        decoder.release();
+        System.out.println("\nFrame latency: mean " + backend.getMeanLatencyUs() + " us, max " +
+                backend.getMaxLatencyUs() + " us, invalid NAL units: " + backend.getInvalidNalUnits());
+    }
+
+    @Benchmark
+    public void receive(Frames counter) {
+        DataPacket packet = packets[next];
+        // Keep sequence numbers and timestamps going when the stream starts over
+        packet.setSequenceNumber((int) ((sequenceBase + sequenceNumbers[next]) & 0xffff));
+        // As extended by the session, which the extractor and buffers order packets by
+        packet.setExtendedSequenceNumber(sequenceBase + sequenceNumbers[next]);
+        packet.setTimestamp((timestampBase + timestamps[next]) & 0xffffffffL);
+
+        buffer.dataPacketReceived(null, null, packet);
+        counter.rendered = decoder.getFramesRendered() - renderedBefore;
+        counter.discarded = decoder.getFramesDiscarded() - discardedBefore;
+
+        if (++next == packets.length) {
+            next = 0;
+            sequenceBase += sequenceSpan;
+            timestampBase += timestampSpan;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.c77.androidstreamingclient.lib.rtp.RtpMediaExtractor;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures H.264 depacketization: packets of a synthetic stream are fed one per invocation to a
+ * {@link RtpMediaExtractor} writing into an {@link InMemoryDecoder}.
+ * <p/>
+ * The score is packets/s; the frames counter reports the NAL units handed to the decoder per second. The loss and
+ * reorder scenarios exercise the extractor's error paths.
+ *
+ * @author Julian Cerruti
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtpMediaExtractorBenchmark {
+    @Param
+    public H264Stream.Packetization packetization;
+
+    @Param
+    public H264Stream.Network network;
+
+    private DataPacket[] packets;
+    private int[] sequenceNumbers;
+    private int sequenceSpan;
+
+    private InMemoryDecoder decoder;
+    private RtpMediaExtractor extractor;
+
+    private int next;
+    private long sequenceBase;
+
+    /**
+     * Frames that reached the decoder, reported per second next to the packets.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Frames {
+        public long frames;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        H264Stream stream = new H264Stream(packetization, network, 10);
+        List<DataPacket> streamPackets = stream.getPackets();
+        packets = streamPackets.toArray(new DataPacket[streamPackets.size()]);
+        sequenceNumbers = new int[packets.length];
+        for (int i = 0; i < packets.length; i++) {
+            sequenceNumbers[i] = packets[i].getSequenceNumber();
+        }
+        sequenceSpan = stream.getSequenceSpan();
+
+        decoder = new InMemoryDecoder();
+        extractor = new RtpMediaExtractor(decoder);
+    }
+
+    @Benchmark
+    public void depacketize(Frames counter) {
+        DataPacket packet = packets[next];
+        // Keep sequence numbers going when the stream starts over, so it doesn't look like a loss
+        packet.setSequenceNumber((int) ((sequenceBase + sequenceNumbers[next]) & 0xffff));
+        // As extended by the session, which the extractor and buffers order packets by
+        packet.setExtendedSequenceNumber(sequenceBase + sequenceNumbers[next]);
+        // STAP-A parsing moves the payload reader index
+        packet.getData().readerIndex(0);
+
+        long framesBefore = decoder.getFrames();
+        extractor.dataPacketReceived(null, null, packet);
+        counter.frames += decoder.getFrames() - framesBefore;
+
+        if (++next == packets.length) {
+            next = 0;
+            sequenceBase += sequenceSpan;
+        }
+    }
+}
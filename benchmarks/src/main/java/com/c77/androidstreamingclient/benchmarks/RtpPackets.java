@@ -0,0 +1,277 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.ByePacket;
+import com.biasedbit.efflux.packet.CompoundControlPacket;
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.packet.ReceptionReport;
+import com.biasedbit.efflux.packet.SdesChunk;
+import com.biasedbit.efflux.packet.SdesChunkItems;
+import com.biasedbit.efflux.packet.SenderReportPacket;
+import com.biasedbit.efflux.packet.SourceDescriptionPacket;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds the packets used by the benchmarks, shaped like the ones libstreaming sends us.
+ *
+ * @author Julian Cerruti
+ */
+public final class RtpPackets {
+    public static final int PAYLOAD_TYPE = 96;
+    public static final long SSRC = 0x12345678L;
+    // RTP clock rate for video
+    public static final int CLOCK_RATE = 90000;
+
+    private static final Random random = new Random(77);
+
+    private RtpPackets() {
+    }
+
+    /**
+     * Kinds of data packets found in a H.264 stream.
+     */
+    public enum Shape {
+        // STAP-A carrying SPS and PPS, ~200 bytes
+        STAP_A_200,
+        // FU-A fragment of a big frame, filling a 1400 bytes payload
+        FU_A_1400,
+        // FU-A fragment padded to a 16 byte block (SRTP style)
+        PADDED_FU_A_1400,
+        // FU-A fragment coming out of a mixer with a list of contributing sources
+        CSRC_FU_A_1400
+    }
+
+    /**
+     * Creates a data packet of the given shape.
+     *
+     * @param shape          kind of packet
+     * @param sequenceNumber RTP sequence number
+     * @param timestamp      RTP timestamp
+     * @return data packet ready to be encoded
+     */
+    public static DataPacket dataPacket(Shape shape, int sequenceNumber, long timestamp) {
+        DataPacket packet = new DataPacket();
+        packet.setPayloadType(PAYLOAD_TYPE);
+        packet.setSsrc(SSRC);
+        packet.setSequenceNumber(sequenceNumber);
+        packet.setTimestamp(timestamp);
+
+        switch (shape) {
+            case STAP_A_200:
+                packet.setData(stapA(200));
+                packet.setMarker(false);
+                break;
+            case FU_A_1400:
+            case PADDED_FU_A_1400:
+                packet.setData(fuA(1400, true, false));
+                break;
+            case CSRC_FU_A_1400:
+                packet.setData(fuA(1400, true, false));
+                for (int i = 0; i < 4; i++) {
+                    packet.addContributingSourceId(0x1000 + i);
+                }
+                break;
+        }
+        return packet;
+    }
+
+    /**
+     * Encodes a data packet of the given shape.
+     *
+     * @param shape kind of packet
+     * @return encoded packet, as it would arrive from the network
+     */
+    public static ChannelBuffer encodedDataPacket(Shape shape) {
+        DataPacket packet = dataPacket(shape, 1, 0);
+        return packet.encode(shape == Shape.PADDED_FU_A_1400 ? 16 : 0);
+    }
+
+    /**
+     * Builds a STAP-A payload of (about) the given size holding two NAL units (RFC 6184, section 5.7.1).
+     *
+     * @param size total payload size
+     * @return STAP-A payload
+     */
+    public static byte[] stapA(int size) {
+        int firstNalSize = (size - 5) / 2;
+        int secondNalSize = size - 5 - firstNalSize;
+        ChannelBuffer buffer = ChannelBuffers.buffer(size);
+        buffer.writeByte(0x78); // NRI 3, type 24
+        buffer.writeShort(firstNalSize);
+        buffer.writeBytes(nal(0x67, firstNalSize)); // SPS
+        buffer.writeShort(secondNalSize);
+        buffer.writeBytes(nal(0x68, secondNalSize)); // PPS
+        return buffer.array();
+    }
+
+    /**
+     * Builds a FU-A payload of the given size (RFC 6184, section 5.8).
+     *
+     * @param size  total payload size
+     * @param start whether this is the first fragment of the NAL unit
+     * @param end   whether this is the last fragment of the NAL unit
+     * @return FU-A payload
+     */
+    public static byte[] fuA(int size, boolean start, boolean end) {
+        byte[] payload = randomBytes(size);
+        payload[0] = 0x7c; // NRI 3, type 28
+        payload[1] = (byte) (0x05 | (start ? 0x80 : 0) | (end ? 0x40 : 0)); // IDR slice fragment
+        return payload;
+    }
+
+    /**
+     * Builds a single NAL unit of the given header and size.
+     *
+     * @param header NAL unit header octet
+     * @param size   total NAL unit size
+     * @return NAL unit
+     */
+    public static byte[] nal(int header, int size) {
+        byte[] nal = randomBytes(size);
+        nal[0] = (byte) header;
+        return nal;
+    }
+
+    /**
+     * Encodes the compound RTCP packet a sender sends every few seconds: a SR with one report block followed by a SDES
+     * with CNAME and TOOL items.
+     *
+     * @return encoded compound RTCP packet
+     */
+    public static ChannelBuffer encodedCompoundControlPacket() {
+        CompoundControlPacket compound = compoundControlPacket();
+        ChannelBuffer[] buffers = new ChannelBuffer[compound.getPacketCount()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = compound.getControlPackets().get(i).encode();
+        }
+        return ChannelBuffers.copiedBuffer(buffers);
+    }
+
+    /**
+     * @return compound RTCP packet as described in {@link #encodedCompoundControlPacket()}
+     */
+    public static CompoundControlPacket compoundControlPacket() {
+        SenderReportPacket senderReport = new SenderReportPacket();
+        senderReport.setSenderSsrc(SSRC);
+        senderReport.setNtpTimestamp(0xd9a2b6c41cac0831L);
+        senderReport.setRtpTimestamp(3000000);
+        senderReport.setSenderPacketCount(12345);
+        senderReport.setSenderOctetCount(12345 * 1400);
+        ReceptionReport block = new ReceptionReport();
+        block.setSsrc(0x87654321L);
+        block.setFractionLost((short) 3);
+        block.setCumulativeNumberOfPacketsLost(10);
+        block.setExtendedHighestSequenceNumberReceived(70000);
+        block.setInterArrivalJitter(120);
+        senderReport.addReceptionReportBlock(block);
+
+        SourceDescriptionPacket sdes = new SourceDescriptionPacket();
+        sdes.addItem(sdesChunk());
+
+        return new CompoundControlPacket(senderReport, sdes);
+    }
+
+    /**
+     * @return SDES chunk with the items efflux sends
+     */
+    public static SdesChunk sdesChunk() {
+        SdesChunk chunk = new SdesChunk(SSRC);
+        chunk.addItem(SdesChunkItems.createCnameItem("efflux/1@/192.168.1.10:5006"));
+        chunk.addItem(SdesChunkItems.createToolItem("efflux_0.4_15092010"));
+        return chunk;
+    }
+
+    /**
+     * @return BYE packet for two sources with a reason for leaving
+     */
+    public static ByePacket byePacket() {
+        ByePacket bye = new ByePacket();
+        bye.addSsrc(SSRC);
+        bye.addSsrc(0x1000);
+        bye.setReasonForLeaving("Session terminated.");
+        return bye;
+    }
+
+    /**
+     * Builds a ULPFEC packet (RFC 5109) protecting up to 16 consecutive data packets, with a single protection level
+     * covering the whole packets.
+     *
+     * @param protectedPackets packets to protect, starting at the base sequence number
+     * @param payloadType      payload type of the FEC stream
+     * @param sequenceNumber   RTP sequence number of the FEC packet, on its own stream
+     * @return FEC packet
+     */
+    public static DataPacket ulpfecPacket(List<DataPacket> protectedPackets, int payloadType, int sequenceNumber) {
+        int baseSequenceNumber = protectedPackets.get(0).getSequenceNumber();
+        int protectionLength = 0;
+        for (DataPacket packet : protectedPackets) {
+            protectionLength = Math.max(protectionLength, packet.encode().readableBytes() - 12);
+        }
+
+        int headerRecovery = 0;
+        long timestampRecovery = 0;
+        int lengthRecovery = 0;
+        int mask = 0;
+        byte[] payloadRecovery = new byte[protectionLength];
+        for (DataPacket packet : protectedPackets) {
+            ChannelBuffer bytes = packet.encode();
+            headerRecovery ^= bytes.getUnsignedShort(0);
+            timestampRecovery ^= packet.getTimestamp();
+            lengthRecovery ^= bytes.readableBytes() - 12;
+            for (int i = 12; i < bytes.readableBytes(); i++) {
+                payloadRecovery[i - 12] ^= bytes.getByte(i);
+            }
+            mask |= 0x8000 >> ((packet.getSequenceNumber() - baseSequenceNumber) & 0xffff);
+        }
+
+        // FEC header, level 0 header with a short mask, and level 0 payload
+        ChannelBuffer data = ChannelBuffers.buffer(14 + protectionLength);
+        data.writeByte((headerRecovery >> 8) & 0x3f);
+        data.writeByte(headerRecovery);
+        data.writeShort(baseSequenceNumber);
+        data.writeInt((int) timestampRecovery);
+        data.writeShort(lengthRecovery);
+        data.writeShort(protectionLength);
+        data.writeShort(mask);
+        data.writeBytes(payloadRecovery);
+
+        DataPacket fecPacket = new DataPacket();
+        fecPacket.setPayloadType(payloadType);
+        fecPacket.setSsrc(SSRC + 1);
+        fecPacket.setSequenceNumber(sequenceNumber);
+        fecPacket.setData(data);
+        return fecPacket;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipant;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.biasedbit.efflux.session.SingleParticipantSession;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Localhost load test of the session's receive path: RTP datagrams are sent from a plain socket to a
+ * {@link SingleParticipantSession} bound with each transport, and timed until the session hands them to its data
+ * listener.
+ * <p/>
+ * {@code oneWay} sends a packet at a time and reports the distribution of the time it takes to come out of the
+ * session, socket and thread hand-offs included. {@code burst} sends groups of packets as fast as possible and
+ * reports packets/s. The threads the transport started and the packets lost (not received within
+ * {@link #TIMEOUT_NS}) are printed at the end of every trial.
+ *
+ * @author Julian Cerruti
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    private static final int PAYLOAD_TYPE = 96;
+    private static final int BURST = 32;
+    private static final long TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Param({"netty-oio", "netty-nio", "nio", "socket"})
+    public String transport;
+
+    @Param({"1200"})
+    public int payloadSize;
+
+    // Run with -p readBufferSize=50000 -prof gc to see what reading into oversized buffers costs
+    @Param({"1500"})
+    public int readBufferSize;
+
+    private SingleParticipantSession session;
+    private DatagramSocket sender;
+    private DatagramPacket datagram;
+    private byte[] bytes;
+    private int sequenceNumber;
+    private int threads;
+    private long sent;
+    private long lost;
+    // Written by the transport's receiving thread
+    private volatile long received;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int dataPort = freePort();
+        RtpParticipant local = RtpParticipant.createReceiver("127.0.0.1", dataPort, freePort());
+        RtpParticipant remote = RtpParticipant.createReceiver("127.0.0.1", freePort(), freePort());
+        session = new SingleParticipantSession("benchmark", PAYLOAD_TYPE, local, remote);
+        session.setDiscardOutOfOrder(false);
+        session.setReceiveBufferSize(256 * 1024);
+        session.setReadBufferSize(readBufferSize);
+        session.setTransport(transport);
+        session.addDataListener(new RtpSessionDataListener() {
+            @Override
+            public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+                received++;
+            }
+        });
+
+        int threadsBefore = Thread.activeCount();
+        if (!session.init()) {
+            throw new IllegalStateException("Could not bind session for " + transport);
+        }
+        threads = Thread.activeCount() - threadsBefore;
+
+        bytes = new byte[12 + payloadSize];
+        bytes[0] = (byte) 0x80;
+        bytes[1] = (byte) PAYLOAD_TYPE;
+        bytes[8] = 0x12;
+        bytes[9] = 0x34;
+        bytes[10] = 0x56;
+        bytes[11] = 0x78;
+        sender = new DatagramSocket();
+        datagram = new DatagramPacket(bytes, bytes.length, new InetSocketAddress("127.0.0.1", dataPort));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.terminate();
+        sender.close();
+        System.out.println("\n" + transport + ": " + threads + " threads started, " + lost + " of " + sent +
+                " packets lost");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void oneWay() throws IOException {
+        send();
+        await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BURST)
+    public void burst() throws IOException {
+        for (int i = 0; i < BURST; i++) {
+            send();
+        }
+        await();
+    }
+
+    private void send() throws IOException {
+        sequenceNumber++;
+        bytes[2] = (byte) (sequenceNumber >> 8);
+        bytes[3] = (byte) sequenceNumber;
+        // 90 kHz timestamps of a 30 fps stream
+        int timestamp = sequenceNumber * 3000;
+        bytes[4] = (byte) (timestamp >> 24);
+        bytes[5] = (byte) (timestamp >> 16);
+        bytes[6] = (byte) (timestamp >> 8);
+        bytes[7] = (byte) timestamp;
+        sender.send(datagram);
+        sent++;
+    }
+
+    /**
+     * Waits until every packet sent was received, or gives up on the missing ones.
+     */
+    private void await() {
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (received + lost < sent) {
+            if (System.nanoTime() - deadline > 0) {
+                lost = sent - received;
+                return;
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
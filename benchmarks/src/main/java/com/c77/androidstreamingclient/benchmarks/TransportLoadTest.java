@@ -0,0 +1,205 @@
+/*
+* Copyright (C) 2015 Creativa77 SRL and others
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*
+* Contributors:
+*
+* Ayelen Chavez ashi@creativa77.com.ar
+* Julian Cerruti jcerruti@creativa77.com.ar
+*
+*/
+
+package com.c77.androidstreamingclient.benchmarks;
+
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.participant.RtpParticipant;
+import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.session.AbstractRtpSession;
+import com.biasedbit.efflux.session.RtpSession;
+import com.biasedbit.efflux.session.RtpSessionDataListener;
+import com.biasedbit.efflux.session.SingleParticipantSession;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Localhost load test of the transports: RTP packets are sent to a session at a fixed rate for a while, every rate
+ * twice as high as the previous one, and the session's transport is judged by what comes out of it:
+ * <ul>
+ * <li>loss: packets that never reached the data listener;</li>
+ * <li>latency percentiles: from right before sending a packet until the listener gets it, as the packets carry the
+ * time they were sent in;</li>
+ * <li>CPU per packet: CPU time of the whole process minus the sending thread's, per packet received.</li>
+ * </ul>
+ * Unlike {@link TransportBenchmark}, the sender doesn't wait for packets to come out of the session, so the transport
+ * has to keep up with the rate or drop packets, as it would with a real stream. The CPU figures include the JIT and GC
+ * threads; compare them between transports rather than reading them as absolute costs.
+ * <p/>
+ * Arguments, all optional: comma separated transports (netty-oio,netty-nio,nio,socket), comma separated rates in
+ * packets/s (1000,5000,10000,20000,50000) and seconds per rate (3).
+ *
+ * @author Julian Cerruti
+ */
+public class TransportLoadTest {
+    private static final int PAYLOAD_TYPE = RtpPackets.PAYLOAD_TYPE;
+    private static final int PAYLOAD_SIZE = 1200;
+    // Time for the last packets sent to come out of the session
+    private static final long DRAIN_MS = 500;
+
+    private final String transport;
+    private final int rate;
+    private final int seconds;
+    // One per packet sent, in ns. Written by the transport's receiving thread, read once received is final
+    private final long[] latencies;
+    private volatile int received;
+
+    public TransportLoadTest(String transport, int rate, int seconds) {
+        this.transport = transport;
+        this.rate = rate;
+        this.seconds = seconds;
+        latencies = new long[rate * seconds];
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] transports = (args.length > 0) ? args[0].split(",") : new String[]{
+                AbstractRtpSession.TRANSPORT_NETTY_OIO, AbstractRtpSession.TRANSPORT_NETTY_NIO,
+                AbstractRtpSession.TRANSPORT_NIO, AbstractRtpSession.TRANSPORT_SOCKET};
+        String[] rates = (args.length > 1) ? args[1].split(",") : new String[]{"1000", "5000", "10000", "20000", "50000"};
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+
+        System.out.println(String.format("%-10s %8s %8s %7s %9s %9s %9s %9s %11s", "transport", "pps", "sent",
+                "loss%", "p50 us", "p99 us", "p99.9 us", "max us", "cpu us/pkt"));
+        for (String transport : transports) {
+            for (String rate : rates) {
+                new TransportLoadTest(transport, Integer.parseInt(rate), seconds).run();
+            }
+        }
+    }
+
+    public void run() throws IOException, InterruptedException {
+        int dataPort = freePort();
+        RtpParticipant local = RtpParticipant.createReceiver("127.0.0.1", dataPort, freePort());
+        RtpParticipant remote = RtpParticipant.createReceiver("127.0.0.1", freePort(), freePort());
+        SingleParticipantSession session = new SingleParticipantSession("loadtest", PAYLOAD_TYPE, local, remote);
+        session.setDiscardOutOfOrder(false);
+        session.setReceiveBufferSize(256 * 1024);
+        session.setTransport(transport);
+        session.addDataListener(new RtpSessionDataListener() {
+            @Override
+            public void dataPacketReceived(RtpSession session, RtpParticipantInfo participant, DataPacket packet) {
+                long now = System.nanoTime();
+                ChannelBuffer data = packet.getData();
+                int count = received;
+                if (count < latencies.length) {
+                    latencies[count] = now - data.getLong(data.readerIndex());
+                    received = count + 1;
+                }
+            }
+        });
+        if (!session.init()) {
+            throw new IllegalStateException("Could not bind session for " + transport);
+        }
+
+        DatagramSocket sender = new DatagramSocket();
+        byte[] bytes = new byte[12 + PAYLOAD_SIZE];
+        bytes[0] = (byte) 0x80;
+        bytes[1] = (byte) PAYLOAD_TYPE;
+        putInt(bytes, 8, (int) RtpPackets.SSRC);
+        DatagramPacket datagram = new DatagramPacket(bytes, bytes.length, new InetSocketAddress("127.0.0.1", dataPort));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long processCpuStart = processCpuTime();
+        long senderCpuStart = threads.getCurrentThreadCpuTime();
+
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        for (int i = 0; i < latencies.length; i++) {
+            long next = start + (i * interval);
+            while (System.nanoTime() < next) {
+                // Busy wait: sleeping isn't precise enough for these rates
+            }
+            bytes[2] = (byte) (i >> 8);
+            bytes[3] = (byte) i;
+            putInt(bytes, 4, i * (RtpPackets.CLOCK_RATE / 30));
+            putLong(bytes, 12, System.nanoTime());
+            sender.send(datagram);
+        }
+
+        long senderCpu = threads.getCurrentThreadCpuTime() - senderCpuStart;
+        Thread.sleep(DRAIN_MS);
+        long processCpu = processCpuTime() - processCpuStart;
+        session.terminate();
+        sender.close();
+
+        report(processCpu - senderCpu);
+    }
+
+    private void report(long receiverCpu) {
+        int count = received;
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        double loss = 100.0 * (latencies.length - count) / latencies.length;
+        System.out.println(String.format("%-10s %8d %8d %7.2f %9s %9s %9s %9s %11s", transport, rate,
+                latencies.length, loss, percentile(sorted, 0.5), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), percentile(sorted, 1), (count == 0 || receiverCpu < 0) ? "-" :
+                        String.format("%.2f", receiverCpu / 1000.0 / count)));
+    }
+
+    private static String percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return String.format("%.1f", sorted[Math.max(0, index)] / 1000.0);
+    }
+
+    /**
+     * @return CPU time used by the whole process, in ns, or -1 if the JVM doesn't tell.
+     */
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >> 24);
+        bytes[offset + 1] = (byte) (value >> 16);
+        bytes[offset + 2] = (byte) (value >> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        putInt(bytes, offset, (int) (value >> 32));
+        putInt(bytes, offset + 4, (int) value);
+    }
+
+    private static int freePort() throws IOException {
+        DatagramSocket socket = new DatagramSocket();
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
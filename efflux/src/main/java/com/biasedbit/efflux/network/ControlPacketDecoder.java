@@ -38,26 +38,20 @@ public class ControlPacketDecoder implements ChannelUpstreamHandler {
 
     protected static final Logger LOG = Logger.getLogger(ControlPacketDecoder.class);
 
-    // ChannelUpstreamHandler -----------------------------------------------------------------------------------------
+    // public static methods ------------------------------------------------------------------------------------------
 
-    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent evt) throws Exception {
-        // Only handle MessageEvent.
-        if (!(evt instanceof MessageEvent)) {
-            ctx.sendUpstream(evt);
-            return;
-        }
-
-        // Only decode if it's a ChannelBuffer.
-        MessageEvent e = (MessageEvent) evt;
-        if (!(e.getMessage() instanceof ChannelBuffer)) {
-            return;
-        }
-
-        ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+    /**
+     * Decodes the RTCP packets in a datagram, skipping the ones that can't be decoded.
+     *
+     * @param buffer Buffer holding the whole datagram.
+     *
+     * @return The packets decoded, or {@code null} if there were none.
+     */
+    public static CompoundControlPacket decode(ChannelBuffer buffer) {
         if ((buffer.readableBytes() % 4) != 0) {
             LOG.debug("Invalid RTCP packet received: total length should be multiple of 4 but is {}",
                       buffer.readableBytes());
-            return;
+            return null;
         }
 
         // Usually 2 packets per UDP frame...
@@ -66,16 +60,45 @@ public class ControlPacketDecoder implements ChannelUpstreamHandler {
         // While there's data to read, keep on decoding.
         while (buffer.readableBytes() > 0) {
             try {
-                controlPacketList.add(ControlPacket.decode(buffer));
+                ControlPacket controlPacket = ControlPacket.decode(buffer);
+                // Packets of unsupported types decode to null.
+                if (controlPacket != null) {
+                    controlPacketList.add(controlPacket);
+                }
             } catch (Exception e1) {
+                // The rest of the datagram can't be located, and retrying could loop forever on a bad length.
                 LOG.debug("Exception caught while decoding RTCP packet.", e1);
+                break;
             }
         }
 
-        if (!controlPacketList.isEmpty()) {
-            // Only send upwards when there were more than one valid decoded packets.
-            // TODO shouldn't the whole compound packet be discarded when one of them has errors?!
-            Channels.fireMessageReceived(ctx, new CompoundControlPacket(controlPacketList), e.getRemoteAddress());
+        if (controlPacketList.isEmpty()) {
+            return null;
+        }
+
+        // Only send upwards when there were more than one valid decoded packets.
+        // TODO shouldn't the whole compound packet be discarded when one of them has errors?!
+        return new CompoundControlPacket(controlPacketList);
+    }
+
+    // ChannelUpstreamHandler -----------------------------------------------------------------------------------------
+
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent evt) throws Exception {
+        // Only handle MessageEvent.
+        if (!(evt instanceof MessageEvent)) {
+            ctx.sendUpstream(evt);
+            return;
+        }
+
+        // Only decode if it's a ChannelBuffer.
+        MessageEvent e = (MessageEvent) evt;
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            return;
+        }
+
+        CompoundControlPacket compoundPacket = decode((ChannelBuffer) e.getMessage());
+        if (compoundPacket != null) {
+            Channels.fireMessageReceived(ctx, compoundPacket, e.getRemoteAddress());
         }
     }
 }
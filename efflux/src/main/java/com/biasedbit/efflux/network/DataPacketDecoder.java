@@ -18,6 +18,7 @@ package com.biasedbit.efflux.network;
 
 import com.biasedbit.efflux.logging.Logger;
 import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.packet.DataPacketPool;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -32,6 +33,35 @@ public class DataPacketDecoder extends OneToOneDecoder {
 
     protected static final Logger LOG = Logger.getLogger(OneToOneDecoder.class);
 
+    // configuration --------------------------------------------------------------------------------------------------
+
+    private final boolean copyPayload;
+    private final DataPacketPool pool;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    public DataPacketDecoder() {
+        this(true);
+    }
+
+    /**
+     * @param copyPayload Whether decoded packets get their own copy of the payload or a slice of the received buffer.
+     *                    See {@link DataPacket#decode(ChannelBuffer, boolean)}.
+     */
+    public DataPacketDecoder(boolean copyPayload) {
+        this(copyPayload, null);
+    }
+
+    /**
+     * @param copyPayload Whether decoded packets get their own copy of the payload or a slice of the received buffer.
+     *                    See {@link DataPacket#decode(ChannelBuffer, boolean)}.
+     * @param pool        Pool to take decoded packets from, or {@code null} to create a new packet every time.
+     */
+    public DataPacketDecoder(boolean copyPayload, DataPacketPool pool) {
+        this.copyPayload = copyPayload;
+        this.pool = pool;
+    }
+
     // OneToOneDecoder ------------------------------------------------------------------------------------------------
 
     @Override
@@ -41,7 +71,10 @@ public class DataPacketDecoder extends OneToOneDecoder {
         }
 
         try {
-            return DataPacket.decode((ChannelBuffer) msg);
+            if (this.pool != null) {
+                return this.pool.decode((ChannelBuffer) msg, this.copyPayload);
+            }
+            return DataPacket.decode((ChannelBuffer) msg, this.copyPayload);
         } catch (Exception e) {
             LOG.debug("Failed to decode RTP packet.", e);
             return null;
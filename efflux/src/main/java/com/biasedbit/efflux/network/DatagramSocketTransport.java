@@ -0,0 +1,283 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.network;
+
+import com.biasedbit.efflux.logging.Logger;
+import com.biasedbit.efflux.packet.CompoundControlPacket;
+import com.biasedbit.efflux.packet.ControlPacket;
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.packet.DataPacketPool;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link RtpTransport} on plain blocking {@link DatagramSocket}s: a thread per socket waits for datagrams, reads them
+ * into an array it reuses and hands the decoded packets to the receivers.
+ * <p/>
+ * Like the {@link NioDatagramEngine}, payloads are always copied out of the read buffers, and datagrams that fill a
+ * whole read buffer are discarded as truncated.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class DatagramSocketTransport implements RtpTransport {
+
+    // constants ------------------------------------------------------------------------------------------------------
+
+    private static final Logger LOG = Logger.getLogger(DatagramSocketTransport.class);
+
+    // configuration --------------------------------------------------------------------------------------------------
+
+    private final String name;
+    private final DataPacketReceiver dataReceiver;
+    private final ControlPacketReceiver controlReceiver;
+    private final DataPacketPool dataPacketPool;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int readBufferSize;
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    private DatagramSocket dataSocket;
+    private DatagramSocket controlSocket;
+    private volatile boolean running;
+    private final AtomicLong receivedDatagramCounter;
+    private final AtomicLong discardedDatagramCounter;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    /**
+     * @param name              Prefix for the names of the receiving threads.
+     * @param dataReceiver      Receiver of the decoded data packets, which it must release.
+     * @param controlReceiver   Receiver of the decoded control packets.
+     * @param dataPacketPool    Pool to take decoded data packets from, or {@code null} to create a new packet every
+     *                          time.
+     * @param sendBufferSize    Kernel send buffer size (SO_SNDBUF) for both sockets.
+     * @param receiveBufferSize Kernel receive buffer size (SO_RCVBUF) for both sockets.
+     * @param readBufferSize    Size of the buffer each datagram is read into.
+     */
+    public DatagramSocketTransport(String name, DataPacketReceiver dataReceiver, ControlPacketReceiver controlReceiver,
+                                   DataPacketPool dataPacketPool, int sendBufferSize, int receiveBufferSize,
+                                   int readBufferSize) {
+        if (readBufferSize <= 0) {
+            throw new IllegalArgumentException("Read buffer size must be > 0");
+        }
+
+        this.name = name;
+        this.dataReceiver = dataReceiver;
+        this.controlReceiver = controlReceiver;
+        this.dataPacketPool = dataPacketPool;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.readBufferSize = readBufferSize;
+        this.receivedDatagramCounter = new AtomicLong();
+        this.discardedDatagramCounter = new AtomicLong();
+    }
+
+    // RtpTransport ---------------------------------------------------------------------------------------------------
+
+    @Override
+    public synchronized void bind(SocketAddress dataAddress, SocketAddress controlAddress) throws IOException {
+        if (this.running) {
+            throw new IllegalStateException("Already bound");
+        }
+
+        this.dataSocket = this.openSocket(dataAddress);
+        try {
+            this.controlSocket = this.openSocket(controlAddress);
+        } catch (IOException e) {
+            this.dataSocket.close();
+            throw e;
+        }
+
+        this.running = true;
+        this.startThread(this.name + "-data", new Runnable() {
+            @Override
+            public void run() {
+                receiveData();
+            }
+        });
+        this.startThread(this.name + "-control", new Runnable() {
+            @Override
+            public void run() {
+                receiveControl();
+            }
+        });
+    }
+
+    @Override
+    public void sendData(DataPacket packet, SocketAddress destination) {
+        this.send(this.dataSocket, packet.encode(), destination);
+    }
+
+    @Override
+    public void sendControl(ControlPacket packet, SocketAddress destination) {
+        this.send(this.controlSocket, packet.encode(), destination);
+    }
+
+    @Override
+    public void sendControl(CompoundControlPacket packet, SocketAddress destination) {
+        this.send(this.controlSocket, packet.encode(), destination);
+    }
+
+    @Override
+    public SocketAddress getDataLocalAddress() {
+        return this.dataSocket.getLocalSocketAddress();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!this.running) {
+            return;
+        }
+
+        // Closing the sockets wakes up the receiving threads.
+        this.running = false;
+        this.dataSocket.close();
+        this.controlSocket.close();
+    }
+
+    // private helpers ------------------------------------------------------------------------------------------------
+
+    private DatagramSocket openSocket(SocketAddress address) throws IOException {
+        DatagramSocket socket = new DatagramSocket(null);
+        try {
+            socket.setReceiveBufferSize(this.receiveBufferSize);
+            socket.setSendBufferSize(this.sendBufferSize);
+            socket.bind(address);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    private void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void receiveData() {
+        byte[] array = new byte[this.readBufferSize];
+        DatagramPacket datagram = new DatagramPacket(array, array.length);
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        while (this.running) {
+            if (!this.receive(this.dataSocket, datagram)) {
+                continue;
+            }
+
+            DataPacket packet;
+            try {
+                buffer.limit(datagram.getLength()).position(0);
+                if (this.dataPacketPool != null) {
+                    packet = this.dataPacketPool.decode(buffer);
+                } else {
+                    packet = DataPacket.decode(buffer);
+                }
+            } catch (Exception e) {
+                LOG.debug("Failed to decode RTP packet.", e);
+                continue;
+            }
+
+            try {
+                this.dataReceiver.dataPacketReceived(datagram.getSocketAddress(), packet);
+            } catch (Exception e) {
+                LOG.error("Caught exception while handling RTP packet.", e);
+            }
+        }
+    }
+
+    private void receiveControl() {
+        byte[] array = new byte[this.readBufferSize];
+        DatagramPacket datagram = new DatagramPacket(array, array.length);
+        while (this.running) {
+            if (!this.receive(this.controlSocket, datagram)) {
+                continue;
+            }
+
+            // Control packets are few and may keep parts of the buffer they're decoded from, so they get a copy.
+            CompoundControlPacket packet =
+                    ControlPacketDecoder.decode(ChannelBuffers.copiedBuffer(array, 0, datagram.getLength()));
+            if (packet != null) {
+                try {
+                    this.controlReceiver.controlPacketReceived(datagram.getSocketAddress(), packet);
+                } catch (Exception e) {
+                    LOG.error("Caught exception while handling RTCP packet.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a datagram, telling whether it can be decoded.
+     */
+    private boolean receive(DatagramSocket socket, DatagramPacket datagram) {
+        // The length is shrunk to the size of every datagram received.
+        datagram.setLength(this.readBufferSize);
+        try {
+            socket.receive(datagram);
+        } catch (IOException e) {
+            if (this.running) {
+                LOG.error("Caught exception on socket {}.", e, socket.getLocalSocketAddress());
+            }
+            return false;
+        }
+
+        this.receivedDatagramCounter.incrementAndGet();
+        if (datagram.getLength() == this.readBufferSize) {
+            // The datagram filled the buffer and the kernel dropped whatever didn't fit.
+            this.discardedDatagramCounter.incrementAndGet();
+            LOG.debug("Discarding datagram of {} bytes or more, larger than the read buffer.", this.readBufferSize);
+            return false;
+        }
+        return true;
+    }
+
+    private void send(DatagramSocket socket, ChannelBuffer buffer, SocketAddress destination) {
+        try {
+            byte[] bytes = new byte[buffer.readableBytes()];
+            buffer.readBytes(bytes);
+            socket.send(new DatagramPacket(bytes, bytes.length, destination));
+        } catch (IOException e) {
+            LOG.error("Failed to send packet to {}.", e, destination);
+        }
+    }
+
+    // getters & setters ----------------------------------------------------------------------------------------------
+
+    public int getReadBufferSize() {
+        return this.readBufferSize;
+    }
+
+    public long getReceivedDatagrams() {
+        return this.receivedDatagramCounter.get();
+    }
+
+    /**
+     * @return Datagrams that were discarded because they didn't fit in the read buffer.
+     */
+    public long getDiscardedDatagrams() {
+        return this.discardedDatagramCounter.get();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.network;
+
+import com.biasedbit.efflux.packet.CompoundControlPacket;
+import com.biasedbit.efflux.packet.ControlPacket;
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.packet.DataPacketPool;
+import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
+import org.jboss.netty.channel.socket.DatagramChannel;
+import org.jboss.netty.channel.socket.DatagramChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
+import org.jboss.netty.channel.socket.oio.OioDatagramChannelFactory;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link RtpTransport} on Netty's datagram channels, either blocking (OIO, a thread per channel) or non blocking (NIO).
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class NettyTransport implements RtpTransport {
+
+    // configuration --------------------------------------------------------------------------------------------------
+
+    private final boolean oio;
+    private final DataPacketReceiver dataReceiver;
+    private final ControlPacketReceiver controlReceiver;
+    private final DataPacketPool dataPacketPool;
+    private final boolean copyPayload;
+    private final OrderedMemoryAwareThreadPoolExecutor executor;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int readBufferSize;
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    private ConnectionlessBootstrap dataBootstrap;
+    private ConnectionlessBootstrap controlBootstrap;
+    private DatagramChannel dataChannel;
+    private DatagramChannel controlChannel;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    /**
+     * @param oio               Whether to use blocking (OIO) channels instead of non blocking (NIO) ones.
+     * @param dataReceiver      Receiver of the decoded data packets.
+     * @param controlReceiver   Receiver of the decoded control packets.
+     * @param dataPacketPool    Pool to take decoded data packets from, or {@code null} to create a new packet every
+     *                          time.
+     * @param copyPayload       Whether decoded packets get their own copy of the payload or a slice of the received
+     *                          buffer. See {@link DataPacket#decode(org.jboss.netty.buffer.ChannelBuffer, boolean)}.
+     * @param executor          Executor to hand received packets to, or {@code null} to handle them on Netty's threads.
+     * @param sendBufferSize    Kernel send buffer size (SO_SNDBUF).
+     * @param receiveBufferSize Kernel receive buffer size (SO_RCVBUF).
+     * @param readBufferSize    Size of the buffer each datagram is read into.
+     */
+    public NettyTransport(boolean oio, DataPacketReceiver dataReceiver, ControlPacketReceiver controlReceiver,
+                          DataPacketPool dataPacketPool, boolean copyPayload,
+                          OrderedMemoryAwareThreadPoolExecutor executor, int sendBufferSize, int receiveBufferSize,
+                          int readBufferSize) {
+        this.oio = oio;
+        this.dataReceiver = dataReceiver;
+        this.controlReceiver = controlReceiver;
+        this.dataPacketPool = dataPacketPool;
+        this.copyPayload = copyPayload;
+        this.executor = executor;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.readBufferSize = readBufferSize;
+    }
+
+    // RtpTransport ---------------------------------------------------------------------------------------------------
+
+    @Override
+    public void bind(SocketAddress dataAddress, SocketAddress controlAddress) throws IOException {
+        DatagramChannelFactory factory;
+        if (this.oio) {
+            factory = new OioDatagramChannelFactory(Executors.newCachedThreadPool());
+        } else {
+            factory = new NioDatagramChannelFactory(Executors.newCachedThreadPool());
+        }
+
+        this.dataBootstrap = new ConnectionlessBootstrap(factory);
+        this.dataBootstrap.setOption("sendBufferSize", this.sendBufferSize);
+        this.dataBootstrap.setOption("receiveBufferSize", this.receiveBufferSize);
+        this.dataBootstrap.setOption("receiveBufferSizePredictorFactory",
+                new FixedReceiveBufferSizePredictorFactory(this.readBufferSize));
+        this.dataBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("decoder", new DataPacketDecoder(copyPayload, dataPacketPool));
+                pipeline.addLast("encoder", DataPacketEncoder.getInstance());
+                if (executor != null) {
+                    pipeline.addLast("executorHandler", new ExecutionHandler(executor));
+                }
+                pipeline.addLast("handler", new DataHandler(dataReceiver));
+                return pipeline;
+            }
+        });
+        this.controlBootstrap = new ConnectionlessBootstrap(factory);
+        this.controlBootstrap.setOption("sendBufferSize", this.sendBufferSize);
+        this.controlBootstrap.setOption("receiveBufferSize", this.receiveBufferSize);
+        this.controlBootstrap.setOption("receiveBufferSizePredictorFactory",
+                new FixedReceiveBufferSizePredictorFactory(this.readBufferSize));
+        this.controlBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("decoder", new ControlPacketDecoder());
+                pipeline.addLast("encoder", ControlPacketEncoder.getInstance());
+                if (executor != null) {
+                    pipeline.addLast("executorHandler", new ExecutionHandler(executor));
+                }
+                pipeline.addLast("handler", new ControlHandler(controlReceiver));
+                return pipeline;
+            }
+        });
+
+        try {
+            this.dataChannel = (DatagramChannel) this.dataBootstrap.bind(dataAddress);
+        } catch (Exception e) {
+            this.dataBootstrap.releaseExternalResources();
+            this.controlBootstrap.releaseExternalResources();
+            throw new IOException("Failed to bind data channel to " + dataAddress, e);
+        }
+        try {
+            this.controlChannel = (DatagramChannel) this.controlBootstrap.bind(controlAddress);
+        } catch (Exception e) {
+            this.dataChannel.close();
+            this.dataBootstrap.releaseExternalResources();
+            this.controlBootstrap.releaseExternalResources();
+            throw new IOException("Failed to bind control channel to " + controlAddress, e);
+        }
+    }
+
+    @Override
+    public void sendData(DataPacket packet, SocketAddress destination) {
+        this.dataChannel.write(packet, destination);
+    }
+
+    @Override
+    public void sendControl(ControlPacket packet, SocketAddress destination) {
+        this.controlChannel.write(packet, destination);
+    }
+
+    @Override
+    public void sendControl(CompoundControlPacket packet, SocketAddress destination) {
+        this.controlChannel.write(packet, destination);
+    }
+
+    @Override
+    public SocketAddress getDataLocalAddress() {
+        return this.dataChannel.getLocalAddress();
+    }
+
+    @Override
+    public void close() {
+        this.dataChannel.close();
+        this.controlChannel.close();
+
+        this.dataBootstrap.releaseExternalResources();
+        this.controlBootstrap.releaseExternalResources();
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.network;
+
+import com.biasedbit.efflux.logging.Logger;
+import com.biasedbit.efflux.packet.CompoundControlPacket;
+import com.biasedbit.efflux.packet.ControlPacket;
+import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.packet.DataPacketPool;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link RtpTransport} built directly on {@link DatagramChannel}, as an alternative to Netty's channel factories.
+ * <p/>
+ * A single thread waits on both channels with a {@link Selector}, reads each datagram into a direct buffer allocated
+ * once per channel and decodes RTP packets from it in place (see {@link DataPacket#decode(java.nio.ByteBuffer)}),
+ * handing them to the receivers on the same thread. There's no intermediate {@link ChannelBuffer}, no pipeline and no
+ * thread hand-off per packet.
+ * <p/>
+ * Since decoded packets never point into the read buffers, payloads are always copied out of them: pooled packets
+ * copy into the buffers they keep between uses, other packets into a new array.
+ * <p/>
+ * Datagrams that fill a whole read buffer may have been truncated by the kernel and are discarded, so the read buffer
+ * must be larger than the largest datagram expected.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class NioDatagramEngine implements RtpTransport {
+
+    // constants ------------------------------------------------------------------------------------------------------
+
+    private static final Logger LOG = Logger.getLogger(NioDatagramEngine.class);
+    // Datagrams read from a channel before checking the other one.
+    private static final int MAX_READS_PER_WAKEUP = 64;
+
+    // configuration --------------------------------------------------------------------------------------------------
+
+    private final String name;
+    private final DataPacketReceiver dataReceiver;
+    private final ControlPacketReceiver controlReceiver;
+    private final DataPacketPool dataPacketPool;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int readBufferSize;
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    private Selector selector;
+    private DatagramChannel dataChannel;
+    private DatagramChannel controlChannel;
+    private ByteBuffer dataReadBuffer;
+    private ByteBuffer controlReadBuffer;
+    private Thread thread;
+    private volatile boolean running;
+    private final AtomicLong receivedDatagramCounter;
+    private final AtomicLong discardedDatagramCounter;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    /**
+     * @param name              Name of the receiving thread.
+     * @param dataReceiver      Receiver of the decoded data packets, which it must release.
+     * @param controlReceiver   Receiver of the decoded control packets.
+     * @param dataPacketPool    Pool to take decoded data packets from, or {@code null} to create a new packet every
+     *                          time.
+     * @param sendBufferSize    Kernel send buffer size (SO_SNDBUF) for both channels.
+     * @param receiveBufferSize Kernel receive buffer size (SO_RCVBUF) for both channels.
+     * @param readBufferSize    Size of the buffer each datagram is read into.
+     */
+    public NioDatagramEngine(String name, DataPacketReceiver dataReceiver, ControlPacketReceiver controlReceiver,
+                             DataPacketPool dataPacketPool, int sendBufferSize, int receiveBufferSize,
+                             int readBufferSize) {
+        if (readBufferSize <= 0) {
+            throw new IllegalArgumentException("Read buffer size must be > 0");
+        }
+
+        this.name = name;
+        this.dataReceiver = dataReceiver;
+        this.controlReceiver = controlReceiver;
+        this.dataPacketPool = dataPacketPool;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.readBufferSize = readBufferSize;
+        this.receivedDatagramCounter = new AtomicLong();
+        this.discardedDatagramCounter = new AtomicLong();
+    }
+
+    // RtpTransport ---------------------------------------------------------------------------------------------------
+
+    @Override
+    public synchronized void bind(SocketAddress dataAddress, SocketAddress controlAddress) throws IOException {
+        if (this.running) {
+            throw new IllegalStateException("Already bound");
+        }
+
+        try {
+            this.selector = Selector.open();
+            this.dataChannel = this.openChannel(dataAddress);
+            this.controlChannel = this.openChannel(controlAddress);
+        } catch (IOException e) {
+            this.closeChannels();
+            throw e;
+        }
+
+        this.dataReadBuffer = ByteBuffer.allocateDirect(this.readBufferSize);
+        this.controlReadBuffer = ByteBuffer.allocateDirect(this.readBufferSize);
+
+        this.running = true;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        }, this.name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void sendData(DataPacket packet, SocketAddress destination) {
+        this.send(this.dataChannel, packet.encode(), destination);
+    }
+
+    @Override
+    public void sendControl(ControlPacket packet, SocketAddress destination) {
+        this.send(this.controlChannel, packet.encode(), destination);
+    }
+
+    @Override
+    public void sendControl(CompoundControlPacket packet, SocketAddress destination) {
+        this.send(this.controlChannel, packet.encode(), destination);
+    }
+
+    @Override
+    public SocketAddress getDataLocalAddress() {
+        return this.dataChannel.socket().getLocalSocketAddress();
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (!this.running) {
+                return;
+            }
+            this.running = false;
+            thread = this.thread;
+            this.selector.wakeup();
+        }
+
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.closeChannels();
+    }
+
+    // private helpers ------------------------------------------------------------------------------------------------
+
+    private DatagramChannel openChannel(SocketAddress address) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().setReceiveBufferSize(this.receiveBufferSize);
+            channel.socket().setSendBufferSize(this.sendBufferSize);
+            channel.socket().bind(address);
+            channel.configureBlocking(false);
+            channel.register(this.selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private void closeChannels() {
+        for (Closeable closeable : new Closeable[]{this.dataChannel, this.controlChannel, this.selector}) {
+            if (closeable == null) {
+                continue;
+            }
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LOG.debug("Failed to close {}.", e, closeable);
+            }
+        }
+    }
+
+    private void receiveLoop() {
+        while (this.running) {
+            try {
+                this.selector.select();
+                Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.channel() == this.dataChannel) {
+                        this.readData();
+                    } else {
+                        this.readControl();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (Exception e) {
+                if (this.running) {
+                    LOG.error("Caught exception on receive loop {}.", e, this.name);
+                }
+            }
+        }
+    }
+
+    private void readData() throws IOException {
+        ByteBuffer buffer = this.dataReadBuffer;
+        for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+            buffer.clear();
+            SocketAddress origin = this.dataChannel.receive(buffer);
+            if (origin == null) {
+                return;
+            }
+            if (!this.accept(buffer)) {
+                continue;
+            }
+
+            DataPacket packet;
+            try {
+                if (this.dataPacketPool != null) {
+                    packet = this.dataPacketPool.decode(buffer);
+                } else {
+                    packet = DataPacket.decode(buffer);
+                }
+            } catch (Exception e) {
+                LOG.debug("Failed to decode RTP packet.", e);
+                continue;
+            }
+
+            try {
+                this.dataReceiver.dataPacketReceived(origin, packet);
+            } catch (Exception e) {
+                LOG.error("Caught exception while handling RTP packet.", e);
+            }
+        }
+    }
+
+    private void readControl() throws IOException {
+        ByteBuffer buffer = this.controlReadBuffer;
+        for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+            buffer.clear();
+            SocketAddress origin = this.controlChannel.receive(buffer);
+            if (origin == null) {
+                return;
+            }
+            if (!this.accept(buffer)) {
+                continue;
+            }
+
+            // Control packets are few and may keep parts of the buffer they're decoded from, so they get a copy.
+            CompoundControlPacket packet = ControlPacketDecoder.decode(ChannelBuffers.copiedBuffer(buffer));
+            if (packet != null) {
+                try {
+                    this.controlReceiver.controlPacketReceived(origin, packet);
+                } catch (Exception e) {
+                    LOG.error("Caught exception while handling RTCP packet.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flips a buffer a datagram was just read into, telling whether the datagram can be decoded.
+     */
+    private boolean accept(ByteBuffer buffer) {
+        this.receivedDatagramCounter.incrementAndGet();
+        if (!buffer.hasRemaining()) {
+            // The datagram filled the buffer and the kernel dropped whatever didn't fit.
+            this.discardedDatagramCounter.incrementAndGet();
+            LOG.debug("Discarding datagram of {} bytes or more, larger than the read buffer.", buffer.capacity());
+            return false;
+        }
+
+        buffer.flip();
+        return true;
+    }
+
+    private void send(DatagramChannel channel, ChannelBuffer buffer, SocketAddress destination) {
+        try {
+            // Datagram channels are non blocking: like UDP itself, drop the packet if the socket buffer is full.
+            if (channel.send(buffer.toByteBuffer(), destination) == 0) {
+                LOG.debug("Socket buffer full, dropped packet to {}.", destination);
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to send packet to {}.", e, destination);
+        }
+    }
+
+    // getters & setters ----------------------------------------------------------------------------------------------
+
+    public SocketAddress getControlLocalAddress() {
+        return this.controlChannel.socket().getLocalSocketAddress();
+    }
+
+    public int getReadBufferSize() {
+        return this.readBufferSize;
+    }
+
+    public long getReceivedDatagrams() {
+        return this.receivedDatagramCounter.get();
+    }
+
+    /**
+     * @return Datagrams that were discarded because they didn't fit in the read buffer.
+     */
+    public long getDiscardedDatagrams() {
+        return this.discardedDatagramCounter.get();
+    }
+}
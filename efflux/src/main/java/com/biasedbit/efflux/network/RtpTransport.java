@@ -0,0 +1,59 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.network;
+
+import com.biasedbit.efflux.packet.CompoundControlPacket;
+import com.biasedbit.efflux.packet.ControlPacket;
+import com.biasedbit.efflux.packet.DataPacket;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * Moves packets between a session and the network: binds the data and control addresses, hands the packets received
+ * on them to the receivers the transport was created for and sends packets on behalf of the session.
+ * <p/>
+ * Data packets handed to the {@link DataPacketReceiver} hold a reference that the receiver must release (see
+ * {@link DataPacket#release()}).
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public interface RtpTransport {
+
+    /**
+     * Binds both addresses and starts receiving.
+     *
+     * @param dataAddress    Local address for data packets.
+     * @param controlAddress Local address for control packets.
+     *
+     * @throws IOException If either address could not be bound, in which case nothing is left open.
+     */
+    void bind(SocketAddress dataAddress, SocketAddress controlAddress) throws IOException;
+
+    void sendData(DataPacket packet, SocketAddress destination);
+
+    void sendControl(ControlPacket packet, SocketAddress destination);
+
+    void sendControl(CompoundControlPacket packet, SocketAddress destination);
+
+    SocketAddress getDataLocalAddress();
+
+    /**
+     * Stops receiving and releases every resource. Nothing can be sent after this.
+     */
+    void close();
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.network;
+
+/**
+ * Creates the {@link RtpTransport} of a session, to plug in transports other than the built-in ones.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public interface RtpTransportFactory {
+
+    /**
+     * @param name            Name of the session, for the transport's threads.
+     * @param dataReceiver    Receiver of the data packets.
+     * @param controlReceiver Receiver of the control packets.
+     *
+     * @return A transport, not bound yet.
+     */
+    RtpTransport createTransport(String name, DataPacketReceiver dataReceiver, ControlPacketReceiver controlReceiver);
+}
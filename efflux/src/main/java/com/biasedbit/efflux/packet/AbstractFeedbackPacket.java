@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.packet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Base for the RTCP feedback messages defined in RFC 4585 (section 6.1): a common header with the feedback message
+ * type (FMT) in place of the reception report count, the SSRC of the packet sender and the SSRC of the media source the
+ * feedback is about, followed by feedback control information (FCI) specific to each message.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public abstract class AbstractFeedbackPacket extends ControlPacket {
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    protected final byte feedbackMessageType;
+    protected long senderSsrc;
+    protected long mediaSsrc;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    protected AbstractFeedbackPacket(Type type, byte feedbackMessageType) {
+        super(type);
+        this.feedbackMessageType = feedbackMessageType;
+    }
+
+    // public static methods ------------------------------------------------------------------------------------------
+
+    public static AbstractFeedbackPacket decode(ChannelBuffer buffer, Type type, boolean hasPadding,
+                                                byte feedbackMessageType, int length) {
+        // Length is written in 32bit words, not octet count.
+        int lengthInOctets = (length * 4);
+        int padding = 0;
+        if (hasPadding) {
+            // Last byte holds the amount of padding bytes.
+            padding = buffer.getUnsignedByte(buffer.readerIndex() + lengthInOctets - 1);
+        }
+
+        long senderSsrc = buffer.readUnsignedInt();
+        long mediaSsrc = buffer.readUnsignedInt();
+        int fciLength = lengthInOctets - 8 - padding;
+
+        AbstractFeedbackPacket packet = null;
+        if ((type == Type.TRANSPORT_FEEDBACK) && (feedbackMessageType == GenericNackPacket.FMT)) {
+            packet = GenericNackPacket.decodeFci(buffer, fciLength);
+        } else if ((type == Type.PAYLOAD_FEEDBACK) && (feedbackMessageType == PictureLossIndicationPacket.FMT)) {
+            packet = new PictureLossIndicationPacket();
+        } else if ((type == Type.PAYLOAD_FEEDBACK) && (feedbackMessageType == FullIntraRequestPacket.FMT)) {
+            packet = FullIntraRequestPacket.decodeFci(buffer, fciLength);
+        }
+
+        if (packet == null) {
+            // Unsupported feedback message, skip it.
+            buffer.skipBytes(fciLength + padding);
+            return null;
+        }
+
+        packet.senderSsrc = senderSsrc;
+        packet.mediaSsrc = mediaSsrc;
+        buffer.skipBytes(padding);
+        return packet;
+    }
+
+    public static ChannelBuffer encode(int currentCompoundLength, int fixedBlockSize, AbstractFeedbackPacket packet) {
+        if ((currentCompoundLength < 0) || ((currentCompoundLength % 4) > 0)) {
+            throw new IllegalArgumentException("Current compound length must be a non-negative multiple of 4");
+        }
+        if ((fixedBlockSize < 0) || ((fixedBlockSize % 4) > 0)) {
+            throw new IllegalArgumentException("Padding modulus must be a non-negative multiple of 4");
+        }
+
+        // Common header, sender SSRC and media source SSRC.
+        int size = 4 + 4 + 4 + packet.getFciLength();
+
+        // If packet was configured to have padding, calculate padding and add it.
+        int padding = 0;
+        if (fixedBlockSize > 0) {
+            // RFC section 6.4.1
+            padding = fixedBlockSize - ((size + currentCompoundLength) % fixedBlockSize);
+            if (padding == fixedBlockSize) {
+                padding = 0;
+            }
+        }
+        size += padding;
+
+        ChannelBuffer buffer = ChannelBuffers.buffer(size);
+        // First byte: Version (2b), Padding (1b), Feedback message type (5b)
+        byte b = packet.getVersion().getByte();
+        if (padding > 0) {
+            b |= 0x20;
+        }
+        b |= packet.feedbackMessageType;
+        buffer.writeByte(b);
+        // Second byte: Packet Type
+        buffer.writeByte(packet.type.getByte());
+        // Third byte: total length of the packet, in multiples of 4 bytes (32bit words) - 1
+        buffer.writeShort((size / 4) - 1);
+        buffer.writeInt((int) packet.senderSsrc);
+        buffer.writeInt((int) packet.mediaSsrc);
+        packet.writeFci(buffer);
+
+        if (padding > 0) {
+            // Final bytes: padding
+            for (int i = 0; i < (padding - 1); i++) {
+                buffer.writeByte(0x00);
+            }
+
+            // Final byte: the amount of padding bytes that should be discarded.
+            buffer.writeByte(padding);
+        }
+
+        return buffer;
+    }
+
+    // ControlPacket --------------------------------------------------------------------------------------------------
+
+    @Override
+    public ChannelBuffer encode(int currentCompoundLength, int fixedBlockSize) {
+        return encode(currentCompoundLength, fixedBlockSize, this);
+    }
+
+    @Override
+    public ChannelBuffer encode() {
+        return encode(0, 0, this);
+    }
+
+    // protected methods ----------------------------------------------------------------------------------------------
+
+    /**
+     * @return Length of the feedback control information, in bytes. Must be a multiple of 4.
+     */
+    protected abstract int getFciLength();
+
+    /**
+     * Writes the feedback control information.
+     *
+     * @param buffer Buffer to write to, right after the media source SSRC.
+     */
+    protected abstract void writeFci(ChannelBuffer buffer);
+
+    // getters & setters ----------------------------------------------------------------------------------------------
+
+    public byte getFeedbackMessageType() {
+        return feedbackMessageType;
+    }
+
+    public long getSenderSsrc() {
+        return senderSsrc;
+    }
+
+    public void setSenderSsrc(long senderSsrc) {
+        if ((senderSsrc < 0) || (senderSsrc > 0xffffffffL)) {
+            throw new IllegalArgumentException("Valid range for SSRC is [0;0xffffffff]");
+        }
+        this.senderSsrc = senderSsrc;
+    }
+
+    public long getMediaSsrc() {
+        return mediaSsrc;
+    }
+
+    public void setMediaSsrc(long mediaSsrc) {
+        if ((mediaSsrc < 0) || (mediaSsrc > 0xffffffffL)) {
+            throw new IllegalArgumentException("Valid range for SSRC is [0;0xffffffff]");
+        }
+        this.mediaSsrc = mediaSsrc;
+    }
+}
@@ -16,6 +16,9 @@
 
 package com.biasedbit.efflux.packet;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
 import java.util.Arrays;
 import java.util.List;
 
@@ -46,6 +49,14 @@ public class CompoundControlPacket {
 
     // public methods -------------------------------------------------------------------------------------------------
 
+    public ChannelBuffer encode() {
+        ChannelBuffer[] buffers = new ChannelBuffer[this.controlPackets.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = this.controlPackets.get(i).encode();
+        }
+        return ChannelBuffers.wrappedBuffer(buffers);
+    }
+
     public int getPacketCount() {
         return this.controlPackets.size();
     }
@@ -72,6 +72,9 @@ public abstract class ControlPacket {
                 return ByePacket.decode(buffer, hasPadding, innerBlocks, length);
             case APP_DATA:
                 return null;
+            case TRANSPORT_FEEDBACK:
+            case PAYLOAD_FEEDBACK:
+                return AbstractFeedbackPacket.decode(buffer, type, hasPadding, innerBlocks, length);
             default:
                 throw new IllegalArgumentException("Unknown RTCP packet type: " + type);
         }
@@ -108,7 +111,9 @@ public abstract class ControlPacket {
         RECEIVER_REPORT((byte) 0xc9),
         SOURCE_DESCRIPTION((byte) 0xca),
         BYE((byte) 0xcb),
-        APP_DATA((byte) 0xcc);
+        APP_DATA((byte) 0xcc),
+        TRANSPORT_FEEDBACK((byte) 0xcd),
+        PAYLOAD_FEEDBACK((byte) 0xce);
 
         // internal vars ----------------------------------------------------------------------------------------------
 
@@ -134,6 +139,10 @@ public abstract class ControlPacket {
                     return BYE;
                 case (byte) 0xcc:
                     return APP_DATA;
+                case (byte) 0xcd:
+                    return TRANSPORT_FEEDBACK;
+                case (byte) 0xce:
+                    return PAYLOAD_FEEDBACK;
                 default:
                     throw new IllegalArgumentException("Unknown RTCP packet type: " + b);
             }
@@ -19,8 +19,10 @@ package com.biasedbit.efflux.packet;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  *  0                   1                   2                   3
@@ -48,26 +50,50 @@ import java.util.List;
  */
 public class DataPacket {
 
+    // constants ------------------------------------------------------------------------------------------------------
+
+    private static final AtomicIntegerFieldUpdater<DataPacket> REFERENCE_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(DataPacket.class, "referenceCount");
+
     // internal vars --------------------------------------------------------------------------------------------------
 
     private RtpVersion version;
     private boolean marker;
     private int payloadType;
     private int sequenceNumber;
+    // Sequence number extended with its wrap around count by the receiving session; the plain sequence number
+    // until then.
+    private long extendedSequenceNumber;
     private long timestamp;
     private long ssrc;
 
     private short extensionHeaderData;
     private byte[] extensionData;
+    // Undecoded slices, only set when decoding without copying; turned into the fields above on first access.
+    private ChannelBuffer extensionDataBuffer;
 
     private List<Long> contributingSourceIds;
+    private ChannelBuffer contributingSourceIdsBuffer;
 
     private ChannelBuffer data;
 
+    // Only used by pooled packets: the pool they go back to, how many holders they have and the buffers they copy
+    // their contents into, which are kept across uses.
+    private final DataPacketPool pool;
+    private volatile int referenceCount;
+    private ChannelBuffer ownedExtensionData;
+    private ChannelBuffer ownedContributingSourceIds;
+    private ChannelBuffer ownedData;
+
     // constructors ---------------------------------------------------------------------------------------------------
 
     public DataPacket() {
+        this(null);
+    }
+
+    DataPacket(DataPacketPool pool) {
         this.version = RtpVersion.V2;
+        this.pool = pool;
     }
 
     // public static methods ------------------------------------------------------------------------------------------
@@ -77,59 +103,38 @@ public class DataPacket {
     }
 
     public static DataPacket decode(ChannelBuffer buffer) throws IndexOutOfBoundsException {
-        if (buffer.readableBytes() < 12) {
-            throw new IllegalArgumentException("A RTP packet must be at least 12 octets long");
-        }
-
-        // Version, Padding, eXtension, CSRC Count
-        DataPacket packet = new DataPacket();
-        byte b = buffer.readByte();
-        packet.version = RtpVersion.fromByte(b);
-        boolean padding = (b & 0x20) > 0; // mask 0010 0000
-        boolean extension = (b & 0x10) > 0; // mask 0001 0000
-        int contributingSourcesCount = b & 0x0f; // mask 0000 1111
-
-        // Marker, Payload Type
-        b = buffer.readByte();
-        packet.marker = (b & 0x80) > 0; // mask 0000 0001
-        packet.payloadType = (b & 0x7f); // mask 0111 1111
-
-        packet.sequenceNumber = buffer.readUnsignedShort();
-        packet.timestamp = buffer.readUnsignedInt();
-        packet.ssrc = buffer.readUnsignedInt();
-
-        // Read extension headers & data
-        if (extension) {
-            packet.extensionHeaderData = buffer.readShort();
-            packet.extensionData = new byte[buffer.readUnsignedShort() * 4];
-            buffer.readBytes(packet.extensionData);
-        }
-
-        // Read CCRC's
-        if (contributingSourcesCount > 0) {
-            packet.contributingSourceIds = new ArrayList<Long>(contributingSourcesCount);
-            for (int i = 0; i < contributingSourcesCount; i++) {
-                long contributingSource = buffer.readUnsignedInt();
-                packet.contributingSourceIds.add(contributingSource);
-            }
-        }
-
-        if (!padding) {
-            // No padding used, assume remaining data is the packet
-            byte[] remainingBytes = new byte[buffer.readableBytes()];
-            buffer.readBytes(remainingBytes);
-            packet.setData(remainingBytes);
-        } else {
-            // Padding bit was set, so last byte contains the number of padding octets that should be discarded.
-            short lastByte = buffer.getUnsignedByte(buffer.readerIndex() + buffer.readableBytes() - 1);
-            byte[] dataBytes = new byte[buffer.readableBytes() - lastByte];
-            buffer.readBytes(dataBytes);
-            packet.setData(dataBytes);
-            // Discard rest of buffer.
-            buffer.skipBytes(buffer.readableBytes());
-        }
-
-        return packet;
+        return decode(buffer, true);
+    }
+
+    /**
+     * Decodes a RTP packet from the given buffer.
+     * <p/>
+     * When {@code copy} is {@code false} the payload, extension data and CSRC list are kept as slices of the
+     * received buffer and only converted to arrays/lists when someone asks for them through the getters. This avoids
+     * an allocation and a copy per packet on the receive path, but the decoded packet keeps a reference to the whole
+     * received buffer for as long as it is alive, so it should only be used when the buffer isn't reused by the
+     * transport and packets don't stay buffered for too long.
+     *
+     * @param buffer Buffer to decode from.
+     * @param copy   Whether to copy the payload out of the buffer ({@code true}) or slice it ({@code false}).
+     *
+     * @return The decoded packet.
+     */
+    public static DataPacket decode(ChannelBuffer buffer, boolean copy) throws IndexOutOfBoundsException {
+        return decode(new DataPacket(), buffer, copy);
+    }
+
+    /**
+     * Decodes a RTP packet from the remaining bytes of the given buffer, which is usually a direct buffer the datagram
+     * was read into. The header is parsed in place and the payload, extension data and CSRC list are always copied,
+     * so the buffer can be reused as soon as this method returns.
+     *
+     * @param buffer Buffer to decode from. Its position is moved to its limit.
+     *
+     * @return The decoded packet.
+     */
+    public static DataPacket decode(ByteBuffer buffer) throws IndexOutOfBoundsException {
+        return decode(new DataPacket(), buffer);
     }
 
     public static ChannelBuffer encode(int fixedBlockSize, DataPacket packet) {
@@ -181,20 +186,28 @@ public class DataPacket {
         // Write extension headers & data
         if (packet.hasExtension()) {
             buffer.writeShort(packet.extensionHeaderData);
-            buffer.writeShort(packet.extensionData.length / 4);
-            buffer.writeBytes(packet.extensionData);
+            buffer.writeShort(packet.getExtensionDataSize() / 4);
+            if (packet.extensionData != null) {
+                buffer.writeBytes(packet.extensionData);
+            } else {
+                buffer.writeBytes(packet.extensionDataBuffer, packet.extensionDataBuffer.readerIndex(),
+                                  packet.extensionDataBuffer.readableBytes());
+            }
         }
 
         // Write CCRC's
-        if (packet.getContributingSourcesCount() > 0) {
-            for (Long contributingSourceId : packet.getContributingSourceIds()) {
+        if (packet.contributingSourceIds != null) {
+            for (Long contributingSourceId : packet.contributingSourceIds) {
                 buffer.writeInt(contributingSourceId.intValue());
             }
+        } else if (packet.contributingSourceIdsBuffer != null) {
+            buffer.writeBytes(packet.contributingSourceIdsBuffer, packet.contributingSourceIdsBuffer.readerIndex(),
+                              packet.contributingSourceIdsBuffer.readableBytes());
         }
 
         // Write RTP data
         if (packet.data != null) {
-            buffer.writeBytes(packet.data.array());
+            buffer.writeBytes(packet.data, 0, packet.data.writerIndex());
         }
 
         if (padding > 0) {
@@ -211,6 +224,194 @@ public class DataPacket {
         return buffer;
     }
 
+    // protected static methods ---------------------------------------------------------------------------------------
+
+    static DataPacket decode(DataPacket packet, ChannelBuffer buffer, boolean copy) throws IndexOutOfBoundsException {
+        if (buffer.readableBytes() < 12) {
+            throw new IllegalArgumentException("A RTP packet must be at least 12 octets long");
+        }
+
+        // Pooled packets copy into buffers they keep between uses instead of allocating new arrays.
+        boolean copyToOwned = copy && (packet.pool != null);
+
+        // Version, Padding, eXtension, CSRC Count
+        byte b = buffer.readByte();
+        packet.version = RtpVersion.fromByte(b);
+        boolean padding = (b & 0x20) > 0; // mask 0010 0000
+        boolean extension = (b & 0x10) > 0; // mask 0001 0000
+        int contributingSourcesCount = b & 0x0f; // mask 0000 1111
+
+        // Marker, Payload Type
+        b = buffer.readByte();
+        packet.marker = (b & 0x80) > 0; // mask 0000 0001
+        packet.payloadType = (b & 0x7f); // mask 0111 1111
+
+        packet.sequenceNumber = buffer.readUnsignedShort();
+        packet.extendedSequenceNumber = packet.sequenceNumber;
+        packet.timestamp = buffer.readUnsignedInt();
+        packet.ssrc = buffer.readUnsignedInt();
+
+        // Read extension headers & data
+        if (extension) {
+            packet.extensionHeaderData = buffer.readShort();
+            int extensionLength = buffer.readUnsignedShort() * 4;
+            if (copyToOwned) {
+                packet.ownedExtensionData = copyToOwnedBuffer(packet.ownedExtensionData, buffer, extensionLength);
+                packet.extensionDataBuffer = packet.ownedExtensionData;
+            } else if (copy) {
+                packet.extensionData = new byte[extensionLength];
+                buffer.readBytes(packet.extensionData);
+            } else {
+                packet.extensionDataBuffer = buffer.readSlice(extensionLength);
+            }
+        }
+
+        // Read CCRC's
+        if (contributingSourcesCount > 0) {
+            if (copyToOwned) {
+                packet.ownedContributingSourceIds = copyToOwnedBuffer(packet.ownedContributingSourceIds, buffer,
+                                                                      contributingSourcesCount * 4);
+                packet.contributingSourceIdsBuffer = packet.ownedContributingSourceIds;
+            } else if (copy) {
+                packet.contributingSourceIds = new ArrayList<Long>(contributingSourcesCount);
+                for (int i = 0; i < contributingSourcesCount; i++) {
+                    long contributingSource = buffer.readUnsignedInt();
+                    packet.contributingSourceIds.add(contributingSource);
+                }
+            } else {
+                packet.contributingSourceIdsBuffer = buffer.readSlice(contributingSourcesCount * 4);
+            }
+        }
+
+        int dataLength = buffer.readableBytes();
+        if (padding) {
+            // Padding bit was set, so last byte contains the number of padding octets that should be discarded.
+            dataLength -= buffer.getUnsignedByte(buffer.readerIndex() + buffer.readableBytes() - 1);
+        }
+
+        if (copyToOwned) {
+            packet.ownedData = copyToOwnedBuffer(packet.ownedData, buffer, dataLength);
+            packet.data = packet.ownedData;
+        } else if (copy) {
+            byte[] dataBytes = new byte[dataLength];
+            buffer.readBytes(dataBytes);
+            packet.setData(dataBytes);
+        } else {
+            packet.setData(buffer.readSlice(dataLength));
+        }
+        // Discard rest of buffer (padding, if any).
+        buffer.skipBytes(buffer.readableBytes());
+
+        return packet;
+    }
+
+    static DataPacket decode(DataPacket packet, ByteBuffer buffer) throws IndexOutOfBoundsException {
+        if (buffer.remaining() < 12) {
+            throw new IllegalArgumentException("A RTP packet must be at least 12 octets long");
+        }
+
+        // Pooled packets copy into buffers they keep between uses instead of allocating new arrays.
+        boolean copyToOwned = packet.pool != null;
+
+        // Version, Padding, eXtension, CSRC Count
+        byte b = buffer.get();
+        packet.version = RtpVersion.fromByte(b);
+        boolean padding = (b & 0x20) > 0; // mask 0010 0000
+        boolean extension = (b & 0x10) > 0; // mask 0001 0000
+        int contributingSourcesCount = b & 0x0f; // mask 0000 1111
+
+        // Marker, Payload Type
+        b = buffer.get();
+        packet.marker = (b & 0x80) > 0; // mask 0000 0001
+        packet.payloadType = (b & 0x7f); // mask 0111 1111
+
+        packet.sequenceNumber = buffer.getShort() & 0xffff;
+        packet.extendedSequenceNumber = packet.sequenceNumber;
+        packet.timestamp = buffer.getInt() & 0xffffffffL;
+        packet.ssrc = buffer.getInt() & 0xffffffffL;
+
+        // Read extension headers & data
+        if (extension) {
+            packet.extensionHeaderData = buffer.getShort();
+            int extensionLength = (buffer.getShort() & 0xffff) * 4;
+            checkRemaining(buffer, extensionLength);
+            if (copyToOwned) {
+                packet.ownedExtensionData = copyToOwnedBuffer(packet.ownedExtensionData, buffer, extensionLength);
+                packet.extensionDataBuffer = packet.ownedExtensionData;
+            } else {
+                packet.extensionData = new byte[extensionLength];
+                buffer.get(packet.extensionData);
+            }
+        }
+
+        // Read CCRC's
+        if (contributingSourcesCount > 0) {
+            checkRemaining(buffer, contributingSourcesCount * 4);
+            if (copyToOwned) {
+                packet.ownedContributingSourceIds = copyToOwnedBuffer(packet.ownedContributingSourceIds, buffer,
+                                                                      contributingSourcesCount * 4);
+                packet.contributingSourceIdsBuffer = packet.ownedContributingSourceIds;
+            } else {
+                packet.contributingSourceIds = new ArrayList<Long>(contributingSourcesCount);
+                for (int i = 0; i < contributingSourcesCount; i++) {
+                    packet.contributingSourceIds.add(buffer.getInt() & 0xffffffffL);
+                }
+            }
+        }
+
+        int dataLength = buffer.remaining();
+        if (padding && (dataLength > 0)) {
+            // Padding bit was set, so last byte contains the number of padding octets that should be discarded.
+            dataLength -= buffer.get(buffer.limit() - 1) & 0xff;
+        }
+        if (dataLength < 0) {
+            throw new IndexOutOfBoundsException("Padding is longer than the payload");
+        }
+
+        if (copyToOwned) {
+            packet.ownedData = copyToOwnedBuffer(packet.ownedData, buffer, dataLength);
+            packet.data = packet.ownedData;
+        } else {
+            byte[] dataBytes = new byte[dataLength];
+            buffer.get(dataBytes);
+            packet.setData(dataBytes);
+        }
+        // Discard rest of buffer (padding, if any).
+        buffer.position(buffer.limit());
+
+        return packet;
+    }
+
+    private static void checkRemaining(ByteBuffer buffer, int length) {
+        if (buffer.remaining() < length) {
+            throw new IndexOutOfBoundsException("Not enough readable bytes - Need " + length + ", maximum is " +
+                                                buffer.remaining());
+        }
+    }
+
+    private static ChannelBuffer copyToOwnedBuffer(ChannelBuffer owned, ByteBuffer source, int length) {
+        if ((owned == null) || (owned.capacity() < length)) {
+            owned = ChannelBuffers.buffer(length);
+        }
+
+        owned.clear();
+        int limit = source.limit();
+        source.limit(source.position() + length);
+        owned.writeBytes(source);
+        source.limit(limit);
+        return owned;
+    }
+
+    private static ChannelBuffer copyToOwnedBuffer(ChannelBuffer owned, ChannelBuffer source, int length) {
+        if ((owned == null) || (owned.capacity() < length)) {
+            owned = ChannelBuffers.buffer(length);
+        }
+
+        owned.clear();
+        source.readBytes(owned, length);
+        return owned;
+    }
+
     // public methods -------------------------------------------------------------------------------------------------
 
     public ChannelBuffer encode(int fixedBlockSize) {
@@ -222,6 +423,7 @@ public class DataPacket {
     }
 
     public void addContributingSourceId(long contributingSourceId) {
+        this.materialiseContributingSourceIds();
         if (this.contributingSourceIds == null) {
             this.contributingSourceIds = new ArrayList<Long>();
         }
@@ -234,23 +436,59 @@ public class DataPacket {
             return 0;
         }
 
-        return this.data.capacity();
+        return this.data.writerIndex();
     }
 
     public int getExtensionDataSize() {
-        if (this.extensionData == null) {
-            return 0;
+        if (this.extensionData != null) {
+            return this.extensionData.length;
+        }
+        if (this.extensionDataBuffer != null) {
+            return this.extensionDataBuffer.readableBytes();
         }
 
-        return this.extensionData.length;
+        return 0;
     }
 
     public int getContributingSourcesCount() {
-        if (this.contributingSourceIds == null) {
-            return 0;
+        if (this.contributingSourceIds != null) {
+            return this.contributingSourceIds.size();
+        }
+        if (this.contributingSourceIdsBuffer != null) {
+            return this.contributingSourceIdsBuffer.readableBytes() / 4;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Signals that the caller will keep a reference to this packet after the method it was handed to returns.
+     * Every call must be matched by a call to {@link #release()}. Does nothing for packets that were not obtained from
+     * a {@link DataPacketPool}.
+     *
+     * @return This packet.
+     */
+    public DataPacket retain() {
+        if (this.pool != null) {
+            REFERENCE_COUNT.incrementAndGet(this);
         }
 
-        return this.contributingSourceIds.size();
+        return this;
+    }
+
+    /**
+     * Drops a reference to this packet. When the last reference of a pooled packet is dropped, the packet goes back to
+     * its pool and must no longer be used. Does nothing for packets that were not obtained from a
+     * {@link DataPacketPool}.
+     */
+    public void release() {
+        if ((this.pool != null) && (REFERENCE_COUNT.decrementAndGet(this) == 0)) {
+            this.pool.recycle(this);
+        }
+    }
+
+    public boolean isPooled() {
+        return this.pool != null;
     }
 
     public void setExtensionHeader(short extensionHeaderData, byte[] extensionData) {
@@ -262,6 +500,45 @@ public class DataPacket {
         }
         this.extensionHeaderData = extensionHeaderData;
         this.extensionData = extensionData;
+        this.extensionDataBuffer = null;
+    }
+
+    // protected helpers ----------------------------------------------------------------------------------------------
+
+    void acquired() {
+        this.referenceCount = 1;
+    }
+
+    void reset() {
+        this.version = RtpVersion.V2;
+        this.marker = false;
+        this.payloadType = 0;
+        this.sequenceNumber = 0;
+        this.extendedSequenceNumber = 0;
+        this.timestamp = 0;
+        this.ssrc = 0;
+        this.extensionHeaderData = 0;
+        this.extensionData = null;
+        this.extensionDataBuffer = null;
+        this.contributingSourceIds = null;
+        this.contributingSourceIdsBuffer = null;
+        this.data = null;
+    }
+
+    // private helpers ------------------------------------------------------------------------------------------------
+
+    private void materialiseContributingSourceIds() {
+        if (this.contributingSourceIdsBuffer == null) {
+            return;
+        }
+
+        ChannelBuffer buffer = this.contributingSourceIdsBuffer;
+        int count = buffer.readableBytes() / 4;
+        this.contributingSourceIds = new ArrayList<Long>(count);
+        for (int i = 0; i < count; i++) {
+            this.contributingSourceIds.add(buffer.getUnsignedInt(buffer.readerIndex() + (i * 4)));
+        }
+        this.contributingSourceIdsBuffer = null;
     }
 
     // getters & setters ----------------------------------------------------------------------------------------------
@@ -278,7 +555,7 @@ public class DataPacket {
     }
 
     public boolean hasExtension() {
-        return this.extensionData != null;
+        return (this.extensionData != null) || (this.extensionDataBuffer != null);
     }
 
     public boolean hasMarker() {
@@ -304,8 +581,29 @@ public class DataPacket {
         return sequenceNumber;
     }
 
+    /**
+     * Sets the sequence number, and the extended sequence number to the same value.
+     *
+     * @param sequenceNumber 16 bit sequence number.
+     */
     public void setSequenceNumber(int sequenceNumber) {
         this.sequenceNumber = sequenceNumber;
+        this.extendedSequenceNumber = sequenceNumber;
+    }
+
+    /**
+     * Retrieves the sequence number extended with the count of times it wrapped around (RFC 3550, appendix A.1), so
+     * packets can be ordered across the 65535 to 0 transition. Sessions set it once per received packet, for the
+     * participant that sent it; packets that didn't go through a session have their plain sequence number here.
+     *
+     * @return Extended sequence number.
+     */
+    public long getExtendedSequenceNumber() {
+        return extendedSequenceNumber;
+    }
+
+    public void setExtendedSequenceNumber(long extendedSequenceNumber) {
+        this.extendedSequenceNumber = extendedSequenceNumber;
     }
 
     public long getTimestamp() {
@@ -332,15 +630,23 @@ public class DataPacket {
     }
 
     public byte[] getExtensionData() {
+        if ((this.extensionData == null) && (this.extensionDataBuffer != null)) {
+            this.extensionData = new byte[this.extensionDataBuffer.readableBytes()];
+            this.extensionDataBuffer.getBytes(this.extensionDataBuffer.readerIndex(), this.extensionData);
+            this.extensionDataBuffer = null;
+        }
+
         return extensionData;
     }
 
     public List<Long> getContributingSourceIds() {
+        this.materialiseContributingSourceIds();
         return contributingSourceIds;
     }
 
     public void setContributingSourceIds(List<Long> contributingSourceIds) {
         this.contributingSourceIds = contributingSourceIds;
+        this.contributingSourceIdsBuffer = null;
     }
 
     public ChannelBuffer getData() {
@@ -352,7 +658,15 @@ public class DataPacket {
     }
 
     public byte[] getDataAsArray() {
-        return this.data.array();
+        // Only hand out the backing array if it holds exactly the payload (i.e. it wasn't sliced from a bigger buffer).
+        if (this.data.hasArray() && (this.data.arrayOffset() == 0) &&
+            (this.data.array().length == this.data.writerIndex())) {
+            return this.data.array();
+        }
+
+        byte[] bytes = new byte[this.data.writerIndex()];
+        this.data.getBytes(0, bytes);
+        return bytes;
     }
 
     public void setData(byte[] data) {
@@ -372,7 +686,7 @@ public class DataPacket {
                 .append(", SN=").append(this.sequenceNumber)
                 .append(", TS=").append(this.timestamp)
                 .append(", SSRC=").append(this.ssrc)
-                .append(", CSRCs=").append(this.contributingSourceIds)
+                .append(", CSRCs=").append(this.getContributingSourceIds())
                 .append(", data=").append(this.getDataSize()).append(" bytes}")
                 .toString();
     }
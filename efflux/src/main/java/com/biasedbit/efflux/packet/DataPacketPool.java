@@ -0,0 +1,146 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.packet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of recyclable {@link DataPacket} instances for the receive path.
+ * <p/>
+ * Packets obtained from the pool start with a single reference, owned by whoever decoded them. Anyone that holds on to
+ * a packet after the call it was handed to returns must {@link DataPacket#retain()} it and {@link DataPacket#release()}
+ * it once done; when the last reference is released the packet is reset and returned here. Pooled packets copy their
+ * payload into a buffer they keep between uses, so once the pool is warmed up decoding doesn't allocate.
+ * <p/>
+ * If the pool runs dry new packets are created, and packets released while the pool is full are left to the GC, so a
+ * missing release only costs an allocation.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class DataPacketPool {
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    private final DataPacket[] packets;
+    private int available;
+    private final AtomicLong createdPacketCounter;
+    private final AtomicLong recycledPacketCounter;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    public DataPacketPool(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Pool capacity must be > 0");
+        }
+
+        this.packets = new DataPacket[capacity];
+        this.available = 0;
+        this.createdPacketCounter = new AtomicLong();
+        this.recycledPacketCounter = new AtomicLong();
+    }
+
+    // public methods -------------------------------------------------------------------------------------------------
+
+    public DataPacket acquire() {
+        DataPacket packet = null;
+        synchronized (this.packets) {
+            if (this.available > 0) {
+                packet = this.packets[--this.available];
+                this.packets[this.available] = null;
+            }
+        }
+
+        if (packet == null) {
+            packet = new DataPacket(this);
+            this.createdPacketCounter.incrementAndGet();
+        }
+
+        packet.acquired();
+        return packet;
+    }
+
+    /**
+     * Decodes a packet from the given buffer into a packet taken from this pool.
+     *
+     * @param buffer Buffer to decode from.
+     * @param copy   Whether to copy the payload out of the buffer. See {@link DataPacket#decode(ChannelBuffer, boolean)}.
+     *
+     * @return The decoded packet, holding a single reference.
+     */
+    public DataPacket decode(ChannelBuffer buffer, boolean copy) {
+        DataPacket packet = this.acquire();
+        try {
+            return DataPacket.decode(packet, buffer, copy);
+        } catch (RuntimeException e) {
+            packet.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes a packet from the remaining bytes of the given buffer into a packet taken from this pool. See
+     * {@link DataPacket#decode(ByteBuffer)}.
+     *
+     * @param buffer Buffer to decode from.
+     *
+     * @return The decoded packet, holding a single reference.
+     */
+    public DataPacket decode(ByteBuffer buffer) {
+        DataPacket packet = this.acquire();
+        try {
+            return DataPacket.decode(packet, buffer);
+        } catch (RuntimeException e) {
+            packet.release();
+            throw e;
+        }
+    }
+
+    // protected helpers ----------------------------------------------------------------------------------------------
+
+    void recycle(DataPacket packet) {
+        packet.reset();
+        synchronized (this.packets) {
+            if (this.available < this.packets.length) {
+                this.packets[this.available++] = packet;
+                this.recycledPacketCounter.incrementAndGet();
+            }
+        }
+    }
+
+    // getters & setters ----------------------------------------------------------------------------------------------
+
+    public int getCapacity() {
+        return this.packets.length;
+    }
+
+    public int getAvailable() {
+        synchronized (this.packets) {
+            return this.available;
+        }
+    }
+
+    public long getCreatedPackets() {
+        return this.createdPacketCounter.get();
+    }
+
+    public long getRecycledPackets() {
+        return this.recycledPacketCounter.get();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.biasedbit.efflux.packet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Full Intra Request (RFC 5104 section 4.3.1): payload specific feedback asking media sources to send a decoder
+ * refresh point (a key frame) as soon as possible.
+ * <p/>
+ * The media source SSRC of the common header is unused (0); each FCI entry names a media source and carries a command
+ * sequence number, which is only increased for new requests, so the source can tell them from repetitions.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class FullIntraRequestPacket extends AbstractFeedbackPacket {
+
+    // constants ------------------------------------------------------------------------------------------------------
+
+    public static final byte FMT = 4;
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    private final List<Entry> entries;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    public FullIntraRequestPacket() {
+        super(Type.PAYLOAD_FEEDBACK, FMT);
+        this.entries = new ArrayList<Entry>();
+    }
+
+    // public static methods ------------------------------------------------------------------------------------------
+
+    static FullIntraRequestPacket decodeFci(ChannelBuffer buffer, int fciLength) {
+        FullIntraRequestPacket packet = new FullIntraRequestPacket();
+        for (int read = 0; read + 8 <= fciLength; read += 8) {
+            long ssrc = buffer.readUnsignedInt();
+            short sequenceNumber = buffer.readUnsignedByte();
+            // Reserved
+            buffer.skipBytes(3);
+            packet.entries.add(new Entry(ssrc, sequenceNumber));
+        }
+        return packet;
+    }
+
+    // public methods -------------------------------------------------------------------------------------------------
+
+    public void addEntry(long ssrc, int sequenceNumber) {
+        if ((ssrc < 0) || (ssrc > 0xffffffffL)) {
+            throw new IllegalArgumentException("Valid range for SSRC is [0;0xffffffff]");
+        }
+        this.entries.add(new Entry(ssrc, (short) (sequenceNumber & 0xff)));
+    }
+
+    // AbstractFeedbackPacket -----------------------------------------------------------------------------------------
+
+    @Override
+    protected int getFciLength() {
+        return this.entries.size() * 8;
+    }
+
+    @Override
+    protected void writeFci(ChannelBuffer buffer) {
+        for (Entry entry : this.entries) {
+            buffer.writeInt((int) entry.ssrc);
+            buffer.writeByte(entry.sequenceNumber);
+            buffer.writeMedium(0);
+        }
+    }
+
+    // getters & setters ----------------------------------------------------------------------------------------------
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(this.entries);
+    }
+
+    // low level overrides --------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("FullIntraRequestPacket{")
+                .append("senderSsrc=").append(this.senderSsrc)
+                .append(", entries=").append(this.entries)
+                .append('}').toString();
+    }
+
+    // public classes -------------------------------------------------------------------------------------------------
+
+    public static class Entry {
+
+        // internal vars ----------------------------------------------------------------------------------------------
+
+        private final long ssrc;
+        private final short sequenceNumber;
+
+        // constructors -----------------------------------------------------------------------------------------------
+
+        public Entry(long ssrc, short sequenceNumber) {
+            this.ssrc = ssrc;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        // getters & setters ------------------------------------------------------------------------------------------
+
+        public long getSsrc() {
+            return ssrc;
+        }
+
+        public short getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        // low level overrides ----------------------------------------------------------------------------------------
+
+        @Override
+        public String toString() {
+            return this.ssrc + "#" + this.sequenceNumber;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.packet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generic NACK (RFC 4585 section 6.2.1): transport layer feedback asking the media source to retransmit lost packets.
+ * <p/>
+ * Lost sequence numbers are encoded as a list of (PID, BLP) pairs: PID is a lost sequence number and each bit i of the
+ * BLP bitmask tells whether PID + i + 1 was lost as well.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class GenericNackPacket extends AbstractFeedbackPacket {
+
+    // constants ------------------------------------------------------------------------------------------------------
+
+    public static final byte FMT = 1;
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    // Lost sequence numbers, in the order they were added
+    private final List<Integer> lostSequenceNumbers;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    public GenericNackPacket() {
+        super(Type.TRANSPORT_FEEDBACK, FMT);
+        this.lostSequenceNumbers = new ArrayList<Integer>();
+    }
+
+    // public static methods ------------------------------------------------------------------------------------------
+
+    static GenericNackPacket decodeFci(ChannelBuffer buffer, int fciLength) {
+        GenericNackPacket packet = new GenericNackPacket();
+        for (int read = 0; read + 4 <= fciLength; read += 4) {
+            int pid = buffer.readUnsignedShort();
+            int blp = buffer.readUnsignedShort();
+            packet.lostSequenceNumbers.add(pid);
+            for (int i = 0; i < 16; i++) {
+                if ((blp & (1 << i)) != 0) {
+                    packet.lostSequenceNumbers.add((pid + i + 1) & 0xffff);
+                }
+            }
+        }
+        return packet;
+    }
+
+    // public methods -------------------------------------------------------------------------------------------------
+
+    public void addLostSequenceNumber(int sequenceNumber) {
+        if ((sequenceNumber < 0) || (sequenceNumber > 0xffff)) {
+            throw new IllegalArgumentException("Valid range for sequence numbers is [0;0xffff]");
+        }
+        this.lostSequenceNumbers.add(sequenceNumber);
+    }
+
+    // AbstractFeedbackPacket -----------------------------------------------------------------------------------------
+
+    @Override
+    protected int getFciLength() {
+        int entries = 0;
+        int pid = -1;
+        for (int sequenceNumber : this.lostSequenceNumbers) {
+            if ((pid < 0) || !fitsInBitmask(pid, sequenceNumber)) {
+                pid = sequenceNumber;
+                entries++;
+            }
+        }
+        return entries * 4;
+    }
+
+    @Override
+    protected void writeFci(ChannelBuffer buffer) {
+        int pid = -1;
+        int blp = 0;
+        for (int sequenceNumber : this.lostSequenceNumbers) {
+            if ((pid >= 0) && fitsInBitmask(pid, sequenceNumber)) {
+                blp |= 1 << (((sequenceNumber - pid) & 0xffff) - 1);
+                continue;
+            }
+            if (pid >= 0) {
+                buffer.writeShort(pid);
+                buffer.writeShort(blp);
+            }
+            pid = sequenceNumber;
+            blp = 0;
+        }
+        if (pid >= 0) {
+            buffer.writeShort(pid);
+            buffer.writeShort(blp);
+        }
+    }
+
+    // private static helpers -----------------------------------------------------------------------------------------
+
+    private static boolean fitsInBitmask(int pid, int sequenceNumber) {
+        int distance = (sequenceNumber - pid) & 0xffff;
+        return (distance >= 1) && (distance <= 16);
+    }
+
+    // getters & setters ----------------------------------------------------------------------------------------------
+
+    public List<Integer> getLostSequenceNumbers() {
+        return Collections.unmodifiableList(this.lostSequenceNumbers);
+    }
+
+    // low level overrides --------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("GenericNackPacket{")
+                .append("senderSsrc=").append(this.senderSsrc)
+                .append(", mediaSsrc=").append(this.mediaSsrc)
+                .append(", lostSequenceNumbers=").append(this.lostSequenceNumbers)
+                .append('}').toString();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.biasedbit.efflux.packet;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Picture Loss Indication (RFC 4585 section 6.3.1): payload specific feedback telling the media source that the
+ * receiver lost an undefined amount of coded video data, usually answered with a key frame. Carries no feedback
+ * control information.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class PictureLossIndicationPacket extends AbstractFeedbackPacket {
+
+    // constants ------------------------------------------------------------------------------------------------------
+
+    public static final byte FMT = 1;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    public PictureLossIndicationPacket() {
+        super(Type.PAYLOAD_FEEDBACK, FMT);
+    }
+
+    // AbstractFeedbackPacket -----------------------------------------------------------------------------------------
+
+    @Override
+    protected int getFciLength() {
+        return 0;
+    }
+
+    @Override
+    protected void writeFci(ChannelBuffer buffer) {
+    }
+
+    // low level overrides --------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("PictureLossIndicationPacket{")
+                .append("senderSsrc=").append(this.senderSsrc)
+                .append(", mediaSsrc=").append(this.mediaSsrc)
+                .append('}').toString();
+    }
+}
@@ -26,8 +26,6 @@ import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -57,9 +55,13 @@ public class DefaultParticipantDatabase implements ParticipantDatabase {
      */
     private final Collection<RtpParticipant> receivers;
     /**
-     * List of existing members.
+     * Existing members. Replaced as a whole, under the write lock, whenever members are added or removed, so that the
+     * lookup done for every packet needs no lock at all.
+     */
+    private volatile SsrcParticipantMap members;
+    /**
+     * Guards the receivers and serialises the changes to the members.
      */
-    private final Map<Long, RtpParticipant> members;
     private final ReentrantReadWriteLock lock;
 
     // constructors ---------------------------------------------------------------------------------------------------
@@ -69,7 +71,7 @@ public class DefaultParticipantDatabase implements ParticipantDatabase {
         this.listener = eventListener;
 
         this.receivers = new ArrayList<RtpParticipant>();
-        this.members = new HashMap<Long, RtpParticipant>();
+        this.members = SsrcParticipantMap.EMPTY;
 
         this.lock = new ReentrantReadWriteLock();
 
@@ -91,7 +93,7 @@ public class DefaultParticipantDatabase implements ParticipantDatabase {
 
     @Override
     public Map<Long, RtpParticipant> getMembers() {
-        return Collections.unmodifiableMap(this.members);
+        return Collections.unmodifiableMap(this.members.toMap());
     }
 
     @Override
@@ -112,17 +114,13 @@ public class DefaultParticipantDatabase implements ParticipantDatabase {
 
     @Override
     public void doWithParticipants(ParticipantOperation operation) {
-        this.lock.readLock().lock();
-        try {
-            for (RtpParticipant member : this.members.values()) {
-                try {
-                    operation.doWithParticipant(member);
-                } catch (Exception e) {
-                    LOG.error("Failed to perform operation {} on member {}.", e, operation, member);
-                }
+        // Walks a snapshot of the members, which never changes.
+        for (RtpParticipant member : this.members.values()) {
+            try {
+                operation.doWithParticipant(member);
+            } catch (Exception e) {
+                LOG.error("Failed to perform operation {} on member {}.", e, operation, member);
             }
-        } finally {
-            this.lock.readLock().unlock();
         }
     }
 
@@ -167,18 +165,20 @@ public class DefaultParticipantDatabase implements ParticipantDatabase {
 
     @Override
     public RtpParticipant getParticipant(long ssrc) {
-        this.lock.readLock().lock();
-        try {
-            return this.members.get(ssrc);
-        } finally {
-            this.lock.readLock().unlock();
-        }
+        return this.members.get(ssrc);
     }
 
     @Override
     public RtpParticipant getOrCreateParticipantFromDataPacket(SocketAddress origin, DataPacket packet) {
+        // Every packet but a source's first finds its participant here, without locking.
+        RtpParticipant member = this.members.get(packet.getSsrc());
+        if (member != null) {
+            return member;
+        }
+
         this.lock.writeLock().lock();
         try {
+            // Look again, another thread may have created it meanwhile.
             RtpParticipant participant = this.members.get(packet.getSsrc());
             if (participant == null) {
                 // Iterate through the receivers, trying to find a match for this participant through the RTP ports.
@@ -201,7 +201,7 @@ public class DefaultParticipantDatabase implements ParticipantDatabase {
                     created = true;
                 }
 
-                this.members.put(packet.getSsrc(), participant);
+                this.members = this.members.with(packet.getSsrc(), participant);
 
                 if (created) {
                     this.listener.participantCreatedFromDataPacket(participant);
@@ -217,6 +217,11 @@ public class DefaultParticipantDatabase implements ParticipantDatabase {
 
     @Override
     public RtpParticipant getOrCreateParticipantFromSdesChunk(SocketAddress origin, SdesChunk chunk) {
+        RtpParticipant member = this.members.get(chunk.getSsrc());
+        if (member != null) {
+            return member;
+        }
+
         this.lock.writeLock().lock();
         try {
             RtpParticipant participant = this.members.get(chunk.getSsrc());
@@ -253,7 +258,7 @@ public class DefaultParticipantDatabase implements ParticipantDatabase {
                     created = true;
                 }
 
-                this.members.put(chunk.getSsrc(), participant);
+                this.members = this.members.with(chunk.getSsrc(), participant);
                 if (created) {
                     this.listener.participantCreatedFromSdesChunk(participant);
                 }
@@ -280,21 +285,21 @@ public class DefaultParticipantDatabase implements ParticipantDatabase {
         this.lock.writeLock().lock();
         long now = TimeUtils.now();
         try {
-            Iterator<RtpParticipant> iterator = this.members.values().iterator();
-            while (iterator.hasNext()) {
-                RtpParticipant participant = iterator.next();
+            Collection<RtpParticipant> removed = new ArrayList<RtpParticipant>();
+            for (RtpParticipant participant : this.members.values()) {
                 int timeout = this.timeoutAfterByeAndNoPacketsReceived * 1000;
                 if (participant.receivedBye() && TimeUtils
                         .hasExpired(now, participant.getLastReceptionInstant(), timeout)) {
                     LOG.trace("Removed {} from session with id '{}' after reception of BYE and {}s of inactivity.",
                               participant, this.id, this.timeoutAfterByeAndNoPacketsReceived);
-                    iterator.remove();
+                    removed.add(participant);
                     if (participant.isReceiver()) {
                         this.receivers.remove(participant);
                     }
                     this.listener.participantDeleted(participant);
                 }
             }
+            this.members = this.members.without(removed);
         } finally {
             this.lock.writeLock().unlock();
         }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.participant;
+
+/**
+ * Extends 16 bit RTP sequence numbers by counting how many times they wrapped around (RFC 3550, appendix A.1),
+ * so they can be compared and ordered across the 65535 to 0 transition.
+ * <p/>
+ * Every sequence number is taken as the closest one to the highest seen so far, so packets arriving late from
+ * before a wrap around keep the previous cycle. One instance must be used per source and from the thread that
+ * receives its data packets.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class ExtendedSequenceNumber {
+
+    // constants ------------------------------------------------------------------------------------------------------
+
+    private static final int RTP_SEQ_MOD = 1 << 16;
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    private boolean initialized;
+    // Highest 16 bit sequence number seen so far.
+    private int maxSequenceNumber;
+    // Shifted count of sequence number cycles.
+    private long cycles;
+
+    // public methods -------------------------------------------------------------------------------------------------
+
+    /**
+     * Retrieves the extended value of a sequence number, updating the cycle count if it wrapped around.
+     *
+     * @param sequenceNumber 16 bit sequence number of a received packet.
+     *
+     * @return Sequence number extended with the cycle count.
+     */
+    public long extend(int sequenceNumber) {
+        sequenceNumber &= 0xffff;
+        if (!this.initialized) {
+            this.maxSequenceNumber = sequenceNumber;
+            this.initialized = true;
+            return this.cycles + sequenceNumber;
+        }
+
+        int delta = (short) (sequenceNumber - this.maxSequenceNumber);
+        if (delta > 0) {
+            if (sequenceNumber < this.maxSequenceNumber) {
+                // Sequence number wrapped around.
+                this.cycles += RTP_SEQ_MOD;
+            }
+            this.maxSequenceNumber = sequenceNumber;
+            return this.cycles + sequenceNumber;
+        } else if (sequenceNumber > this.maxSequenceNumber) {
+            // Late packet from before the last wrap around.
+            return this.cycles - RTP_SEQ_MOD + sequenceNumber;
+        }
+        return this.cycles + sequenceNumber;
+    }
+
+    // getters & setters ----------------------------------------------------------------------------------------------
+
+    /**
+     * Retrieves the highest extended sequence number seen so far.
+     *
+     * @return Highest extended sequence number.
+     */
+    public long getHighest() {
+        return this.cycles + this.maxSequenceNumber;
+    }
+}
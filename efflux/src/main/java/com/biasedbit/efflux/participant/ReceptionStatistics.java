@@ -0,0 +1,255 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.participant;
+
+import com.biasedbit.efflux.packet.ReceptionReport;
+
+/**
+ * Reception statistics for the data packets received from a single source, as described in RFC 3550 appendix A.1
+ * (sequence number validation), A.3 (expected and lost packets) and A.8 (interarrival jitter).
+ * <p/>
+ * The statistics are updated by the thread that receives data packets and read by the thread that builds the RTCP
+ * reports, without locking: {@link #packetReceived(int, long, long)} must always be called from the same thread (or
+ * from threads that hand over to each other, like Netty's ordered executors do), and publishes its results through
+ * volatile fields. A report may thus combine values from two consecutive packets, which is irrelevant for RTCP.
+ * {@link #buildReceptionReport(long, long)} must also be called from a single thread, since it keeps the state of the
+ * previous report in order to compute the fraction lost during the last interval.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class ReceptionStatistics {
+
+    // constants ------------------------------------------------------------------------------------------------------
+
+    private static final int RTP_SEQ_MOD = 1 << 16;
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+    private static final int MIN_SEQUENTIAL = 2;
+    private static final long MAX_CUMULATIVE_LOST = 0x7fffff;
+    private static final long MIN_CUMULATIVE_LOST = -0x800000;
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    // Receive path only.
+    private boolean initialized;
+    private int maxSequence;
+    private long cycles;
+    private int badSequence;
+    private int probation;
+    private long received;
+    private int transit;
+    private long scaledJitter;
+
+    // Written by the receive path, read by the report builder.
+    private volatile long publishedBaseSequence;
+    private volatile long publishedExtendedMaxSequence;
+    private volatile long publishedReceived;
+    private volatile long publishedJitter;
+    private volatile int resets;
+    private volatile long lastSenderReport;
+    private volatile long lastSenderReportArrival;
+
+    // Report builder only.
+    private long expectedPrior;
+    private long receivedPrior;
+    private int resetsPrior;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    public ReceptionStatistics() {
+    }
+
+    // public methods -------------------------------------------------------------------------------------------------
+
+    /**
+     * Accounts for a received data packet.
+     *
+     * @param sequenceNumber Sequence number of the packet.
+     * @param timestamp      RTP timestamp of the packet.
+     * @param arrival        Arrival time of the packet, in the same units (clock rate) as the RTP timestamp.
+     *
+     * @return <code>true</code> if the packet was considered valid, <code>false</code> if the source is still on
+     *         probation or the sequence number made a very large jump.
+     */
+    public boolean packetReceived(int sequenceNumber, long timestamp, long arrival) {
+        if (!this.updateSequence(sequenceNumber)) {
+            return false;
+        }
+
+        // Interarrival jitter, RFC 3550 A.8. Differences are computed modulo 2^32, like the 32 bit RTP timestamps.
+        int transit = (int) (arrival - timestamp);
+        if (this.received > 1) {
+            int d = Math.abs(transit - this.transit);
+            this.scaledJitter += d - ((this.scaledJitter + 8) >> 4);
+        }
+        this.transit = transit;
+
+        this.publishedJitter = this.scaledJitter >> 4;
+        this.publishedExtendedMaxSequence = this.cycles + this.maxSequence;
+        this.publishedReceived = this.received;
+        return true;
+    }
+
+    /**
+     * Records the reception of a sender report from this source, so the next reception reports can tell the
+     * sender the round trip time.
+     *
+     * @param ntpTimestamp  NTP timestamp in the sender report.
+     * @param arrivalMillis Local time when the sender report was received, in milliseconds.
+     */
+    public void senderReportReceived(long ntpTimestamp, long arrivalMillis) {
+        this.lastSenderReportArrival = arrivalMillis;
+        // Middle 32 bits of the NTP timestamp.
+        this.lastSenderReport = (ntpTimestamp >>> 16) & 0xffffffffL;
+    }
+
+    /**
+     * Builds a reception report block about this source, as of now. Updates the state used to compute the fraction of
+     * packets lost since the previous report.
+     *
+     * @param ssrc      SSRC of this source.
+     * @param nowMillis Current time, in milliseconds.
+     *
+     * @return Reception report block, or <code>null</code> if no valid packet was received from this source yet.
+     */
+    public ReceptionReport buildReceptionReport(long ssrc, long nowMillis) {
+        long received = this.publishedReceived;
+        if (received == 0) {
+            return null;
+        }
+
+        int resets = this.resets;
+        long extendedMax = this.publishedExtendedMaxSequence;
+        long expected = extendedMax - this.publishedBaseSequence + 1;
+        if (resets != this.resetsPrior) {
+            // The source restarted its sequence numbers, so the last interval starts over as well.
+            this.resetsPrior = resets;
+            this.expectedPrior = 0;
+            this.receivedPrior = 0;
+        }
+
+        long lost = Math.max(MIN_CUMULATIVE_LOST, Math.min(MAX_CUMULATIVE_LOST, expected - received));
+
+        long expectedInterval = expected - this.expectedPrior;
+        long receivedInterval = received - this.receivedPrior;
+        long lostInterval = expectedInterval - receivedInterval;
+        this.expectedPrior = expected;
+        this.receivedPrior = received;
+        short fractionLost = 0;
+        if ((expectedInterval > 0) && (lostInterval > 0)) {
+            fractionLost = (short) ((lostInterval << 8) / expectedInterval);
+        }
+
+        ReceptionReport block = new ReceptionReport();
+        block.setSsrc(ssrc);
+        block.setFractionLost(fractionLost);
+        // 24 bit two's complement, negative when duplicates outnumber losses.
+        block.setCumulativeNumberOfPacketsLost((int) (lost & 0xffffff));
+        block.setExtendedHighestSequenceNumberReceived(extendedMax & 0xffffffffL);
+        block.setInterArrivalJitter(Math.min(this.publishedJitter, 0xffffffffL));
+
+        long lastSenderReportArrival = this.lastSenderReportArrival;
+        if (lastSenderReportArrival > 0) {
+            block.setLastSenderReport(this.lastSenderReport);
+            // In units of 1/65536 seconds.
+            long delay = ((nowMillis - lastSenderReportArrival) << 16) / 1000;
+            block.setDelaySinceLastSenderReport(Math.max(0, Math.min(delay, 0xffffffffL)));
+        }
+
+        return block;
+    }
+
+    // private helpers ------------------------------------------------------------------------------------------------
+
+    private void initSequence(int sequenceNumber) {
+        this.maxSequence = sequenceNumber;
+        this.badSequence = RTP_SEQ_MOD + 1;
+        this.cycles = 0;
+        this.received = 0;
+        this.publishedBaseSequence = sequenceNumber;
+        this.resets++;
+    }
+
+    /**
+     * Sequence number validation, RFC 3550 A.1.
+     */
+    private boolean updateSequence(int sequenceNumber) {
+        if (!this.initialized) {
+            this.initSequence(sequenceNumber);
+            this.maxSequence = sequenceNumber - 1;
+            this.probation = MIN_SEQUENTIAL;
+            this.initialized = true;
+        }
+
+        int delta = (sequenceNumber - this.maxSequence) & (RTP_SEQ_MOD - 1);
+
+        if (this.probation > 0) {
+            // Source is not valid until MIN_SEQUENTIAL packets with sequential sequence numbers have been received.
+            if (sequenceNumber == ((this.maxSequence + 1) & (RTP_SEQ_MOD - 1))) {
+                this.probation--;
+                this.maxSequence = sequenceNumber;
+                if (this.probation == 0) {
+                    this.initSequence(sequenceNumber);
+                    this.received++;
+                    return true;
+                }
+            } else {
+                this.probation = MIN_SEQUENTIAL - 1;
+                this.maxSequence = sequenceNumber;
+            }
+            return false;
+        } else if (delta < MAX_DROPOUT) {
+            // In order, with permissible gap.
+            if (sequenceNumber < this.maxSequence) {
+                // Sequence number wrapped; count another 64K cycle.
+                this.cycles += RTP_SEQ_MOD;
+            }
+            this.maxSequence = sequenceNumber;
+        } else if (delta <= RTP_SEQ_MOD - MAX_MISORDER) {
+            // The sequence number made a very large jump.
+            if (sequenceNumber == this.badSequence) {
+                // Two sequential packets; assume that the other side restarted without telling us.
+                this.initSequence(sequenceNumber);
+            } else {
+                this.badSequence = (sequenceNumber + 1) & (RTP_SEQ_MOD - 1);
+                return false;
+            }
+        }
+        // Otherwise, duplicate or reordered packet.
+
+        this.received++;
+        return true;
+    }
+
+    // getters & setters ----------------------------------------------------------------------------------------------
+
+    public long getExtendedHighestSequenceNumber() {
+        return this.publishedExtendedMaxSequence;
+    }
+
+    public long getReceivedPackets() {
+        return this.publishedReceived;
+    }
+
+    public long getCumulativePacketsLost() {
+        return this.publishedExtendedMaxSequence - this.publishedBaseSequence + 1 - this.publishedReceived;
+    }
+
+    public long getInterArrivalJitter() {
+        return this.publishedJitter;
+    }
+}
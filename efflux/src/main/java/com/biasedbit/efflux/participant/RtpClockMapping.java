@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.participant;
+
+import com.biasedbit.efflux.util.TimeUtils;
+
+/**
+ * Relation between the RTP timestamps of a source, the wall clock of the sender and the local clock, as learnt from
+ * the source's sender reports (RFC 3550 section 6.4.1).
+ * <p/>
+ * A sender report pairs a RTP timestamp with the sender's wall clock time at which it was sampled, which tells when
+ * the media of any other timestamp was captured. The local time at which the report arrived anchors that capture time
+ * on the local clock, offset by the report's transit time. Reports delayed by the network would move that anchor
+ * later, so each mapping keeps the earliest anchor predicted by the previous ones, allowing it to move later only as
+ * much as the drift between the two clocks can explain.
+ * <p/>
+ * Instances are immutable, so they can be shared between threads.
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+public class RtpClockMapping {
+
+    // constants ------------------------------------------------------------------------------------------------------
+
+    // Largest drift between the sender's and the local clock, 100 parts per million
+    private static final long MAX_DRIFT_DIVISOR = 10000;
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    private final long ntpTimestamp;
+    private final long rtpTimestamp;
+    private final int clockRate;
+    // Sender's wall clock time of the report, in milliseconds since the Unix epoch
+    private final long senderTime;
+    // Local time that corresponds to the report's sender time, in milliseconds
+    private final long localTime;
+    // Local time at which the report arrived, in milliseconds
+    private final long arrivalTime;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    /**
+     * Creates a mapping out of a single sender report.
+     *
+     * @param ntpTimestamp NTP timestamp in the sender report.
+     * @param rtpTimestamp RTP timestamp in the sender report.
+     * @param clockRate    RTP timestamp units per second.
+     * @param arrivalTime  Local time at which the report arrived, in milliseconds.
+     */
+    public RtpClockMapping(long ntpTimestamp, long rtpTimestamp, int clockRate, long arrivalTime) {
+        this(ntpTimestamp, rtpTimestamp, clockRate, arrivalTime, arrivalTime);
+    }
+
+    private RtpClockMapping(long ntpTimestamp, long rtpTimestamp, int clockRate, long arrivalTime, long localTime) {
+        if (clockRate <= 0) {
+            throw new IllegalArgumentException("Clock rate must be > 0");
+        }
+        this.ntpTimestamp = ntpTimestamp;
+        this.rtpTimestamp = rtpTimestamp & 0xffffffffL;
+        this.clockRate = clockRate;
+        this.senderTime = TimeUtils.fromNtpTimestamp(ntpTimestamp);
+        this.arrivalTime = arrivalTime;
+        this.localTime = localTime;
+    }
+
+    // public methods -------------------------------------------------------------------------------------------------
+
+    /**
+     * Creates the mapping for a new sender report of the same source.
+     *
+     * @param ntpTimestamp NTP timestamp in the sender report.
+     * @param rtpTimestamp RTP timestamp in the sender report.
+     * @param arrivalTime  Local time at which the report arrived, in milliseconds.
+     *
+     * @return New mapping, whose local anchor is the earliest of the report's arrival and what this one predicts.
+     */
+    public RtpClockMapping update(long ntpTimestamp, long rtpTimestamp, long arrivalTime) {
+        long senderTime = TimeUtils.fromNtpTimestamp(ntpTimestamp);
+        long predicted = this.localTime + (senderTime - this.senderTime) +
+                         (Math.max(0, arrivalTime - this.arrivalTime) / MAX_DRIFT_DIVISOR);
+        return new RtpClockMapping(ntpTimestamp, rtpTimestamp, this.clockRate, arrivalTime,
+                                   Math.min(arrivalTime, predicted));
+    }
+
+    /**
+     * Retrieves the sender's wall clock time at which the media with a given RTP timestamp was captured.
+     *
+     * @param rtpTimestamp 32 bit RTP timestamp, within half the timestamp range from the report's.
+     *
+     * @return Milliseconds since the Unix epoch, according to the sender's clock.
+     */
+    public long getSenderTime(long rtpTimestamp) {
+        return this.senderTime + this.getElapsedMillis(rtpTimestamp);
+    }
+
+    /**
+     * Retrieves the local time that corresponds to the capture time of the media with a given RTP timestamp: when it
+     * would have arrived had it been sent right away and taken as little time as the sender reports take to arrive.
+     *
+     * @param rtpTimestamp 32 bit RTP timestamp, within half the timestamp range from the report's.
+     *
+     * @return Local time, in milliseconds.
+     */
+    public long getLocalTime(long rtpTimestamp) {
+        return this.localTime + this.getElapsedMillis(rtpTimestamp);
+    }
+
+    // private helpers ------------------------------------------------------------------------------------------------
+
+    private long getElapsedMillis(long rtpTimestamp) {
+        // The lower 32 bits of the difference, read as signed, is the distance to the closest value
+        int elapsed = (int) (rtpTimestamp - this.rtpTimestamp);
+        return (elapsed * 1000L) / this.clockRate;
+    }
+
+    // getters & setters ----------------------------------------------------------------------------------------------
+
+    public long getNtpTimestamp() {
+        return ntpTimestamp;
+    }
+
+    public long getRtpTimestamp() {
+        return rtpTimestamp;
+    }
+
+    public int getClockRate() {
+        return clockRate;
+    }
+
+    public long getArrivalTime() {
+        return arrivalTime;
+    }
+
+    // low level overrides --------------------------------------------------------------------------------------------
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append("RtpClockMapping{")
+                .append("senderTime=").append(this.senderTime)
+                .append(", rtpTimestamp=").append(this.rtpTimestamp)
+                .append(", clockRate=").append(this.clockRate)
+                .append(", localTime=").append(this.localTime)
+                .append('}').toString();
+    }
+}
@@ -48,10 +48,13 @@ public class RtpParticipant {
     private long lastReceptionInstant;
     private long byeReceptionInstant;
     private int lastSequenceNumber;
+    private long lastExtendedSequenceNumber;
     private boolean receivedSdes;
     private final AtomicLong receivedByteCounter;
     private final AtomicLong receivedPacketCounter;
     private final AtomicInteger validPacketCounter;
+    private final ReceptionStatistics receptionStatistics;
+    private final ExtendedSequenceNumber extendedSequenceNumber;
 
     // constructors ---------------------------------------------------------------------------------------------------
 
@@ -60,12 +63,15 @@ public class RtpParticipant {
         this.info = info;
 
         this.lastSequenceNumber = -1;
+        this.lastExtendedSequenceNumber = -1;
         this.lastReceptionInstant = 0;
         this.byeReceptionInstant = 0;
 
         this.receivedByteCounter = new AtomicLong();
         this.receivedPacketCounter = new AtomicLong();
         this.validPacketCounter = new AtomicInteger();
+        this.receptionStatistics = new ReceptionStatistics();
+        this.extendedSequenceNumber = new ExtendedSequenceNumber();
     }
 
     // public static methods ------------------------------------------------------------------------------------------
@@ -153,6 +159,30 @@ public class RtpParticipant {
         this.lastReceptionInstant = TimeUtils.now();
     }
 
+    /**
+     * Accounts for a data packet received from this participant. Must be called from the thread that receives data
+     * packets (see {@link ReceptionStatistics}).
+     *
+     * @param packet  Received packet.
+     * @param arrival Arrival time of the packet, in the same units (clock rate) as its RTP timestamp.
+     */
+    public void dataPacketReceived(DataPacket packet, long arrival) {
+        this.receivedPacketCounter.incrementAndGet();
+        this.receivedByteCounter.addAndGet(packet.getDataSize());
+        this.receptionStatistics.packetReceived(packet.getSequenceNumber(), packet.getTimestamp(), arrival);
+    }
+
+    /**
+     * Sets the extended sequence number of a data packet (or the retransmission of one) received from this
+     * participant, counting the wrap arounds of the sequence numbers seen so far. Must be called once per packet,
+     * from the thread that receives data packets (see {@link ExtendedSequenceNumber}).
+     *
+     * @param packet Received packet.
+     */
+    public void extendSequenceNumber(DataPacket packet) {
+        packet.setExtendedSequenceNumber(this.extendedSequenceNumber.extend(packet.getSequenceNumber()));
+    }
+
     public boolean isReceiver() {
         return (this.dataDestination != null) && (this.controlDestination != null);
     }
@@ -183,6 +213,14 @@ public class RtpParticipant {
         this.lastSequenceNumber = lastSequenceNumber;
     }
 
+    public long getLastExtendedSequenceNumber() {
+        return lastExtendedSequenceNumber;
+    }
+
+    public void setLastExtendedSequenceNumber(long lastExtendedSequenceNumber) {
+        this.lastExtendedSequenceNumber = lastExtendedSequenceNumber;
+    }
+
     public boolean receivedBye() {
         return this.byeReceptionInstant > 0;
     }
@@ -195,6 +233,10 @@ public class RtpParticipant {
         return this.receivedByteCounter.get();
     }
 
+    public ReceptionStatistics getReceptionStatistics() {
+        return receptionStatistics;
+    }
+
     public boolean hasReceivedSdes() {
         return receivedSdes;
     }
@@ -43,6 +43,8 @@ public class RtpParticipantInfo {
     private String note;
     private String privPrefix;
     private String priv;
+    // Set once a sender report is received from this participant
+    private volatile RtpClockMapping clockMapping;
 
     // constructors ---------------------------------------------------------------------------------------------------
 
@@ -80,6 +82,8 @@ public class RtpParticipantInfo {
         boolean modified = false;
         if (this.ssrc != chunk.getSsrc()) {
             this.ssrc = chunk.getSsrc();
+            // Sender reports of another source don't apply
+            this.clockMapping = null;
             modified = true;
         }
         if (chunk.getItems() == null) {
@@ -169,9 +173,26 @@ public class RtpParticipantInfo {
             throw new IllegalArgumentException("Valid range for SSRC is [0;0xffffffff]");
         }
 
+        if (ssrc != this.ssrc) {
+            // Sender reports of another source don't apply
+            this.clockMapping = null;
+        }
         this.ssrc = ssrc;
     }
 
+    /**
+     * Retrieves the relation between this participant's RTP timestamps, its wall clock and the local clock.
+     *
+     * @return Mapping from the last sender report, or <code>null</code> if no sender report was received yet.
+     */
+    public RtpClockMapping getClockMapping() {
+        return clockMapping;
+    }
+
+    public void setClockMapping(RtpClockMapping clockMapping) {
+        this.clockMapping = clockMapping;
+    }
+
     public String getCname() {
         return this.cname;
     }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2010 Bruno de Carvalho
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.biasedbit.efflux.participant;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable map of participants by SSRC, keyed by primitive longs.
+ * <p/>
+ * Changes return a new map, so a map can be published through a volatile field and read by any number of threads
+ * without locking. Copying the whole map on every change is fine for participants, which are created and removed far
+ * less often than they are looked up (once per packet).
+ *
+ * @author <a href="http://bruno.biasedbit.com/">Bruno de Carvalho</a>
+ */
+final class SsrcParticipantMap {
+
+    // constants ------------------------------------------------------------------------------------------------------
+
+    static final SsrcParticipantMap EMPTY = new SsrcParticipantMap(new long[0], new RtpParticipant[0]);
+    private static final int MIN_CAPACITY = 8;
+
+    // internal vars --------------------------------------------------------------------------------------------------
+
+    // Entries, in the order they were added.
+    private final long[] ssrcs;
+    private final RtpParticipant[] participants;
+    // Open addressing table of entry index + 1, 0 being an empty slot. Kept at most half full.
+    private final int[] table;
+    private final int mask;
+
+    // constructors ---------------------------------------------------------------------------------------------------
+
+    private SsrcParticipantMap(long[] ssrcs, RtpParticipant[] participants) {
+        this.ssrcs = ssrcs;
+        this.participants = participants;
+
+        int capacity = MIN_CAPACITY;
+        while (capacity < (ssrcs.length * 2)) {
+            capacity <<= 1;
+        }
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < ssrcs.length; i++) {
+            int slot = hash(ssrcs[i]) & this.mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.table[slot] = i + 1;
+        }
+    }
+
+    // public methods -------------------------------------------------------------------------------------------------
+
+    public RtpParticipant get(long ssrc) {
+        int index = this.indexOf(ssrc);
+        return index < 0 ? null : this.participants[index];
+    }
+
+    /**
+     * @return A map with the participant added, or replacing the one with the same SSRC.
+     */
+    public SsrcParticipantMap with(long ssrc, RtpParticipant participant) {
+        int index = this.indexOf(ssrc);
+        if (index >= 0) {
+            RtpParticipant[] participants = this.participants.clone();
+            participants[index] = participant;
+            return new SsrcParticipantMap(this.ssrcs, participants);
+        }
+
+        int size = this.ssrcs.length;
+        long[] ssrcs = Arrays.copyOf(this.ssrcs, size + 1);
+        RtpParticipant[] participants = Arrays.copyOf(this.participants, size + 1);
+        ssrcs[size] = ssrc;
+        participants[size] = participant;
+        return new SsrcParticipantMap(ssrcs, participants);
+    }
+
+    /**
+     * @return A map without the entries of the given participants.
+     */
+    public SsrcParticipantMap without(Collection<RtpParticipant> removed) {
+        if (removed.isEmpty()) {
+            return this;
+        }
+
+        long[] ssrcs = new long[this.ssrcs.length];
+        RtpParticipant[] participants = new RtpParticipant[this.participants.length];
+        int size = 0;
+        for (int i = 0; i < this.ssrcs.length; i++) {
+            if (!removed.contains(this.participants[i])) {
+                ssrcs[size] = this.ssrcs[i];
+                participants[size] = this.participants[i];
+                size++;
+            }
+        }
+
+        return new SsrcParticipantMap(Arrays.copyOf(ssrcs, size), Arrays.copyOf(participants, size));
+    }
+
+    /**
+     * @return The participants, in the order they were added.
+     */
+    public List<RtpParticipant> values() {
+        return Collections.unmodifiableList(Arrays.asList(this.participants));
+    }
+
+    public int size() {
+        return this.ssrcs.length;
+    }
+
+    /**
+     * @return A boxed copy of the map, for callers that need a {@link Map}.
+     */
+    public Map<Long, RtpParticipant> toMap() {
+        Map<Long, RtpParticipant> map = new HashMap<Long, RtpParticipant>(this.ssrcs.length * 2);
+        for (int i = 0; i < this.ssrcs.length; i++) {
+            map.put(this.ssrcs[i], this.participants[i]);
+        }
+
+        return map;
+    }
+
+    // private helpers ------------------------------------------------------------------------------------------------
+
+    private static int hash(long ssrc) {
+        // SSRCs are meant to be random, but nothing stops a sender from picking sequential ones.
+        long h = ssrc * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long ssrc) {
+        int slot = hash(ssrc) & this.mask;
+        int entry;
+        while ((entry = this.table[slot]) != 0) {
+            if (this.ssrcs[entry - 1] == ssrc) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+
+        return -1;
+    }
+}
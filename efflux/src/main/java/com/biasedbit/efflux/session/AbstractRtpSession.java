@@ -17,18 +17,19 @@
 package com.biasedbit.efflux.session;
 
 import com.biasedbit.efflux.logging.Logger;
-import com.biasedbit.efflux.network.ControlHandler;
-import com.biasedbit.efflux.network.ControlPacketDecoder;
-import com.biasedbit.efflux.network.ControlPacketEncoder;
-import com.biasedbit.efflux.network.DataHandler;
-import com.biasedbit.efflux.network.DataPacketDecoder;
-import com.biasedbit.efflux.network.DataPacketEncoder;
+import com.biasedbit.efflux.network.DatagramSocketTransport;
+import com.biasedbit.efflux.network.NettyTransport;
+import com.biasedbit.efflux.network.NioDatagramEngine;
+import com.biasedbit.efflux.network.RtpTransport;
+import com.biasedbit.efflux.network.RtpTransportFactory;
+import com.biasedbit.efflux.packet.AbstractFeedbackPacket;
 import com.biasedbit.efflux.packet.AbstractReportPacket;
 import com.biasedbit.efflux.packet.AppDataPacket;
 import com.biasedbit.efflux.packet.ByePacket;
 import com.biasedbit.efflux.packet.CompoundControlPacket;
 import com.biasedbit.efflux.packet.ControlPacket;
 import com.biasedbit.efflux.packet.DataPacket;
+import com.biasedbit.efflux.packet.DataPacketPool;
 import com.biasedbit.efflux.packet.ReceiverReportPacket;
 import com.biasedbit.efflux.packet.ReceptionReport;
 import com.biasedbit.efflux.packet.SdesChunk;
@@ -37,33 +38,27 @@ import com.biasedbit.efflux.packet.SenderReportPacket;
 import com.biasedbit.efflux.packet.SourceDescriptionPacket;
 import com.biasedbit.efflux.participant.ParticipantDatabase;
 import com.biasedbit.efflux.participant.ParticipantOperation;
+import com.biasedbit.efflux.participant.RtpClockMapping;
 import com.biasedbit.efflux.participant.RtpParticipant;
 import com.biasedbit.efflux.participant.RtpParticipantInfo;
+import com.biasedbit.efflux.util.TimeUtils;
 
-import org.jboss.netty.bootstrap.ConnectionlessBootstrap;
-import org.jboss.netty.channel.ChannelPipeline;
-import org.jboss.netty.channel.ChannelPipelineFactory;
-import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
-import org.jboss.netty.channel.socket.DatagramChannel;
-import org.jboss.netty.channel.socket.DatagramChannelFactory;
-import org.jboss.netty.channel.socket.nio.NioDatagramChannelFactory;
-import org.jboss.netty.channel.socket.oio.OioDatagramChannelFactory;
-import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.jboss.netty.util.HashedWheelTimer;
 import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.TimerTask;
 
+import java.io.IOException;
 import java.net.SocketAddress;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -79,6 +74,12 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
     protected static final Logger LOG = Logger.getLogger(AbstractRtpSession.class);
     protected static final String VERSION = "efflux_0.4_15092010";
 
+    // Built-in transports, see setTransport()
+    public static final String TRANSPORT_NETTY_OIO = "netty-oio";
+    public static final String TRANSPORT_NETTY_NIO = "netty-nio";
+    public static final String TRANSPORT_NIO = "nio";
+    public static final String TRANSPORT_SOCKET = "socket";
+
     // configuration defaults -----------------------------------------------------------------------------------------
 
     // TODO not working with USE_NIO = false
@@ -87,28 +88,42 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
     protected static final int BANDWIDTH_LIMIT = 256;
     protected static final int SEND_BUFFER_SIZE = 1500;
     protected static final int RECEIVE_BUFFER_SIZE = 1500;
+    // Ethernet MTU: no RTP or RTCP datagram is expected to be larger
+    protected static final int READ_BUFFER_SIZE = 1500;
     protected static final int MAX_COLLISIONS_BEFORE_CONSIDERING_LOOP = 3;
     protected static final boolean AUTOMATED_RTCP_HANDLING = true;
     protected static final boolean TRY_TO_UPDATE_ON_EVERY_SDES = true;
     protected static final int PARTICIPANT_DATABASE_CLEANUP = 10;
+    protected static final boolean ZERO_COPY_DECODING = false;
+    protected static final int DATA_PACKET_POOL_SIZE = 0;
+    protected static final int CLOCK_RATE = 90000;
     private static final boolean DEBUGGING = false;
 
     // configuration --------------------------------------------------------------------------------------------------
 
     protected final String id;
     protected final Set<Integer> payloadTypes = new HashSet<Integer>();
+    // RTX payload types (RFC 4588), mapped to the payload type of the packets they retransmit
+    protected final Map<Integer, Integer> retransmissionPayloadTypes = new HashMap<Integer, Integer>();
+    // Payload types of FEC streams (RFC 5109), handed to the listeners for them to recover lost packets
+    protected final Set<Integer> fecPayloadTypes = new HashSet<Integer>();
     protected final HashedWheelTimer timer;
     protected final OrderedMemoryAwareThreadPoolExecutor executor;
     protected String host;
-    protected boolean useNio;
+    protected String transportName;
+    protected RtpTransportFactory transportFactory;
     protected boolean discardOutOfOrder;
     protected int bandwidthLimit;
     protected int sendBufferSize;
     protected int receiveBufferSize;
+    protected int readBufferSize;
     protected int maxCollisionsBeforeConsideringLoop;
     protected boolean automatedRtcpHandling;
     protected boolean tryToUpdateOnEverySdes;
     protected int participantDatabaseCleanup;
+    protected boolean zeroCopyDecoding;
+    protected int dataPacketPoolSize;
+    protected int clockRate;
 
     // internal vars --------------------------------------------------------------------------------------------------
 
@@ -118,17 +133,21 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
     protected final List<RtpSessionDataListener> dataListeners;
     protected final List<RtpSessionControlListener> controlListeners;
     protected final List<RtpSessionEventListener> eventListeners;
-    protected ConnectionlessBootstrap dataBootstrap;
-    protected ConnectionlessBootstrap controlBootstrap;
-    protected DatagramChannel dataChannel;
-    protected DatagramChannel controlChannel;
+    protected RtpTransport transport;
+    protected DataPacketPool dataPacketPool;
     protected final AtomicInteger sequence;
     protected final AtomicBoolean sentOrReceivedPackets;
     protected final AtomicInteger collisions;
     protected final AtomicLong sentByteCounter;
     protected final AtomicLong sentPacketCounter;
+    protected final AtomicLong retransmittedPacketCounter;
+    protected final AtomicLong fecPacketCounter;
     protected int periodicRtcpSendInterval;
     protected final boolean internalTimer;
+    // Origin for the arrival times, in RTP clock units, used to compute the interarrival jitter
+    protected final long arrivalTimeBase;
+    // RTP timestamp of the last packet sent minus the wall clock time it was sent at, in RTP clock units
+    protected volatile long rtpTimestampOffset;
 
     // constructors ---------------------------------------------------------------------------------------------------
 
@@ -185,16 +204,24 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         this.collisions = new AtomicInteger(0);
         this.sentPacketCounter = new AtomicLong(0);
         this.sentByteCounter = new AtomicLong(0);
+        this.retransmittedPacketCounter = new AtomicLong(0);
+        this.fecPacketCounter = new AtomicLong(0);
 
-        this.useNio = USE_NIO;
+        // Inverted: true selects OIO
+        this.transportName = USE_NIO ? TRANSPORT_NETTY_OIO : TRANSPORT_NETTY_NIO;
         this.discardOutOfOrder = DISCARD_OUT_OF_ORDER;
         this.bandwidthLimit = BANDWIDTH_LIMIT;
         this.sendBufferSize = SEND_BUFFER_SIZE;
         this.receiveBufferSize = RECEIVE_BUFFER_SIZE;
+        this.readBufferSize = READ_BUFFER_SIZE;
         this.maxCollisionsBeforeConsideringLoop = MAX_COLLISIONS_BEFORE_CONSIDERING_LOOP;
         this.automatedRtcpHandling = AUTOMATED_RTCP_HANDLING;
         this.tryToUpdateOnEverySdes = TRY_TO_UPDATE_ON_EVERY_SDES;
         this.participantDatabaseCleanup = PARTICIPANT_DATABASE_CLEANUP;
+        this.zeroCopyDecoding = ZERO_COPY_DECODING;
+        this.dataPacketPoolSize = DATA_PACKET_POOL_SIZE;
+        this.clockRate = CLOCK_RATE;
+        this.arrivalTimeBase = TimeUtils.nowNanos();
     }
 
     // RtpSession -----------------------------------------------------------------------------------------------------
@@ -215,66 +242,26 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
             return true;
         }
 
-        DatagramChannelFactory factory;
-        if (this.useNio) {
-            factory = new OioDatagramChannelFactory(Executors.newCachedThreadPool());
-        } else {
-            factory = new NioDatagramChannelFactory(Executors.newCachedThreadPool());
-        }
-
-        this.dataBootstrap = new ConnectionlessBootstrap(factory);
-        this.dataBootstrap.setOption("sendBufferSize", this.sendBufferSize);
-        this.dataBootstrap.setOption("receiveBufferSize", this.receiveBufferSize);
-        this.dataBootstrap.setOption("receiveBufferSizePredictorFactory",
-                new FixedReceiveBufferSizePredictorFactory(this.receiveBufferSize));
-        this.dataBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
-            public ChannelPipeline getPipeline() throws Exception {
-                ChannelPipeline pipeline = Channels.pipeline();
-                pipeline.addLast("decoder", new DataPacketDecoder());
-                pipeline.addLast("encoder", DataPacketEncoder.getInstance());
-                if (executor != null) {
-                    pipeline.addLast("executorHandler", new ExecutionHandler(executor));
-                }
-                pipeline.addLast("handler", new DataHandler(AbstractRtpSession.this));
-                return pipeline;
-            }
-        });
-        this.controlBootstrap = new ConnectionlessBootstrap(factory);
-        this.controlBootstrap.setOption("sendBufferSize", this.sendBufferSize);
-        this.controlBootstrap.setOption("receiveBufferSize", this.receiveBufferSize);
-        this.controlBootstrap.setOption("receiveBufferSizePredictorFactory",
-                new FixedReceiveBufferSizePredictorFactory(this.receiveBufferSize));
-        this.controlBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
-            public ChannelPipeline getPipeline() throws Exception {
-                ChannelPipeline pipeline = Channels.pipeline();
-                pipeline.addLast("decoder", new ControlPacketDecoder());
-                pipeline.addLast("encoder", ControlPacketEncoder.getInstance());
-                if (executor != null) {
-                    pipeline.addLast("executorHandler", new ExecutionHandler(executor));
-                }
-                pipeline.addLast("handler", new ControlHandler(AbstractRtpSession.this));
-                return pipeline;
-            }
-        });
-
-        SocketAddress dataAddress = this.localParticipant.getDataDestination();
-        SocketAddress controlAddress = this.localParticipant.getControlDestination();
+        if (this.dataPacketPoolSize > 0) {
+            this.dataPacketPool = new DataPacketPool(this.dataPacketPoolSize);
+        }
 
-        try {
-            this.dataChannel = (DatagramChannel) this.dataBootstrap.bind(dataAddress);
-        } catch (Exception e) {
-            LOG.error("Failed to bind data channel for session with id " + this.id, e);
-            this.dataBootstrap.releaseExternalResources();
-            this.controlBootstrap.releaseExternalResources();
+        if (this.transportFactory != null) {
+            this.transport = this.transportFactory.createTransport(this.id, this, this);
+        } else {
+            this.transport = this.createTransport();
+        }
+        if (this.transport == null) {
+            LOG.error("Unknown transport {} for session with id {}.", this.transportName, this.id);
             return false;
         }
+
         try {
-            this.controlChannel = (DatagramChannel) this.controlBootstrap.bind(controlAddress);
-        } catch (Exception e) {
-            LOG.error("Failed to bind control channel for session with id " + this.id, e);
-            this.dataChannel.close();
-            this.dataBootstrap.releaseExternalResources();
-            this.controlBootstrap.releaseExternalResources();
+            this.transport.bind(this.localParticipant.getDataDestination(),
+                                this.localParticipant.getControlDestination());
+        } catch (IOException e) {
+            LOG.error("Failed to bind channels for session with id " + this.id, e);
+            this.transport = null;
             return false;
         }
 
@@ -310,6 +297,7 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         return true;
     }
 
+
     @Override
     public void terminate() {
         this.terminate(RtpSessionEventListener.TERMINATE_CALLED);
@@ -341,6 +329,8 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
 
         packet.setSsrc(this.localParticipant.getSsrc());
         packet.setSequenceNumber(this.sequence.incrementAndGet());
+        // Media is taken as captured right before being sent, which is what the sender reports tell the receivers.
+        this.rtpTimestampOffset = packet.getTimestamp() - ((TimeUtils.now() * this.clockRate) / 1000);
         this.internalSendData(packet);
         return true;
     }
@@ -349,12 +339,14 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
     public boolean sendControlPacket(ControlPacket packet) {
         // Only allow sending explicit RTCP packets if all the following conditions are met:
         // 1. session is running
-        // 2. automated rtcp handling is disabled (except for APP_DATA packets) 
+        // 2. automated rtcp handling is disabled (except for APP_DATA and feedback packets, which are sent on their
+        //    own as reduced-size RTCP)
         if (!this.running.get()) {
             return false;
         }
 
-        if (ControlPacket.Type.APP_DATA.equals(packet.getType()) || !this.automatedRtcpHandling) {
+        if (ControlPacket.Type.APP_DATA.equals(packet.getType()) || (packet instanceof AbstractFeedbackPacket) ||
+            !this.automatedRtcpHandling) {
             this.internalSendControl(packet);
             return true;
         }
@@ -430,12 +422,36 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
 
     // DataPacketReceiver ---------------------------------------------------------------------------------------------
 
+    /**
+     * Handles a received data packet and hands it to the data listeners.
+     * <p/>
+     * The session owns the packet's reference: it is released once the listeners return (or the packet is discarded),
+     * so listeners that hold on to a packet must {@link DataPacket#retain() retain} it and release it when done.
+     */
     @Override
     public void dataPacketReceived(SocketAddress origin, DataPacket packet) {
+        try {
+            this.handleDataPacket(origin, packet);
+        } finally {
+            packet.release();
+        }
+    }
+
+    protected void handleDataPacket(SocketAddress origin, DataPacket packet) {
         if (!this.running.get()) {
             return;
         }
 
+        if (this.isRetransmission(packet)) {
+            this.handleRetransmissionPacket(origin, packet);
+            return;
+        }
+
+        if (this.isFec(packet)) {
+            this.handleFecPacket(origin, packet);
+            return;
+        }
+
         if (!this.payloadTypes.contains(packet.getPayloadType())) {
             // Silently discard packets of wrong payload.
             return;
@@ -481,8 +497,14 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
             return;
         }
 
-        // Should the packet be discarded due to out of order SN?
-        if ((participant.getLastSequenceNumber() >= packet.getSequenceNumber()) && this.discardOutOfOrder) {
+        // Keep the reception statistics for the RTCP reports. Out of order packets count as received, too.
+        participant.dataPacketReceived(packet, this.getArrivalTime());
+        // Extend the sequence number here, once, so listeners can order packets across wrap arounds.
+        participant.extendSequenceNumber(packet);
+
+        // Should the packet be discarded due to out of order SN? Extended SNs keep their order across wrap arounds.
+        if ((participant.getLastExtendedSequenceNumber() >= packet.getExtendedSequenceNumber()) &&
+            this.discardOutOfOrder) {
             if (DEBUGGING) {
                 LOG.info("Discarded out of order packet from {} in session with id {} (last SN was {}, packet SN was {}).",
                         participant, this.id, participant.getLastSequenceNumber(), packet.getSequenceNumber());
@@ -492,6 +514,7 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
 
         // Update last SN for participant.
         participant.setLastSequenceNumber(packet.getSequenceNumber());
+        participant.setLastExtendedSequenceNumber(packet.getExtendedSequenceNumber());
         participant.setLastDataOrigin(origin);
 
         // Finally, dispatch the event to the data listeners.
@@ -500,6 +523,121 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         }
     }
 
+    /**
+     * Tells whether a data packet belongs to a retransmission (RTX) stream.
+     *
+     * @param packet Received data packet.
+     *
+     * @return <code>true</code> if its payload type was configured as an RTX payload type.
+     */
+    protected boolean isRetransmission(DataPacket packet) {
+        return !this.retransmissionPayloadTypes.isEmpty() &&
+               this.retransmissionPayloadTypes.containsKey(packet.getPayloadType());
+    }
+
+    /**
+     * Restores the original packet carried by an RTX packet (RFC 4588 section 4) and hands it to the data listeners,
+     * as if it had been received on the original stream. The packet is modified in place: its payload loses the
+     * original sequence number that prefixes it, which becomes the packet's sequence number (extended along with those
+     * of the original stream), and it takes the SSRC and payload type of the original stream.
+     * <p/>
+     * Retransmissions are not accounted in the reception statistics of the original stream, nor discarded for being
+     * out of order.
+     *
+     * @param origin Where the packet came from.
+     * @param packet RTX packet.
+     */
+    protected void handleRetransmissionPacket(SocketAddress origin, DataPacket packet) {
+        if (packet.getDataSize() < 2) {
+            // Padding only, nothing to recover.
+            return;
+        }
+
+        RtpParticipant participant = this.getRetransmissionSource(origin, packet);
+        if (participant == null) {
+            if (DEBUGGING) {
+                LOG.info("Discarded retransmission from unknown SSRC {} in session with id {}.", packet.getSsrc(),
+                         this.id);
+            }
+            return;
+        }
+
+        ChannelBuffer data = packet.getData();
+        int originalSequenceNumber = data.getUnsignedShort(0);
+        packet.setData(data.slice(2, data.writerIndex() - 2));
+        packet.setSequenceNumber(originalSequenceNumber);
+        participant.extendSequenceNumber(packet);
+        packet.setSsrc(participant.getSsrc());
+        packet.setPayloadType(this.retransmissionPayloadTypes.get(packet.getPayloadType()));
+        this.retransmittedPacketCounter.incrementAndGet();
+
+        for (RtpSessionDataListener listener : this.dataListeners) {
+            listener.dataPacketReceived(this, participant.getInfo(), packet);
+        }
+    }
+
+    /**
+     * Retrieves the participant whose packets are retransmitted by a given RTX packet. By default retransmissions are
+     * discarded, since telling which source an RTX stream belongs to requires knowing more about the session.
+     *
+     * @param origin Where the packet came from.
+     * @param packet RTX packet.
+     *
+     * @return The participant that originally sent the packet, or <code>null</code> to discard it.
+     */
+    protected RtpParticipant getRetransmissionSource(SocketAddress origin, DataPacket packet) {
+        return null;
+    }
+
+    /**
+     * Tells whether a data packet belongs to a FEC stream.
+     *
+     * @param packet Received data packet.
+     *
+     * @return <code>true</code> if its payload type was configured as a FEC payload type.
+     */
+    protected boolean isFec(DataPacket packet) {
+        return !this.fecPayloadTypes.isEmpty() && this.fecPayloadTypes.contains(packet.getPayloadType());
+    }
+
+    /**
+     * Hands a FEC packet to the data listeners, untouched, on behalf of the participant whose packets it protects.
+     * Recovering lost packets is up to the listeners, which can tell FEC packets apart by their payload type.
+     * <p/>
+     * FEC packets are not accounted in the reception statistics of the protected stream, nor discarded for being out
+     * of order.
+     *
+     * @param origin Where the packet came from.
+     * @param packet FEC packet.
+     */
+    protected void handleFecPacket(SocketAddress origin, DataPacket packet) {
+        RtpParticipant participant = this.getFecSource(origin, packet);
+        if (participant == null) {
+            if (DEBUGGING) {
+                LOG.info("Discarded FEC packet from unknown SSRC {} in session with id {}.", packet.getSsrc(), this.id);
+            }
+            return;
+        }
+
+        this.fecPacketCounter.incrementAndGet();
+        for (RtpSessionDataListener listener : this.dataListeners) {
+            listener.dataPacketReceived(this, participant.getInfo(), packet);
+        }
+    }
+
+    /**
+     * Retrieves the participant whose packets are protected by a given FEC packet. By default FEC packets are
+     * discarded, since telling which source a FEC stream belongs to requires knowing more about the session.
+     *
+     * @param origin Where the packet came from.
+     * @param packet FEC packet.
+     *
+     * @return The participant whose packets are protected, or <code>null</code> to discard it.
+     */
+    protected RtpParticipant getFecSource(SocketAddress origin, DataPacket packet) {
+        return null;
+    }
+
     // ControlPacketReceiver ------------------------------------------------------------------------------------------
 
     @Override
@@ -564,17 +702,57 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
 
     // protected helpers ----------------------------------------------------------------------------------------------
 
-    protected void handleReportPacket(SocketAddress origin, AbstractReportPacket abstractReportPacket) {
-        if (abstractReportPacket.getReceptionReportCount() == 0) {
-            return;
+    /**
+     * Creates the built-in transport named by {@link #setTransport(String)}, with the session's settings.
+     *
+     * @return The transport, or {@code null} if there's no built-in transport by that name.
+     */
+    protected RtpTransport createTransport() {
+        String name = "efflux-" + this.id;
+        if (TRANSPORT_NETTY_OIO.equals(this.transportName) || TRANSPORT_NETTY_NIO.equals(this.transportName)) {
+            return new NettyTransport(TRANSPORT_NETTY_OIO.equals(this.transportName), this, this,
+                                      this.dataPacketPool, !this.zeroCopyDecoding, this.executor,
+                                      this.sendBufferSize, this.receiveBufferSize, this.readBufferSize);
+        } else if (TRANSPORT_NIO.equals(this.transportName)) {
+            return new NioDatagramEngine(name, this, this, this.dataPacketPool,
+                                         this.sendBufferSize, this.receiveBufferSize, this.readBufferSize);
+        } else if (TRANSPORT_SOCKET.equals(this.transportName)) {
+            return new DatagramSocketTransport(name, this, this, this.dataPacketPool,
+                                               this.sendBufferSize, this.receiveBufferSize, this.readBufferSize);
         }
 
+        return null;
+    }
+
+    protected void handleReportPacket(SocketAddress origin, AbstractReportPacket abstractReportPacket) {
         RtpParticipant context = this.participantDatabase.getParticipant(abstractReportPacket.getSenderSsrc());
         if (context == null) {
             // Ignore; RTCP-SDES or RTP packet must first be received.
             return;
         }
 
+        // For sender reports, also handle the sender information.
+        if (abstractReportPacket.getType().equals(ControlPacket.Type.SENDER_REPORT)) {
+            SenderReportPacket senderReport = (SenderReportPacket) abstractReportPacket;
+            long now = TimeUtils.now();
+            // Echoed back (along with the time elapsed since then) in our reception reports.
+            context.getReceptionStatistics().senderReportReceived(senderReport.getNtpTimestamp(), now);
+            // Relates the participant's RTP timestamps to its wall clock and ours, for play-out and synchronisation.
+            RtpClockMapping clockMapping = context.getInfo().getClockMapping();
+            if (clockMapping == null) {
+                clockMapping = new RtpClockMapping(senderReport.getNtpTimestamp(), senderReport.getRtpTimestamp(),
+                                                   this.clockRate, now);
+            } else {
+                clockMapping = clockMapping.update(senderReport.getNtpTimestamp(), senderReport.getRtpTimestamp(),
+                                                   now);
+            }
+            context.getInfo().setClockMapping(clockMapping);
+        }
+
+        if (abstractReportPacket.getReceptionReportCount() == 0) {
+            return;
+        }
+
         for (ReceptionReport receptionReport : abstractReportPacket.getReceptionReports()) {
             // Ignore all reception reports except for the one who pertains to the local participant (only data that
             // matters here is the link between this participant and ourselves).
@@ -582,12 +760,6 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
                 // TODO
             }
         }
-
-        // For sender reports, also handle the sender information.
-        if (abstractReportPacket.getType().equals(ControlPacket.Type.SENDER_REPORT)) {
-            SenderReportPacket senderReport = (SenderReportPacket) abstractReportPacket;
-            // TODO
-        }
     }
 
     protected void handleSdesPacket(SocketAddress origin, SourceDescriptionPacket packet) {
@@ -714,15 +886,15 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
     }
 
     protected void writeToData(DataPacket packet, SocketAddress destination) {
-        this.dataChannel.write(packet, destination);
+        this.transport.sendData(packet, destination);
     }
 
     protected void writeToControl(ControlPacket packet, SocketAddress destination) {
-        this.controlChannel.write(packet, destination);
+        this.transport.sendControl(packet, destination);
     }
 
     protected void writeToControl(CompoundControlPacket packet, SocketAddress destination) {
-        this.controlChannel.write(packet, destination);
+        this.transport.sendControl(packet, destination);
     }
 
     protected void joinSession(long currentSsrc) {
@@ -760,8 +932,10 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         } else {
             // Otherwise, build a sender report.
             SenderReportPacket senderPacket = new SenderReportPacket();
-            senderPacket.setNtpTimestamp(0); // FIXME
-            senderPacket.setRtpTimestamp(System.currentTimeMillis()); // FIXME
+            long now = TimeUtils.now();
+            senderPacket.setNtpTimestamp(TimeUtils.toNtpTimestamp(now));
+            // Timestamp the media captured right now would have, following on from the last packet sent.
+            senderPacket.setRtpTimestamp((this.rtpTimestampOffset + ((now * this.clockRate) / 1000)) & 0xffffffffL);
             senderPacket.setSenderPacketCount(this.getSentPackets());
             senderPacket.setSenderOctetCount(this.getSentBytes());
             packet = senderPacket;
@@ -770,14 +944,11 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
 
         // If this source sent data, then calculate the link quality to build a reception report block.
         if (context.getReceivedPackets() > 0) {
-            ReceptionReport block = new ReceptionReport();
-            block.setSsrc(context.getInfo().getSsrc());
-            block.setDelaySinceLastSenderReport(0); // FIXME
-            block.setFractionLost((short) 0); // FIXME
-            block.setExtendedHighestSequenceNumberReceived(0); // FIXME
-            block.setInterArrivalJitter(0); // FIXME
-            block.setCumulativeNumberOfPacketsLost(0); // FIXME
-            packet.addReceptionReportBlock(block);
+            ReceptionReport block = context.getReceptionStatistics()
+                    .buildReceptionReport(context.getInfo().getSsrc(), TimeUtils.now());
+            if (block != null) {
+                packet.addReceptionReportBlock(block);
+            }
         }
 
         return packet;
@@ -791,7 +962,7 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         if (info.getCname() == null) {
             info.setCname(new StringBuilder()
                     .append("efflux/").append(this.id).append('@')
-                    .append(this.dataChannel.getLocalAddress()).toString());
+                    .append(this.transport.getDataLocalAddress()).toString());
         }
         chunk.addItem(SdesChunkItems.createCnameItem(info.getCname()));
 
@@ -837,13 +1008,9 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         this.dataListeners.clear();
         this.controlListeners.clear();
 
-        // Close data channel, send BYE RTCP packets and close control channel.
-        this.dataChannel.close();
+        // Send BYE RTCP packets and close both channels.
         this.leaveSession(this.localParticipant.getSsrc(), "Session terminated.");
-        this.controlChannel.close();
-
-        this.dataBootstrap.releaseExternalResources();
-        this.controlBootstrap.releaseExternalResources();
+        this.transport.close();
 
         if (DEBUGGING) {
             LOG.debug("RtpSession with id {} terminated.", this.id);
@@ -872,6 +1039,17 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         return this.sentPacketCounter.incrementAndGet();
     }
 
+    /**
+     * Retrieves the current time in RTP clock units, relative to an arbitrary origin, to compute the interarrival
+     * jitter of the received packets.
+     *
+     * @return Arrival time for a packet received now.
+     */
+    protected long getArrivalTime() {
+        // Microseconds first, so the multiplication doesn't overflow for any realistic session length.
+        return ((TimeUtils.nowNanos() - this.arrivalTimeBase) / 1000) * this.clockRate / 1000000;
+    }
+
     protected long updatePeriodicRtcpSendInterval() {
         // TODO make this adaptative
         return (this.periodicRtcpSendInterval = 5);
@@ -895,14 +1073,65 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
     }
 
     public boolean useNio() {
-        return useNio;
+        return TRANSPORT_NETTY_OIO.equals(this.transportName);
     }
 
+    /**
+     * Picks one of Netty's transports. Inverted: {@code true} selects blocking channels ({@value #TRANSPORT_NETTY_OIO})
+     * and {@code false} non blocking ones ({@value #TRANSPORT_NETTY_NIO}).
+     *
+     * @param useNio Whether to use Netty's OIO channels.
+     */
     public void setUseNio(boolean useNio) {
+        this.setTransport(useNio ? TRANSPORT_NETTY_OIO : TRANSPORT_NETTY_NIO);
+    }
+
+    public String getTransport() {
+        return transportName;
+    }
+
+    /**
+     * Picks the built-in transport to receive and send through:
+     * <ul>
+     * <li>{@value #TRANSPORT_NETTY_OIO}: Netty's blocking channels, a thread per channel (default);</li>
+     * <li>{@value #TRANSPORT_NETTY_NIO}: Netty's non blocking channels;</li>
+     * <li>{@value #TRANSPORT_NIO}: a {@link NioDatagramEngine}, a single thread for both channels that decodes data
+     * packets straight from a direct buffer;</li>
+     * <li>{@value #TRANSPORT_SOCKET}: a {@link DatagramSocketTransport}, plain blocking sockets.</li>
+     * </ul>
+     * Only the Netty transports hand received packets to the executor given to the session and honour
+     * {@link #setZeroCopyDecoding(boolean)}; the others handle packets on their own threads and always copy payloads.
+     *
+     * @param transport Name of the transport.
+     */
+    public void setTransport(String transport) {
         if (this.running.get()) {
             throw new IllegalArgumentException("Cannot modify property after initialisation");
         }
-        this.useNio = useNio;
+        this.transportName = transport;
+    }
+
+    public RtpTransportFactory getTransportFactory() {
+        return transportFactory;
+    }
+
+    /**
+     * Creates the transport with a factory instead of picking a built-in one with {@link #setTransport(String)}.
+     *
+     * @param transportFactory Factory of the transport, or {@code null} to use the built-in ones.
+     */
+    public void setTransportFactory(RtpTransportFactory transportFactory) {
+        if (this.running.get()) {
+            throw new IllegalArgumentException("Cannot modify property after initialisation");
+        }
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * @return The transport the session was bound with, or {@code null} before {@link #init()}.
+     */
+    public RtpTransport getRtpTransport() {
+        return transport;
     }
 
     public boolean isDiscardOutOfOrder() {
@@ -942,6 +1171,12 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         return receiveBufferSize;
     }
 
+    /**
+     * Size of the kernel receive buffer (SO_RCVBUF) of both channels, which holds the datagrams that arrive while the
+     * session is busy. Each datagram is read into a buffer of {@link #setReadBufferSize(int) its own}.
+     *
+     * @param receiveBufferSize Kernel receive buffer size, in bytes.
+     */
     public void setReceiveBufferSize(int receiveBufferSize) {
         if (this.running.get()) {
             throw new IllegalArgumentException("Cannot modify property after initialisation");
@@ -949,6 +1184,27 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         this.receiveBufferSize = receiveBufferSize;
     }
 
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * Size of the buffer each datagram is read into. Netty allocates one of these for every datagram it reads (the
+     * {@link NioDatagramEngine} reuses its own), so it should be close to the largest datagram expected, the path MTU
+     * by default; larger datagrams are truncated.
+     *
+     * @param readBufferSize Read buffer size, in bytes.
+     */
+    public void setReadBufferSize(int readBufferSize) {
+        if (this.running.get()) {
+            throw new IllegalArgumentException("Cannot modify property after initialisation");
+        }
+        if (readBufferSize <= 0) {
+            throw new IllegalArgumentException("Read buffer size must be > 0");
+        }
+        this.readBufferSize = readBufferSize;
+    }
+
     public int getMaxCollisionsBeforeConsideringLoop() {
         return maxCollisionsBeforeConsideringLoop;
     }
@@ -1000,4 +1256,105 @@ public abstract class AbstractRtpSession implements RtpSession, TimerTask {
         }
         this.participantDatabaseCleanup = participantDatabaseCleanup;
     }
+
+    public int getDataPacketPoolSize() {
+        return dataPacketPoolSize;
+    }
+
+    /**
+     * Number of {@link DataPacket} instances to keep for reuse on the receive path; 0 (the default) disables pooling.
+     * When enabled, data listeners that keep packets after their callback returns must retain and release them (see
+     * {@link DataPacketPool}).
+     *
+     * @param dataPacketPoolSize Maximum amount of idle packets kept by the pool.
+     */
+    public void setDataPacketPoolSize(int dataPacketPoolSize) {
+        if (this.running.get()) {
+            throw new IllegalArgumentException("Cannot modify property after initialisation");
+        }
+        this.dataPacketPoolSize = dataPacketPoolSize;
+    }
+
+    public DataPacketPool getDataPacketPool() {
+        return dataPacketPool;
+    }
+
+    /**
+     * Receive retransmissions (RFC 4588) sent with a given payload type, for packets of another payload type. The
+     * payload type names the RTX stream, like the <code>apt</code> parameter does in SDP.
+     *
+     * @param retransmissionPayloadType  Payload type of the RTX packets.
+     * @param associatedPayloadType      Payload type of the packets they retransmit.
+     */
+    public void addRetransmissionPayloadType(int retransmissionPayloadType, int associatedPayloadType) {
+        if (this.running.get()) {
+            throw new IllegalArgumentException("Cannot modify property after initialisation");
+        }
+        if ((retransmissionPayloadType < 0) || (retransmissionPayloadType > 127) ||
+            (associatedPayloadType < 0) || (associatedPayloadType > 127)) {
+            throw new IllegalArgumentException("PayloadTypes must be in range [0;127]");
+        }
+        this.retransmissionPayloadTypes.put(retransmissionPayloadType, associatedPayloadType);
+    }
+
+    public long getReceivedRetransmissions() {
+        return this.retransmittedPacketCounter.get();
+    }
+
+    /**
+     * Receive FEC packets (e.g. RFC 5109 ULPFEC) sent on their own stream with a given payload type.
+     *
+     * @param fecPayloadType Payload type of the FEC packets.
+     */
+    public void addFecPayloadType(int fecPayloadType) {
+        if (this.running.get()) {
+            throw new IllegalArgumentException("Cannot modify property after initialisation");
+        }
+        if ((fecPayloadType < 0) || (fecPayloadType > 127)) {
+            throw new IllegalArgumentException("PayloadTypes must be in range [0;127]");
+        }
+        this.fecPayloadTypes.add(fecPayloadType);
+    }
+
+    public long getReceivedFecPackets() {
+        return this.fecPacketCounter.get();
+    }
+
+    public int getClockRate() {
+        return clockRate;
+    }
+
+    /**
+     * Clock rate of the RTP timestamps of the received media (90000 Hz, the default, for video), used to compute the
+     * interarrival jitter reported in the RTCP reception reports.
+     *
+     * @param clockRate Clock rate, in Hz.
+     */
+    public void setClockRate(int clockRate) {
+        if (this.running.get()) {
+            throw new IllegalArgumentException("Cannot modify property after initialisation");
+        }
+        if (clockRate <= 0) {
+            throw new IllegalArgumentException("Clock rate must be > 0");
+        }
+        this.clockRate = clockRate;
+    }
+
+    public boolean isZeroCopyDecoding() {
+        return zeroCopyDecoding;
+    }
+
+    /**
+     * When enabled, received data packets keep their payload as a slice of the buffer read from the network instead
+     * of a copy. Saves an allocation and a copy per packet, at the cost of keeping the whole receive buffer alive for
+     * as long as the packet is referenced (so keep the read buffer size close to the MTU when using this).
+     *
+     * @param zeroCopyDecoding Whether to decode data packets without copying their payload.
+     */
+    public void setZeroCopyDecoding(boolean zeroCopyDecoding) {
+        if (this.running.get()) {
+            throw new IllegalArgumentException("Cannot modify property after initialisation");
+        }
+        this.zeroCopyDecoding = zeroCopyDecoding;
+    }
 }
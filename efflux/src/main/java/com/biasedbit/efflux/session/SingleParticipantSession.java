@@ -69,6 +69,8 @@ public class SingleParticipantSession extends AbstractRtpSession {
     // internal vars --------------------------------------------------------------------------------------------------
 
     private final AtomicBoolean receivedPackets;
+    // SSRC of the remote participant's retransmission stream, once known
+    private volatile long retransmissionSsrc = -1;
 
     // constructors ---------------------------------------------------------------------------------------------------
 
@@ -198,10 +200,14 @@ public class SingleParticipantSession extends AbstractRtpSession {
         }
     }
 
-    // DataPacketReceiver ---------------------------------------------------------------------------------------------
-
     @Override
-    public void dataPacketReceived(SocketAddress origin, DataPacket packet) {
+    protected void handleDataPacket(SocketAddress origin, DataPacket packet) {
+        if (this.isRetransmission(packet) || this.isFec(packet)) {
+            // Comes from a stream related to the remote participant's (RTX or FEC), not from another source
+            super.handleDataPacket(origin, packet);
+            return;
+        }
+
         if (!this.receivedPackets.getAndSet(true)) {
             // If this is the first packet then setup the SSRC for this participant (we didn't know it yet).
             this.receiver.getInfo().setSsrc(packet.getSsrc());
@@ -218,7 +224,28 @@ public class SingleParticipantSession extends AbstractRtpSession {
         }
 
         unknownSsrcCounter = 0;
-        super.dataPacketReceived(origin, packet);
+        super.handleDataPacket(origin, packet);
+    }
+
+    @Override
+    protected RtpParticipant getRetransmissionSource(SocketAddress origin, DataPacket packet) {
+        if (!this.receivedPackets.get()) {
+            // Don't know the original stream's SSRC yet.
+            return null;
+        }
+
+        // There's a single remote participant, so its RTX stream is whichever one carries the RTX payload type.
+        if (packet.getSsrc() != this.retransmissionSsrc) {
+            LOG.info("Retransmissions for SSRC {} received from SSRC {}.", this.receiver.getSsrc(), packet.getSsrc());
+            this.retransmissionSsrc = packet.getSsrc();
+        }
+        return this.receiver;
+    }
+
+    @Override
+    protected RtpParticipant getFecSource(SocketAddress origin, DataPacket packet) {
+        // There's a single remote participant, whose packets are the only ones to protect.
+        return this.receivedPackets.get() ? this.receiver : null;
     }
 
     // getters & setters ----------------------------------------------------------------------------------------------
@@ -249,6 +276,10 @@ public class SingleParticipantSession extends AbstractRtpSession {
         this.ignoreFromUnknownSsrc = ignoreFromUnknownSsrc;
     }
 
+    public long getRetransmissionSsrc() {
+        return retransmissionSsrc;
+    }
+
     public void setSsrcListener(SsrcListener listener) {
         ssrcListener = listener;
     }
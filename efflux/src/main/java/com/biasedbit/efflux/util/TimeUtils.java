@@ -21,6 +21,11 @@ package com.biasedbit.efflux.util;
  */
 public class TimeUtils {
 
+    // constants ------------------------------------------------------------------------------------------------------
+
+    // Seconds from the NTP epoch (1900) to the Unix epoch (1970)
+    private static final long NTP_EPOCH_OFFSET = 2208988800L;
+
     // constructors ---------------------------------------------------------------------------------------------------
 
     private TimeUtils() {
@@ -46,6 +51,33 @@ public class TimeUtils {
         return System.nanoTime();
     }
 
+    /**
+     * Converts a wall clock time to a 64 bit NTP timestamp (RFC 3550 section 4): seconds since 1900 in the upper 32
+     * bits and the fraction of a second in the lower 32 bits.
+     *
+     * @param millis Milliseconds since the Unix epoch.
+     *
+     * @return NTP timestamp.
+     */
+    public static long toNtpTimestamp(long millis) {
+        long seconds = (millis / 1000) + NTP_EPOCH_OFFSET;
+        long fraction = ((millis % 1000) << 32) / 1000;
+        return (seconds << 32) | fraction;
+    }
+
+    /**
+     * Converts a 64 bit NTP timestamp to a wall clock time.
+     *
+     * @param ntpTimestamp NTP timestamp.
+     *
+     * @return Milliseconds since the Unix epoch.
+     */
+    public static long fromNtpTimestamp(long ntpTimestamp) {
+        long seconds = (ntpTimestamp >>> 32) - NTP_EPOCH_OFFSET;
+        long millis = (((ntpTimestamp & 0xffffffffL) * 1000) + 0x80000000L) >>> 32;
+        return (seconds * 1000) + millis;
+    }
+
     /**
      * Test whether a given event has timed out (in seconds).
      *